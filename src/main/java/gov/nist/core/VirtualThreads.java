@@ -0,0 +1,88 @@
+package gov.nist.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access to the virtual threads of the running JVM. The stack is compiled for Java 8, so the virtual thread API is
+ * looked up reflectively once; on a JVM without virtual threads (or with them disabled as a preview feature)
+ * {@link #isSupported()} returns false and the callers keep using platform threads.
+ */
+public final class VirtualThreads {
+	private static final Logger logger = Logger.getLogger(VirtualThreads.class.getName());
+
+	private static final ThreadFactory FACTORY = lookupFactory();
+
+	private VirtualThreads() {
+	}
+
+	private static ThreadFactory lookupFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+			ThreadFactory threadFactory = (ThreadFactory) factory.invoke(builder);
+
+			// make sure virtual threads can really be created, they may be a disabled preview feature
+			threadFactory.newThread(() -> { });
+
+			return threadFactory;
+		} catch(Exception | LinkageError ex) {
+			logger.log(Level.FINEST, "virtual threads are not available", ex);
+
+			return null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the running JVM can create virtual threads
+	 */
+	public static boolean isSupported() {
+		return FACTORY != null;
+	}
+
+	/**
+	 * Creates an unstarted virtual thread.
+	 *
+	 * @param task the task the thread runs
+	 * @param name the thread name
+	 * @return the new thread
+	 * @throws UnsupportedOperationException if virtual threads are not supported
+	 */
+	public static Thread newThread(Runnable task, String name) {
+		if(FACTORY == null) {
+			throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+		}
+
+		Thread thread = FACTORY.newThread(task);
+
+		thread.setName(name);
+
+		return thread;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 *
+	 * @param baseName the base name of the threads, see {@link NamingThreadFactory}
+	 * @return the new executor
+	 * @throws UnsupportedOperationException if virtual threads are not supported
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String baseName) {
+		if(FACTORY == null) {
+			throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+		}
+
+		try {
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, new NamingThreadFactory(baseName, FACTORY));
+		} catch(ReflectiveOperationException ex) {
+			// the factory exists, so a cached pool of virtual threads behaves the same
+			return Executors.newCachedThreadPool(new NamingThreadFactory(baseName, FACTORY));
+		}
+	}
+}
@@ -101,6 +101,8 @@ public class SslNetworkLayer implements NetworkLayer {
 			sslContext.init(kmFactory.getKeyManagers(), tmFactory.getTrustManagers(), secureRandom);
 		}
 
+		sipStack.configureClientSessionCache(sslContext);
+
 		sslServerSocketFactory = sslContext.getServerSocketFactory();
 		sslSocketFactory = sslContext.getSocketFactory();
 	}
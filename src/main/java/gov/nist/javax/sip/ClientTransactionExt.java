@@ -1,7 +1,12 @@
 package gov.nist.javax.sip;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
 import javax.sip.address.Hop;
 
 public interface ClientTransactionExt extends ClientTransaction, TransactionExt {
@@ -47,4 +52,30 @@ public interface ClientTransactionExt extends ClientTransaction, TransactionExt
 	 * that have to deal with forked responses.
 	 */
 	public Dialog getDefaultDialog();
+
+	/**
+	 * Sends the request like {@link #sendRequest()} but returns a future instead of delivering the outcome to the
+	 * SipListener. The future completes with the final response event, or exceptionally with a
+	 * {@link java.util.concurrent.TimeoutException} if the transaction times out, an {@link java.io.IOException} if the
+	 * request cannot be delivered, or a {@link SipException} if the transaction terminates without a final response.
+	 * 
+	 * The events consumed by the future are not passed to the SipListener nor queued in the event scanner: the
+	 * future completes on the stack thread which processed the response, so dependent stages should not block (use the
+	 * async variants of CompletableFuture to move blocking work elsewhere). Additional 2xx responses of a forked
+	 * INVITE arriving after the completion are delivered to the SipListener as usual.
+	 * 
+	 * @return the future of the final response
+	 * @throws SipException if the request cannot be sent, see {@link #sendRequest()}
+	 */
+	public CompletableFuture<ResponseEvent> sendRequestAsync() throws SipException;
+
+	/**
+	 * Same as {@link #sendRequestAsync()} and calls the given callback for each provisional response.
+	 * 
+	 * @param provisionalResponseCallback called with each 1xx response, can be null
+	 * @return the future of the final response
+	 * @throws SipException if the request cannot be sent, see {@link #sendRequest()}
+	 */
+	public CompletableFuture<ResponseEvent> sendRequestAsync(Consumer<ResponseEvent> provisionalResponseCallback)
+			throws SipException;
 }
@@ -1200,7 +1200,7 @@ class DialogFilter implements ServerRequestInterface, ServerResponseInterface {
 
 				SIPClientTransaction forked = this.sipStack.getForkedTransaction(response.getForkId());
 				if(dialog != null && forked != null) {
-					dialog.checkRetransmissionForForking(response);
+					dialog.checkRetransmissionForForking(response, forked.getDefaultDialog());
 
 					logger.log(Level.FINEST, "original dialog {0}, forked dialog {1}", new Object[] {
 							forked.getDefaultDialog(), dialog });
@@ -1243,7 +1243,7 @@ class DialogFilter implements ServerRequestInterface, ServerResponseInterface {
 			SIPClientTransaction forked = this.sipStack.getForkedTransaction(response.getForkId());
 
 			if(dialog != null && forked != null) {
-				dialog.checkRetransmissionForForking(response);
+				dialog.checkRetransmissionForForking(response, forked.getDefaultDialog());
 
 				if(forked.getDefaultDialog() != null && !dialog.equals(forked.getDefaultDialog())) {
 					logger.log(Level.FINEST, "forkedId: {0}, forked dialog: {1}, original TX: {2}, original"
@@ -1454,7 +1454,7 @@ class DialogFilter implements ServerRequestInterface, ServerResponseInterface {
 			ClientTransactionExt originalTx = this.sipStack.getForkedTransaction(sipResponse.getForkId());
 
 			if(sipDialog != null && originalTx != null) {
-				sipDialog.checkRetransmissionForForking(sipResponse);
+				sipDialog.checkRetransmissionForForking(sipResponse, originalTx.getDefaultDialog());
 
 				if(originalTx.getDefaultDialog() != null && !sipDialog.equals(originalTx.getDefaultDialog())) {
 					logger.log(Level.FINEST, "forkedId: {0}, forked dialog: {1}, original TX: {2},"
@@ -1,9 +1,11 @@
 package gov.nist.javax.sip;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.EventObject;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,7 +14,9 @@ import javax.sip.DialogTerminatedEvent;
 import javax.sip.IOExceptionEvent;
 import javax.sip.RequestEvent;
 import javax.sip.ResponseEvent;
+import javax.sip.SipException;
 import javax.sip.SipListener;
+import javax.sip.Timeout;
 import javax.sip.TimeoutEvent;
 import javax.sip.TransactionState;
 import javax.sip.TransactionTerminatedEvent;
@@ -29,15 +33,19 @@ import gov.nist.javax.sip.stack.SIPTransaction;
 
 /**
  * Event Scanner to deliver events to the Listener.
+ *
+ * When the listener is not re-entrant events are delivered by lane threads. By default there is a single lane so all
+ * the events are delivered one at a time, in order. With several lanes (see
+ * gov.nist.javax.sip.EVENT_SCANNER_LANES) events are spread over the lanes by Call-ID, so the events of one call (and
+ * of its dialogs) are still delivered one at a time and in order, while different calls are delivered in parallel.
  */
-public class EventScanner implements Runnable {
+public class EventScanner {
 	private static final Logger logger = Logger.getLogger(EventScanner.class.getName());
 
 	private boolean isStopped;
 	private int refCount;
 
-	// SIPquest: Fix for deadlocks
-	private LinkedList<EventWrapper> pendingEvents;
+	private volatile Lane[] lanes;
 
 	private int[] eventMutex = { 0 };
 
@@ -50,29 +58,72 @@ public class EventScanner implements Runnable {
 	}
 
 	public EventScanner(SipStackImpl sipStackImpl) {
-		this.pendingEvents = new LinkedList<>();
+		this.sipStack = sipStackImpl;
 
-		Thread myThread = new Thread(this);
+		this.lanes = new Lane[Math.max(1, sipStackImpl.getEventScannerLanes())];
 
-		// This needs to be set to false else the main thread mysteriously exits.
-		myThread.setDaemon(false);
+		for(int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane(i);
+			lanes[i].start();
+		}
+	}
 
-		this.sipStack = sipStackImpl;
+	/**
+	 * Sets the number of delivery lanes. Lanes can only be added, this is meant to be called while configuring the
+	 * stack, before events flow.
+	 *
+	 * @param laneCount the number of lanes
+	 */
+	public void setLaneCount(int laneCount) {
+		synchronized(eventMutex) {
+			Lane[] current = this.lanes;
+			if(laneCount <= current.length || isStopped) {
+				return;
+			}
+
+			Lane[] newLanes = Arrays.copyOf(current, laneCount);
+			for(int i = current.length; i < laneCount; i++) {
+				newLanes[i] = new Lane(i);
+				newLanes[i].start();
+			}
+
+			this.lanes = newLanes;
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
 
-		myThread.setName("EventScannerThread");
+	/**
+	 * @return a snapshot of the statistics of every delivery lane
+	 */
+	public LaneStatistics[] getLaneStatistics() {
+		Lane[] currentLanes = this.lanes;
+		LaneStatistics[] statistics = new LaneStatistics[currentLanes.length];
+
+		for(int i = 0; i < currentLanes.length; i++) {
+			statistics[i] = currentLanes[i].getStatistics();
+		}
 
-		myThread.start();
+		return statistics;
 	}
 
 	public void addEvent(EventWrapper eventWrapper) {
 		logger.log(Level.FINEST, "addEvent {0}", eventWrapper);
 
-		synchronized(this.eventMutex) {
-			pendingEvents.add(eventWrapper);
+		Lane[] currentLanes = this.lanes;
+		Lane lane = currentLanes[0];
+
+		if(currentLanes.length > 1) {
+			String callId = eventWrapper.getCallId();
 
-			// Add the event into the pending events list
-			eventMutex.notify();
+			if(callId != null) {
+				lane = currentLanes[(callId.hashCode() & Integer.MAX_VALUE) % currentLanes.length];
+			}
 		}
+
+		lane.addEvent(eventWrapper);
 	}
 
 	/**
@@ -88,7 +139,7 @@ public class EventScanner implements Runnable {
 			if(this.refCount == 0) {
 				isStopped = true;
 
-				eventMutex.notify();
+				stopLanes();
 			}
 		}
 	}
@@ -101,7 +152,13 @@ public class EventScanner implements Runnable {
 			this.isStopped = true;
 			this.refCount = 0;
 
-			this.eventMutex.notify();
+			stopLanes();
+		}
+	}
+
+	private void stopLanes() {
+		for(Lane lane : lanes) {
+			lane.stop();
 		}
 	}
 
@@ -221,9 +278,15 @@ public class EventScanner implements Runnable {
 					logger.log(Level.FINEST, "Calling listener {0} for {1}",
 							new Object[] {sipListener, sipResponse.getFirstLine()});
 
-					if(sipListener != null) {
-						SIPTransaction tx = eventWrapper.transaction;
+					SIPTransaction tx = eventWrapper.transaction;
+
+					if(tx instanceof SIPClientTransaction
+							&& ((SIPClientTransaction) tx).isResponseFuturePending()) {
+						// the request was sent with sendRequestAsync, the future replaces the listener
+						tx.setPassToListener();
 
+						((SIPClientTransaction) tx).completeResponseFuture(responseEvent);
+					} else if(sipListener != null) {
 						if(tx != null) {
 							tx.setPassToListener();
 						}
@@ -297,6 +360,13 @@ public class EventScanner implements Runnable {
 			}
 		} else if(sipEvent instanceof TimeoutEvent) {
 			try {
+				TimeoutEvent timeoutEvent = (TimeoutEvent) sipEvent;
+
+				if(timeoutEvent.getTimeout() == Timeout.TRANSACTION && failResponseFuture(eventWrapper,
+						new TimeoutException("Transaction timed out: " + eventWrapper.transaction))) {
+					return;
+				}
+
 				// Check for null as listener could be removed.
 				if(sipListener != null) {
 					sipListener.processTimeout((TimeoutEvent) sipEvent);
@@ -326,6 +396,14 @@ public class EventScanner implements Runnable {
 			}
 		} else if (sipEvent instanceof IOExceptionEvent) {
 			try {
+				IOExceptionEvent ioExceptionEvent = (IOExceptionEvent) sipEvent;
+
+				if(failResponseFuture(eventWrapper, new IOException("Could not send request to "
+						+ ioExceptionEvent.getHost() + ":" + ioExceptionEvent.getPort() + "/"
+						+ ioExceptionEvent.getTransport()))) {
+					return;
+				}
+
 				if(sipListener != null) {
 					sipListener.processIOException((IOExceptionEvent) sipEvent);
 				}
@@ -338,6 +416,8 @@ public class EventScanner implements Runnable {
 				logger.log(Level.FINEST, "tx: {0}", ((TransactionTerminatedEvent) sipEvent).getClientTransaction());
 				logger.log(Level.FINEST, "tx: {0}", ((TransactionTerminatedEvent) sipEvent).getServerTransaction());
 
+				failResponseFuture(eventWrapper, new SipException("Transaction terminated without a final response"));
+
 				if(sipListener != null) {
 					sipListener.processTransactionTerminated((TransactionTerminatedEvent) sipEvent);
 				}
@@ -364,86 +444,266 @@ public class EventScanner implements Runnable {
 	}
 
 	/**
-	 * For the non-reentrant listener this delivers the events to the listener from a single queue. If the listener
-	 * is reentrant, then the stack just calls the deliverEvent method above.
+	 * Fails the future of a request sent with sendRequestAsync.
+	 *
+	 * @return <code>true</code> if the event was consumed by the future
 	 */
-	@Override
-	public void run() {
-		try {
-			// Ask the auditor to monitor this thread
-			ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
-
-			while(true) {
-				EventWrapper eventWrapper = null;
-
-				LinkedList<EventWrapper> eventsToDeliver;
-				synchronized(this.eventMutex) {
-					// First, wait for some events to become available.
-					while (pendingEvents.isEmpty()) {
-						/*
-						 * There's nothing in the list, check to make sure we haven't been stopped. If we have,
-						 * then let the thread die.
-						 */
-						if(this.isStopped) {
-							logger.log(Level.FINEST, "Stopped event scanner!!");
+	private static boolean failResponseFuture(EventWrapper eventWrapper, Throwable cause) {
+		return eventWrapper.transaction instanceof SIPClientTransaction
+				&& ((SIPClientTransaction) eventWrapper.transaction).failResponseFuture(cause);
+	}
 
-							return;
+	/**
+	 * Point in time statistics of one delivery lane.
+	 */
+	public static class LaneStatistics {
+		private final int lane;
+		private final int queueDepth;
+		private final int maxQueueDepth;
+		private final long deliveredEvents;
+		private final long totalQueueTime;
+		private final long maxQueueTime;
+		private final long totalDeliveryTime;
+		private final long maxDeliveryTime;
+
+		LaneStatistics(int lane, int queueDepth, int maxQueueDepth, long deliveredEvents, long totalQueueTime,
+				long maxQueueTime, long totalDeliveryTime, long maxDeliveryTime) {
+			this.lane = lane;
+			this.queueDepth = queueDepth;
+			this.maxQueueDepth = maxQueueDepth;
+			this.deliveredEvents = deliveredEvents;
+			this.totalQueueTime = totalQueueTime;
+			this.maxQueueTime = maxQueueTime;
+			this.totalDeliveryTime = totalDeliveryTime;
+			this.maxDeliveryTime = maxDeliveryTime;
+		}
+
+		public int getLane() {
+			return lane;
+		}
+
+		/**
+		 * @return the number of events waiting in the lane
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		public long getDeliveredEvents() {
+			return deliveredEvents;
+		}
+
+		/**
+		 * @return the average time in milliseconds events waited in the lane before being delivered
+		 */
+		public double getAverageQueueTime() {
+			return deliveredEvents == 0 ? 0 : (double) totalQueueTime / deliveredEvents;
+		}
+
+		public long getMaxQueueTime() {
+			return maxQueueTime;
+		}
+
+		/**
+		 * @return the average time in milliseconds the listener took to process an event
+		 */
+		public double getAverageDeliveryTime() {
+			return deliveredEvents == 0 ? 0 : (double) totalDeliveryTime / deliveredEvents;
+		}
+
+		public long getMaxDeliveryTime() {
+			return maxDeliveryTime;
+		}
+
+		@Override
+		public String toString() {
+			return "LaneStatistics [lane=" + lane + ", queueDepth=" + queueDepth + ", maxQueueDepth=" + maxQueueDepth
+					+ ", deliveredEvents=" + deliveredEvents + ", averageQueueTime=" + getAverageQueueTime()
+					+ ", maxQueueTime=" + maxQueueTime + ", averageDeliveryTime=" + getAverageDeliveryTime()
+					+ ", maxDeliveryTime=" + maxDeliveryTime + "]";
+		}
+	}
+
+	/**
+	 * A delivery thread with its own queue of pending events.
+	 */
+	private class Lane implements Runnable {
+		private final int index;
+
+		// SIPquest: Fix for deadlocks
+		private LinkedList<EventWrapper> pendingEvents = new LinkedList<>();
+
+		private final int[] laneMutex = { 0 };
+
+		private boolean laneStopped;
+
+		// statistics, updated under laneMutex by producers and by the lane thread once per batch
+		private int maxQueueDepth;
+		private long deliveredEvents;
+		private long totalQueueTime;
+		private long maxQueueTime;
+		private long totalDeliveryTime;
+		private long maxDeliveryTime;
+
+		Lane(int index) {
+			this.index = index;
+		}
+
+		void start() {
+			Thread myThread = new Thread(this);
+
+			// This needs to be set to false else the main thread mysteriously exits.
+			myThread.setDaemon(false);
+
+			myThread.setName(index == 0 ? "EventScannerThread" : "EventScannerThread-" + index);
+
+			myThread.start();
+		}
+
+		void addEvent(EventWrapper eventWrapper) {
+			eventWrapper.queuedTime = System.currentTimeMillis();
+
+			synchronized(laneMutex) {
+				pendingEvents.add(eventWrapper);
+
+				if(pendingEvents.size() > maxQueueDepth) {
+					maxQueueDepth = pendingEvents.size();
+				}
+
+				// Add the event into the pending events list
+				laneMutex.notify();
+			}
+		}
+
+		void stop() {
+			synchronized(laneMutex) {
+				laneStopped = true;
+
+				laneMutex.notify();
+			}
+		}
+
+		LaneStatistics getStatistics() {
+			synchronized(laneMutex) {
+				return new LaneStatistics(index, pendingEvents.size(), maxQueueDepth, deliveredEvents, totalQueueTime,
+						maxQueueTime, totalDeliveryTime, maxDeliveryTime);
+			}
+		}
+
+		/**
+		 * For the non-reentrant listener this delivers the events to the listener from the lane queue. If the
+		 * listener is reentrant, then the stack just calls the deliverEvent method above.
+		 */
+		@Override
+		public void run() {
+			try {
+				// Ask the auditor to monitor this thread
+				ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
+
+				while(true) {
+					EventWrapper eventWrapper = null;
+
+					LinkedList<EventWrapper> eventsToDeliver;
+					synchronized(this.laneMutex) {
+						// First, wait for some events to become available.
+						while (pendingEvents.isEmpty()) {
+							/*
+							 * There's nothing in the list, check to make sure we haven't been stopped. If we have,
+							 * then let the thread die.
+							 */
+							if(this.laneStopped) {
+								logger.log(Level.FINEST, "Stopped event scanner lane {0}!!", index);
+
+								return;
+							}
+
+							/*
+							 * We haven't been stopped, and the event list is indeed rather empty. Wait for some
+							 * events to come along.
+							 */
+							try {
+								// Send a heart beat to the thread auditor
+								threadHandle.ping();
+
+								// Wait for events (with a timeout)
+								laneMutex.wait(threadHandle.getPingIntervalInMillisecs());
+							} catch(InterruptedException ex) {
+								// Let the thread die a normal death
+								logger.log(Level.FINEST, "Interrupted!");
+
+								return;
+							}
 						}
 
 						/*
-						 * We haven't been stopped, and the event list is indeed rather empty. Wait for some events
-						 * to come along.
+						 * There are events in the 'pending events list' that need processing. Hold onto the old
+						 * 'pending Events' list, but make a new one for the other methods to operate on. This
+						 * tap-dancing is to avoid deadlocks and also to ensure that the list is not modified while
+						 * we are iterating over it.
 						 */
-						try {
-							// Send a heart beat to the thread auditor
-							threadHandle.ping();
+						eventsToDeliver = pendingEvents;
 
-							// Wait for events (with a timeout)
-							eventMutex.wait(threadHandle.getPingIntervalInMillisecs());
-						} catch(InterruptedException ex) {
-							// Let the thread die a normal death
-							logger.log(Level.FINEST, "Interrupted!");
-
-							return;
-						}
+						pendingEvents = new LinkedList<>();
 					}
 
-					/*
-					 * There are events in the 'pending events list' that need processing. Hold onto the old
-					 * 'pending Events' list, but make a new one for the other methods to operate on. This tap-dancing
-					 * is to avoid deadlocks and also to ensure that the list is not modified while we are
-					 * iterating over it.
-					 */
-					eventsToDeliver = pendingEvents;
+					long batchQueueTime = 0;
+					long batchMaxQueueTime = 0;
+					long batchDeliveryTime = 0;
+					long batchMaxDeliveryTime = 0;
 
-					pendingEvents = new LinkedList<>();
-				}
+					ListIterator<EventWrapper> iterator = eventsToDeliver.listIterator();
+					while(iterator.hasNext()) {
+						eventWrapper = iterator.next();
 
-				ListIterator<EventWrapper> iterator = eventsToDeliver.listIterator();
-				while(iterator.hasNext()) {
-					eventWrapper = iterator.next();
+						logger.log(Level.FINEST, "Processing, eventWrapper: {0} eventsToDeliver.size(): {1}",
+								new Object[] {eventWrapper, eventsToDeliver.size()});
 
-					logger.log(Level.FINEST, "Processing, eventWrapper: {0} eventsToDeliver.size(): {1}",
-							new Object[] {eventWrapper, eventsToDeliver.size()});
+						long start = System.currentTimeMillis();
+						long queueTime = start - eventWrapper.queuedTime;
 
-					try {
-						deliverEvent(eventWrapper);
-					} catch(Exception e) {
-						logger.log(Level.SEVERE, "Unexpected exception caught while delivering event --"
-								+ " carrying on bravely", e);
+						try {
+							deliverEvent(eventWrapper);
+						} catch(Exception e) {
+							logger.log(Level.SEVERE, "Unexpected exception caught while delivering event --"
+									+ " carrying on bravely", e);
+						}
+
+						long deliveryTime = System.currentTimeMillis() - start;
+
+						batchQueueTime += queueTime;
+						batchMaxQueueTime = Math.max(batchMaxQueueTime, queueTime);
+						batchDeliveryTime += deliveryTime;
+						batchMaxDeliveryTime = Math.max(batchMaxDeliveryTime, deliveryTime);
+					}
+
+					synchronized(this.laneMutex) {
+						deliveredEvents += eventsToDeliver.size();
+						totalQueueTime += batchQueueTime;
+						maxQueueTime = Math.max(maxQueueTime, batchMaxQueueTime);
+						totalDeliveryTime += batchDeliveryTime;
+						maxDeliveryTime = Math.max(maxDeliveryTime, batchMaxDeliveryTime);
 					}
 				}
+			} finally {
+				if(!this.laneStopped) {
+					logger.log(Level.SEVERE, "Event scanner lane {0} exited abnormally", index);
+				}
 			}
-		} finally {
-			if(!this.isStopped) {
-				logger.log(Level.SEVERE, "Event scanner exited abnormally");
-			}
+		}
+
+		@Override
+		public String toString() {
+			return "Lane [index=" + index + ", pendingEvents=" + pendingEvents + "]";
 		}
 	}
 
 	@Override
 	public String toString() {
-		return "EventScanner [isStopped=" + isStopped + ", refCount=" + refCount + ", pendingEvents=" + pendingEvents
+		return "EventScanner [isStopped=" + isStopped + ", refCount=" + refCount + ", lanes=" + Arrays.toString(lanes)
 				+ ", eventMutex=" + Arrays.toString(eventMutex) + ", sipStack=" + sipStack + "]";
 	}
 }
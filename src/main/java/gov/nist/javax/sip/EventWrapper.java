@@ -2,14 +2,81 @@ package gov.nist.javax.sip;
 
 import java.util.EventObject;
 
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.TimeoutEvent;
+import javax.sip.Transaction;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Message;
+
 import gov.nist.javax.sip.stack.SIPTransaction;
 
 public class EventWrapper {
 	protected EventObject sipEvent;
 	protected SIPTransaction transaction;
 
+	// time at which the event was queued for delivery by the event scanner
+	protected long queuedTime;
+
 	public EventWrapper(EventObject sipEvent, SIPTransaction transaction) {
 		this.sipEvent = sipEvent;
 		this.transaction = transaction;
 	}
+
+	/**
+	 * @return the Call-ID of the call the event belongs to or <code>null</code> if the event is not related to a
+	 *         call, as for IO exceptions
+	 */
+	public String getCallId() {
+		if(transaction != null && transaction.getOriginalRequestCallId() != null) {
+			return transaction.getOriginalRequestCallId();
+		}
+
+		if(sipEvent instanceof RequestEvent) {
+			return getCallId(((RequestEvent) sipEvent).getRequest());
+		} else if(sipEvent instanceof ResponseEvent) {
+			return getCallId(((ResponseEvent) sipEvent).getResponse());
+		} else if(sipEvent instanceof TimeoutEvent) {
+			TimeoutEvent timeoutEvent = (TimeoutEvent) sipEvent;
+
+			return getCallId(timeoutEvent.isServerTransaction() ? timeoutEvent.getServerTransaction()
+					: timeoutEvent.getClientTransaction());
+		} else if(sipEvent instanceof DialogTimeoutEvent) {
+			return getCallId(((DialogTimeoutEvent) sipEvent).getDialog());
+		} else if(sipEvent instanceof DialogTerminatedEvent) {
+			return getCallId(((DialogTerminatedEvent) sipEvent).getDialog());
+		} else if(sipEvent instanceof TransactionTerminatedEvent) {
+			TransactionTerminatedEvent terminatedEvent = (TransactionTerminatedEvent) sipEvent;
+
+			return getCallId(terminatedEvent.isServerTransaction() ? terminatedEvent.getServerTransaction()
+					: terminatedEvent.getClientTransaction());
+		}
+
+		return null;
+	}
+
+	private static String getCallId(Message message) {
+		if(message == null) {
+			return null;
+		}
+
+		CallIdHeader callIdHeader = (CallIdHeader) message.getHeader(CallIdHeader.NAME);
+
+		return callIdHeader == null ? null : callIdHeader.getCallId();
+	}
+
+	private static String getCallId(Transaction transaction) {
+		return transaction == null ? null : getCallId(transaction.getRequest());
+	}
+
+	private static String getCallId(Dialog dialog) {
+		if(dialog == null || dialog.getCallId() == null) {
+			return null;
+		}
+
+		return dialog.getCallId().getCallId();
+	}
 }
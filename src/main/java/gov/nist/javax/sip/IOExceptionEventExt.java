@@ -10,7 +10,11 @@ public class IOExceptionEventExt extends IOExceptionEvent {
 	private Reason reason = null;
 
 	public enum Reason {
-		KeepAliveTimeout
+		KeepAliveTimeout,
+		// the bytes queued on the connection went over its high-water mark
+		ConnectionCongested,
+		// the bytes queued on a congested connection went down to its low-water mark
+		ConnectionWritable
 	}
 
 	public IOExceptionEventExt(Object source, Reason reason, String myHost, int myPort, String peerHost, int peerPort,
@@ -48,7 +52,7 @@ public class IOExceptionEventExt extends IOExceptionEvent {
 
 	@Override
 	public String toString() {
-		return "KeepAliveTimeoutEvent{" + "myHost='" + myHost + '\'' + ", myPort=" + myPort + ", peerHost='" + getHost()
+		return reason + "Event{" + "myHost='" + myHost + '\'' + ", myPort=" + myPort + ", peerHost='" + getHost()
 				+ '\'' + ", peerPort=" + getPort() + ", transport='" + getTransport() + '\'' + '}';
 	}
 }
@@ -1,6 +1,15 @@
 package gov.nist.javax.sip;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
 import javax.sip.SipProvider;
+import javax.sip.TransactionUnavailableException;
+import javax.sip.address.Hop;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
 
 /**
  * Extensions to SipProvider under consideration for Version 2.0.
@@ -67,4 +76,42 @@ public interface SipProviderExt extends SipProvider {
 	 * behavior of the flag is undefined.
 	 */
 	public void setLoopDetectionEnabled(boolean flag);
+
+	/**
+	 * Creates a client transaction for the request and sends it, see
+	 * {@link ClientTransactionExt#sendRequestAsync(Consumer)}.
+	 * 
+	 * @param request the request to send
+	 * @param provisionalResponseCallback called with each 1xx response, can be null
+	 * @return the future of the final response
+	 * @throws TransactionUnavailableException if the client transaction cannot be created
+	 * @throws SipException if the request cannot be sent
+	 */
+	public CompletableFuture<ResponseEvent> sendRequestAsync(Request request,
+			Consumer<ResponseEvent> provisionalResponseCallback) throws SipException;
+
+	/**
+	 * Forwards a request statelessly as described in RFC 3261 section 16.11. The forwarding works on the bytes the
+	 * request was received as (see gov.nist.javax.sip.RETAIN_RECEIVED_MESSAGE_BYTES): Max-Forwards is decremented,
+	 * the top Route is removed if it points to this provider and a Via with a branch derived from the incoming top
+	 * Via is added, then the bytes are sent without going through the message encoder. Changes made by the
+	 * application to the parsed request are therefore not forwarded when the received bytes are available; if they
+	 * are not, the request is encoded first.
+	 * 
+	 * @param request a request received by this provider
+	 * @param nextHop the hop to forward the request to, null to use the Route header or the Request-URI
+	 * @throws SipException if the request cannot be forwarded, in particular if its Max-Forwards is 0, in which case
+	 *                      the application should answer 483 (Too Many Hops)
+	 */
+	public void forwardRequestStatelessly(Request request, Hop nextHop) throws SipException;
+
+	/**
+	 * Forwards a response statelessly: its top Via, which must have been added by
+	 * {@link #forwardRequestStatelessly(Request, Hop)}, is removed from the received bytes and the response is sent
+	 * to the address of the next Via.
+	 * 
+	 * @param response a response received by this provider
+	 * @throws SipException if the top Via was not added by this stack or the response cannot be sent
+	 */
+	public void forwardResponseStatelessly(Response response) throws SipException;
 }
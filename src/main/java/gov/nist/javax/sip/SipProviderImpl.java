@@ -4,10 +4,14 @@ import gov.nist.core.InternalErrorHandler;
 import gov.nist.javax.sip.DialogTimeoutEvent.Reason;
 import gov.nist.javax.sip.address.RouterExt;
 import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.Route;
+import gov.nist.javax.sip.header.RouteList;
 import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.RawMessageEditor;
 import gov.nist.javax.sip.stack.HopImpl;
 import gov.nist.javax.sip.stack.MessageChannel;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
@@ -21,11 +25,14 @@ import gov.nist.javax.sip.stack.SIPTransactionEventListener;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.text.ParseException;
 import java.util.EventObject;
 import java.util.Iterator;
 import java.util.TooManyListenersException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,7 +55,11 @@ import javax.sip.TransactionAlreadyExistsException;
 import javax.sip.TransactionState;
 import javax.sip.TransactionUnavailableException;
 import javax.sip.address.Hop;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
 import javax.sip.header.CallIdHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ViaHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
@@ -125,9 +136,16 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 			}
 		}
 
-		EventWrapper eventWrapper = new EventWrapper(sipEvent, transaction);
+		final EventWrapper eventWrapper = new EventWrapper(sipEvent, transaction);
 
-		if (!sipStack.isReEntrantListener()) {
+		if(sipStack.getCallIdExecutor() != null) {
+			// deliver on the mailbox of the call, inline when the event is raised while processing that call
+			sipStack.executeInCallContext(eventWrapper.getCallId(), () -> this.eventScanner.deliverEvent(eventWrapper));
+		} else if(transaction instanceof SIPClientTransaction
+				&& ((SIPClientTransaction) transaction).isResponseFuturePending()) {
+			// the outcome goes to the future of sendRequestAsync, complete it now rather than behind the listener queue
+			this.eventScanner.deliverEvent(eventWrapper);
+		} else if (!sipStack.isReEntrantListener()) {
 			// Run the event in the context of a single thread.
 			this.eventScanner.addEvent(eventWrapper);
 		} else {
@@ -136,6 +154,26 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 		}
 	}
 
+	/**
+	 * Queues an event for the event scanner, never delivering it on the calling thread. For the events raised by
+	 * threads which must not run the listener, such as the NIO selector.
+	 *
+	 * @param sipEvent is the event to process.
+	 */
+	public void queueEvent(EventObject sipEvent) {
+		queueEvent(sipEvent, null);
+	}
+
+	/**
+	 * Queues an event of a transaction for the event scanner, never delivering it on the calling thread.
+	 *
+	 * @param sipEvent    is the event to process.
+	 * @param transaction the transaction of the event, null if there is none
+	 */
+	public void queueEvent(EventObject sipEvent, SIPTransaction transaction) {
+		this.eventScanner.addEvent(new EventWrapper(sipEvent, transaction));
+	}
+
 	/** Creates a new instance of SipProviderImpl */
 	protected SipProviderImpl(SipStackImpl sipStack) {
 		// for quick access.
@@ -367,6 +405,19 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see gov.nist.javax.sip.SipProviderExt#sendRequestAsync(javax.sip.message.Request, java.util.function.Consumer)
+	 */
+	@Override
+	public CompletableFuture<ResponseEvent> sendRequestAsync(Request request,
+			Consumer<ResponseEvent> provisionalResponseCallback) throws SipException {
+		ClientTransactionExt clientTransaction = (ClientTransactionExt) getNewClientTransaction(request);
+
+		return clientTransaction.sendRequestAsync(provisionalResponseCallback);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -675,7 +726,7 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 			if(this.listeningPoints.containsKey(hop.getTransport().toUpperCase())) {
 				messageChannel = sipStack.createRawMessageChannel(
 						this.getListeningPoint(hop.getTransport()).getIPAddress(),
-						this.getListeningPoint(hop.getTransport()).getPort(), hop);
+						this.getListeningPoint(hop.getTransport()).getPort(), hop, sipRequest);
 			}
 
 			if(messageChannel != null) {
@@ -719,6 +770,29 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 			throw new SipException("Transaction exists -- cannot send response statelessly");
 		}
 	
+		String transport = via.getTransport();
+		Hop hop = getResponseHop(via);
+
+		try {
+			ListeningPointImpl listeningPoint = (ListeningPointImpl) this.getListeningPoint(transport);
+
+			if(listeningPoint == null) {
+				throw new SipException("whoopsa daisy! no listening point found for transport " + transport);
+			}
+
+			MessageChannel messageChannel = sipStack.createRawMessageChannel(this.getListeningPoint(hop.getTransport())
+					.getIPAddress(), listeningPoint.port, hop);
+
+			messageChannel.sendMessage(sipResponse);
+		} catch(IOException ex) {
+			throw new SipException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return the hop a response goes to according to its Via
+	 */
+	private Hop getResponseHop(Via via) {
 		String transport = via.getTransport();
 
 		/*
@@ -750,21 +824,202 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 			host = "[" + host + "]";
 		}
 
-		Hop hop = sipStack.getAddressResolver().resolveAddress(new HopImpl(host, port, transport));
+		return sipStack.getAddressResolver().resolveAddress(new HopImpl(host, port, transport));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see gov.nist.javax.sip.SipProviderExt#forwardRequestStatelessly(javax.sip.message.Request, javax.sip.address.Hop)
+	 */
+	@Override
+	public void forwardRequestStatelessly(Request request, Hop nextHop) throws SipException {
+		if(!sipStack.isAlive()) {
+			throw new SipException(STACK_IS_STOPPED);
+		}
+
+		SIPRequest sipRequest = (SIPRequest) request;
+		Via topmostVia = sipRequest.getTopmostVia();
+
+		if(topmostVia == null) {
+			throw new SipException("Invalid SipRequest -- no via header!");
+		}
+
 		try {
-			ListeningPointImpl listeningPoint = (ListeningPointImpl) this.getListeningPoint(transport);
+			RawMessageEditor editor = new RawMessageEditor(getMessageBytes(sipRequest));
+
+			if(editor.decrementMaxForwards() < 0) {
+				throw new SipException("Max-Forwards exhausted, the request must be answered with 483");
+			}
+
+			// RFC 3261 section 16.4, remove the top Route if it points to this proxy
+			RouteList routes = sipRequest.getRouteHeaders();
+			boolean routePopped = routes != null && !routes.isEmpty() && isRouteToThisProvider((Route) routes.getFirst());
+
+			if(routePopped) {
+				editor.removeFirstValue(RouteHeader.NAME, null);
+			}
+
+			Hop hop = nextHop;
+			if(hop == null) {
+				if(routePopped) {
+					URI target = routes.size() > 1 ? routes.get(1).getAddress().getURI() : sipRequest.getRequestURI();
+
+					hop = createHop(target);
+				} else {
+					hop = sipStack.getRouter(sipRequest).getNextHop(request);
+				}
+			}
 
+			if(hop == null) {
+				throw new SipException("could not determine next hop!");
+			}
+
+			ListeningPointImpl listeningPoint = (ListeningPointImpl) this.getListeningPoint(hop.getTransport());
 			if(listeningPoint == null) {
-				throw new SipException("whoopsa daisy! no listening point found for transport " + transport);
+				throw new SipException("Could not create a message channel for " + hop.toString());
 			}
 
-			MessageChannel messageChannel = sipStack.createRawMessageChannel(this.getListeningPoint(hop.getTransport())
-					.getIPAddress(), listeningPoint.port, hop);
+			/*
+			 * RFC 3261 section 16.11, the branch of a stateless proxy must be the same for the retransmissions of a
+			 * request so it is derived from the branch of the incoming top Via.
+			 */
+			String branch = Utils.getInstance().generateStatelessBranchId(
+					topmostVia.getBranch() != null ? topmostVia.getBranch() : topmostVia.encode());
+			Via via = listeningPoint.getViaHeader();
 
-			messageChannel.sendMessage(sipResponse);
+			/*
+			 * RFC 3261 section 18.2.1, the top Via carries the received and rport parameters set on reception so the
+			 * response goes back to where the request came from.
+			 */
+			editor.replaceFirstValue(ViaHeader.NAME, "v", topmostVia.getHeaderValue());
+			editor.insertHeaderBefore(ViaHeader.NAME, "v", ViaHeader.NAME + ": " + via.getSentProtocol().encode()
+					+ " " + via.getSentBy().encode() + ";branch=" + branch);
+
+			sendMessageBytes(editor.toByteArray(), listeningPoint, hop, true);
+		} catch(ParseException ex) {
+			throw new SipException("Could not forward the request", ex);
 		} catch(IOException ex) {
-			throw new SipException(ex.getMessage());
+			throw new SipException("IO Exception occured while forwarding Request", ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see gov.nist.javax.sip.SipProviderExt#forwardResponseStatelessly(javax.sip.message.Response)
+	 */
+	@Override
+	public void forwardResponseStatelessly(Response response) throws SipException {
+		if(!sipStack.isAlive()) {
+			throw new SipException(STACK_IS_STOPPED);
+		}
+
+		SIPResponse sipResponse = (SIPResponse) response;
+		ViaList vias = sipResponse.getViaHeaders();
+
+		if(vias == null || vias.isEmpty() || !Utils.getInstance().responseBelongsToUs(sipResponse)) {
+			throw new SipException("The top Via was not added by this stack");
+		}
+
+		if(vias.size() < 2) {
+			throw new SipException("No Via left to forward the response to");
+		}
+
+		Via via = vias.get(1);
+		Hop hop = getResponseHop(via);
+
+		ListeningPointImpl listeningPoint = (ListeningPointImpl) this.getListeningPoint(via.getTransport());
+		if(listeningPoint == null) {
+			throw new SipException("no listening point found for transport " + via.getTransport());
+		}
+
+		try {
+			RawMessageEditor editor = new RawMessageEditor(getMessageBytes(sipResponse));
+
+			editor.removeFirstValue(ViaHeader.NAME, "v");
+
+			sendMessageBytes(editor.toByteArray(), listeningPoint, hop, false);
+		} catch(ParseException ex) {
+			throw new SipException("Could not forward the response", ex);
+		} catch(IOException ex) {
+			throw new SipException("IO Exception occured while forwarding Response", ex);
+		}
+	}
+
+	/**
+	 * @return the received bytes of the message if they were retained, its encoding otherwise
+	 */
+	private static byte[] getMessageBytes(SIPMessage sipMessage) {
+		byte[] rawMessage = sipMessage.getRawMessage();
+
+		return rawMessage != null ? rawMessage : sipMessage.encodeAsBytes(sipMessage.getTopmostVia().getTransport());
+	}
+
+	private void sendMessageBytes(byte[] message, ListeningPointImpl listeningPoint, Hop hop, boolean isRequest)
+			throws IOException {
+		MessageChannel messageChannel = sipStack.createRawMessageChannel(listeningPoint.getIPAddress(),
+				listeningPoint.getPort(), hop);
+
+		if(messageChannel == null) {
+			throw new IOException("Could not create a message channel for " + hop.toString());
 		}
+
+		messageChannel.sendMessageBytes(message, InetAddress.getByName(hop.getHost()), hop.getPort(), isRequest);
+	}
+
+	/**
+	 * @return <code>true</code> if the route points to one of the listening points of this provider
+	 */
+	private boolean isRouteToThisProvider(Route route) {
+		URI uri = route.getAddress().getURI();
+		if(!(uri instanceof SipURI)) {
+			return false;
+		}
+
+		SipURI sipUri = (SipURI) uri;
+
+		for(ListeningPoint lp : listeningPoints.values()) {
+			ListeningPointImpl listeningPoint = (ListeningPointImpl) lp;
+
+			int port = sipUri.getPort();
+			if(port == -1) {
+				port = listeningPoint.getTransport().equalsIgnoreCase(ListeningPoint.TLS) ? 5061 : 5060;
+			}
+
+			String host = sipUri.getHost();
+			if((host.equals(listeningPoint.getIPAddress()) || host.equalsIgnoreCase(listeningPoint.getSentBy()))
+					&& port == listeningPoint.getPort()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the hop of a route or request URI, the same way the default router computes it
+	 */
+	private Hop createHop(URI uri) throws SipException {
+		if(!(uri instanceof SipURI)) {
+			throw new SipException("could not determine next hop for " + uri);
+		}
+
+		SipURI sipUri = (SipURI) uri;
+
+		String transport = sipUri.isSecure() ? ListeningPoint.TLS : sipUri.getTransportParam();
+		if(transport == null) {
+			transport = ListeningPoint.UDP;
+		}
+
+		int port = sipUri.getPort();
+		if(port == -1) {
+			port = transport.equalsIgnoreCase(ListeningPoint.TLS) ? 5061 : 5060;
+		}
+
+		String host = sipUri.getMAddrParam() != null ? sipUri.getMAddrParam() : sipUri.getHost();
+
+		return sipStack.getAddressResolver().resolveAddress(new HopImpl(host, port, transport));
 	}
 
 	/*
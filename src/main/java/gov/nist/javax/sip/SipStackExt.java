@@ -7,12 +7,14 @@ import gov.nist.javax.sip.clientauthutils.SecureAccountManager;
 import gov.nist.javax.sip.header.extensions.JoinHeader;
 import gov.nist.javax.sip.header.extensions.ReplacesHeader;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.util.Collection;
 
 import javax.sip.Dialog;
+import javax.sip.DialogState;
 import javax.sip.SipStack;
 import javax.sip.header.HeaderFactory;
 
@@ -38,6 +40,33 @@ public interface SipStackExt extends SipStack {
 	 */
 	public Collection<Dialog> getDialogs();
 
+	/**
+	 * Get a read-only view of the dialogs in a given state, the dialogs
+	 * {@link SipStackImpl#getDialogs(DialogState)} copies. The view is
+	 * maintained as the dialogs change state, it is not a copy: it is weakly
+	 * consistent and its iteration reflects the dialogs moving in and out
+	 * while it is in progress. The confirmed dialogs kept off heap by an
+	 * OffHeapDialogStore are part of the view, iterating it decodes the ones
+	 * which are no longer referenced.
+	 *
+	 * @param state the state of the dialogs.
+	 * @return the view of the dialogs in that state.
+	 *
+	 * @since 2.0
+	 */
+	public Collection<Dialog> getDialogsView(DialogState state);
+
+	/**
+	 * Get the number of dialogs in a given state, the dialogs of
+	 * {@link #getDialogsView(DialogState)}, without scanning them.
+	 *
+	 * @param state the state of the dialogs.
+	 * @return the number of dialogs in that state.
+	 *
+	 * @since 2.0
+	 */
+	public int getDialogCount(DialogState state);
+
 	/**
 	 * Get the ReferedTo dialog in the Replaces header.
 	 *
@@ -164,4 +193,45 @@ public interface SipStackExt extends SipStack {
 	 */
 	public SocketAddress getLocalAddressForTlsDst(InetAddress dst, int dstPort, InetAddress localAddress)
 			throws IOException;
+
+	/**
+	 * Runs the task together with the other events of a call. When
+	 * gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION is enabled the task is queued on
+	 * the mailbox of the Call-ID, behind the messages, timers and listener events
+	 * already pending for that call, and never runs concurrently with them. The
+	 * task runs immediately if the calling thread already runs that call, and
+	 * always runs immediately when the option is disabled.
+	 *
+	 * @param callId the Call-ID of the call.
+	 * @param task   the task to run, typically sending a request or a response.
+	 *
+	 * @since 2.0
+	 */
+	public void executeInCallContext(String callId, Runnable task);
+
+	/**
+	 * Writes the confirmed dialogs of the stack, subscription dialogs included,
+	 * to a file which {@link #loadDialogSnapshot(File)} reads back into a
+	 * restarted stack. The file is replaced atomically.
+	 *
+	 * @param file the snapshot file.
+	 * @return the number of dialogs written.
+	 * @throws IOException if the file cannot be written.
+	 *
+	 * @since 2.0
+	 */
+	public int writeDialogSnapshot(File file) throws IOException;
+
+	/**
+	 * Puts the dialogs of a snapshot written by
+	 * {@link #writeDialogSnapshot(File)} into the dialog table. The dialogs are
+	 * bound to the providers of the stack, which must have been created before.
+	 *
+	 * @param file the snapshot file.
+	 * @return the number of dialogs restored.
+	 * @throws IOException if the file cannot be read or is not a snapshot.
+	 *
+	 * @since 2.0
+	 */
+	public int loadDialogSnapshot(File file) throws IOException;
 }
@@ -1,5 +1,7 @@
 package gov.nist.javax.sip;
 
+import gov.nist.core.NamingThreadFactory;
+import gov.nist.core.VirtualThreads;
 import gov.nist.core.net.AddressResolver;
 import gov.nist.core.net.DefaultSecurityManagerProvider;
 import gov.nist.core.net.NetworkLayer;
@@ -15,19 +17,27 @@ import gov.nist.javax.sip.parser.StringMsgParser;
 import gov.nist.javax.sip.parser.StringMsgParserFactory;
 import gov.nist.javax.sip.stack.ByteBufferFactory;
 import gov.nist.javax.sip.stack.ClientAuthType;
-import gov.nist.javax.sip.stack.ConnectionOrientedMessageProcessor;
 import gov.nist.javax.sip.stack.DefaultMessageLogFactory;
 import gov.nist.javax.sip.stack.DefaultRouter;
+import gov.nist.javax.sip.stack.DialogReplicaChannel;
+import gov.nist.javax.sip.stack.DialogReplicator;
+import gov.nist.javax.sip.stack.DialogSnapshot;
+import gov.nist.javax.sip.stack.DialogStore;
+import gov.nist.javax.sip.stack.HeapDialogStore;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
 import gov.nist.javax.sip.stack.MessageProcessor;
 import gov.nist.javax.sip.stack.MessageProcessorFactory;
 import gov.nist.javax.sip.stack.OIOMessageProcessorFactory;
+import gov.nist.javax.sip.stack.RetransmissionFilter;
 import gov.nist.javax.sip.stack.SIPEventInterceptor;
 import gov.nist.javax.sip.stack.SIPMessageValve;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
-import gov.nist.javax.sip.stack.SocketTimeoutAuditor;
+import gov.nist.javax.sip.stack.TerminatedResponseCache;
+import gov.nist.javax.sip.stack.TlsHandshakeExecutor;
 import gov.nist.javax.sip.stack.timers.DefaultSipTimer;
 import gov.nist.javax.sip.stack.timers.SipTimer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
@@ -42,6 +52,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -242,6 +253,75 @@ import javax.sip.message.Request;
  * multithreaded machine write your listener to be re-entrant and set this
  * property to be true </b></li>
  * 
+ * <li><b>gov.nist.javax.sip.EVENT_SCANNER_LANES = integer </b> <br/>
+ * Default is 1. Number of threads delivering the events to a non re-entrant
+ * listener. Events are assigned to a lane by Call-ID, so the listener is
+ * never called concurrently for one call and sees its events in order, while
+ * different calls are delivered in parallel. The listener must therefore
+ * tolerate concurrent calls for different Call-IDs when this is greater than
+ * 1. Queue depth and delivery latency of each lane are available from
+ * {@link EventScanner#getLaneStatistics()}.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION = true|false </b> <br/>
+ * Default is false. If true, everything happening to one call (messages read
+ * from the network, transaction and dialog timers and listener events) runs
+ * one at a time on a mailbox keyed by the Call-ID, and the mailboxes share a
+ * thread pool. Different calls run in parallel. The listener is called from
+ * the mailbox thread, so it sees the events of one call in order and never
+ * concurrently, while the transaction and event scanner semaphores are not
+ * used at all. Applications sending from their own threads can use
+ * {@link SipStackExt#executeInCallContext(String, Runnable)} to join the
+ * mailbox of a call. When set, gov.nist.javax.sip.REENTRANT_LISTENER is
+ * ignored.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION_THREAD_POOL_SIZE = integer
+ * </b> <br/>
+ * Number of threads running the Call-ID mailboxes when
+ * gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION is enabled. Default is twice
+ * the number of available processors. Ignored when virtual threads are used.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.VIRTUAL_THREADS = true|false </b> <br/>
+ * Default is false. If true and the JVM supports virtual threads (Java 21 and
+ * later), the reader threads of the TCP and TLS connections
+ * (gov.nist.javax.sip.stack.OIOMessageProcessorFactory), the Call-ID mailboxes
+ * of gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION and the re-INVITE senders run
+ * on virtual threads. The listener, called from these threads by a re-entrant
+ * listener or a Call-ID mailbox, may then block on I/O without holding a
+ * platform thread, so thousands of slow peers no longer need thousands of
+ * platform threads. On older JVMs a warning is logged and platform threads are
+ * used.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.RETAIN_RECEIVED_MESSAGE_BYTES = true|false </b>
+ * <br/>
+ * Default is false. If true the messages read from UDP keep the bytes they
+ * were parsed from, so {@link SipProviderExt#forwardRequestStatelessly} and
+ * {@link SipProviderExt#forwardResponseStatelessly} edit and send these bytes
+ * instead of encoding the message again. Set it on stateless proxies and load
+ * balancers.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.UDP_RETRANSMISSION_FILTER = true|false </b> <br/>
+ * Default is false. If true the requests read from UDP are checked with a
+ * byte scan before being parsed: a retransmission of the request of a server
+ * transaction is answered with the last response of the transaction, or
+ * dropped if the transaction has not responded yet, without building a
+ * message. The counters are available from
+ * {@link gov.nist.javax.sip.stack.RetransmissionFilter}.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TERMINATED_RESPONSE_CACHE_SIZE = integer </b> <br/>
+ * Default is 0 (disabled). The maximum number of final responses kept after
+ * their UDP server transaction has been removed. A retransmission of the
+ * request arriving within 64*T1 of the removal is answered with the cached
+ * response instead of creating a new server transaction, which lets the
+ * transactions go away early without the late retransmissions reaching the
+ * application.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_SNAPSHOT_FILE = file </b> <br/>
+ * Default is none. The confirmed dialogs are written to this file when the
+ * stack is stopped and read back when the stack is started, after the
+ * providers have been created, so that a restarted stack keeps handling the
+ * in-dialog requests of the established calls and subscriptions. See
+ * {@link SipStackExt#writeDialogSnapshot(File)}.</li>
+ * 
  * <li><b>gov.nist.javax.sip.MAX_CONNECTIONS = integer </b> <br/>
  * Max number of simultaneous TCP connections handled by stack.</li>
  * 
@@ -349,7 +429,8 @@ import javax.sip.message.Request;
  * the last IO operation on that socket. This allows to clean up after high
  * initial load of new calls that hang up or stay idle. Note that disconnecting
  * the socket does't end the SIP call. A new socket will be established when
- * needed for any existing calls by the SIP RFC spec.</li>
+ * needed for any existing calls by the SIP RFC spec. The idle sockets are
+ * closed within a second of their idle time.</li>
  * 
  * <li><b>gov.nist.javax.sip.stack.USE_DIRECT_BUFFERS = [true|false]</b> <br/>
  * Default is <it>true</it> If set to <it>false</it>, the NIO stack won't use
@@ -358,6 +439,18 @@ import javax.sip.message.Request;
  * http://java.net/jira/browse/JSIP-430. This flag allows to use non direct
  * buffers for better memory monitoring and management.</li>
  * 
+ * <li><b>gov.nist.javax.sip.stack.BUFFER_POOL_MAX_BYTES = long</b> <br/>
+ * Default is <it>16777216</it>. The TLS and WebSocket channels recycle their
+ * buffers through a pool of size classes from 2 KB to 64 KB, this is the
+ * largest number of bytes the pool keeps. 0 disables the pooling. The pool
+ * usage is available from gov.nist.javax.sip.stack.ByteBufferFactory.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.stack.BUFFER_POOL_LEAK_DETECTION = [true|false]</b>
+ * <br/>
+ * Default is <it>false</it>. If set to <it>true</it>, the buffers taken from
+ * the pool are tracked and a buffer garbage collected without having been
+ * given back is logged with the stack trace of where it was taken.</li>
+ * 
  * <li><b>gov.nist.javax.sip.COMPUTE_CONTENT_LENGTH_FROM_MESSAGE_BODY =
  * [true|false] </b> <br/>
  * Default is <it>false</it> If set to <it>true</it>, when you are creating a
@@ -426,7 +519,9 @@ import javax.sip.message.Request;
  * 
  * This option instructs the SIP stack to use a thread pool and split the CPU
  * load between many threads. The number of the threads is specified in this
- * parameter.
+ * parameter. Messages sharing a Call-ID are still processed one after the
+ * other, in the order they were read, through a per Call-ID mailbox (see
+ * {@link gov.nist.javax.sip.stack.KeyedSerialExecutor}).
  * 
  * The processing is split immediately after the parsing of the message. It
  * cannot be split before the parsing because in TCP the SIP message size is in
@@ -522,6 +617,31 @@ import javax.sip.message.Request;
  * Timeout notification. Note that this is only relevant if the registered
  * SipListener is of type SipListenerExt</li>
  * 
+ * <li><b>gov.nist.javax.sip.AUDIT_BATCH_SIZE = integer</b> Default to 10000.
+ * The largest number of dialogs, server transactions and client transactions
+ * older than the leak timers visited by a call to auditStack, the next call
+ * resumes from there. The tables are indexed by creation minute from the
+ * first audit on, so an audit never scans the whole tables.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_STORE = name of the class implementing
+ * gov.nist.javax.sip.stack.DialogStore</b> Default is
+ * gov.nist.javax.sip.stack.HeapDialogStore. The table of the established
+ * dialogs. gov.nist.javax.sip.stack.OffHeapDialogStore moves the dialogs
+ * unused for gov.nist.javax.sip.OFF_HEAP_DIALOG_IDLE_TIME milliseconds
+ * (default 60000) to direct memory segments of
+ * gov.nist.javax.sip.OFF_HEAP_DIALOG_SEGMENT_SIZE bytes (default 1048576) and
+ * puts them back on their next use, which keeps long lived calls and
+ * subscriptions off the Java heap.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_REPLICATION_CHANNEL = name of the class
+ * implementing gov.nist.javax.sip.stack.DialogReplicaChannel</b> Default is
+ * none. When set the confirmed dialogs are replicated to the peer stacks every
+ * gov.nist.javax.sip.DIALOG_REPLICATION_INTERVAL milliseconds (default 100)
+ * by a dedicated thread, and the in-dialog requests for a dialog of a peer are
+ * taken over using its replica.
+ * gov.nist.javax.sip.stack.DatagramDialogReplicaChannel sends the updates over
+ * UDP, see its documentation for its configuration.</li>
+ * 
  * <li><b>gov.nist.javax.sip.SIP_MESSAGE_VALVE= String</b> Default to null. The
  * class name of your custom valve component. An instance of this class will be
  * created and the SIPMessageValve.processRequest/Response() methods will be
@@ -572,11 +692,98 @@ import javax.sip.message.Request;
  * chain for the Server Connection. A DisabledAll will not require a certificate
  * chain for both Server and Client Connections.</li>
  *
+ * <li><b>gov.nist.javax.sip.TLS_HANDSHAKE_THREAD_POOL_SIZE = integer</b>
+ * Default is the number of available processors. The threads running the
+ * delegated tasks of the TLS handshakes (key exchange, certificate checks) of
+ * the NIO channels (gov.nist.javax.sip.stack.NioMessageProcessorFactory), so
+ * that a burst of new TLS connections does not hold the selector thread. 0
+ * runs them on the selector thread as before.</li>
+ *
+ * <li><b>gov.nist.javax.sip.MAX_CONCURRENT_TLS_HANDSHAKES = integer</b>
+ * Default is 0, no limit. The largest number of TLS handshakes in progress on
+ * the NIO channels, a connection starting a handshake beyond is closed. The
+ * handshake rate, latency and rejections are reported by
+ * gov.nist.javax.sip.stack.SIPTransactionStack.getTlsHandshakeExecutor().</li>
+ *
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE = integer</b> Default is
+ * the JSSE default. The number of TLS sessions the outbound connections keep
+ * to resume them, with an abbreviated handshake, when they reconnect to the
+ * same peer. 0 means no limit.</li>
+ *
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_TIMEOUT = integer</b> Default is the
+ * JSSE default. The lifetime in seconds of the cached outbound TLS sessions, 0
+ * means no limit. The resumption hit rate is reported by
+ * gov.nist.javax.sip.stack.SIPTransactionStack.getTlsHandshakeExecutor().</li>
+ *
+ * <li><b>gov.nist.javax.sip.WEBSOCKET_PERMESSAGE_DEFLATE = [true|false]</b>
+ * Default is <it>false</it>. The WebSocket channels (WS and WSS) accept and
+ * offer the permessage-deflate extension of RFC 7692 in the HTTP upgrade, the
+ * SIP messages are then sent compressed.</li>
+ *
+ * <li><b>gov.nist.javax.sip.WEBSOCKET_DEFLATE_THRESHOLD = integer</b> Default
+ * is <it>256</it>. The size in bytes from which a message is sent compressed
+ * when permessage-deflate is negotiated, the smaller ones are not worth it.</li>
+ *
+ * <li><b>gov.nist.javax.sip.WEBSOCKET_DEFLATE_NO_CONTEXT_TAKEOVER =
+ * [true|false]</b> Default is <it>false</it>. With context takeover each
+ * connection keeps its compressor and decompressor, 32 KB of history each, and
+ * a message is compressed against the previous ones, which shrinks the
+ * repetitive SIP headers the most. Set to true to have both sides compress
+ * each message on its own with compressors shared by the connections, trading
+ * compression for memory.</li>
+ *
+ * <li><b>gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION = integer</b> Default
+ * is <it>1</it>. The number of TCP or TLS connections the NIO message
+ * processors may keep to a destination, so that the messages to a busy peer
+ * are not all queued behind each other on one connection. The requests of a
+ * dialog, and those which may create one, always go over the connection of
+ * their Call-ID so that they keep their order; the other requests take the
+ * connection with the fewest bytes waiting to be written. The extra
+ * connections are opened when needed, a connection which fails is replaced by
+ * the next request. The blocking processors and the WebSocket processors keep
+ * a single connection.</li>
+ *
+ * <li><b>gov.nist.javax.sip.MAX_CONNECTION_PENDING_BYTES = integer</b> Default
+ * is <it>0</it>, no limit. The number of bytes the NIO message processors may
+ * queue on a connection waiting for a slow or stalled peer to read them, or
+ * waiting for the connection to be established. A message which would go over
+ * the limit is refused, the send fails with an IOException, unless nothing else
+ * is queued on the connection.</li>
+ *
+ * <li><b>gov.nist.javax.sip.MAX_PENDING_BYTES = integer</b> Default is
+ * <it>0</it>, no limit. The number of bytes the NIO message processors of the
+ * stack may queue on all their connections, a message which would go over the
+ * limit is refused.</li>
+ *
+ * <li><b>gov.nist.javax.sip.PENDING_BYTES_POLICY = [FAIL|CLOSE]</b> Default is
+ * <it>FAIL</it>. With <it>CLOSE</it> a connection going over
+ * MAX_CONNECTION_PENDING_BYTES is closed and its queued messages dropped, not
+ * just the new message refused. The TLS connections and the WebSocket
+ * connections with compressed messages are always closed, since their bytes
+ * can't be sent without the refused ones.</li>
+ *
+ * <li><b>gov.nist.javax.sip.CONNECTION_WRITE_HIGH_WATER_MARK = integer</b>
+ * Default is <it>0</it>, not reported. The number of bytes queued on a NIO
+ * connection from which it is no longer writable, until its queue is written
+ * down to half of it. The application finds it out from
+ * MessageChannel.isWritable() or from the IOExceptionEventExt of reason
+ * ConnectionCongested and ConnectionWritable delivered to the SipListenerExt
+ * from the event queue, for instance to stop sending new calls to a congested
+ * peer.</li>
+ *
  * <li><b>gov.nist.javax.sip.RELIABLE_CONNECTION_KEEP_ALIVE_TIMEOUT</b> Value in
  * seconds which is used as default keepalive timeout (See also
  * http://tools.ietf.org/html/rfc5626#section-4.4.1). Defaults to "infinity"
  * seconds (i.e. timeout event not delivered).</li>
  *
+ * <li><b>gov.nist.javax.sip.KEEP_ALIVE_PING_INTERVAL = integer</b> Default is
+ * <it>-1</it>, no ping. The interval in seconds of the CRLF CRLF pings sent on
+ * the TCP and TLS connections the NIO message processors open, as the outbound
+ * flows of RFC 5626 section 4.4.1. The pings are spread between 80 and 100% of
+ * the interval. A connection whose pong is not received within the keepalive
+ * timeout, or 10 seconds if none is set, is closed and reported to the
+ * listener as a keepalive timeout.</li>
+ *
  * <li><b>gov.nist.javax.sip.TCP_NODELAY = [true|false]</b> Whether or not to
  * disable Nagle's algorithm for TCP sockets. Defaults to {@code false}.</li>
  * 
@@ -638,9 +845,16 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 	// Use this flag with caution.
 	private boolean reEntrantListener;
 
+	// Number of event scanner delivery lanes for a non re-entrant listener
+	private int eventScannerLanes = 1;
+
 	SipListener sipListener;
 	TlsSecurityPolicy tlsSecurityPolicy;
 
+	// File the confirmed dialogs are written to on stop and read from on start
+	private File dialogSnapshotFile;
+	private boolean dialogSnapshotLoaded;
+
 	// Stack semaphore (global lock).
 	private Semaphore stackSemaphore = new Semaphore(1);
 
@@ -700,6 +914,45 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 				logger.log(Level.SEVERE, "Bad configuration value for gov.nist.javax.sip.TIMER_CLASS_NAME", e);
 			}
 		}
+
+		createDialogStore();
+		createDialogReplicator();
+	}
+
+	/**
+	 * Starts the replication of the dialogs if gov.nist.javax.sip.DIALOG_REPLICATION_CHANNEL is set.
+	 */
+	private void createDialogReplicator() {
+		String channelClassName = configurationProperties.getProperty("gov.nist.javax.sip.DIALOG_REPLICATION_CHANNEL");
+		if(channelClassName == null || channelClassName.isEmpty()) {
+			return;
+		}
+
+		try {
+			long interval = Long.parseLong(
+					configurationProperties.getProperty("gov.nist.javax.sip.DIALOG_REPLICATION_INTERVAL", "100"));
+
+			DialogReplicator replicator = new DialogReplicator(this,
+					(DialogReplicaChannel) Class.forName(channelClassName).newInstance(), interval);
+			replicator.start();
+
+			super.dialogReplicator = replicator;
+		} catch(Exception e) {
+			logger.log(Level.SEVERE, "Bad configuration value for gov.nist.javax.sip.DIALOG_REPLICATION_CHANNEL", e);
+		}
+	}
+
+	/**
+	 * Installs the dialog table configured with gov.nist.javax.sip.DIALOG_STORE, once the timer is started.
+	 */
+	private void createDialogStore() {
+		String dialogStoreClassName = configurationProperties.getProperty("gov.nist.javax.sip.DIALOG_STORE",
+				HeapDialogStore.class.getName());
+		try {
+			setDialogStore((DialogStore) Class.forName(dialogStoreClassName).newInstance());
+		} catch(Exception e) {
+			logger.log(Level.SEVERE, "Bad configuration value for gov.nist.javax.sip.DIALOG_STORE", e);
+		}
 	}
 
 	/**
@@ -760,6 +1013,11 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 		// http://java.net/jira/browse/JSIP-430
 		ByteBufferFactory.getInstance().setUseDirect(Boolean.valueOf(configurationProperties
 				.getProperty("gov.nist.javax.sip.stack.USE_DIRECT_BUFFERS", Boolean.TRUE.toString())));
+		ByteBufferFactory.getInstance().setMaxPooledBytes(Long.parseLong(configurationProperties.getProperty(
+				"gov.nist.javax.sip.stack.BUFFER_POOL_MAX_BYTES",
+				String.valueOf(ByteBufferFactory.DEFAULT_MAX_POOLED_BYTES))));
+		ByteBufferFactory.getInstance().setLeakDetection(Boolean.parseBoolean(configurationProperties
+				.getProperty("gov.nist.javax.sip.stack.BUFFER_POOL_LEAK_DETECTION", Boolean.FALSE.toString())));
 
 		this.defaultRouter = new DefaultRouter(this, outboundProxy);
 
@@ -819,6 +1077,15 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 			logger.log(Level.INFO, "using {0} tls auth policy", clientAuthType);
 		}
 
+		try {
+			super.tlsSessionCacheSize = Integer.parseInt(
+					configurationProperties.getProperty("gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE", "-1"));
+			super.tlsSessionTimeout = Integer.parseInt(
+					configurationProperties.getProperty("gov.nist.javax.sip.TLS_SESSION_TIMEOUT", "-1"));
+		} catch(NumberFormatException ex) {
+			logger.log(Level.SEVERE, "TLS session cache size or timeout - bad value", ex);
+		}
+
 		String keyStoreFile = configurationProperties.getProperty("javax.net.ssl.keyStore");
 		String trustStoreFile = configurationProperties.getProperty("javax.net.ssl.trustStore");
 		if(keyStoreFile != null) {
@@ -1134,6 +1401,69 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 
 		this.reEntrantListener = (rel != null && "true".equalsIgnoreCase(rel));
 
+		String lanes = configurationProperties.getProperty("gov.nist.javax.sip.EVENT_SCANNER_LANES");
+		if(lanes != null) {
+			try {
+				this.eventScannerLanes = Math.max(1, Integer.parseInt(lanes));
+
+				this.eventScanner.setLaneCount(this.eventScannerLanes);
+			} catch(NumberFormatException ex) {
+				logger.log(Level.SEVERE, "EVENT_SCANNER_LANES - bad value", ex);
+			}
+		}
+
+		super.retainReceivedMessageBytes = Boolean.parseBoolean(
+				configurationProperties.getProperty("gov.nist.javax.sip.RETAIN_RECEIVED_MESSAGE_BYTES", FALSE));
+
+		if(Boolean.parseBoolean(
+				configurationProperties.getProperty("gov.nist.javax.sip.UDP_RETRANSMISSION_FILTER", FALSE))) {
+			super.retransmissionFilter = new RetransmissionFilter(this);
+		}
+
+		String terminatedResponseCacheSize = configurationProperties
+				.getProperty("gov.nist.javax.sip.TERMINATED_RESPONSE_CACHE_SIZE");
+		if(terminatedResponseCacheSize != null) {
+			try {
+				int size = Integer.parseInt(terminatedResponseCacheSize);
+				if(size > 0) {
+					super.terminatedResponseCache = new TerminatedResponseCache(this, size);
+				}
+			} catch(NumberFormatException ex) {
+				logger.log(Level.SEVERE, "TERMINATED_RESPONSE_CACHE_SIZE - bad value", ex);
+			}
+		}
+
+		String dialogSnapshotFile = configurationProperties.getProperty("gov.nist.javax.sip.DIALOG_SNAPSHOT_FILE");
+		if(dialogSnapshotFile != null) {
+			this.dialogSnapshotFile = new File(dialogSnapshotFile);
+		}
+
+		super.setVirtualThreads(
+				Boolean.parseBoolean(configurationProperties.getProperty("gov.nist.javax.sip.VIRTUAL_THREADS", FALSE)));
+
+		if(Boolean.parseBoolean(configurationProperties.getProperty("gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION",
+				FALSE))) {
+			int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+			String callIdPoolSize = configurationProperties
+					.getProperty("gov.nist.javax.sip.CALL_ID_SERIAL_EXECUTION_THREAD_POOL_SIZE");
+			if(callIdPoolSize != null) {
+				try {
+					threads = Integer.parseInt(callIdPoolSize);
+				} catch(NumberFormatException ex) {
+					logger.log(Level.SEVERE, "Call-ID serial execution thread pool size - bad value", ex);
+				}
+			}
+
+			if(super.isVirtualThreads()) {
+				super.callIdExecutorService = VirtualThreads.newThreadPerTaskExecutor("jain_sip_call_id_executor");
+			} else {
+				super.callIdExecutorService = Executors.newFixedThreadPool(Math.max(1, threads),
+						new NamingThreadFactory("jain_sip_call_id_executor"));
+			}
+			super.callIdExecutor = new KeyedSerialExecutor<>(super.callIdExecutorService);
+		}
+
 		// Check if a thread audit interval is specified
 		String interval = configurationProperties.getProperty("gov.nist.javax.sip.THREAD_AUDIT_INTERVAL_IN_MILLISECS");
 		if(interval != null) {
@@ -1197,6 +1527,59 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 			this.enabledProtocols = protocols;
 		}
 
+		int tlsHandshakeThreads = Runtime.getRuntime().availableProcessors();
+		int maxConcurrentTlsHandshakes = 0;
+		try {
+			tlsHandshakeThreads = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.TLS_HANDSHAKE_THREAD_POOL_SIZE", String.valueOf(tlsHandshakeThreads)));
+			maxConcurrentTlsHandshakes = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.MAX_CONCURRENT_TLS_HANDSHAKES", "0"));
+		} catch(NumberFormatException ex) {
+			logger.log(Level.SEVERE, "TLS handshake thread pool size or concurrent handshakes - bad value", ex);
+		}
+
+		super.tlsHandshakeExecutor = new TlsHandshakeExecutor(tlsHandshakeThreads, maxConcurrentTlsHandshakes);
+
+		super.webSocketDeflate = configurationProperties
+				.getProperty("gov.nist.javax.sip.WEBSOCKET_PERMESSAGE_DEFLATE", "false").equalsIgnoreCase("true");
+		super.webSocketDeflateNoContextTakeover = configurationProperties
+				.getProperty("gov.nist.javax.sip.WEBSOCKET_DEFLATE_NO_CONTEXT_TAKEOVER", "false")
+				.equalsIgnoreCase("true");
+		try {
+			super.webSocketDeflateThreshold = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.WEBSOCKET_DEFLATE_THRESHOLD", String.valueOf(webSocketDeflateThreshold)));
+		} catch(NumberFormatException ex) {
+			logger.log(Level.SEVERE, "WebSocket deflate threshold - bad value", ex);
+		}
+
+		try {
+			super.connectionsPerDestination = Math.max(1, Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION", "1")));
+		} catch(NumberFormatException ex) {
+			logger.log(Level.SEVERE, "Connections per destination - bad value", ex);
+		}
+
+		try {
+			super.maxConnectionPendingBytes = Long.parseLong(configurationProperties.getProperty(
+					"gov.nist.javax.sip.MAX_CONNECTION_PENDING_BYTES", "0"));
+			super.maxPendingBytes = Long.parseLong(configurationProperties.getProperty(
+					"gov.nist.javax.sip.MAX_PENDING_BYTES", "0"));
+			super.connectionWriteHighWaterMark = Long.parseLong(configurationProperties.getProperty(
+					"gov.nist.javax.sip.CONNECTION_WRITE_HIGH_WATER_MARK", "0"));
+		} catch(NumberFormatException ex) {
+			logger.log(Level.SEVERE, "Pending bytes limits - bad value", ex);
+		}
+
+		super.closeCongestedConnections = configurationProperties
+				.getProperty("gov.nist.javax.sip.PENDING_BYTES_POLICY", "FAIL").equalsIgnoreCase("CLOSE");
+
+		try {
+			super.keepAlivePingInterval = 1000 * Long.parseLong(configurationProperties.getProperty(
+					"gov.nist.javax.sip.KEEP_ALIVE_PING_INTERVAL", "-1"));
+		} catch(NumberFormatException ex) {
+			logger.log(Level.SEVERE, "Keep-alive ping interval - bad value", ex);
+		}
+
 		super.rfc2543Supported = configurationProperties
 				.getProperty("gov.nist.javax.sip.RFC_2543_SUPPORT_ENABLED", "true").equalsIgnoreCase("true");
 
@@ -1253,6 +1636,9 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 		super.dialogTimeoutFactor = Integer
 				.parseInt(configurationProperties.getProperty("gov.nist.javax.sip.DIALOG_TIMEOUT_FACTOR", "64"));
 
+		super.setAuditBatchSize(Integer
+				.parseInt(configurationProperties.getProperty("gov.nist.javax.sip.AUDIT_BATCH_SIZE", "10000")));
+
 		String messageParserFactoryName = configurationProperties
 				.getProperty("gov.nist.javax.sip.MESSAGE_PARSER_FACTORY", StringMsgParserFactory.class.getName());
 		try {
@@ -1293,6 +1679,9 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 			logger.log(Level.SEVERE, "Bad configuration value for gov.nist.javax.sip.TIMER_CLASS_NAME", e);
 		}
 
+		createDialogStore();
+		createDialogReplicator();
+
 		super.aggressiveCleanup = Boolean.parseBoolean(configurationProperties
 				.getProperty("gov.nist.javax.sip.AGGRESSIVE_CLEANUP", Boolean.FALSE.toString()));
 
@@ -1398,14 +1787,6 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 			messageProcessor.start();
 			this.listeningPoints.put(key, lip);
 
-			if(socketTimeoutAuditor == null && nioSocketMaxIdleTime > 0
-					&& messageProcessor instanceof ConnectionOrientedMessageProcessor) {
-				// https://java.net/jira/browse/JSIP-471 use property from the stack instead of
-				// hard coded 20s
-				socketTimeoutAuditor = new SocketTimeoutAuditor(nioSocketMaxIdleTime);
-				getTimer().scheduleWithFixedDelay(socketTimeoutAuditor, nioSocketMaxIdleTime, nioSocketMaxIdleTime);
-			}
-
 			return lip;
 		} catch(IOException ex) {
 			logger.log(Level.SEVERE, "Invalid argument address: {0}, port: {1}, transport: {2}",
@@ -1568,6 +1949,20 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 	public void stop() {
 		logger.log(Level.FINEST, "stopStack -- stoppping the stack");
 
+		if(super.dialogReplicator != null) {
+			super.dialogReplicator.stop();
+			super.dialogReplicator = null;
+		}
+
+		// the dialogs are written while their providers still exist
+		if(this.dialogSnapshotFile != null) {
+			try {
+				writeDialogSnapshot(this.dialogSnapshotFile);
+			} catch(IOException ex) {
+				logger.log(Level.SEVERE, "could not write the dialog snapshot " + this.dialogSnapshotFile, ex);
+			}
+		}
+
 		this.stopStack();
 		if(super.sipMessageValve != null) {
 			super.sipMessageValve.destroy();
@@ -1603,6 +1998,34 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 		if(this.eventScanner == null) {
 			this.eventScanner = new EventScanner(this);
 		}
+
+		if(this.dialogSnapshotFile != null && !this.dialogSnapshotLoaded && this.dialogSnapshotFile.exists()) {
+			this.dialogSnapshotLoaded = true;
+
+			try {
+				loadDialogSnapshot(this.dialogSnapshotFile);
+			} catch(IOException ex) {
+				logger.log(Level.SEVERE, "could not load the dialog snapshot " + this.dialogSnapshotFile, ex);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see gov.nist.javax.sip.SipStackExt#writeDialogSnapshot(java.io.File)
+	 */
+	public int writeDialogSnapshot(File file) throws IOException {
+		return new DialogSnapshot().write(this, file);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see gov.nist.javax.sip.SipStackExt#loadDialogSnapshot(java.io.File)
+	 */
+	public int loadDialogSnapshot(File file) throws IOException {
+		return new DialogSnapshot().load(this, file);
 	}
 
 	/**
@@ -1641,6 +2064,13 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
 		return eventScanner;
 	}
 
+	/**
+	 * @return the number of event scanner delivery lanes
+	 */
+	public int getEventScannerLanes() {
+		return eventScannerLanes;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
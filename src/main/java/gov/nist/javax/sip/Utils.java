@@ -164,6 +164,25 @@ public class Utils implements UtilsExt {
 		}
 	}
 
+	/**
+	 * Generate a branch identifier which is always the same for the same seed, as the stateless proxies need for the
+	 * retransmissions of a request.
+	 *
+	 * @param seed the value the branch is derived from, typically the branch of the incoming top Via
+	 * @return a branch identifier recognized by {@link #responseBelongsToUs(SIPResponse)}
+	 */
+	public String generateStatelessBranchId(String seed) {
+		int hash = (seed.hashCode() & Integer.MAX_VALUE) % digesterPoolsSize;
+
+		MessageDigest digester = digesterPool[hash];
+
+		synchronized(digester) {
+			byte[] bid = digester.digest(seed.getBytes());
+
+			return SIPConstants.BRANCH_MAGIC_COOKIE + "-" + signature + "-" + Utils.toHexString(bid);
+		}
+	}
+
 	public boolean responseBelongsToUs(SIPResponse response) {
 		Via topmostVia = response.getTopmostVia();
 		String branch = topmostVia.getBranch();
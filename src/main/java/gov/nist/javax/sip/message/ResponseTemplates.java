@@ -0,0 +1,299 @@
+package gov.nist.javax.sip.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.sip.header.ServerHeader;
+import javax.sip.header.TimeStampHeader;
+import javax.sip.message.Response;
+
+import gov.nist.core.Separators;
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+
+/**
+ * Encodes the responses a server sends without involving the application (100 Trying and the error responses of
+ * load shedding or request validation) straight from a request, without building a SIPResponse. The status line and
+ * the trailing Content-Length are encoded once per status code, the Via, From, To, Call-ID, CSeq and Timestamp
+ * headers are copied from the request.
+ *
+ * When the request kept the bytes it was parsed from (see SIPMessage#getRawMessage()) the header lines are copied
+ * byte for byte, only the top Via value is encoded again since the stack adds the received and rport parameters to
+ * it. Otherwise the parsed headers are encoded, which still saves the cloning of
+ * {@link SIPRequest#createResponse(int)} and the encoding of the whole response.
+ */
+public final class ResponseTemplates {
+	private static final int[] STATUS_CODES = { Response.TRYING, Response.BAD_REQUEST, Response.FORBIDDEN,
+			Response.NOT_FOUND, Response.REQUEST_TIMEOUT, Response.TEMPORARILY_UNAVAILABLE, Response.BUSY_HERE,
+			Response.SERVICE_UNAVAILABLE };
+
+	private static final byte[][] STATUS_LINES = new byte[STATUS_CODES.length][];
+
+	private static final byte[] CRLF = Separators.NEWLINE.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CONTENT_LENGTH = ("Content-Length: 0" + Separators.NEWLINE + Separators.NEWLINE)
+			.getBytes(StandardCharsets.US_ASCII);
+
+	// the default Server header and its encoding, re-encoded when the default changes
+	private static volatile Object[] serverHeader = { null, null };
+
+	static {
+		for(int i = 0; i < STATUS_CODES.length; i++) {
+			STATUS_LINES[i] = ("SIP/2.0 " + STATUS_CODES[i] + " " + SIPResponse.getReasonPhrase(STATUS_CODES[i])
+					+ Separators.NEWLINE).getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private ResponseTemplates() {
+	}
+
+	/**
+	 * @return <code>true</code> if there is a template for the given status code
+	 */
+	public static boolean isSupported(int statusCode) {
+		return indexOf(statusCode) >= 0;
+	}
+
+	/**
+	 * Encodes a response to the given request, the To header is copied unchanged.
+	 *
+	 * @see #encode(SIPRequest, int, String)
+	 */
+	public static byte[] encode(SIPRequest request, int statusCode) {
+		return encode(request, statusCode, null);
+	}
+
+	/**
+	 * Encodes a response to the given request.
+	 *
+	 * @param request the request to answer
+	 * @param statusCode the status code, one of the codes {@link #isSupported(int)} accepts
+	 * @param toTag the tag to add to the To header if it has none, can be null
+	 * @return the encoded response
+	 * @throws IllegalArgumentException if there is no template for the status code
+	 */
+	public static byte[] encode(SIPRequest request, int statusCode, String toTag) {
+		int index = indexOf(statusCode);
+		if(index < 0) {
+			throw new IllegalArgumentException("No response template for " + statusCode);
+		}
+
+		String tag = toTag != null && request.getToTag() == null ? toTag : null;
+
+		Buffer buffer = new Buffer(512);
+
+		buffer.write(STATUS_LINES[index]);
+
+		byte[] raw = request.getRawMessage();
+		if(raw != null) {
+			copyHeaders(raw, request, tag, buffer);
+		} else {
+			encodeHeaders(request, tag, buffer);
+		}
+
+		byte[] server = getServerHeader();
+		if(server != null) {
+			buffer.write(server);
+		}
+
+		buffer.write(CONTENT_LENGTH);
+
+		return buffer.toByteArray();
+	}
+
+	private static int indexOf(int statusCode) {
+		for(int i = 0; i < STATUS_CODES.length; i++) {
+			if(STATUS_CODES[i] == statusCode) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static byte[] getServerHeader() {
+		ServerHeader server = MessageFactoryImpl.getDefaultServerHeader();
+		if(server == null) {
+			return null;
+		}
+
+		Object[] cached = serverHeader;
+		if(cached[0] != server) {
+			cached = new Object[] { server, ((SIPHeader) server).encode().getBytes(StandardCharsets.UTF_8) };
+
+			serverHeader = cached;
+		}
+
+		return (byte[]) cached[1];
+	}
+
+	private static void encodeHeaders(SIPRequest request, String tag, Buffer buffer) {
+		ViaList vias = request.getViaHeaders();
+		if(vias != null) {
+			buffer.write(vias.encode());
+		}
+
+		buffer.write(((SIPHeader) request.getFrom()).encode());
+
+		if(tag == null) {
+			buffer.write(((SIPHeader) request.getTo()).encode());
+		} else {
+			buffer.write(request.getTo().getName() + Separators.COLON + Separators.SP
+					+ ((SIPHeader) request.getTo()).getHeaderValue() + ";tag=" + tag + Separators.NEWLINE);
+		}
+
+		buffer.write(((SIPHeader) request.getCallId()).encode());
+		buffer.write(((SIPHeader) request.getCSeq()).encode());
+
+		SIPHeader timeStamp = request.getSIPHeaderListLowerCase(TimeStampHeader.NAME.toLowerCase());
+		if(timeStamp != null) {
+			buffer.write(timeStamp.encode());
+		}
+	}
+
+	/**
+	 * Copies the header lines of the response from the received bytes.
+	 */
+	private static void copyHeaders(byte[] raw, SIPRequest request, String tag, Buffer buffer) {
+		int line = 0;
+		while(line < raw.length && raw[line] < 0x20) {
+			line++;
+		}
+
+		line = nextLine(raw, line);
+
+		boolean topVia = true;
+		while(line > 0 && line < raw.length && raw[line] != '\r' && raw[line] != '\n') {
+			int lineEnd = nextLine(raw, line);
+			if(lineEnd < 0) {
+				lineEnd = raw.length;
+			}
+
+			// take the continuation lines along
+			while(lineEnd < raw.length && (raw[lineEnd] == ' ' || raw[lineEnd] == '\t')) {
+				int next = nextLine(raw, lineEnd);
+
+				lineEnd = next < 0 ? raw.length : next;
+			}
+
+			int colon = line;
+			while(colon < lineEnd && raw[colon] != ':') {
+				colon++;
+			}
+
+			int nameEnd = colon;
+			while(nameEnd > line && (raw[nameEnd - 1] == ' ' || raw[nameEnd - 1] == '\t')) {
+				nameEnd--;
+			}
+
+			int valueEnd = lineEnd;
+			while(valueEnd > colon + 1 && raw[valueEnd - 1] <= ' ') {
+				valueEnd--;
+			}
+
+			if(nameEquals(raw, line, nameEnd, "Via") || nameEquals(raw, line, nameEnd, "v")) {
+				if(topVia) {
+					copyTopVia(raw, request.getTopmostVia(), line, colon, valueEnd, buffer);
+
+					topVia = false;
+				} else {
+					buffer.write(raw, line, lineEnd - line);
+				}
+			} else if(nameEquals(raw, line, nameEnd, "To") || nameEquals(raw, line, nameEnd, "t")) {
+				if(tag == null) {
+					buffer.write(raw, line, lineEnd - line);
+				} else {
+					buffer.write(raw, line, valueEnd - line);
+					buffer.write(";tag=" + tag);
+					buffer.write(CRLF);
+				}
+			} else if(nameEquals(raw, line, nameEnd, "From") || nameEquals(raw, line, nameEnd, "f")
+					|| nameEquals(raw, line, nameEnd, "Call-ID") || nameEquals(raw, line, nameEnd, "i")
+					|| nameEquals(raw, line, nameEnd, "CSeq") || nameEquals(raw, line, nameEnd, "Timestamp")) {
+				buffer.write(raw, line, lineEnd - line);
+			}
+
+			line = lineEnd;
+		}
+	}
+
+	/**
+	 * Writes the first Via line with its first value taken from the parsed top Via.
+	 */
+	private static void copyTopVia(byte[] raw, Via via, int line, int colon, int valueEnd, Buffer buffer) {
+		buffer.write(raw, line, colon + 1 - line);
+		buffer.write(Separators.SP);
+		buffer.write(via.getHeaderValue());
+
+		for(int i = colon + 1; i < valueEnd; i++) {
+			if(raw[i] == ',') {
+				buffer.write(raw, i, valueEnd - i);
+
+				break;
+			}
+		}
+
+		buffer.write(CRLF);
+	}
+
+	private static int nextLine(byte[] message, int offset) {
+		for(int i = offset; i < message.length; i++) {
+			if(message[i] == '\n') {
+				return i + 1;
+			}
+
+			if(message[i] == '\r') {
+				return i + 1 < message.length && message[i + 1] == '\n' ? i + 2 : i + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	private static boolean nameEquals(byte[] message, int start, int end, String name) {
+		if(end - start != name.length()) {
+			return false;
+		}
+
+		for(int i = 0; i < name.length(); i++) {
+			if(Character.toLowerCase((char) message[start + i]) != Character.toLowerCase(name.charAt(i))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * A growable byte array, unsynchronized unlike ByteArrayOutputStream.
+	 */
+	private static final class Buffer {
+		private byte[] bytes;
+		private int size;
+
+		Buffer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void write(byte[] source) {
+			write(source, 0, source.length);
+		}
+
+		void write(byte[] source, int offset, int length) {
+			if(size + length > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+			}
+
+			System.arraycopy(source, offset, bytes, size, length);
+			size += length;
+		}
+
+		void write(String string) {
+			write(string.getBytes(StandardCharsets.UTF_8));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
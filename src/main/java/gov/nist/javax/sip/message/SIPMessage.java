@@ -170,6 +170,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     // Cumulative size of all the headers.
     protected int size;
 
+    // The bytes this message was parsed from, only kept when the stack retains the received bytes.
+    protected transient byte[] rawMessage;
+
     // Payload
     protected String messageContent;
 
@@ -553,6 +556,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         retval.contentLengthHeader = null;
         retval.maxForwardsHeader = null;
         retval.forkId = null;        
+        retval.rawMessage = null;
         if (this.headers != null) {
             retval.headers = new ConcurrentLinkedQueue<SIPHeader>();
             for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
@@ -1800,6 +1804,24 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         return this.size;
     }
 
+    /**
+     * Set the bytes this message was parsed from. Called by the message channels when the stack retains the
+     * received bytes for the stateless forwarding path.
+     *
+     * @param rawMessage -- the received bytes, not copied.
+     */
+    public void setRawMessage(byte[] rawMessage) {
+        this.rawMessage = rawMessage;
+    }
+
+    /**
+     * @return the bytes this message was parsed from or null if they were not retained. Changes made to the
+     *         message after parsing are not reflected in them.
+     */
+    public byte[] getRawMessage() {
+        return this.rawMessage;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -2,6 +2,7 @@ package gov.nist.javax.sip.parser;
 
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.stack.ConnectionOrientedMessageChannel;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
 import gov.nist.javax.sip.stack.QueuedMessageDispatchBase;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
@@ -11,11 +12,6 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.text.ParseException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,32 +53,6 @@ public class NioPipelineParser {
 	String partialLine = "";
 	String callId;
 
-	private ConcurrentHashMap<String, CallIDOrderingStructure> messagesOrderingMap = new ConcurrentHashMap<>();
-
-	class CallIDOrderingStructure {
-		private Semaphore semaphore;
-		private Queue<UnparsedMessage> messagesForCallID;
-
-		public CallIDOrderingStructure() {
-			semaphore = new Semaphore(1, true);
-			messagesForCallID = new ConcurrentLinkedQueue<>();
-		}
-
-		/**
-		 * @return the semaphore
-		 */
-		public Semaphore getSemaphore() {
-			return semaphore;
-		}
-
-		/**
-		 * @return the messagesForCallID
-		 */
-		public Queue<UnparsedMessage> getMessagesForCallID() {
-			return messagesForCallID;
-		}
-	}
-
 	public static class UnparsedMessage {
 		String lines;
 		byte[] body;
@@ -97,53 +67,26 @@ public class NioPipelineParser {
 		}
 	}
 
+	/**
+	 * Parses and processes one message. Dispatches of the same Call-ID are run one after the other by the
+	 * {@link #getCallIdExecutor() Call-ID executor}, so no locking is needed here.
+	 */
 	public class Dispatch implements Runnable, QueuedMessageDispatchBase {
-		CallIDOrderingStructure callIDOrderingStructure;
+		UnparsedMessage unparsedMessage;
 		String callId;
 		long time;
 
-		public Dispatch(CallIDOrderingStructure callIDOrderingStructure, String callId) {
-			this.callIDOrderingStructure = callIDOrderingStructure;
+		public Dispatch(UnparsedMessage unparsedMessage, String callId) {
+			this.unparsedMessage = unparsedMessage;
 			this.callId = callId;
 			time = System.currentTimeMillis();
 		}
 
 		@Override
 		public void run() {
-			// we acquire it in the thread to avoid blocking other messages with a different
-			// call id
-			// that could be processed in parallel
-			Semaphore semaphore = callIDOrderingStructure.getSemaphore();
-			final Queue<UnparsedMessage> messagesForCallID = callIDOrderingStructure.getMessagesForCallID();
-
-			try {
-				boolean acquired = semaphore.tryAcquire(30, TimeUnit.SECONDS);
-
-				if(!acquired) {
-					logger.log(Level.WARNING, "Semaphore acquisition for callId {0} wasn't successful"
-							+ " so don't process message, returning", callId);
-
-					// https://java.net/jira/browse/JSIP-499 don't process the message if the semaphore wasn't acquired
-					return;
-				} else {
-					logger.log(Level.FINEST, "semaphore acquired for message {0} acquired", callId);
-				}
-			} catch(InterruptedException e) {
-				logger.log(Level.SEVERE, e, () -> MessageFormat.format("Semaphore acquisition for callId {0}"
-						+ " interrupted, couldn't process message, returning", callId));
-
-				// https://java.net/jira/browse/JSIP-499 don't process the message if the semaphore wasn't acquired
-
-				return;
-			}
-
-			UnparsedMessage unparsedMessage = null;
 			SIPMessage parsedSIPMessage = null;
-			boolean messagePolled = false;
 			try {
 				synchronized(smp) {
-					unparsedMessage = messagesForCallID.peek();
-
 					logger.log(Level.FINEST, "\nUnparsed message before parser is:\n{0}", unparsedMessage);
 
 					parsedSIPMessage = smp.parseSIPMessage(unparsedMessage.lines.getBytes(), false, false, null);
@@ -164,56 +107,17 @@ public class NioPipelineParser {
 					sipStack.sipEventInterceptor.beforeMessage(parsedSIPMessage);
 				}
 
-				// once acquired we get the first message to process
-				messagesForCallID.poll();
-				messagePolled = true;
-
 				// https://java.net/jira/browse/JSIP-503
 				if(parsedSIPMessage != null) {
 					sipMessageListener.processMessage(parsedSIPMessage);
 				}
 			} catch(ParseException e) {
-				/*
-				 * https://java.net/jira/browse/JSIP-499 move the ParseException here so the finally block is called,
-				 * the semaphore released and map cleaned up if need be
-				 */
-
 				logger.log(Level.WARNING, "Problem parsing message {0}", unparsedMessage);
 			} catch(Exception e) {
 				logger.log(Level.SEVERE, e,
-						() -> MessageFormat.format("Error occured processing message {0}", message));
+						() -> MessageFormat.format("Error occured processing message {0}", unparsedMessage));
 				// We do not break the TCP connection because other calls use the same socket here
 			} finally {
-				if (!messagePolled) {
-					/*
-					 * https://java.net/jira/browse/JSIP-503 we poll the message only if it wasn't polled 
-					 * in case of some exception by example while parsing or before processing the message
-					 * as in the interceptor can cause the poll not to be called
-					*/
-
-					messagesForCallID.poll(); // move on to the next one
-				}
-
-				if(messagesForCallID.isEmpty()) {
-					messagesOrderingMap.remove(callId);
-
-					logger.log(Level.FINEST, "CallIDOrderingStructure removed for callId: {0}", callId);
-				}
-
-				logger.log(Level.FINEST, "releasing semaphore for message {0}", parsedSIPMessage);
-
-				/*
-				 * release the semaphore so that another thread can process another message from the call id queue 
-				 * in the correct order or a new message from another call id queue
-				 */
-				semaphore.release();
-
-				if(messagesOrderingMap.isEmpty()) {
-					synchronized(messagesOrderingMap) {
-						messagesOrderingMap.notify();
-					}
-				}
-
 				// https://java.net/jira/browse/JSIP-503
 				if(sipStack.sipEventInterceptor != null && parsedSIPMessage != null) {
 					sipStack.sipEventInterceptor.afterMessage(parsedSIPMessage);
@@ -365,7 +269,8 @@ public class NioPipelineParser {
 			final byte[] msgBodyBytes = messageBody;
 			final int finalContentLength = contentLength;
 
-			if(PostParseExecutorServices.getPostParseExecutor() != null) {
+			KeyedSerialExecutor<String> callIdExecutor = getCallIdExecutor();
+			if(callIdExecutor != null) {
 				final String callId = this.callId;
 				if(callId == null || callId.trim().length() < 1) {
 					// http://code.google.com/p/jain-sip/issues/detail?id=18
@@ -373,29 +278,11 @@ public class NioPipelineParser {
 					throw new IOException("received message with no Call-ID");
 				}
 
-				// http://dmy999.com/article/34/correct-use-of-concurrenthashmap
-				CallIDOrderingStructure orderingStructure = messagesOrderingMap.get(callId);
-				if(orderingStructure == null) {
-					CallIDOrderingStructure newCallIDOrderingStructure = new CallIDOrderingStructure();
-
-					orderingStructure = messagesOrderingMap.putIfAbsent(callId, newCallIDOrderingStructure);
-
-					if(orderingStructure == null) {
-						orderingStructure = newCallIDOrderingStructure;
-
-						logger.log(Level.FINEST, "new CallIDOrderingStructure added for message: {0}", message);
-					}
-				}
-
-				CallIDOrderingStructure callIDOrderingStructure = orderingStructure;
-				// we add the message to the pending queue of messages to be processed for that
-				// call id here
-				// to avoid blocking other messages with a different call id
-				// that could be processed in parallel
-				callIDOrderingStructure.getMessagesForCallID().offer(new UnparsedMessage(msgLines, msgBodyBytes));
-
-				// run in executor thread
-				PostParseExecutorServices.getPostParseExecutor().execute(new Dispatch(callIDOrderingStructure, callId));
+				/*
+				 * messages of the same call id are processed in order while messages with a different call id
+				 * can be processed in parallel
+				 */
+				callIdExecutor.execute(callId, new Dispatch(new UnparsedMessage(msgLines, msgBodyBytes), callId));
 			} else {
 				SIPMessage sipMessage = null;
 
@@ -424,8 +311,15 @@ public class NioPipelineParser {
 	}
 
 	public synchronized void addBytes(byte[] bytes) throws Exception {
+		addBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Parses a slice of an array, the bytes are not referenced once the call returns.
+	 */
+	public synchronized void addBytes(byte[] bytes, int offset, int length) throws Exception {
 		currentStreamEnded = false;
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
+		ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes, offset, length);
 		readStream(inputStream);
 	}
 
@@ -558,6 +452,16 @@ public class NioPipelineParser {
 		return new String(lineBuffer, 0, counter, StandardCharsets.UTF_8);
 	}
 
+	/**
+	 * @return the executor ordering the processing of the messages per Call-ID: the stack one when the per Call-ID
+	 *         execution model is enabled, otherwise the post parse one, <code>null</code> if neither is enabled
+	 */
+	private KeyedSerialExecutor<String> getCallIdExecutor() {
+		KeyedSerialExecutor<String> executor = sipStack == null ? null : sipStack.getCallIdExecutor();
+
+		return executor != null ? executor : PostParseExecutorServices.getCallIdExecutor();
+	}
+
 	public void close() {
 		// nothing
 	}
@@ -4,6 +4,7 @@ import gov.nist.core.InternalErrorHandler;
 import gov.nist.javax.sip.header.ContentLength;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.stack.ConnectionOrientedMessageChannel;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
 import gov.nist.javax.sip.stack.QueuedMessageDispatchBase;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
@@ -11,12 +12,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
-import java.text.MessageFormat;
 import java.text.ParseException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,7 +52,8 @@ public final class PipelinedMsgParser implements Runnable {
 	private int sizeCounter;
 	private SIPTransactionStack sipStack;
 	private MessageParser smp = null;
-	private ConcurrentHashMap<String, CallIDOrderingStructure> messagesOrderingMap = new ConcurrentHashMap<>();
+	// number of messages handed to the post parse thread pool and not processed yet
+	private final AtomicInteger pendingDispatches = new AtomicInteger();
 	boolean isRunning = false;
 
 	/**
@@ -88,8 +86,7 @@ public final class PipelinedMsgParser implements Runnable {
 		this.sipMessageListener = sipMessageListener;
 		rawInputStream = in;
 		this.maxMessageSize = maxMessageSize;
-		mythread = new Thread(this);
-		mythread.setName("PipelineThread-" + getNewUid());
+		mythread = sipStack.newThread(this, "PipelineThread-" + getNewUid());
 
 	}
 
@@ -206,38 +203,26 @@ public final class PipelinedMsgParser implements Runnable {
 		return new String(lineBuffer, 0, counter, StandardCharsets.UTF_8);
 	}
 
+	/**
+	 * Processes one parsed message. Dispatches of the same Call-ID are run one after the other by the
+	 * {@link #getCallIdExecutor() Call-ID executor}, so no locking is needed here.
+	 */
 	public class Dispatch implements Runnable, QueuedMessageDispatchBase {
-		CallIDOrderingStructure callIDOrderingStructure;
+		SIPMessage message;
 		String callId;
 		long time;
 
-		public Dispatch(CallIDOrderingStructure callIDOrderingStructure, String callId) {
-			this.callIDOrderingStructure = callIDOrderingStructure;
+		public Dispatch(SIPMessage message, String callId) {
+			this.message = message;
 			this.callId = callId;
 			time = System.currentTimeMillis();
 		}
 
 		public void run() {
-			// we acquire it in the thread to avoid blocking other messages with a different
-			// call id
-			// that could be processed in parallel
-			Semaphore semaphore = callIDOrderingStructure.getSemaphore();
-			final Queue<SIPMessage> messagesForCallID = callIDOrderingStructure.getMessagesForCallID();
 			if (sipStack.sipEventInterceptor != null) {
-				sipStack.sipEventInterceptor.beforeMessage(messagesForCallID.peek());
-			}
-			try {
-				semaphore.acquire();
-			} catch(InterruptedException e) {
-				logger.log(Level.SEVERE, e,
-						() -> MessageFormat.format("Semaphore acquisition for callId {0} interrupted", callId));
+				sipStack.sipEventInterceptor.beforeMessage(message);
 			}
 
-			// once acquired we get the first message to process
-			SIPMessage message = messagesForCallID.poll();
-
-			logger.log(Level.FINEST, "semaphore acquired for message: {0}", message);
-
 			try {
 				sipMessageListener.processMessage(message);
 			} catch(Exception e) {
@@ -245,25 +230,7 @@ public final class PipelinedMsgParser implements Runnable {
 
 				// We do not break the TCP connection because other calls use the same socket here
 			} finally {
-				if(messagesForCallID.isEmpty()) {
-					messagesOrderingMap.remove(callId);
-
-					logger.log(Level.FINEST, "CallIDOrderingStructure removed for message: {0}", callId);
-				}
-
-				logger.log(Level.FINEST, "releasing semaphore for message: {0}", message);
-
-				/**
-				 * release the semaphore so that another thread can process another message from the call id queue
-				 * in the correct order or a new message from another call id queue
-				 */
-				semaphore.release();
-
-				if(messagesOrderingMap.isEmpty()) {
-					synchronized (messagesOrderingMap) {
-						messagesOrderingMap.notify();
-					}
-				}
+				dispatchDone();
 
 				if(sipStack.sipEventInterceptor != null) {
 					sipStack.sipEventInterceptor.afterMessage(message);
@@ -274,6 +241,11 @@ public final class PipelinedMsgParser implements Runnable {
 					new Object[] {message, mythread.getName()});
 		}
 
+		@Override
+		public void discarded() {
+			dispatchDone();
+		}
+
 		public long getReceptionTime() {
 			return time;
 		}
@@ -352,18 +324,13 @@ public final class PipelinedMsgParser implements Runnable {
 						 * we only wait if the thread is still in a running state and hasn't been close
 						 * from somewhere else or we are leaking because the thread is waiting forever
 						 */
-						if(PostParseExecutorServices.getPostParseExecutor() != null && isRunning) {
-							logger.log(Level.FINEST, "waiting for messagesOrderingMap {0} threadname {1}",
+						if(getCallIdExecutor() != null && isRunning) {
+							logger.log(Level.FINEST, "waiting for pending dispatches {0} threadname {1}",
 									new Object[] { this, mythread.getName() });
 
-							synchronized (messagesOrderingMap) {
-								try {
-									messagesOrderingMap.wait(64000);
-								} catch (InterruptedException e) {
-								}
-							}
+							waitForPendingDispatches();
 
-							logger.log(Level.FINEST, "got notified for messagesOrderingMap {0} threadname {1}",
+							logger.log(Level.FINEST, "done waiting for pending dispatches {0} threadname {1}",
 									new Object[] {this, mythread.getName()});
 						}
 
@@ -398,18 +365,13 @@ public final class PipelinedMsgParser implements Runnable {
 						// we only wait if the thread is still in a running state and hasn't been close
 						// from somewhere else
 						// or we are leaking because the thread is waiting forever
-						if(PostParseExecutorServices.getPostParseExecutor() != null && isRunning) {
-							logger.log(Level.FINEST, "waiting for messagesOrderingMap {0} threadname {1}",
+						if(getCallIdExecutor() != null && isRunning) {
+							logger.log(Level.FINEST, "waiting for pending dispatches {0} threadname {1}",
 									new Object[] {this, mythread.getName()});
 
-							synchronized(messagesOrderingMap) {
-								try {
-									messagesOrderingMap.wait(64000);
-								} catch (InterruptedException e) {
-								}
-							}
+							waitForPendingDispatches();
 
-							logger.log(Level.FINEST, "got notified for messagesOrderingMap {0} threadname {1}",
+							logger.log(Level.FINEST, "done waiting for pending dispatches {0} threadname {1}",
 									new Object[] {this, mythread.getName()});
 						}
 
@@ -513,7 +475,7 @@ public final class PipelinedMsgParser implements Runnable {
 				// Content length too large - process the message and return error from there.
 				if(sipMessageListener != null) {
 					try {
-						if(PostParseExecutorServices.getPostParseExecutor() == null) {
+						if(getCallIdExecutor() == null) {
 							/**
 							 * If gov.nist.javax.sip.TCP_POST_PARSING_THREAD_POOL_SIZE is disabled we
 							 * continue with the old logic here.
@@ -536,27 +498,20 @@ public final class PipelinedMsgParser implements Runnable {
 							// so we lock and queue of messages per Call Id
 
 							final String callId = sipMessage.getCallId().getCallId();
-							// http://dmy999.com/article/34/correct-use-of-concurrenthashmap
-							CallIDOrderingStructure orderingStructure = messagesOrderingMap.get(callId);
-							if (orderingStructure == null) {
-								CallIDOrderingStructure newCallIDOrderingStructure = new CallIDOrderingStructure();
-								orderingStructure = messagesOrderingMap.putIfAbsent(callId, newCallIDOrderingStructure);
-								if(orderingStructure == null) {
-									orderingStructure = newCallIDOrderingStructure;
-
-									logger.log(Level.FINEST, "new CallIDOrderingStructure added for message {0}",
-											sipMessage);
-								}
+
+							// we add the message to the call id mailbox to avoid blocking other messages
+							// with a different call id that could be processed in parallel
+							// counted before it is queued, a dispatch not run is uncounted by discarded()
+							pendingDispatches.incrementAndGet();
+
+							try {
+								getCallIdExecutor()
+										.execute(callId, new Dispatch(sipMessage, callId)); // run in executor thread
+							} catch(RuntimeException ex) {
+								dispatchDone();
+
+								throw ex;
 							}
-							final CallIDOrderingStructure callIDOrderingStructure = orderingStructure;
-							// we add the message to the pending queue of messages to be processed for that
-							// call id here
-							// to avoid blocking other messages with a different call id
-							// that could be processed in parallel
-							callIDOrderingStructure.getMessagesForCallID().offer(sipMessage);
-
-							PostParseExecutorServices.getPostParseExecutor()
-									.execute(new Dispatch(callIDOrderingStructure, callId)); // run in executor thread
 						}
 					} catch (Exception ex) {
 						// fatal error in processing - close the
@@ -567,7 +522,7 @@ public final class PipelinedMsgParser implements Runnable {
 			}
 		} finally {
 			try {
-				cleanMessageOrderingMap();
+				releasePendingDispatchWaiters();
 				if (!inputStream.isClosed()) {
 					inputStream.close();
 				}
@@ -578,34 +533,13 @@ public final class PipelinedMsgParser implements Runnable {
 	}
 
 	/**
-	 * Data structure to make sure ordering of Messages is guaranteed under TCP when
-	 * the post parsing thread pool is used
-	 * 
-	 * @author jean.deruelle@gmail.com
-	 *
+	 * @return the executor ordering the processing of the messages per Call-ID: the stack one when the per Call-ID
+	 *         execution model is enabled, otherwise the post parse one, <code>null</code> if neither is enabled
 	 */
-	class CallIDOrderingStructure {
-		private Semaphore semaphore;
-		private Queue<SIPMessage> messagesForCallID;
+	private KeyedSerialExecutor<String> getCallIdExecutor() {
+		KeyedSerialExecutor<String> executor = sipStack == null ? null : sipStack.getCallIdExecutor();
 
-		public CallIDOrderingStructure() {
-			semaphore = new Semaphore(1, true);
-			messagesForCallID = new ConcurrentLinkedQueue<SIPMessage>();
-		}
-
-		/**
-		 * @return the semaphore
-		 */
-		public Semaphore getSemaphore() {
-			return semaphore;
-		}
-
-		/**
-		 * @return the messagesForCallID
-		 */
-		public Queue<SIPMessage> getMessagesForCallID() {
-			return messagesForCallID;
-		}
+		return executor != null ? executor : PostParseExecutorServices.getCallIdExecutor();
 	}
 
 	public void close() {
@@ -621,27 +555,45 @@ public final class PipelinedMsgParser implements Runnable {
 					new Object[] {this, mythread.getName(), rawInputStream.isClosed()});
 		}
 
-		if(PostParseExecutorServices.getPostParseExecutor() != null) {
-			cleanMessageOrderingMap();
+		if(getCallIdExecutor() != null) {
+			releasePendingDispatchWaiters();
 
 			synchronized(mythread) {
 				mythread.notifyAll();
 				// interrupting because there is a race condition on the
-				// messagesOrderingMap.wait() that
+				// pendingDispatches.wait() that
 				// eventually leads to thread leaking and OutOfMemory
 				mythread.interrupt();
 			}
 		}
 	}
 
-	private void cleanMessageOrderingMap() {
-		messagesOrderingMap.clear();
+	private void dispatchDone() {
+		if(pendingDispatches.decrementAndGet() <= 0) {
+			synchronized(pendingDispatches) {
+				pendingDispatches.notifyAll();
+			}
+		}
+	}
+
+	private void waitForPendingDispatches() {
+		synchronized(pendingDispatches) {
+			try {
+				if(pendingDispatches.get() > 0) {
+					pendingDispatches.wait(64000);
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-		synchronized (messagesOrderingMap) {
-			messagesOrderingMap.notifyAll();
+	private void releasePendingDispatchWaiters() {
+		synchronized(pendingDispatches) {
+			pendingDispatches.notifyAll();
 		}
 
-		logger.log(Level.FINEST, "cleaned the messagesOrderingMap {0}, threadname {1}",
+		logger.log(Level.FINEST, "released pending dispatch waiters {0}, threadname {1}",
 				new Object[] {this, mythread.getName()});
 	}
 }
@@ -1,6 +1,6 @@
 package gov.nist.javax.sip.parser;
 
-import gov.nist.javax.sip.stack.BlockingQueueDispatchAuditor;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -11,6 +11,7 @@ import java.util.concurrent.TimeUnit;
 
 public class PostParseExecutorServices {
 	private static ExecutorService postParseExecutor = null;
+	private static KeyedSerialExecutor<String> callIdExecutor = null;
 
 	public static class NamedThreadFactory implements ThreadFactory {
 		static long threadNumber = 0;
@@ -23,29 +24,22 @@ public class PostParseExecutorServices {
 	}
 
 	public static BlockingQueue<Runnable> staticQueue;
-	public static BlockingQueueDispatchAuditor staticQueueAuditor;
 
 	public static void setPostParseExcutorSize(int threads, int queueTimeout) {
 		if (postParseExecutor != null) {
 			postParseExecutor.shutdownNow();
 		}
-		if (staticQueueAuditor != null) {
-			try {
-				staticQueueAuditor.stop();
-			} catch (Exception e) {
-
-			}
-		}
 		if (threads <= 0) {
 			postParseExecutor = null;
+			callIdExecutor = null;
 		} else {
 			staticQueue = new LinkedBlockingQueue<Runnable>();
 			postParseExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, staticQueue,
 					new NamedThreadFactory());
 
-			staticQueueAuditor = new BlockingQueueDispatchAuditor(staticQueue);
-			staticQueueAuditor.setTimeout(queueTimeout);
-			staticQueueAuditor.start(2000);
+			// messages stuck longer than the congestion control timeout are dropped by their mailbox
+			callIdExecutor = new KeyedSerialExecutor<>(postParseExecutor);
+			callIdExecutor.setQueueTimeout(queueTimeout);
 		}
 
 	}
@@ -54,17 +48,19 @@ public class PostParseExecutorServices {
 		return postParseExecutor;
 	}
 
+	/**
+	 * @return the executor running the post parse tasks of one Call-ID in order on the post parse thread pool, or
+	 *         <code>null</code> if the post parse thread pool is disabled
+	 */
+	public static KeyedSerialExecutor<String> getCallIdExecutor() {
+		return callIdExecutor;
+	}
+
 	public static void shutdownThreadpool() {
 		if (postParseExecutor != null) {
 			postParseExecutor.shutdown();
 			postParseExecutor = null;
-		}
-		if (staticQueueAuditor != null) {
-			try {
-				staticQueueAuditor.stop();
-			} catch (Exception e) {
-
-			}
+			callIdExecutor = null;
 		}
 	}
 }
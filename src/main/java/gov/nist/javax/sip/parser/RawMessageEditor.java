@@ -0,0 +1,376 @@
+package gov.nist.javax.sip.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Edits the header section of an encoded SIP message without parsing it into a SIPMessage. Header lines are located
+ * with a byte scan and the edits are recorded as (offset, removed length, inserted bytes) triples which are applied
+ * in a single copy by {@link #toByteArray()}. The body is copied untouched, so the Content-Length stays valid.
+ *
+ * This is meant for the stateless forwarding path where only the Via, Route and Max-Forwards headers change. Edits
+ * must not overlap and offsets always refer to the original message.
+ */
+public class RawMessageEditor {
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final byte[] message;
+
+	// offset of the first header line and of the empty line ending the headers
+	private final int headersStart;
+	private final int headersEnd;
+
+	private final List<Edit> edits = new ArrayList<>();
+
+	private static class Edit {
+		final int offset;
+		final int length;
+		final byte[] insert;
+
+		Edit(int offset, int length, byte[] insert) {
+			this.offset = offset;
+			this.length = length;
+			this.insert = insert;
+		}
+	}
+
+	/**
+	 * Location of one header, continuation lines included.
+	 */
+	private static class HeaderLocation {
+		int lineStart;
+		int valueStart;
+		int valueEnd;
+		int lineEnd;
+	}
+
+	/**
+	 * @param message the encoded message, it is not modified
+	 * @throws ParseException if the message has no start line or no end of headers
+	 */
+	public RawMessageEditor(byte[] message) throws ParseException {
+		this.message = message;
+
+		// drop the leading control characters (keep alive CRLFs) the parser skips as well
+		int start = 0;
+		while(start < message.length && message[start] < 0x20) {
+			start++;
+		}
+
+		if(start > 0) {
+			edits.add(new Edit(0, start, null));
+		}
+
+		int firstLineEnd = start < message.length ? nextLine(start) : -1;
+		if(firstLineEnd < 0) {
+			throw new ParseException("No start line", 0);
+		}
+
+		this.headersStart = firstLineEnd;
+
+		int offset = headersStart;
+		while(true) {
+			if(offset >= message.length) {
+				throw new ParseException("No end of headers", offset);
+			}
+
+			if(message[offset] == '\r' || message[offset] == '\n') {
+				break;
+			}
+
+			offset = nextLine(offset);
+			if(offset < 0) {
+				throw new ParseException("No end of headers", message.length);
+			}
+		}
+
+		this.headersEnd = offset;
+	}
+
+	/**
+	 * Inserts a header line before the first header with the given name, or before the first header if there is no
+	 * such header.
+	 *
+	 * @param name the header name
+	 * @param compactName the compact form of the name, can be null
+	 * @param header the header line without the line terminator, e.g. <code>Via: SIP/2.0/UDP ...</code>
+	 */
+	public void insertHeaderBefore(String name, String compactName, String header) {
+		HeaderLocation location = findHeader(name, compactName);
+		int offset = location == null ? headersStart : location.lineStart;
+
+		byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+		byte[] line = new byte[headerBytes.length + CRLF.length];
+
+		System.arraycopy(headerBytes, 0, line, 0, headerBytes.length);
+		System.arraycopy(CRLF, 0, line, headerBytes.length, CRLF.length);
+
+		edits.add(new Edit(offset, 0, line));
+	}
+
+	/**
+	 * Removes the first value of the first header with the given name. The whole header line goes if it holds a
+	 * single value, otherwise only the first element of its comma separated list.
+	 *
+	 * @param name the header name
+	 * @param compactName the compact form of the name, can be null
+	 * @return the removed value or null if there is no such header
+	 */
+	public String removeFirstValue(String name, String compactName) {
+		HeaderLocation location = findHeader(name, compactName);
+		if(location == null) {
+			return null;
+		}
+
+		int comma = findListSeparator(location.valueStart, location.valueEnd);
+		if(comma < 0) {
+			edits.add(new Edit(location.lineStart, location.lineEnd - location.lineStart, null));
+
+			return string(location.valueStart, location.valueEnd);
+		}
+
+		int next = comma + 1;
+		while(next < location.valueEnd && isWhitespace(message[next])) {
+			next++;
+		}
+
+		edits.add(new Edit(location.valueStart, next - location.valueStart, null));
+
+		return string(location.valueStart, comma);
+	}
+
+	/**
+	 * Replaces the first value of the first header with the given name, the other values of its comma separated list
+	 * are kept.
+	 *
+	 * @param name the header name
+	 * @param compactName the compact form of the name, can be null
+	 * @param value the new value
+	 * @return false if there is no such header
+	 */
+	public boolean replaceFirstValue(String name, String compactName, String value) {
+		HeaderLocation location = findHeader(name, compactName);
+		if(location == null) {
+			return false;
+		}
+
+		int comma = findListSeparator(location.valueStart, location.valueEnd);
+		int end = comma < 0 ? location.valueEnd : comma;
+
+		edits.add(new Edit(location.valueStart, end - location.valueStart, value.getBytes(StandardCharsets.UTF_8)));
+
+		return true;
+	}
+
+	/**
+	 * @return the first value of the first header with the given name or null if there is no such header
+	 */
+	public String getFirstValue(String name, String compactName) {
+		HeaderLocation location = findHeader(name, compactName);
+		if(location == null) {
+			return null;
+		}
+
+		int comma = findListSeparator(location.valueStart, location.valueEnd);
+
+		return string(location.valueStart, comma < 0 ? location.valueEnd : comma);
+	}
+
+	/**
+	 * Decrements the Max-Forwards header, adding <code>Max-Forwards: 70</code> as RFC 3261 section 16.6 asks if
+	 * the message has none.
+	 *
+	 * @return the Max-Forwards value of the forwarded message, -1 if the message arrived with a Max-Forwards of 0
+	 *         and must not be forwarded, nothing is changed then
+	 * @throws ParseException if the Max-Forwards value is not a number
+	 */
+	public int decrementMaxForwards() throws ParseException {
+		HeaderLocation location = findHeader("Max-Forwards", null);
+		if(location == null) {
+			insertHeaderBefore("Max-Forwards", null, "Max-Forwards: 70");
+
+			return 70;
+		}
+
+		int value;
+		try {
+			value = Integer.parseInt(string(location.valueStart, location.valueEnd));
+		} catch(NumberFormatException ex) {
+			throw new ParseException("Bad Max-Forwards", location.valueStart);
+		}
+
+		if(value <= 0) {
+			return -1;
+		}
+
+		edits.add(new Edit(location.valueStart, location.valueEnd - location.valueStart,
+				Integer.toString(value - 1).getBytes(StandardCharsets.US_ASCII)));
+
+		return value - 1;
+	}
+
+	/**
+	 * @return the edited message
+	 */
+	public byte[] toByteArray() {
+		if(edits.isEmpty()) {
+			return message;
+		}
+
+		// insertions at an offset go before a removal starting there, the stable sort keeps them in call order
+		edits.sort((e1, e2) -> e1.offset != e2.offset ? Integer.compare(e1.offset, e2.offset)
+				: Integer.compare(e1.length, e2.length));
+
+		int size = message.length;
+		for(Edit edit : edits) {
+			size += (edit.insert == null ? 0 : edit.insert.length) - edit.length;
+		}
+
+		byte[] result = new byte[size];
+
+		int source = 0;
+		int target = 0;
+		for(Edit edit : edits) {
+			int length = edit.offset - source;
+
+			System.arraycopy(message, source, result, target, length);
+			target += length;
+
+			if(edit.insert != null) {
+				System.arraycopy(edit.insert, 0, result, target, edit.insert.length);
+				target += edit.insert.length;
+			}
+
+			source = edit.offset + edit.length;
+		}
+
+		System.arraycopy(message, source, result, target, message.length - source);
+
+		return result;
+	}
+
+	private HeaderLocation findHeader(String name, String compactName) {
+		int offset = headersStart;
+
+		while(offset < headersEnd) {
+			int lineEnd = nextLine(offset);
+			if(lineEnd < 0) {
+				lineEnd = headersEnd;
+			}
+
+			// take the continuation lines along
+			while(lineEnd < headersEnd && (message[lineEnd] == ' ' || message[lineEnd] == '\t')) {
+				lineEnd = nextLine(lineEnd);
+			}
+
+			int colon = offset;
+			while(colon < lineEnd && message[colon] != ':') {
+				colon++;
+			}
+
+			int nameEnd = colon;
+			while(nameEnd > offset && isWhitespace(message[nameEnd - 1])) {
+				nameEnd--;
+			}
+
+			if(colon < lineEnd && (nameEquals(offset, nameEnd, name) || nameEquals(offset, nameEnd, compactName))) {
+				HeaderLocation location = new HeaderLocation();
+
+				location.lineStart = offset;
+				location.lineEnd = lineEnd;
+
+				int valueStart = colon + 1;
+				while(valueStart < lineEnd && isWhitespace(message[valueStart])) {
+					valueStart++;
+				}
+
+				int valueEnd = lineEnd;
+				while(valueEnd > valueStart && isWhitespace(message[valueEnd - 1])) {
+					valueEnd--;
+				}
+
+				location.valueStart = valueStart;
+				location.valueEnd = valueEnd;
+
+				return location;
+			}
+
+			offset = lineEnd;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the offset of the first comma separating two values, ignoring the commas in quoted strings and in
+	 *         angle brackets, or -1 if the header holds a single value
+	 */
+	private int findListSeparator(int start, int end) {
+		boolean quoted = false;
+		boolean bracketed = false;
+
+		for(int i = start; i < end; i++) {
+			byte b = message[i];
+
+			if(quoted) {
+				if(b == '\\') {
+					i++;
+				} else if(b == '"') {
+					quoted = false;
+				}
+			} else if(b == '"') {
+				quoted = true;
+			} else if(b == '<') {
+				bracketed = true;
+			} else if(b == '>') {
+				bracketed = false;
+			} else if(b == ',' && !bracketed) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the offset following the line terminator of the line starting at the given offset, -1 if the line is
+	 *         not terminated
+	 */
+	private int nextLine(int offset) {
+		for(int i = offset; i < message.length; i++) {
+			if(message[i] == '\n') {
+				return i + 1;
+			}
+
+			if(message[i] == '\r') {
+				return i + 1 < message.length && message[i + 1] == '\n' ? i + 2 : i + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean nameEquals(int start, int end, String name) {
+		if(name == null || end - start != name.length()) {
+			return false;
+		}
+
+		for(int i = 0; i < name.length(); i++) {
+			if(Character.toLowerCase((char) message[start + i]) != Character.toLowerCase(name.charAt(i))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private String string(int start, int end) {
+		return new String(message, start, end - start, StandardCharsets.UTF_8).trim();
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
@@ -0,0 +1,137 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The keys of a table of the stack grouped by creation minute, so that the stack audit only visits the entries older
+ * than its leak threshold instead of copying the whole table.
+ *
+ * The audit walks the index in slices, see {@link #next(long, int, List)}: each call resumes where the previous one
+ * stopped and a walk ends once the entries created before the cutoff have all been returned.
+ */
+final class AgeIndex {
+	static final long BUCKET_WIDTH = 60000;
+
+	/**
+	 * An indexed key, with the Call-ID of a dialog and the time the audit first suspected it.
+	 */
+	static final class Entry {
+		final String key;
+		final String callId;
+		final long bucket;
+		volatile long auditTag;
+
+		Entry(String key, String callId, long bucket) {
+			this.key = key;
+			this.callId = callId;
+			this.bucket = bucket;
+		}
+	}
+
+	// creation minute -> entries created in that minute
+	private final ConcurrentSkipListMap<Long, Map<String, Entry>> buckets = new ConcurrentSkipListMap<>();
+
+	// key -> entry
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	// guarded by this, where the audit stopped
+	private Long cursorBucket;
+	private Iterator<Entry> cursor;
+
+	void add(String key, String callId, long time) {
+		Long bucket = time / BUCKET_WIDTH;
+		Entry entry = new Entry(key, callId, bucket);
+
+		Entry previous = entries.put(key, entry);
+		if(previous != null) {
+			removeFromBucket(previous);
+		}
+
+		Map<String, Entry> bucketEntries = buckets.get(bucket);
+		if(bucketEntries == null) {
+			bucketEntries = buckets.computeIfAbsent(bucket, b -> new ConcurrentHashMap<>());
+		}
+
+		bucketEntries.put(key, entry);
+	}
+
+	void remove(String key) {
+		Entry entry = entries.remove(key);
+		if(entry != null) {
+			removeFromBucket(entry);
+		}
+	}
+
+	/**
+	 * Removes an entry returned by {@link #next(long, int, List)} unless the key has been indexed again since.
+	 */
+	void remove(Entry entry) {
+		if(entries.remove(entry.key, entry)) {
+			removeFromBucket(entry);
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		buckets.clear();
+
+		cursorBucket = null;
+		cursor = null;
+	}
+
+	/**
+	 * Collects the next entries created before a time, continuing the walk of the previous call.
+	 *
+	 * @param createdBefore only the entries of the minutes ending before this time are returned
+	 * @param max the largest number of entries to collect
+	 * @param out where the entries are collected
+	 * @return true if the walk has been completed, the next call starts a new one
+	 */
+	synchronized boolean next(long createdBefore, int max, List<Entry> out) {
+		long cutoff = createdBefore / BUCKET_WIDTH;
+
+		while(out.size() < max) {
+			if(cursor != null && cursor.hasNext()) {
+				out.add(cursor.next());
+
+				continue;
+			}
+
+			Long bucket = cursorBucket == null ? buckets.ceilingKey(Long.MIN_VALUE) : buckets.higherKey(cursorBucket);
+			if(bucket == null || bucket >= cutoff) {
+				cursorBucket = null;
+				cursor = null;
+
+				return true;
+			}
+
+			Map<String, Entry> bucketEntries = buckets.get(bucket);
+
+			// no entry is added to a past minute, an empty one can go
+			if(bucketEntries != null && bucketEntries.isEmpty()
+					&& bucket < System.currentTimeMillis() / BUCKET_WIDTH - 1) {
+				buckets.remove(bucket, bucketEntries);
+			}
+
+			cursorBucket = bucket;
+			cursor = bucketEntries == null ? null : bucketEntries.values().iterator();
+		}
+
+		return false;
+	}
+
+	private void removeFromBucket(Entry entry) {
+		Map<String, Entry> bucketEntries = buckets.get(entry.bucket);
+		if(bucketEntries != null) {
+			bucketEntries.remove(entry.key, entry);
+		}
+	}
+}
@@ -1,17 +1,76 @@
 package gov.nist.javax.sip.stack;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Issue http://java.net/jira/browse/JSIP-430 Allows to choose between direct vs non direct buffers
+ *
+ * Also pools the buffers of the TLS and WebSocket channels: {@link #acquire(int)} hands out a recycled buffer of the
+ * smallest size class holding the capacity, {@link #release(ByteBuffer)} gives it back. The size classes are the
+ * powers of two from 2 KB to 64 KB, larger buffers are not pooled. The pool keeps at most the configured number of
+ * bytes, the buffers released beyond are left to the GC.
+ *
+ * With leak detection enabled every acquired buffer is tracked, a buffer garbage collected without having been
+ * released is reported with the stack trace of its acquisition, and so is a buffer released twice.
  */
 public class ByteBufferFactory {
 	private static final Logger logger = Logger.getLogger(ByteBufferFactory.class.getName());
 	private static ByteBufferFactory instance = new ByteBufferFactory();
 	private boolean useDirect = true;
 
+	private static final int MIN_CLASS_SHIFT = 11;
+	private static final int MAX_CLASS_SHIFT = 16;
+
+	public static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private final ConcurrentLinkedDeque<ByteBuffer>[] pools = new ConcurrentLinkedDeque[MAX_CLASS_SHIFT
+			- MIN_CLASS_SHIFT + 1];
+
+	private volatile long maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+	private final AtomicLong pooledBytes = new AtomicLong();
+
+	private final AtomicLong allocatedBuffers = new AtomicLong();
+	private final AtomicLong acquiredBuffers = new AtomicLong();
+	private final AtomicLong releasedBuffers = new AtomicLong();
+	private final AtomicLong leakedBuffers = new AtomicLong();
+
+	private volatile boolean leakDetection;
+
+	// identity hash code of an acquired buffer -> trackers of the acquired buffers with that hash code
+	private final ConcurrentHashMap<Integer, List<LeakTracker>> trackers = new ConcurrentHashMap<>();
+	private final ReferenceQueue<ByteBuffer> leakQueue = new ReferenceQueue<>();
+
+	/**
+	 * Where an acquired buffer has been acquired, enqueued if the buffer is collected before being released.
+	 */
+	private static final class LeakTracker extends WeakReference<ByteBuffer> {
+		final int hash;
+		final Throwable acquisition;
+
+		LeakTracker(ByteBuffer buffer, int hash, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+
+			this.hash = hash;
+			this.acquisition = new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here");
+		}
+	}
+
+	public ByteBufferFactory() {
+		for(int i = 0; i < pools.length; i++) {
+			pools[i] = new ConcurrentLinkedDeque<>();
+		}
+	}
+
 	public static ByteBufferFactory getInstance() {
 		return instance;
 	}
@@ -28,9 +87,226 @@ public class ByteBufferFactory {
 		return ByteBuffer.allocate(capacity);
 	}
 
+	/**
+	 * Takes a cleared buffer of at least the capacity from the pool, direct unless direct buffers are disabled. The
+	 * buffer must be given back with {@link #release(ByteBuffer)} once it is no longer used.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		acquiredBuffers.incrementAndGet();
+
+		int sizeClass = sizeClassOf(capacity);
+
+		ByteBuffer buffer = null;
+		if(sizeClass >= 0) {
+			buffer = pools[sizeClass].pollFirst();
+		}
+
+		if(buffer != null && buffer.isDirect() == useDirect) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			buffer.clear();
+		} else {
+			if(buffer != null) {
+				// pooled before direct buffers were switched
+				pooledBytes.addAndGet(-buffer.capacity());
+			}
+
+			allocatedBuffers.incrementAndGet();
+			buffer = allocateDirect(sizeClass >= 0 ? 1 << (sizeClass + MIN_CLASS_SHIFT) : capacity);
+		}
+
+		if(leakDetection) {
+			track(buffer);
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer taken with {@link #acquire(int)} back to the pool, the buffer must not be used afterwards. Other
+	 * buffers are ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer == null) {
+			return;
+		}
+
+		if(leakDetection && !untrack(buffer)) {
+			return;
+		}
+
+		releasedBuffers.incrementAndGet();
+
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClassOf(capacity);
+		if(sizeClass < 0 || capacity != 1 << (sizeClass + MIN_CLASS_SHIFT) || buffer.isDirect() != useDirect
+				|| buffer.isReadOnly()) {
+			return;
+		}
+
+		if(pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			pooledBytes.addAndGet(-capacity);
+
+			return;
+		}
+
+		pools[sizeClass].offerFirst(buffer);
+	}
+
 	public void setUseDirect(boolean useDirect) {
 		logger.log(Level.FINEST, "Direct buffers are {0}", (useDirect ? "enabled" : "disabled"));
 
 		this.useDirect = useDirect;
 	}
+
+	/**
+	 * Sets the largest number of bytes kept in the pool.
+	 */
+	public void setMaxPooledBytes(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+
+		// drop the excess
+		for(ConcurrentLinkedDeque<ByteBuffer> pool : pools) {
+			while(pooledBytes.get() > maxPooledBytes) {
+				ByteBuffer buffer = pool.pollLast();
+				if(buffer == null) {
+					break;
+				}
+
+				pooledBytes.addAndGet(-buffer.capacity());
+			}
+		}
+	}
+
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	/**
+	 * Enables the tracking of the acquired buffers to report the buffers never released.
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+
+		if(!leakDetection) {
+			trackers.clear();
+		}
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * @return the number of bytes currently kept in the pool
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * @return the number of buffers allocated because the pool had none to recycle
+	 */
+	public long getAllocatedBuffers() {
+		return allocatedBuffers.get();
+	}
+
+	/**
+	 * @return the number of buffers acquired
+	 */
+	public long getAcquiredBuffers() {
+		return acquiredBuffers.get();
+	}
+
+	/**
+	 * @return the number of buffers released
+	 */
+	public long getReleasedBuffers() {
+		return releasedBuffers.get();
+	}
+
+	/**
+	 * @return the number of buffers acquired and not released yet
+	 */
+	public long getOutstandingBuffers() {
+		return acquiredBuffers.get() - releasedBuffers.get();
+	}
+
+	/**
+	 * @return the number of buffers collected without having been released, counted with leak detection enabled
+	 */
+	public long getLeakedBuffers() {
+		expungeLeaks();
+
+		return leakedBuffers.get();
+	}
+
+	private static int sizeClassOf(int capacity) {
+		if(capacity > 1 << MAX_CLASS_SHIFT) {
+			return -1;
+		}
+
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+
+		return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+	}
+
+	private void track(ByteBuffer buffer) {
+		expungeLeaks();
+
+		int hash = System.identityHashCode(buffer);
+		LeakTracker tracker = new LeakTracker(buffer, hash, leakQueue);
+
+		trackers.compute(hash, (key, list) -> {
+			List<LeakTracker> result = list == null ? new ArrayList<>(1) : list;
+			result.add(tracker);
+
+			return result;
+		});
+	}
+
+	private boolean untrack(ByteBuffer buffer) {
+		int hash = System.identityHashCode(buffer);
+		boolean[] found = new boolean[1];
+
+		trackers.computeIfPresent(hash, (key, list) -> {
+			for(int i = 0; i < list.size(); i++) {
+				if(list.get(i).get() == buffer) {
+					list.remove(i).clear();
+					found[0] = true;
+
+					break;
+				}
+			}
+
+			return list.isEmpty() ? null : list;
+		});
+
+		if(!found[0]) {
+			logger.log(Level.WARNING, "Released a buffer which is not acquired, released twice or not from the pool",
+					new Throwable("Buffer of " + buffer.capacity() + " bytes released here"));
+		}
+
+		return found[0];
+	}
+
+	private void expungeLeaks() {
+		LeakTracker tracker;
+		while((tracker = (LeakTracker) leakQueue.poll()) != null) {
+			LeakTracker leaked = tracker;
+			boolean[] tracked = new boolean[1];
+
+			trackers.computeIfPresent(leaked.hash, (key, list) -> {
+				tracked[0] = list.remove(leaked);
+
+				return list.isEmpty() ? null : list;
+			});
+
+			if(tracked[0]) {
+				leakedBuffers.incrementAndGet();
+
+				logger.log(Level.WARNING, "A buffer has been garbage collected without being released",
+						leaked.acquisition);
+			}
+		}
+	}
 }
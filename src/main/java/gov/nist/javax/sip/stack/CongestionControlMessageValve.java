@@ -6,6 +6,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.ResponseTemplates;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 
@@ -52,7 +53,16 @@ public class CongestionControlMessageValve implements SIPMessageValve {
 				return true;
 			}
 
-			if(dropResponseStatus > 0) {
+			if(dropResponseStatus > 0 && ResponseTemplates.isSupported(dropResponseStatus)) {
+				// shedding load must cost less than accepting it, send the pre-encoded response
+				try {
+					messageChannel.sendMessageBytes(ResponseTemplates.encode(request, dropResponseStatus),
+							messageChannel.getPeerInetAddress(), messageChannel.getPeerPort(), false);
+				} catch(IOException e) {
+					logger.log(Level.SEVERE, e, () -> MessageFormat.format("Failed to send congestion"
+							+ " control error response {0} to {1}", dropResponseStatus, request.getFirstLine()));
+				}
+			} else if(dropResponseStatus > 0) {
 				SIPResponse response = request.createResponse(dropResponseStatus);
 				try {
 					messageChannel.sendMessage(response);
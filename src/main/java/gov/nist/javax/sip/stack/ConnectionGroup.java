@@ -0,0 +1,150 @@
+package gov.nist.javax.sip.stack;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sip.message.Request;
+
+import gov.nist.javax.sip.message.SIPRequest;
+
+/**
+ * The connections of a NIO processor to one destination when several are kept per destination, see
+ * gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION.
+ *
+ * Slot 0 is the channel the processor caches for the destination as with a single connection, the other slots hold
+ * the extra channels, opened when needed. The requests of a dialog, or which may create one, go to the slot of their
+ * Call-ID so that they keep their order, the other requests to the connection with the fewest bytes queued. A slot
+ * whose connection dies is emptied and reopened by the next request, a slot which fails to connect is skipped for a
+ * while.
+ */
+final class ConnectionGroup {
+	// how long a slot which failed to connect is skipped
+	static final long DOWN_MILLIS = 5000;
+
+	// set under the lock of the slot, emptied without it when the channel is removed
+	private final AtomicReferenceArray<NioTcpMessageChannel> channels;
+	private final long[] downUntil;
+	private final Object[] locks;
+
+	ConnectionGroup(int connections) {
+		channels = new AtomicReferenceArray<>(connections);
+		downUntil = new long[connections];
+		locks = new Object[connections];
+
+		for(int i = 0; i < connections; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	int size() {
+		return channels.length();
+	}
+
+	/**
+	 * @return true if the request must go to the connection of its Call-ID, false if any connection will do
+	 */
+	static boolean isCallIdAffine(SIPRequest request) {
+		if(request.getToTag() != null) {
+			return true;
+		}
+
+		String method = request.getMethod();
+
+		return !(Request.MESSAGE.equals(method) || Request.OPTIONS.equals(method) || Request.REGISTER.equals(method)
+				|| Request.PUBLISH.equals(method));
+	}
+
+	/**
+	 * @return the slot of a Call-ID
+	 */
+	int slotOf(String callId) {
+		return (callId.hashCode() & Integer.MAX_VALUE) % channels.length();
+	}
+
+	Object lockOf(int slot) {
+		return locks[slot];
+	}
+
+	/**
+	 * @return the healthy channel of an extra slot, null if it has none, a dead channel is evicted
+	 */
+	NioTcpMessageChannel get(int slot) {
+		synchronized(locks[slot]) {
+			NioTcpMessageChannel channel = channels.get(slot);
+
+			if(channel != null && !isHealthy(channel)) {
+				channels.set(slot, null);
+
+				return null;
+			}
+
+			return channel;
+		}
+	}
+
+	void set(int slot, NioTcpMessageChannel channel) {
+		synchronized(locks[slot]) {
+			channels.set(slot, channel);
+			downUntil[slot] = 0;
+		}
+	}
+
+	/**
+	 * Skips a slot for a while after its connection failed.
+	 */
+	void down(int slot) {
+		synchronized(locks[slot]) {
+			channels.set(slot, null);
+			downUntil[slot] = System.currentTimeMillis() + DOWN_MILLIS;
+		}
+	}
+
+	boolean isDown(int slot) {
+		synchronized(locks[slot]) {
+			return downUntil[slot] > System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Empties the slot of a channel removed from the processor, without waiting for a slot being connected.
+	 *
+	 * @return true if no slot has a channel left, the group can be dropped
+	 */
+	boolean remove(ConnectionOrientedMessageChannel channel) {
+		for(int i = 0; i < channels.length(); i++) {
+			channels.compareAndSet(i, (NioTcpMessageChannel) channel, null);
+		}
+
+		return !hasChannel();
+	}
+
+	/**
+	 * @return true if a slot has a channel
+	 */
+	boolean hasChannel() {
+		for(int i = 0; i < channels.length(); i++) {
+			if(channels.get(i) != null) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Forgets the extra channels, the processor is stopping.
+	 */
+	void clear() {
+		for(int i = 0; i < channels.length(); i++) {
+			synchronized(locks[i]) {
+				channels.set(i, null);
+			}
+		}
+	}
+
+	static boolean isHealthy(NioTcpMessageChannel channel) {
+		SocketChannel socketChannel = channel.getSocketChannel();
+
+		return socketChannel != null && socketChannel.isConnected() && socketChannel.isOpen();
+	}
+}
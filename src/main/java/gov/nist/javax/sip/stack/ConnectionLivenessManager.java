@@ -0,0 +1,361 @@
+package gov.nist.javax.sip.stack;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+/**
+ * Watches the liveness of the connections of a stack with a single timer task instead of a timer task per
+ * connection:
+ * <ul>
+ * <li>the RFC 5626 keep-alive timeout of the connections, the pong awaited after a ping or the next ping awaited
+ * from a client, see gov.nist.javax.sip.RELIABLE_CONNECTION_KEEP_ALIVE_TIMEOUT,</li>
+ * <li>the idle timeout of the NIO connections, see gov.nist.javax.sip.NIO_MAX_SOCKET_IDLE_TIME,</li>
+ * <li>the CRLF pings of the NIO connections opened by the stack, see gov.nist.javax.sip.KEEP_ALIVE_PING_INTERVAL,
+ * </li>
+ * <li>the pings sent back to the UDP clients at most once per gov.nist.javax.sip.MIN_KEEPALIVE_TIME_SECONDS.</li>
+ * </ul>
+ *
+ * A connection has one {@link Flow} for its lifetime, whose deadlines are fields set by the senders and the receivers.
+ * The flow waits in the slot of a coarse timing wheel for its earliest deadline and is looked at when the wheel reaches
+ * the slot, so a deadline pushed back costs a field write and only a deadline brought forward queues the flow again.
+ * The deadlines further than a turn of the wheel take several turns. A flow whose connection is closed is dropped the
+ * next time its slot is reached.
+ */
+public class ConnectionLivenessManager {
+	private static final Logger logger = Logger.getLogger(ConnectionLivenessManager.class.getName());
+
+	// the width of a slot, the deadlines are met within a tick
+	private static final long TICK = 1000;
+
+	// a power of two, over 8 minutes per turn
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	// RFC 5626 section 4.4.1, waiting for the pong of a ping when no keep-alive timeout is set
+	private static final long DEFAULT_PONG_TIMEOUT = 10000;
+
+	private static final byte[] PING = "\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+	private static final long NOT_QUEUED = Long.MAX_VALUE;
+
+	private final SIPTransactionStack sipStack;
+
+	private final ConcurrentLinkedQueue<Flow>[] wheel;
+
+	// the last tick whose slot has been or is being expired
+	private volatile long wheelTick;
+
+	// the time until which no ping is sent back to a UDP address
+	private final ConcurrentHashMap<String, Long> pingBacks = new ConcurrentHashMap<>();
+
+	private final SIPStackTimerTask tickTask = new SIPStackTimerTask() {
+		@Override
+		public void runTask() {
+			advance();
+		}
+	};
+
+	// the timer the tick task is scheduled on, a restarted stack has a new one
+	private volatile SipTimer timer;
+
+	/**
+	 * The liveness of one connection.
+	 */
+	static final class Flow {
+		final ConnectionOrientedMessageChannel channel;
+
+		// the keep-alive timeout, 0 when no ping or pong is awaited
+		volatile long keepAliveDeadline;
+
+		// when the next ping is sent, 0 if the connection isn't pinged
+		volatile long nextPing;
+
+		volatile boolean idleWatched;
+
+		// the tick of the slot the flow is queued in
+		final AtomicLong queuedTick = new AtomicLong(NOT_QUEUED);
+
+		Flow(ConnectionOrientedMessageChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ConnectionLivenessManager(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+
+		this.wheel = new ConcurrentLinkedQueue[WHEEL_SIZE];
+		for(int i = 0; i < WHEEL_SIZE; i++) {
+			wheel[i] = new ConcurrentLinkedQueue<>();
+		}
+
+		this.wheelTick = System.currentTimeMillis() / TICK;
+	}
+
+	/**
+	 * Watches an NIO connection for the idle timeout and pings it if it has been opened by the stack.
+	 *
+	 * @param ping true to send CRLF pings on the connection
+	 */
+	void watch(Flow flow, boolean ping) {
+		long now = System.currentTimeMillis();
+
+		long maxIdleTime = sipStack.nioSocketMaxIdleTime;
+		if(maxIdleTime > 0) {
+			flow.idleWatched = true;
+			schedule(flow, now + maxIdleTime);
+		}
+
+		long pingInterval = sipStack.getKeepAlivePingInterval();
+		if(ping && pingInterval > 0) {
+			flow.nextPing = now + jitter(pingInterval);
+			schedule(flow, flow.nextPing);
+		}
+	}
+
+	/**
+	 * Starts or restarts the keep-alive timeout of a connection.
+	 */
+	void startKeepAlive(Flow flow, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		flow.keepAliveDeadline = deadline;
+		schedule(flow, deadline);
+	}
+
+	/**
+	 * Stops the keep-alive timeout of a connection, the flow stays in its slot until reached.
+	 */
+	void stopKeepAlive(Flow flow) {
+		flow.keepAliveDeadline = 0;
+	}
+
+	/**
+	 * Throttles the pings sent back to a UDP client.
+	 *
+	 * @param interval how long no other ping is sent back to the address, in milliseconds
+	 * @return true if a ping can be sent back to the address
+	 */
+	public boolean acquirePingBack(String address, int port, long interval) {
+		start();
+
+		String key = address + ":" + port;
+		long now = System.currentTimeMillis();
+
+		Long until = pingBacks.get(key);
+		if(until != null && until > now) {
+			return false;
+		}
+
+		return until == null ? pingBacks.putIfAbsent(key, now + interval) == null
+				: pingBacks.replace(key, until, now + interval);
+	}
+
+	/**
+	 * Queues a flow in the slot of a deadline unless it is queued in an earlier one.
+	 */
+	private void schedule(Flow flow, long deadline) {
+		start();
+
+		long target = (deadline + TICK - 1) / TICK;
+
+		while(true) {
+			long tick = Math.max(target, wheelTick + 1);
+
+			long queued = flow.queuedTick.get();
+			if(queued <= tick) {
+				return;
+			}
+
+			if(!flow.queuedTick.compareAndSet(queued, tick)) {
+				continue;
+			}
+
+			wheel[(int) (tick & WHEEL_MASK)].offer(flow);
+
+			// the slot may have been expired meanwhile, queue the flow in the next one
+			if(wheelTick < tick || !flow.queuedTick.compareAndSet(tick, NOT_QUEUED)) {
+				return;
+			}
+		}
+	}
+
+	private void start() {
+		SipTimer current = sipStack.getTimer();
+		if(current == timer || current == null) {
+			return;
+		}
+
+		synchronized(this) {
+			if(current != timer) {
+				timer = current;
+				current.scheduleWithFixedDelay(tickTask, TICK, TICK);
+			}
+		}
+	}
+
+	/**
+	 * Expires the slots of the ticks elapsed since the last run of the timer task.
+	 */
+	private void advance() {
+		long now = System.currentTimeMillis();
+		long target = now / TICK;
+		long current = wheelTick;
+
+		// past a full turn every slot is due, no need to visit the same slot twice
+		if(target - current > WHEEL_SIZE) {
+			current = target - WHEEL_SIZE;
+		}
+
+		while(current < target) {
+			current++;
+
+			// set first so that a flow queued while the slot is expired goes to the next one
+			wheelTick = current;
+
+			expire(wheel[(int) (current & WHEEL_MASK)], current, now);
+		}
+
+		if(!pingBacks.isEmpty()) {
+			pingBacks.values().removeIf(until -> until <= now);
+		}
+	}
+
+	private void expire(ConcurrentLinkedQueue<Flow> slot, long tick, long now) {
+		List<Flow> nextTurn = null;
+
+		Flow flow;
+		while((flow = slot.poll()) != null) {
+			long queued = flow.queuedTick.get();
+
+			if(queued > tick) {
+				// a deadline of a later turn, otherwise the flow is queued in another slot
+				if(queued != NOT_QUEUED && (queued & WHEEL_MASK) == (tick & WHEEL_MASK)) {
+					if(nextTurn == null) {
+						nextTurn = new ArrayList<>();
+					}
+
+					nextTurn.add(flow);
+				}
+			} else if(flow.queuedTick.compareAndSet(queued, NOT_QUEUED)) {
+				try {
+					check(flow, now);
+				} catch(Exception ex) {
+					logger.log(Level.SEVERE, "Problem checking the liveness of " + flow.channel, ex);
+				}
+			}
+		}
+
+		if(nextTurn != null) {
+			slot.addAll(nextTurn);
+		}
+	}
+
+	private void check(Flow flow, long now) {
+		ConnectionOrientedMessageChannel channel = flow.channel;
+
+		long keepAliveDeadline = flow.keepAliveDeadline;
+		if(keepAliveDeadline != 0 && keepAliveDeadline <= now) {
+			flow.keepAliveDeadline = 0;
+			flow.nextPing = 0;
+
+			channel.keepAliveTimedOut();
+
+			return;
+		}
+
+		// the keep-alive timeout outlives a closed connection, the idle timeout and the pings do not
+		if(!channel.isRunning) {
+			if(keepAliveDeadline != 0) {
+				schedule(flow, keepAliveDeadline);
+			}
+
+			return;
+		}
+
+		long next = keepAliveDeadline;
+
+		if(flow.idleWatched) {
+			long idleDeadline = ((NioTcpMessageChannel) channel).getLastActivityTimestamp()
+					+ sipStack.nioSocketMaxIdleTime;
+
+			if(idleDeadline <= now) {
+				logger.log(Level.FINEST, "Closing the idle connection {0}, last activity: {1}",
+						new Object[] {channel.key, idleDeadline - sipStack.nioSocketMaxIdleTime});
+
+				channel.close();
+
+				return;
+			}
+
+			next = earliest(next, idleDeadline);
+		}
+
+		long nextPing = flow.nextPing;
+		if(nextPing != 0) {
+			if(nextPing <= now) {
+				nextPing = ping(flow, now);
+			}
+
+			next = earliest(next, nextPing);
+			next = earliest(next, flow.keepAliveDeadline);
+		}
+
+		if(next != 0) {
+			schedule(flow, next);
+		}
+	}
+
+	/**
+	 * Sends a ping on a connection opened by the stack and waits for the pong.
+	 *
+	 * @return when the next ping is sent
+	 */
+	private long ping(Flow flow, long now) {
+		ConnectionOrientedMessageChannel channel = flow.channel;
+
+		long timeout = channel.getKeepAliveTimeout() > 0 ? channel.getKeepAliveTimeout() : DEFAULT_PONG_TIMEOUT;
+		long keepAliveDeadline = flow.keepAliveDeadline;
+
+		if(keepAliveDeadline == 0 || keepAliveDeadline > now + timeout) {
+			flow.keepAliveDeadline = now + timeout;
+		}
+
+		logger.log(Level.FINEST, "Sending a keep-alive ping on {0}", channel.key);
+
+		try {
+			channel.sendMessage(PING, false);
+		} catch(Exception ex) {
+			logger.log(Level.FINEST, "Could not send a keep-alive ping on " + channel.key, ex);
+		}
+
+		long nextPing = now + jitter(sipStack.getKeepAlivePingInterval());
+		flow.nextPing = nextPing;
+
+		return nextPing;
+	}
+
+	/**
+	 * RFC 5626 section 4.4.1, the pings are sent between 80 and 100% of the interval.
+	 */
+	private static long jitter(long interval) {
+		return interval - ThreadLocalRandom.current().nextLong(interval / 5 + 1);
+	}
+
+	private static long earliest(long deadline, long other) {
+		if(deadline == 0) {
+			return other;
+		}
+
+		return other == 0 ? deadline : Math.min(deadline, other);
+	}
+}
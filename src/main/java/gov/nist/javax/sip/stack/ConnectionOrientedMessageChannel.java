@@ -22,7 +22,6 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.text.ParseException;
 import java.util.Iterator;
-import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,18 +58,16 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel
 	protected int peerPort;
 	protected String peerProtocol;
 	private volatile long lastKeepAliveReceivedTime;
-	private SIPStackTimerTask pingKeepAliveTimeoutTask;
-	private Semaphore keepAliveSemaphore;
+
+	// the keep-alive timeout, idle timeout and pings of the connection, see ConnectionLivenessManager
+	protected final ConnectionLivenessManager.Flow flow;
 
 	private long keepAliveTimeout;
 
 	public ConnectionOrientedMessageChannel(SIPTransactionStack sipStack) {
 		this.sipStack = sipStack;
 		this.keepAliveTimeout = sipStack.getReliableConnectionKeepAliveTimeout();
-
-		if(keepAliveTimeout > 0) {
-			keepAliveSemaphore = new Semaphore(1);
-		}
+		this.flow = new ConnectionLivenessManager.Flow(this);
 	}
 
 	/**
@@ -599,23 +596,12 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel
 	}
 
 	public void cancelPingKeepAliveTimeoutTaskIfStarted() {
-		if (pingKeepAliveTimeoutTask != null && pingKeepAliveTimeoutTask.getSipTimerTask() != null) {
-			try {
-				keepAliveSemaphore.acquire();
-			} catch(InterruptedException e) {
-				logger.log(Level.SEVERE, "Couldn't acquire keepAliveSemaphore", e);
-				return;
-			}
-
-			try {
-				logger.log(Level.FINEST, "~~~ cancelPingKeepAliveTimeoutTaskIfStarted for MessageChannel(key={0}),"
-						+ " clientAddress={1}, clientPort={2}, timeout={3})",
-								new Object[] {key, peerAddress, peerPort, keepAliveTimeout});
+		if(flow.keepAliveDeadline != 0) {
+			logger.log(Level.FINEST, "~~~ cancelPingKeepAliveTimeoutTaskIfStarted for MessageChannel(key={0}),"
+					+ " clientAddress={1}, clientPort={2}, timeout={3})",
+							new Object[] {key, peerAddress, peerPort, keepAliveTimeout});
 
-				sipStack.getTimer().cancel(pingKeepAliveTimeoutTask);
-			} finally {
-				keepAliveSemaphore.release();
-			}
+			sipStack.getConnectionLivenessManager().stopKeepAlive(flow);
 		}
 	}
 
@@ -631,11 +617,8 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel
 				+ " clientPort={2}, timeout={3})", new Object[] {key, peerAddress, peerPort, keepAliveTimeout});
 
 		this.keepAliveTimeout = keepAliveTimeout;
-		if(keepAliveSemaphore == null) {
-			keepAliveSemaphore = new Semaphore(1);
-		}
 
-		boolean isKeepAliveTimeoutTaskScheduled = pingKeepAliveTimeoutTask != null;
+		boolean isKeepAliveTimeoutTaskScheduled = flow.keepAliveDeadline != 0;
 		if(isKeepAliveTimeoutTaskScheduled && keepAliveTimeout > 0) {
 			rescheduleKeepAliveTimeout(keepAliveTimeout);
 		}
@@ -651,73 +634,45 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel
 						new Object[] {key, peerAddress, peerPort, keepAliveTimeout,
 								newKeepAliveTimeout == Long.MAX_VALUE ? "Long.MAX_VALUE" : newKeepAliveTimeout});
 
-		try {
-			keepAliveSemaphore.acquire();
-		} catch(InterruptedException e) {
-			logger.log(Level.WARNING, "Couldn't acquire keepAliveSemaphore");
-
-			return;
-		}
-
-		try {
-			if(pingKeepAliveTimeoutTask == null) {
-				pingKeepAliveTimeoutTask = new KeepAliveTimeoutTimerTask();
-
-				logger.log(Level.FINEST, ", scheduling pingKeepAliveTimeoutTask to execute after {0} seconds",
-						keepAliveTimeout / 1000);
-
-				sipStack.getTimer().schedule(pingKeepAliveTimeoutTask, keepAliveTimeout);
-			} else {
-				logger.log(Level.FINEST, "~~~ cancelPingKeepAliveTimeout for MessageChannel(key={0}), clientAddress={1}"
-						+ ", clientPort={2}, timeout={3})",
-								new Object[] {key, peerAddress, peerPort, keepAliveTimeout});
+		logger.log(Level.FINEST, ", scheduling pingKeepAliveTimeoutTask to execute after {0} seconds",
+				keepAliveTimeout / 1000);
 
-				sipStack.getTimer().cancel(pingKeepAliveTimeoutTask);
-				pingKeepAliveTimeoutTask = new KeepAliveTimeoutTimerTask();
+		sipStack.getConnectionLivenessManager().startKeepAlive(flow, keepAliveTimeout);
+	}
 
-				logger.log(Level.FINEST, ", scheduling pingKeepAliveTimeoutTask to execute after {0} seconds",
-						keepAliveTimeout / 1000);
+	/**
+	 * Closes the connection whose keep-alive timed out and notifies the listener of its listening point.
+	 */
+	void keepAliveTimedOut() {
+		logger.log(Level.FINEST, "~~~ Starting processing of KeepAliveTimeoutEvent( {0},{1})...",
+				new Object[] {peerAddress.getHostAddress(), peerPort});
 
-				sipStack.getTimer().schedule(pingKeepAliveTimeoutTask, keepAliveTimeout);
-			}
-		} finally {
-			keepAliveSemaphore.release();
-		}
-	}
+		close(true, true);
 
-	class KeepAliveTimeoutTimerTask extends SIPStackTimerTask {
-
-		public void runTask() {
-			logger.log(Level.FINEST, "~~~ Starting processing of KeepAliveTimeoutEvent( {0},{1})...",
-					new Object[] {peerAddress.getHostAddress(), peerPort});
-
-			close(true, true);
-
-			if (sipStack instanceof SipStackImpl) {
-				for (Iterator<SipProviderImpl> it = ((SipStackImpl) sipStack).getSipProviders(); it.hasNext();) {
-					SipProviderImpl nextProvider = (SipProviderImpl) it.next();
-					SipListener sipListener = nextProvider.getSipListener();
-					ListeningPoint[] listeningPoints = nextProvider.getListeningPoints();
-
-					for(ListeningPoint listeningPoint : listeningPoints) {
-						if(sipListener != null && sipListener instanceof SipListenerExt
-						// making sure that we don't notify each listening point but only the one on which the timeout happened
-								&& listeningPoint.getIPAddress().equalsIgnoreCase(myAddress)
-								&& listeningPoint.getPort() == myPort
-								&& listeningPoint.getTransport().equalsIgnoreCase(getTransport())) {
-							((SipListenerExt) sipListener).processIOException(new IOExceptionEventExt(nextProvider,
-									Reason.KeepAliveTimeout, myAddress, myPort, peerAddress.getHostAddress(), peerPort,
-											getTransport()));
-						}
+		if (sipStack instanceof SipStackImpl) {
+			for (Iterator<SipProviderImpl> it = ((SipStackImpl) sipStack).getSipProviders(); it.hasNext();) {
+				SipProviderImpl nextProvider = (SipProviderImpl) it.next();
+				SipListener sipListener = nextProvider.getSipListener();
+				ListeningPoint[] listeningPoints = nextProvider.getListeningPoints();
+
+				for(ListeningPoint listeningPoint : listeningPoints) {
+					if(sipListener != null && sipListener instanceof SipListenerExt
+					// making sure that we don't notify each listening point but only the one on which the timeout happened
+							&& listeningPoint.getIPAddress().equalsIgnoreCase(myAddress)
+							&& listeningPoint.getPort() == myPort
+							&& listeningPoint.getTransport().equalsIgnoreCase(getTransport())) {
+						((SipListenerExt) sipListener).processIOException(new IOExceptionEventExt(nextProvider,
+								Reason.KeepAliveTimeout, myAddress, myPort, peerAddress.getHostAddress(), peerPort,
+										getTransport()));
 					}
 				}
-			} else {
-				SipListener sipListener = sipStack.getSipListener();
-				if (sipListener instanceof SipListenerExt) {
-					((SipListenerExt) sipListener)
-							.processIOException(new IOExceptionEventExt(this, Reason.KeepAliveTimeout, myAddress,
-									myPort, peerAddress.getHostAddress(), peerPort, getTransport()));
-				}
+			}
+		} else {
+			SipListener sipListener = sipStack.getSipListener();
+			if (sipListener instanceof SipListenerExt) {
+				((SipListenerExt) sipListener)
+						.processIOException(new IOExceptionEventExt(this, Reason.KeepAliveTimeout, myAddress,
+								myPort, peerAddress.getHostAddress(), peerPort, getTransport()));
 			}
 		}
 	}
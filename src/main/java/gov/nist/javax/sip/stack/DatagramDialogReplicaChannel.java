@@ -0,0 +1,112 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DialogReplicaChannel} sending each batch as a datagram to every peer, meant for tests and for peers on the
+ * same host or LAN. A lost datagram loses the changes it carried until the dialogs change again.
+ *
+ * Configured with
+ * <ul>
+ * <li>gov.nist.javax.sip.DIALOG_REPLICATION_ADDRESS, the host:port the batches of the peers are received on</li>
+ * <li>gov.nist.javax.sip.DIALOG_REPLICATION_PEERS, the comma separated host:port of the peers</li>
+ * </ul>
+ */
+public class DatagramDialogReplicaChannel implements DialogReplicaChannel {
+	private static final Logger logger = Logger.getLogger(DatagramDialogReplicaChannel.class.getName());
+
+	private static final int MAX_DATAGRAM_SIZE = 60000;
+
+	private final List<InetSocketAddress> peers = new ArrayList<>();
+
+	private DatagramSocket socket;
+	private volatile boolean running;
+
+	@Override
+	public void start(final DialogReplicator replicator) throws IOException {
+		Properties properties = replicator.getSipStack().getConfigurationProperties();
+
+		String address = properties.getProperty("gov.nist.javax.sip.DIALOG_REPLICATION_ADDRESS");
+		if(address == null) {
+			throw new IOException("gov.nist.javax.sip.DIALOG_REPLICATION_ADDRESS is not set");
+		}
+
+		String peerList = properties.getProperty("gov.nist.javax.sip.DIALOG_REPLICATION_PEERS", "");
+		for(String peer : peerList.split(",")) {
+			if(!peer.trim().isEmpty()) {
+				peers.add(parseAddress(peer.trim()));
+			}
+		}
+
+		socket = new DatagramSocket(parseAddress(address));
+		running = true;
+
+		Thread receiver = new Thread(() -> receive(replicator), "jain_sip_dialog_replica_receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	@Override
+	public void send(byte[] batch, int length) throws IOException {
+		for(InetSocketAddress peer : peers) {
+			socket.send(new DatagramPacket(batch, length, peer));
+		}
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return MAX_DATAGRAM_SIZE;
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+
+		if(socket != null) {
+			socket.close();
+		}
+	}
+
+	private void receive(DialogReplicator replicator) {
+		byte[] buffer = new byte[65535];
+
+		while(running) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+			try {
+				socket.receive(packet);
+			} catch(SocketException ex) {
+				// closed by stop
+				break;
+			} catch(IOException ex) {
+				logger.log(Level.WARNING, "could not receive a dialog replication batch", ex);
+
+				continue;
+			}
+
+			replicator.apply(packet.getData(), packet.getOffset(), packet.getLength());
+		}
+	}
+
+	private static InetSocketAddress parseAddress(String address) throws IOException {
+		int colon = address.lastIndexOf(':');
+		if(colon < 0) {
+			throw new IOException("host:port expected: " + address);
+		}
+
+		try {
+			return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		} catch(NumberFormatException ex) {
+			throw new IOException("host:port expected: " + address, ex);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Iterator;
+
+import javax.sip.ListeningPoint;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.header.Event;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+/**
+ * A versioned binary encoding of the confirmed dialogs, subscription dialogs included, used to snapshot the dialog
+ * table and restore it after a restart. Only what a confirmed dialog needs to send and receive in-dialog requests is
+ * kept: identifiers, tags, sequence numbers, the parties, the remote target, the local contact, the route set, the
+ * Event header and the last response information used by createAck and createRequest.
+ *
+ * Numbers are written as variable length integers and strings as UTF-8 prefixed by their length. The headers and
+ * addresses are kept in their encoded form and go to the same stringified fields the aggressive cleanup uses, so
+ * they are only parsed when the restored dialog uses them.
+ */
+public class DialogCodec {
+	/**
+	 * The version of the encoding written by {@link #encode(SIPDialog, DataOutput)}.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int FLAG_SERVER = 1;
+	private static final int FLAG_TERMINATE_ON_BYE = 1 << 1;
+	private static final int FLAG_BACK_TO_BACK = 1 << 2;
+	private static final int FLAG_SEQUENCE_NUMBER_VALIDATION = 1 << 3;
+	private static final int FLAG_FIRST_TRANSACTION_SECURE = 1 << 4;
+	private static final int FLAG_FIRST_TRANSACTION_SEEN = 1 << 5;
+	private static final int FLAG_FIRST_TRANSACTION_SERVER = 1 << 6;
+	private static final int FLAG_ACKNOWLEDGED = 1 << 7;
+
+	/**
+	 * @return <code>true</code> if the dialog can be encoded, only confirmed dialogs which received or sent a
+	 *         response can
+	 */
+	public boolean isEncodable(SIPDialog dialog) {
+		return dialog.getState() != null && dialog.getState().getValue() == SIPDialog.CONFIRMED_STATE
+				&& dialog.getLastResponseTopMostVia() != null && dialog.getDialogId() != null
+				&& dialog.getSipProvider() != null;
+	}
+
+	/**
+	 * Encodes a dialog.
+	 *
+	 * @throws IllegalArgumentException if the dialog is not {@link #isEncodable(SIPDialog) encodable}
+	 */
+	public void encode(SIPDialog dialog, DataOutput out) throws IOException {
+		if(!isEncodable(dialog)) {
+			throw new IllegalArgumentException("Only confirmed dialogs can be encoded: " + dialog);
+		}
+
+		Via topVia = dialog.getLastResponseTopMostVia();
+		ListeningPoint listeningPoint = dialog.getSipProvider().getListeningPoint(topVia.getTransport());
+
+		writeString(out, topVia.getTransport());
+		writeString(out, listeningPoint == null ? null : listeningPoint.getIPAddress());
+		writeVarLong(out, listeningPoint == null ? -1 : listeningPoint.getPort());
+
+		writeString(out, dialog.getDialogId());
+		writeString(out, dialog.getCallId().getCallId());
+		writeString(out, dialog.getLocalTag());
+		writeString(out, dialog.getRemoteTag());
+		writeString(out, dialog.getMethod());
+
+		int flags = 0;
+		flags |= dialog.serverTransactionFlag ? FLAG_SERVER : 0;
+		flags |= dialog.terminateOnBye ? FLAG_TERMINATE_ON_BYE : 0;
+		flags |= dialog.isBackToBackUserAgent ? FLAG_BACK_TO_BACK : 0;
+		flags |= dialog.sequenceNumberValidation ? FLAG_SEQUENCE_NUMBER_VALIDATION : 0;
+		flags |= dialog.firstTransactionSecure ? FLAG_FIRST_TRANSACTION_SECURE : 0;
+		flags |= dialog.firstTransactionSeen ? FLAG_FIRST_TRANSACTION_SEEN : 0;
+		flags |= dialog.firstTransactionIsServerTransaction ? FLAG_FIRST_TRANSACTION_SERVER : 0;
+		flags |= dialog.isAcknowledged ? FLAG_ACKNOWLEDGED : 0;
+		out.writeByte(flags);
+
+		writeVarLong(out, dialog.localSequenceNumber);
+		writeVarLong(out, dialog.remoteSequenceNumber);
+		writeVarLong(out, dialog.originalLocalSequenceNumber);
+
+		writeVarLong(out, dialog.firstTransactionPort);
+		writeString(out, dialog.firstTransactionId);
+		writeString(out, dialog.firstTransactionMergeId);
+		writeString(out, dialog.firstTransactionMethod);
+
+		writeString(out, toString(dialog.getLocalParty()));
+		writeString(out, toString(dialog.getRemoteParty()));
+		writeString(out, toString(dialog.getRemoteTarget()));
+		writeString(out, toString(dialog.getMyContactHeader()));
+		writeBytes(out, dialog.getRouteSetBytes());
+		writeString(out, toString(dialog.eventHeader));
+
+		writeString(out, topVia.toString());
+		writeVarLong(out, dialog.lastResponseStatusCode == null ? -1 : dialog.lastResponseStatusCode);
+		writeVarLong(out, dialog.lastResponseCSeqNumber);
+		writeString(out, dialog.lastResponseMethod);
+		writeString(out, dialog.lastResponseFromTag);
+		writeString(out, dialog.lastResponseToTag);
+		writeString(out, dialog.lastResponseDialogId);
+		writeVarLong(out, dialog.lastInviteResponseCSeqNumber);
+		writeVarLong(out, dialog.lastInviteResponseCode);
+		writeVarLong(out, dialog.lastAckReceivedCSeqNumber == null ? -1 : dialog.lastAckReceivedCSeqNumber);
+	}
+
+	/**
+	 * Decodes a dialog encoded by {@link #encode(SIPDialog, DataOutput)}. The dialog is bound to the provider owning
+	 * the listening point it was bound to, or to a provider with a listening point of the same transport.
+	 *
+	 * @param version the version the dialog has been encoded with
+	 * @return the dialog, not yet in the dialog table, or null if the stack has no provider for its transport
+	 * @throws IOException if the version is not supported or the encoding is corrupted
+	 */
+	public SIPDialog decode(DataInput in, int version, SipStackImpl sipStack) throws IOException {
+		if(version != VERSION) {
+			throw new IOException("Unsupported dialog encoding version " + version);
+		}
+
+		String transport = readString(in);
+		String address = readString(in);
+		int port = (int) readVarLong(in);
+
+		SipProviderImpl provider = findProvider(sipStack, transport, address, port);
+
+		SIPDialog dialog = provider == null ? null : SIPDialog.newRestoredDialog(provider);
+
+		// the record is read through even when there is no provider to bind it to
+		String dialogId = readString(in);
+		String callId = readString(in);
+		String localTag = readString(in);
+		String remoteTag = readString(in);
+		String method = readString(in);
+		int flags = in.readUnsignedByte();
+
+		long localSequenceNumber = readVarLong(in);
+		long remoteSequenceNumber = readVarLong(in);
+		long originalLocalSequenceNumber = readVarLong(in);
+
+		int firstTransactionPort = (int) readVarLong(in);
+		String firstTransactionId = readString(in);
+		String firstTransactionMergeId = readString(in);
+		String firstTransactionMethod = readString(in);
+
+		String localParty = readString(in);
+		String remoteParty = readString(in);
+		String remoteTarget = readString(in);
+		String contact = readString(in);
+		byte[] routeSet = readBytes(in);
+		String event = readString(in);
+
+		String topVia = readString(in);
+		long lastResponseStatusCode = readVarLong(in);
+		long lastResponseCSeqNumber = readVarLong(in);
+		String lastResponseMethod = readString(in);
+		String lastResponseFromTag = readString(in);
+		String lastResponseToTag = readString(in);
+		String lastResponseDialogId = readString(in);
+		long lastInviteResponseCSeqNumber = readVarLong(in);
+		long lastInviteResponseCode = readVarLong(in);
+		long lastAckReceivedCSeqNumber = readVarLong(in);
+
+		if(dialog == null) {
+			return null;
+		}
+
+		dialog.dialogId = dialogId;
+		dialog.callIdHeaderString = "Call-ID: " + callId + "\r\n";
+		dialog.myTag = localTag;
+		dialog.hisTag = remoteTag;
+		dialog.method = method;
+
+		dialog.serverTransactionFlag = (flags & FLAG_SERVER) != 0;
+		dialog.terminateOnBye = (flags & FLAG_TERMINATE_ON_BYE) != 0;
+		dialog.isBackToBackUserAgent = (flags & FLAG_BACK_TO_BACK) != 0;
+		dialog.sequenceNumberValidation = (flags & FLAG_SEQUENCE_NUMBER_VALIDATION) != 0;
+		dialog.firstTransactionSecure = (flags & FLAG_FIRST_TRANSACTION_SECURE) != 0;
+		dialog.firstTransactionSeen = (flags & FLAG_FIRST_TRANSACTION_SEEN) != 0;
+		dialog.firstTransactionIsServerTransaction = (flags & FLAG_FIRST_TRANSACTION_SERVER) != 0;
+		dialog.isAcknowledged = (flags & FLAG_ACKNOWLEDGED) != 0;
+
+		dialog.localSequenceNumber = localSequenceNumber;
+		dialog.remoteSequenceNumber = remoteSequenceNumber;
+		dialog.originalLocalSequenceNumber = originalLocalSequenceNumber;
+
+		dialog.firstTransactionPort = firstTransactionPort;
+		dialog.firstTransactionId = firstTransactionId;
+		dialog.firstTransactionMergeId = firstTransactionMergeId;
+		dialog.firstTransactionMethod = firstTransactionMethod;
+
+		dialog.localPartyStringified = localParty;
+		dialog.remotePartyStringified = remoteParty;
+		dialog.remoteTargetStringified = remoteTarget;
+		dialog.contactHeaderStringified = contact;
+		dialog.setRouteSetBytes(routeSet);
+
+		try {
+			if(event != null) {
+				dialog.eventHeader = (Event) StringMsgParser.parseSIPHeader(event);
+			}
+
+			dialog.setLastResponseTopMostVia((Via) ((ViaList) StringMsgParser.parseSIPHeader(topVia)).getFirst());
+		} catch(ParseException ex) {
+			throw new IOException("Corrupted dialog " + dialogId, ex);
+		}
+
+		dialog.lastResponseStatusCode = lastResponseStatusCode < 0 ? null : (int) lastResponseStatusCode;
+		dialog.lastResponseCSeqNumber = lastResponseCSeqNumber;
+		dialog.lastResponseMethod = lastResponseMethod;
+		dialog.lastResponseFromTag = lastResponseFromTag;
+		dialog.lastResponseToTag = lastResponseToTag;
+		dialog.lastResponseDialogId = lastResponseDialogId;
+		dialog.lastInviteResponseCSeqNumber = lastInviteResponseCSeqNumber;
+		dialog.lastInviteResponseCode = (int) lastInviteResponseCode;
+		dialog.lastAckReceivedCSeqNumber = lastAckReceivedCSeqNumber < 0 ? null : lastAckReceivedCSeqNumber;
+
+		dialog.setRestoredState(SIPDialog.CONFIRMED_STATE);
+
+		return dialog;
+	}
+
+	private static SipProviderImpl findProvider(SipStackImpl sipStack, String transport, String address, int port) {
+		SipProviderImpl candidate = null;
+
+		Iterator<SipProviderImpl> providers = sipStack.getSipProviders();
+		while(providers.hasNext()) {
+			SipProviderImpl provider = providers.next();
+
+			ListeningPoint listeningPoint = provider.getListeningPoint(transport);
+			if(listeningPoint == null) {
+				continue;
+			}
+
+			if(listeningPoint.getPort() == port && listeningPoint.getIPAddress().equals(address)) {
+				return provider;
+			}
+
+			if(candidate == null) {
+				candidate = provider;
+			}
+		}
+
+		return candidate;
+	}
+
+	private static String toString(Object header) {
+		return header == null ? null : header.toString();
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = readBytes(in);
+
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Byte arrays are prefixed by their length plus one, zero stands for null.
+	 */
+	private static void writeBytes(DataOutput out, byte[] value) throws IOException {
+		if(value == null) {
+			writeVarLong(out, 0);
+		} else {
+			writeVarLong(out, value.length + 1L);
+			out.write(value);
+		}
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		long length = readVarLong(in);
+		if(length == 0) {
+			return null;
+		}
+
+		if(length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("Corrupted length " + length);
+		}
+
+		byte[] value = new byte[(int) length - 1];
+		in.readFully(value);
+
+		return value;
+	}
+
+	/*
+	 * Zig-zag encoded variable length integers, seven bits per byte, so that -1 and the small sequence numbers take a
+	 * single byte.
+	 */
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		long zigZag = (value << 1) ^ (value >> 63);
+
+		while((zigZag & ~0x7FL) != 0) {
+			out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+			zigZag >>>= 7;
+		}
+
+		out.writeByte((int) zigZag);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long zigZag = 0;
+
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+
+			zigZag |= (long) (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0) {
+				return (zigZag >>> 1) ^ -(zigZag & 1);
+			}
+		}
+
+		throw new IOException("Corrupted variable length integer");
+	}
+}
@@ -0,0 +1,30 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+
+/**
+ * Carries the batches of dialog updates of a {@link DialogReplicator} to the peer stacks and hands the batches
+ * received from the peers back to it. Configured with the gov.nist.javax.sip.DIALOG_REPLICATION_CHANNEL property,
+ * implementations must have a public no argument constructor.
+ */
+public interface DialogReplicaChannel {
+	/**
+	 * Called once before the first batch is sent.
+	 *
+	 * @param replicator the replicator to hand the received batches to, see
+	 *        {@link DialogReplicator#apply(byte[], int, int)}
+	 */
+	public void start(DialogReplicator replicator) throws IOException;
+
+	/**
+	 * Sends a batch to the peers. Called from the replication thread only, never from the call path.
+	 */
+	public void send(byte[] batch, int length) throws IOException;
+
+	/**
+	 * @return the largest batch the channel can send at once
+	 */
+	public int getMaxBatchSize();
+
+	public void stop();
+}
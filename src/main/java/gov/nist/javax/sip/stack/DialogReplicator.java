@@ -0,0 +1,331 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import gov.nist.core.NamingThreadFactory;
+import gov.nist.javax.sip.SipStackImpl;
+
+/**
+ * Replicates the confirmed dialogs of a stack to peer stacks, so that a peer takes over the in-dialog requests of a
+ * stack which went down, typically behind a load balancer hashing the Call-ID.
+ *
+ * The call path only records which dialogs changed: creation, confirmation, use and removal. A dedicated thread
+ * encodes the changed dialogs with the {@link DialogCodec} at a fixed interval and sends them in batches through a
+ * {@link DialogReplicaChannel}, several changes of a dialog within an interval are sent once. Only confirmed dialogs
+ * are replicated, an early dialog cannot be taken over.
+ *
+ * The dialogs received from the peers are kept encoded. When a stack gets an in-dialog request for a dialog it does
+ * not know, the replica of the dialog is decoded and put in the dialog table, see {@link #takeOver(String)}.
+ */
+public class DialogReplicator {
+	private static final Logger logger = Logger.getLogger(DialogReplicator.class.getName());
+
+	private static final int MAGIC = 0x53495052; // "SIPR"
+
+	private static final byte UPDATE = 1;
+	private static final byte REMOVE = 2;
+
+	// batch header: magic, version, node id
+	private static final int HEADER_SIZE = 4 + 2 + 8;
+
+	private static final Object REMOVED = new Object();
+
+	private final SipStackImpl sipStack;
+	private final DialogReplicaChannel channel;
+	private final long interval;
+
+	// tells the batches of this stack apart when a channel echoes them
+	private final long nodeId = ThreadLocalRandom.current().nextLong();
+
+	private final DialogCodec codec = new DialogCodec();
+
+	// dialog id -> changed dialog or REMOVED, until the next flush
+	private final ConcurrentHashMap<String, Object> pending = new ConcurrentHashMap<>();
+
+	// dialog id -> encoded dialog of a peer
+	private final ConcurrentHashMap<String, byte[]> replicas = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService executor;
+
+	private final AtomicLong sentUpdates = new AtomicLong();
+	private final AtomicLong sentRemovals = new AtomicLong();
+	private final AtomicLong takenOverDialogs = new AtomicLong();
+
+	/**
+	 * @param sipStack the stack whose dialogs are replicated
+	 * @param channel the channel to the peers
+	 * @param interval the time in milliseconds between two batches
+	 */
+	public DialogReplicator(SipStackImpl sipStack, DialogReplicaChannel channel, long interval) {
+		if(interval < 1) {
+			throw new IllegalArgumentException("interval must be positive: " + interval);
+		}
+
+		this.sipStack = sipStack;
+		this.channel = channel;
+		this.interval = interval;
+	}
+
+	public synchronized void start() throws IOException {
+		channel.start(this);
+
+		executor = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory("jain_sip_dialog_replication"));
+		executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends the pending changes and stops the replication.
+	 */
+	public synchronized void stop() {
+		if(executor != null) {
+			executor.shutdown();
+
+			try {
+				executor.awaitTermination(interval * 2, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			executor = null;
+		}
+
+		flush();
+
+		channel.stop();
+	}
+
+	public SipStackImpl getSipStack() {
+		return sipStack;
+	}
+
+	/**
+	 * Records that a dialog has been created, confirmed or used, it is sent with the next batch.
+	 */
+	public void dialogUpdated(SIPDialog dialog) {
+		String dialogId = dialog.getDialogId();
+		if(dialogId != null) {
+			pending.put(dialogId, dialog);
+		}
+	}
+
+	/**
+	 * Records that a dialog has been terminated or removed, the peers drop their replica with the next batch.
+	 */
+	public void dialogRemoved(SIPDialog dialog) {
+		String dialogId = dialog.getDialogId();
+		if(dialogId != null) {
+			pending.put(dialogId, REMOVED);
+		}
+	}
+
+	/**
+	 * Puts the replica of a dialog of a peer in the dialog table.
+	 *
+	 * @return the dialog, or null if no peer replicated a dialog with this id
+	 */
+	public SIPDialog takeOver(String dialogId) {
+		byte[] replica = replicas.remove(dialogId);
+		if(replica == null) {
+			return null;
+		}
+
+		SIPDialog dialog;
+		try {
+			dialog = codec.decode(new DataInputStream(new ByteArrayInputStream(replica)), DialogCodec.VERSION,
+					sipStack);
+		} catch(IOException ex) {
+			logger.log(Level.SEVERE, "could not decode the replica of dialog " + dialogId, ex);
+
+			return null;
+		}
+
+		if(dialog == null) {
+			logger.log(Level.WARNING, "no provider to take dialog {0} over", dialogId);
+
+			return null;
+		}
+
+		takenOverDialogs.incrementAndGet();
+
+		logger.log(Level.FINE, "taking dialog {0} over", dialogId);
+
+		return sipStack.putDialog(dialog);
+	}
+
+	/**
+	 * Applies a batch received from a peer.
+	 */
+	public void apply(byte[] batch, int offset, int length) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch, offset, length));
+
+			if(in.readInt() != MAGIC) {
+				logger.log(Level.WARNING, "dropping a batch which is not a dialog replication batch");
+
+				return;
+			}
+
+			int version = in.readUnsignedShort();
+			if(version != DialogCodec.VERSION) {
+				logger.log(Level.WARNING, "dropping a batch of unsupported version {0}", version);
+
+				return;
+			}
+
+			if(in.readLong() == nodeId) {
+				return;
+			}
+
+			while(in.available() > 0) {
+				byte type = in.readByte();
+				String dialogId = in.readUTF();
+
+				if(type == UPDATE) {
+					byte[] replica = new byte[in.readInt()];
+					in.readFully(replica);
+
+					replicas.put(dialogId, replica);
+				} else {
+					replicas.remove(dialogId);
+				}
+			}
+		} catch(IOException ex) {
+			logger.log(Level.WARNING, "dropping a corrupted dialog replication batch", ex);
+		}
+	}
+
+	/**
+	 * @return the number of dialogs of the peers ready to be taken over
+	 */
+	public int getReplicaCount() {
+		return replicas.size();
+	}
+
+	/**
+	 * @return the number of dialog updates sent to the peers
+	 */
+	public long getSentUpdates() {
+		return sentUpdates.get();
+	}
+
+	/**
+	 * @return the number of dialog removals sent to the peers
+	 */
+	public long getSentRemovals() {
+		return sentRemovals.get();
+	}
+
+	/**
+	 * @return the number of dialogs of a peer taken over
+	 */
+	public long getTakenOverDialogs() {
+		return takenOverDialogs.get();
+	}
+
+	/**
+	 * Sends the dialogs changed since the last flush.
+	 */
+	void flush() {
+		if(pending.isEmpty()) {
+			return;
+		}
+
+		int maxBatchSize = channel.getMaxBatchSize();
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(Math.min(maxBatchSize, 64 * 1024));
+		DataOutputStream batchOut = new DataOutputStream(batch);
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+		DataOutputStream recordOut = new DataOutputStream(record);
+
+		try {
+			writeHeader(batchOut);
+
+			Iterator<Map.Entry<String, Object>> entries = pending.entrySet().iterator();
+			while(entries.hasNext()) {
+				Map.Entry<String, Object> entry = entries.next();
+				String dialogId = entry.getKey();
+				Object change = entry.getValue();
+
+				if(!pending.remove(dialogId, change)) {
+					// changed again meanwhile, the next flush sends it
+					continue;
+				}
+
+				record.reset();
+
+				if(change == REMOVED) {
+					recordOut.writeByte(REMOVE);
+					recordOut.writeUTF(dialogId);
+
+					sentRemovals.incrementAndGet();
+				} else if(!encode(dialogId, (SIPDialog) change, recordOut)) {
+					continue;
+				}
+
+				if(batch.size() + record.size() > maxBatchSize && batch.size() > HEADER_SIZE) {
+					channel.send(batch.toByteArray(), batch.size());
+
+					batch.reset();
+					writeHeader(batchOut);
+				}
+
+				record.writeTo(batch);
+			}
+
+			if(batch.size() > HEADER_SIZE) {
+				channel.send(batch.toByteArray(), batch.size());
+			}
+		} catch(IOException | RuntimeException ex) {
+			logger.log(Level.WARNING, "could not send the dialog replication batch", ex);
+		}
+	}
+
+	private boolean encode(String dialogId, SIPDialog dialog, DataOutputStream recordOut) throws IOException {
+		if(!codec.isEncodable(dialog)) {
+			return false;
+		}
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(512);
+
+		try {
+			codec.encode(dialog, new DataOutputStream(encoded));
+		} catch(RuntimeException ex) {
+			// the dialog is being changed, it is sent again with the next batch
+			pending.putIfAbsent(dialogId, dialog);
+
+			logger.log(Level.FINEST, "could not encode dialog " + dialogId, ex);
+
+			return false;
+		}
+
+		recordOut.writeByte(UPDATE);
+		recordOut.writeUTF(dialogId);
+		recordOut.writeInt(encoded.size());
+		encoded.writeTo(recordOut);
+
+		sentUpdates.incrementAndGet();
+
+		return true;
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(DialogCodec.VERSION);
+		out.writeLong(nodeId);
+	}
+}
@@ -0,0 +1,145 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.Dialog;
+
+import gov.nist.javax.sip.SipStackImpl;
+
+/**
+ * Writes the confirmed dialogs of a stack to a file and puts them back into the dialog table of a stack, so that a
+ * restarted stack keeps handling the in-dialog requests of the calls and subscriptions established before the
+ * restart. The dialogs are encoded by {@link DialogCodec}.
+ *
+ * The file starts with a magic number and the encoding version, followed by the dialogs each prefixed by its length
+ * so that a dialog which cannot be restored is skipped without losing the others. A length of -1 ends the dialogs and
+ * is followed by the number of dialogs written. The file is written next to its final location and renamed, a reader
+ * never sees a partial snapshot.
+ */
+public class DialogSnapshot {
+	private static final Logger logger = Logger.getLogger(DialogSnapshot.class.getName());
+
+	private static final int MAGIC = 0x53495044; // "SIPD"
+
+	private final DialogCodec codec = new DialogCodec();
+
+	/**
+	 * Writes the confirmed dialogs of the stack to the file, replacing it.
+	 *
+	 * @return the number of dialogs written
+	 */
+	public int write(SipStackImpl sipStack, File file) throws IOException {
+		File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+		DataOutputStream recordOut = new DataOutputStream(record);
+
+		int count = 0;
+
+		try(DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeShort(DialogCodec.VERSION);
+
+			// the count is not known before the dialogs have been filtered, it is written at the end
+			for(Dialog dialog : sipStack.getDialogs()) {
+				SIPDialog sipDialog = (SIPDialog) dialog;
+				if(!codec.isEncodable(sipDialog)) {
+					continue;
+				}
+
+				record.reset();
+
+				try {
+					codec.encode(sipDialog, recordOut);
+				} catch(RuntimeException ex) {
+					// the dialog may be terminated concurrently
+					logger.log(Level.FINEST, "could not encode dialog " + sipDialog.getDialogId(), ex);
+
+					continue;
+				}
+
+				out.writeInt(record.size());
+				record.writeTo(out);
+
+				count++;
+			}
+
+			out.writeInt(-1);
+			out.writeInt(count);
+		}
+
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		logger.log(Level.FINE, "wrote {0} dialogs to {1}", new Object[] { count, file });
+
+		return count;
+	}
+
+	/**
+	 * Puts the dialogs of the file into the dialog table of the stack. The dialogs are bound to the providers of the
+	 * stack, which must have been created before.
+	 *
+	 * @return the number of dialogs restored
+	 */
+	public int load(SipStackImpl sipStack, File file) throws IOException {
+		int count = 0;
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			if(in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a dialog snapshot");
+			}
+
+			int version = in.readUnsignedShort();
+
+			int length;
+			while((length = in.readInt()) >= 0) {
+				byte[] record = new byte[length];
+				in.readFully(record);
+
+				SIPDialog dialog;
+				try {
+					dialog = codec.decode(new DataInputStream(new ByteArrayInputStream(record)), version, sipStack);
+				} catch(IOException | RuntimeException ex) {
+					logger.log(Level.WARNING, "skipping a dialog which cannot be restored from " + file, ex);
+
+					continue;
+				}
+
+				if(dialog == null) {
+					logger.log(Level.WARNING, "skipping a dialog without provider for its transport in {0}", file);
+
+					continue;
+				}
+
+				sipStack.putDialog(dialog);
+
+				count++;
+			}
+
+			int written = in.readInt();
+			if(written != count) {
+				logger.log(Level.WARNING, "restored {0} of the {1} dialogs of {2}",
+						new Object[] { count, written, file });
+			}
+		}
+
+		logger.log(Level.FINE, "restored {0} dialogs from {1}", new Object[] { count, file });
+
+		return count;
+	}
+}
@@ -0,0 +1,278 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.Dialog;
+import javax.sip.DialogState;
+
+/**
+ * The dialogs of the dialog tables grouped by state, maintained as the dialogs are put in the tables, change state and
+ * are removed, so that the dialogs in a state are listed and counted without scanning the tables.
+ *
+ * A dialog is indexed under its state while it is in the dialog table or in the early dialog table. The dialogs an
+ * {@link OffHeapDialogStore} keeps off heap are not in the sets but are still counted as confirmed,
+ * {@link #confirmedView(Collection)} lists them with the confirmed dialogs.
+ */
+final class DialogStateIndex {
+	private static final int LOCKS = 64;
+
+	// slot 0 of SIPDialog.indexedSlot means not indexed, the slot of a state is its value + 2
+	private static final int SLOTS = DialogState.TERMINATED_VALUE + 3;
+
+	private final Set<DialogKey>[] dialogs;
+
+	private final Object[] locks = new Object[LOCKS];
+
+	// confirmed dialogs kept off heap
+	private final AtomicInteger dormantDialogs = new AtomicInteger();
+
+	/**
+	 * Compares dialogs by identity, the hash code of a dialog is the one of its Call-ID which may not be known yet.
+	 */
+	private static final class DialogKey {
+		final SIPDialog dialog;
+
+		DialogKey(SIPDialog dialog) {
+			this.dialog = dialog;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(dialog);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof DialogKey && ((DialogKey) other).dialog == dialog;
+		}
+	}
+
+	/**
+	 * A read-only weakly consistent view of the dialogs in a state.
+	 */
+	private static final class View extends AbstractCollection<Dialog> {
+		private final Set<DialogKey> keys;
+
+		View(Set<DialogKey> keys) {
+			this.keys = keys;
+		}
+
+		@Override
+		public Iterator<Dialog> iterator() {
+			final Iterator<DialogKey> iterator = keys.iterator();
+
+			return new Iterator<Dialog>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public Dialog next() {
+					return iterator.next().dialog;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return keys.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof SIPDialog && keys.contains(new DialogKey((SIPDialog) o));
+		}
+	}
+
+	/**
+	 * The confirmed dialogs of the index followed by the dormant dialogs.
+	 */
+	private final class ConfirmedView extends AbstractCollection<Dialog> {
+		private final Collection<Dialog> confirmed;
+		private final Collection<SIPDialog> dormant;
+
+		ConfirmedView(Collection<Dialog> confirmed, Collection<SIPDialog> dormant) {
+			this.confirmed = confirmed;
+			this.dormant = dormant;
+		}
+
+		@Override
+		public Iterator<Dialog> iterator() {
+			final Iterator<Dialog> first = confirmed.iterator();
+			final Iterator<SIPDialog> second = dormant.iterator();
+
+			return new Iterator<Dialog>() {
+				@Override
+				public boolean hasNext() {
+					return first.hasNext() || second.hasNext();
+				}
+
+				@Override
+				public Dialog next() {
+					return first.hasNext() ? first.next() : second.next();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return count(DialogState.CONFIRMED);
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return confirmed.contains(o) || (o instanceof SIPDialog && ((SIPDialog) o).getDormantIn() != null);
+		}
+	}
+
+	private final Collection<Dialog>[] views;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	DialogStateIndex() {
+		dialogs = new Set[SLOTS];
+		views = new Collection[SLOTS];
+
+		for(int i = 0; i < SLOTS; i++) {
+			dialogs[i] = ConcurrentHashMap.newKeySet();
+			views[i] = new View(dialogs[i]);
+		}
+
+		for(int i = 0; i < LOCKS; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Indexes a dialog put in the dialog table or the early dialog table under its state.
+	 */
+	void add(SIPDialog dialog) {
+		synchronized(lockOf(dialog)) {
+			move(dialog, slotOf(dialog));
+		}
+	}
+
+	/**
+	 * Moves an indexed dialog to the set of its new state.
+	 */
+	void update(SIPDialog dialog) {
+		synchronized(lockOf(dialog)) {
+			if(dialog.indexedSlot != 0) {
+				move(dialog, slotOf(dialog));
+			}
+		}
+	}
+
+	/**
+	 * Drops a removed dialog.
+	 */
+	void remove(SIPDialog dialog) {
+		synchronized(lockOf(dialog)) {
+			move(dialog, 0);
+		}
+	}
+
+	/**
+	 * Drops a confirmed dialog moved off heap, it is still counted.
+	 */
+	void dormant(SIPDialog dialog) {
+		synchronized(lockOf(dialog)) {
+			if(dialog.indexedSlot != 0) {
+				move(dialog, 0);
+				dormantDialogs.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Indexes a dialog put back from off heap, the same instance or a decoded one.
+	 */
+	void awake(SIPDialog dialog) {
+		synchronized(lockOf(dialog)) {
+			if(dialog.indexedSlot == 0) {
+				dormantDialogs.updateAndGet(count -> count > 0 ? count - 1 : 0);
+				move(dialog, slotOf(dialog));
+			}
+		}
+	}
+
+	/**
+	 * Forgets dialogs dropped while off heap.
+	 */
+	void dormantDropped(int count) {
+		dormantDialogs.updateAndGet(dormant -> Math.max(0, dormant - count));
+	}
+
+	int getDormantCount() {
+		return dormantDialogs.get();
+	}
+
+	Collection<Dialog> view(DialogState state) {
+		return views[slotOf(state.getValue())];
+	}
+
+	/**
+	 * @param dormant the dialogs kept off heap
+	 * @return the view of the confirmed dialogs, the dormant ones included
+	 */
+	Collection<Dialog> confirmedView(Collection<SIPDialog> dormant) {
+		return new ConfirmedView(view(DialogState.CONFIRMED), dormant);
+	}
+
+	int count(DialogState state) {
+		int count = dialogs[slotOf(state.getValue())].size();
+
+		return DialogState.CONFIRMED.equals(state) ? count + dormantDialogs.get() : count;
+	}
+
+	void clear() {
+		for(Set<DialogKey> keys : dialogs) {
+			for(DialogKey key : keys) {
+				remove(key.dialog);
+			}
+		}
+
+		dormantDialogs.set(0);
+	}
+
+	/*
+	 * Called with the lock of the dialog held.
+	 */
+	private void move(SIPDialog dialog, int slot) {
+		int indexedSlot = dialog.indexedSlot;
+		if(indexedSlot == slot) {
+			return;
+		}
+
+		DialogKey key = new DialogKey(dialog);
+
+		if(indexedSlot != 0) {
+			dialogs[indexedSlot].remove(key);
+		}
+
+		if(slot != 0) {
+			dialogs[slot].add(key);
+		}
+
+		dialog.indexedSlot = (byte) slot;
+	}
+
+	private static int slotOf(SIPDialog dialog) {
+		DialogState state = dialog.getState();
+
+		return state == null ? 1 : slotOf(state.getValue());
+	}
+
+	private static int slotOf(int state) {
+		return state + 2;
+	}
+
+	private Object lockOf(SIPDialog dialog) {
+		return locks[System.identityHashCode(dialog) & (LOCKS - 1)];
+	}
+}
@@ -0,0 +1,103 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+
+import javax.sip.DialogState;
+
+/**
+ * The table of the established dialogs of a stack, keyed by dialog id. The early dialogs are kept apart by the stack.
+ *
+ * The default implementation, {@link HeapDialogStore}, keeps the dialogs in a concurrent map. Another implementation
+ * can be configured with the gov.nist.javax.sip.DIALOG_STORE property, for instance {@link OffHeapDialogStore} which
+ * moves the dormant dialogs out of the Java heap. Implementations must be thread safe and have a public no argument
+ * constructor.
+ */
+public interface DialogStore {
+	/**
+	 * Notified when a dialog leaves the store.
+	 */
+	public interface RemovalListener {
+		/**
+		 * @param dialogId the id the dialog was stored under
+		 * @param dialog the removed dialog
+		 */
+		public void dialogRemoved(String dialogId, SIPDialog dialog);
+	}
+
+	/**
+	 * Called once before the store is used.
+	 *
+	 * @param sipStack the stack owning the store
+	 */
+	public void init(SIPTransactionStack sipStack);
+
+	/**
+	 * Called when the stack is stopped, the store releases its resources.
+	 */
+	public void destroy();
+
+	/**
+	 * @return the dialog stored under the dialog id, or null
+	 */
+	public SIPDialog get(String dialogId);
+
+	/**
+	 * Stores a dialog unless another dialog is stored under the same id.
+	 *
+	 * @return the dialog already stored under the id, or null if the dialog has been stored
+	 */
+	public SIPDialog putIfAbsent(String dialogId, SIPDialog dialog);
+
+	/**
+	 * Removes the dialog stored under the dialog id.
+	 *
+	 * @return the removed dialog, or null
+	 */
+	public SIPDialog remove(String dialogId);
+
+	/**
+	 * Removes the dialog stored under the dialog id only if it is the given dialog.
+	 *
+	 * @return <code>true</code> if the dialog has been removed
+	 */
+	public boolean remove(String dialogId, SIPDialog dialog);
+
+	/**
+	 * @return the dialogs of a call, an empty collection if there is none
+	 */
+	public Collection<SIPDialog> getByCallId(String callId);
+
+	/**
+	 * @return the dialogs in the given state
+	 */
+	public Collection<SIPDialog> getByState(DialogState state);
+
+	/**
+	 * @return a snapshot of all the dialogs, the dialogs a store keeps out of the heap are listed without being put
+	 *         back in use
+	 */
+	public Collection<SIPDialog> values();
+
+	/**
+	 * Visits the id and Call-ID of every dialog, without loading the dialogs a store keeps out of the heap.
+	 *
+	 * @param visitor called with the dialog id and the Call-ID, which may be null
+	 */
+	public void forEachDialogId(BiConsumer<String, String> visitor);
+
+	/**
+	 * @return the number of dialogs
+	 */
+	public int size();
+
+	/**
+	 * Removes all the dialogs, the removal listener is not notified.
+	 */
+	public void clear();
+
+	/**
+	 * @param listener the listener notified of the removals, null for none
+	 */
+	public void setRemovalListener(RemovalListener listener);
+}
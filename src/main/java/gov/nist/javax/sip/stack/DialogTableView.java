@@ -0,0 +1,66 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only map view of a {@link DialogStore}, keyed by dialog id. The lookups go to the store, the iterations list
+ * a snapshot of the dialogs taken by {@link DialogStore#values()}.
+ */
+final class DialogTableView extends AbstractMap<String, SIPDialog> {
+	private final DialogStore store;
+
+	DialogTableView(DialogStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public SIPDialog get(Object key) {
+		return key instanceof String ? store.get((String) key) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public Set<Map.Entry<String, SIPDialog>> entrySet() {
+		final Collection<SIPDialog> dialogs = store.values();
+
+		return new AbstractSet<Map.Entry<String, SIPDialog>>() {
+			@Override
+			public Iterator<Map.Entry<String, SIPDialog>> iterator() {
+				final Iterator<SIPDialog> iterator = dialogs.iterator();
+
+				return new Iterator<Map.Entry<String, SIPDialog>>() {
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String, SIPDialog> next() {
+						SIPDialog dialog = iterator.next();
+
+						return new AbstractMap.SimpleImmutableEntry<>(dialog.getDialogId(), dialog);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return dialogs.size();
+			}
+		};
+	}
+}
@@ -0,0 +1,189 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import javax.sip.DialogState;
+import javax.sip.header.CallIdHeader;
+
+/**
+ * The default {@link DialogStore}, the dialogs are kept in a concurrent map with an index of the dialog ids of each
+ * Call-ID.
+ */
+public class HeapDialogStore implements DialogStore {
+	protected final Map<String, SIPDialog> dialogs;
+
+	// Call-ID -> ids of the dialogs of the call
+	private final ConcurrentHashMap<String, Set<String>> callIds = new ConcurrentHashMap<>();
+
+	private volatile RemovalListener removalListener;
+
+	public HeapDialogStore() {
+		this(new ConcurrentHashMap<String, SIPDialog>());
+	}
+
+	/**
+	 * @param dialogs the map holding the dialogs, must be thread safe
+	 */
+	public HeapDialogStore(Map<String, SIPDialog> dialogs) {
+		this.dialogs = dialogs;
+	}
+
+	@Override
+	public void init(SIPTransactionStack sipStack) {
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public SIPDialog get(String dialogId) {
+		return dialogs.get(dialogId);
+	}
+
+	@Override
+	public SIPDialog putIfAbsent(String dialogId, SIPDialog dialog) {
+		SIPDialog existing = dialogs.putIfAbsent(dialogId, dialog);
+		if(existing == null) {
+			indexCallId(dialogId, dialog);
+		}
+
+		return existing;
+	}
+
+	@Override
+	public SIPDialog remove(String dialogId) {
+		SIPDialog dialog = dialogs.remove(dialogId);
+		if(dialog != null) {
+			removed(dialogId, dialog);
+		}
+
+		return dialog;
+	}
+
+	@Override
+	public boolean remove(String dialogId, SIPDialog dialog) {
+		if(!dialogs.remove(dialogId, dialog)) {
+			return false;
+		}
+
+		removed(dialogId, dialog);
+
+		return true;
+	}
+
+	@Override
+	public Collection<SIPDialog> getByCallId(String callId) {
+		Set<String> dialogIds = callIds.get(callId);
+		if(dialogIds == null) {
+			return Collections.emptyList();
+		}
+
+		List<SIPDialog> result = new ArrayList<>(dialogIds.size());
+		for(String dialogId : dialogIds) {
+			SIPDialog dialog = get(dialogId);
+			if(dialog != null) {
+				result.add(dialog);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public Collection<SIPDialog> getByState(DialogState state) {
+		List<SIPDialog> result = new ArrayList<>();
+		for(SIPDialog dialog : values()) {
+			if(state.equals(dialog.getState())) {
+				result.add(dialog);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public Collection<SIPDialog> values() {
+		return new ArrayList<>(dialogs.values());
+	}
+
+	@Override
+	public void forEachDialogId(BiConsumer<String, String> visitor) {
+		for(Map.Entry<String, SIPDialog> entry : dialogs.entrySet()) {
+			visitor.accept(entry.getKey(), getCallId(entry.getValue()));
+		}
+	}
+
+	@Override
+	public int size() {
+		return dialogs.size();
+	}
+
+	@Override
+	public void clear() {
+		dialogs.clear();
+		callIds.clear();
+	}
+
+	@Override
+	public void setRemovalListener(RemovalListener removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	/**
+	 * Updates the Call-ID index and notifies the removal listener of a removed dialog.
+	 */
+	protected void removed(String dialogId, SIPDialog dialog) {
+		unindexCallId(dialogId, getCallId(dialog));
+
+		RemovalListener listener = removalListener;
+		if(listener != null) {
+			listener.dialogRemoved(dialogId, dialog);
+		}
+	}
+
+	/**
+	 * Removes a dialog id from the Call-ID index.
+	 */
+	protected void unindexCallId(String dialogId, String callId) {
+		if(callId != null) {
+			callIds.computeIfPresent(callId, (key, dialogIds) -> {
+				dialogIds.remove(dialogId);
+
+				return dialogIds.isEmpty() ? null : dialogIds;
+			});
+		}
+	}
+
+	/**
+	 * @return true if the removed dialogs are notified to a listener
+	 */
+	protected boolean hasRemovalListener() {
+		return removalListener != null;
+	}
+
+	private void indexCallId(String dialogId, SIPDialog dialog) {
+		String callId = getCallId(dialog);
+		if(callId != null) {
+			callIds.compute(callId, (key, dialogIds) -> {
+				Set<String> ids = dialogIds == null ? ConcurrentHashMap.<String>newKeySet() : dialogIds;
+				ids.add(dialogId);
+
+				return ids;
+			});
+		}
+	}
+
+	protected static String getCallId(SIPDialog dialog) {
+		CallIdHeader callId = dialog.getCallId();
+
+		return callId == null ? null : callId.getCallId();
+	}
+}
@@ -0,0 +1,425 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks submitted under the same key one after the other, in submission order, while tasks for different keys
+ * run in parallel on a shared {@link Executor}.
+ *
+ * Each key owns a mailbox (a lock free queue plus a pending counter). Submitting a task is O(1): the task is appended
+ * to the mailbox and, if the mailbox was idle, the mailbox is handed to the shared executor which drains it. There is
+ * no global monitor, no polling of idle keys and a mailbox removes itself from the key table as soon as it has been
+ * drained, so idle keys cost nothing.
+ *
+ * Tasks implementing {@link QueuedMessageDispatchBase} which waited longer than the configured queue timeout are
+ * dropped instead of being run, the same way the {@link BlockingQueueDispatchAuditor} does for plain queues. A dropped
+ * {@link QueuedMessageDispatchBase} is told so through {@link QueuedMessageDispatchBase#discarded()}.
+ *
+ * A mailbox the shared executor rejects is drained by the thread scheduling it, so that its key is never left with
+ * counted tasks and no thread to run them. Its tasks are only dropped once the executor is shut down.
+ *
+ * @param <K> the key type, typically the Call-ID
+ */
+public class KeyedSerialExecutor<K> {
+	private static final Logger logger = Logger.getLogger(KeyedSerialExecutor.class.getName());
+
+	/**
+	 * Maximum number of tasks a mailbox runs before yielding its pool thread to other keys.
+	 */
+	public static final int DEFAULT_THROUGHPUT = 32;
+
+	private final Executor executor;
+	private final int throughput;
+	private final ConcurrentHashMap<K, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+	private volatile long queueTimeout;
+
+	// key of the mailbox being drained by the current thread, if any
+	private final ThreadLocal<Object> currentKey = new ThreadLocal<>();
+
+	private final AtomicLong submittedTasks = new AtomicLong();
+	private final AtomicLong completedTasks = new AtomicLong();
+	private final AtomicLong failedTasks = new AtomicLong();
+	private final AtomicLong expiredTasks = new AtomicLong();
+
+	public KeyedSerialExecutor(Executor executor) {
+		this(executor, DEFAULT_THROUGHPUT);
+	}
+
+	public KeyedSerialExecutor(Executor executor, int throughput) {
+		if(executor == null) {
+			throw new IllegalArgumentException("executor cannot be null");
+		}
+
+		if(throughput < 1) {
+			throw new IllegalArgumentException("throughput must be positive: " + throughput);
+		}
+
+		this.executor = executor;
+		this.throughput = throughput;
+	}
+
+	/**
+	 * Queues the task behind every task previously submitted for the same key.
+	 *
+	 * @param key the serialization key, cannot be null
+	 * @param task the task to run
+	 */
+	public void execute(K key, Runnable task) {
+		if(task == null) {
+			throw new IllegalArgumentException("task cannot be null");
+		}
+
+		submittedTasks.incrementAndGet();
+
+		while(true) {
+			Mailbox mailbox = mailboxes.get(key);
+			if(mailbox == null) {
+				Mailbox newMailbox = new Mailbox(key);
+
+				mailbox = mailboxes.putIfAbsent(key, newMailbox);
+				if(mailbox == null) {
+					mailbox = newMailbox;
+				}
+			}
+
+			if(mailbox.enqueue(task)) {
+				return;
+			}
+
+			// the mailbox retired between the lookup and the enqueue, help removing it and retry with a fresh one
+			mailboxes.remove(key, mailbox);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the calling thread is currently running a task of the given key. Tasks can use
+	 *         this to run follow up work inline instead of queueing it behind themselves.
+	 */
+	public boolean isExecuting(K key) {
+		Object running = currentKey.get();
+
+		return running != null && running.equals(key);
+	}
+
+	/**
+	 * Tasks implementing {@link QueuedMessageDispatchBase} older than this many milliseconds when their turn comes
+	 * are discarded. A value less than or equal to zero disables expiration.
+	 */
+	public void setQueueTimeout(long queueTimeout) {
+		this.queueTimeout = queueTimeout;
+	}
+
+	public long getQueueTimeout() {
+		return queueTimeout;
+	}
+
+	/**
+	 * @return the number of keys having queued or running tasks
+	 */
+	public int getActiveKeyCount() {
+		return mailboxes.size();
+	}
+
+	/**
+	 * @return a weakly consistent view of the keys having queued or running tasks
+	 */
+	public Set<K> getActiveKeys() {
+		return mailboxes.keySet();
+	}
+
+	/**
+	 * @return the number of tasks queued or running for the given key, 0 if the key is idle
+	 */
+	public int getQueueDepth(K key) {
+		Mailbox mailbox = mailboxes.get(key);
+
+		return mailbox == null ? 0 : Math.max(0, mailbox.pending.get());
+	}
+
+	/**
+	 * @return the metrics of the given key or <code>null</code> if the key is idle
+	 */
+	public KeyMetrics getKeyMetrics(K key) {
+		Mailbox mailbox = mailboxes.get(key);
+
+		return mailbox == null ? null : mailbox.snapshot();
+	}
+
+	public long getSubmittedTaskCount() {
+		return submittedTasks.get();
+	}
+
+	public long getCompletedTaskCount() {
+		return completedTasks.get();
+	}
+
+	public long getFailedTaskCount() {
+		return failedTasks.get();
+	}
+
+	public long getExpiredTaskCount() {
+		return expiredTasks.get();
+	}
+
+	/**
+	 * Point in time metrics of one key. A key's metrics are discarded with its mailbox once it becomes idle.
+	 */
+	public static class KeyMetrics {
+		private final Object key;
+		private final int queueDepth;
+		private final int maxQueueDepth;
+		private final long executedTasks;
+		private final long maxQueueTime;
+		private final long activeSince;
+
+		KeyMetrics(Object key, int queueDepth, int maxQueueDepth, long executedTasks, long maxQueueTime,
+				long activeSince) {
+			this.key = key;
+			this.queueDepth = queueDepth;
+			this.maxQueueDepth = maxQueueDepth;
+			this.executedTasks = executedTasks;
+			this.maxQueueTime = maxQueueTime;
+			this.activeSince = activeSince;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		public long getExecutedTasks() {
+			return executedTasks;
+		}
+
+		/**
+		 * @return the longest time in milliseconds a task of this key waited before running
+		 */
+		public long getMaxQueueTime() {
+			return maxQueueTime;
+		}
+
+		/**
+		 * @return the time in milliseconds since the epoch at which the key became active
+		 */
+		public long getActiveSince() {
+			return activeSince;
+		}
+
+		@Override
+		public String toString() {
+			return "KeyMetrics[key=" + key + ", queueDepth=" + queueDepth + ", maxQueueDepth=" + maxQueueDepth
+					+ ", executedTasks=" + executedTasks + ", maxQueueTime=" + maxQueueTime + "]";
+		}
+	}
+
+	private static final class QueuedTask {
+		final Runnable task;
+		final long enqueueTime;
+
+		QueuedTask(Runnable task) {
+			this.task = task;
+			this.enqueueTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The mailbox of one key. <code>pending</code> counts the tasks accepted and not yet run, -1 means the mailbox
+	 * has been retired and accepts nothing anymore. Only the thread moving <code>pending</code> from 0 to 1 schedules
+	 * the mailbox, so at most one pool thread drains it at any time.
+	 */
+	private final class Mailbox implements Runnable {
+		private final K key;
+		private final ConcurrentLinkedQueue<QueuedTask> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pending = new AtomicInteger();
+		private final long activeSince = System.currentTimeMillis();
+
+		// maxQueueDepth is a best effort high-water mark, the other two are only written by the draining thread
+		private volatile int maxQueueDepth;
+		private volatile long executedTasks;
+		private volatile long maxQueueTime;
+
+		Mailbox(K key) {
+			this.key = key;
+		}
+
+		boolean enqueue(Runnable task) {
+			int count;
+			do {
+				count = pending.get();
+				if(count < 0) {
+					return false;
+				}
+			} while(!pending.compareAndSet(count, count + 1));
+
+			queue.offer(new QueuedTask(task));
+
+			if(count + 1 > maxQueueDepth) {
+				maxQueueDepth = count + 1;
+			}
+
+			if(count == 0) {
+				schedule();
+			}
+
+			return true;
+		}
+
+		private void schedule() {
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				rejected();
+			}
+		}
+
+		/**
+		 * The executor refused the mailbox while its tasks are counted, it must not stay counted without a thread
+		 * draining it: the calling thread drains it, unless the executor is shut down and the tasks are dropped.
+		 */
+		private void rejected() {
+			if(executor instanceof ExecutorService && ((ExecutorService) executor).isShutdown()) {
+				int dropped = pending.getAndSet(-1);
+
+				mailboxes.remove(key, this);
+
+				QueuedTask queuedTask;
+				while((queuedTask = queue.poll()) != null) {
+					discard(queuedTask.task);
+				}
+
+				logger.log(Level.WARNING, "executor shut down, {0} tasks dropped for key {1}",
+						new Object[] {dropped, key});
+
+				return;
+			}
+
+			logger.log(Level.FINE, "executor rejected mailbox for key {0}, draining it on the calling thread", key);
+
+			boolean remaining;
+			do {
+				remaining = drain();
+			} while(remaining);
+		}
+
+		@Override
+		public void run() {
+			if(drain()) {
+				schedule();
+			}
+		}
+
+		/**
+		 * Runs at most a batch of tasks.
+		 *
+		 * @return true if tasks remain, the mailbox must be scheduled again
+		 */
+		private boolean drain() {
+			int budget = Math.min(pending.get(), throughput);
+			int done = 0;
+
+			while(done < budget) {
+				QueuedTask queuedTask = queue.poll();
+				if(queuedTask == null) {
+					// a producer has been counted but did not append its task yet
+					Thread.yield();
+
+					continue;
+				}
+
+				done++;
+
+				runTask(queuedTask);
+			}
+
+			int remaining = pending.addAndGet(-done);
+			if(remaining > 0) {
+				return true;
+			}
+
+			if(pending.compareAndSet(0, -1)) {
+				mailboxes.remove(key, this);
+			}
+			// otherwise a producer moved the counter from 0 to 1 and already scheduled the mailbox again
+
+			return false;
+		}
+
+		private void runTask(QueuedTask queuedTask) {
+			long now = System.currentTimeMillis();
+			long queueTime = now - queuedTask.enqueueTime;
+
+			if(queueTime > maxQueueTime) {
+				maxQueueTime = queueTime;
+			}
+
+			long timeout = queueTimeout;
+			if(timeout > 0 && queuedTask.task instanceof QueuedMessageDispatchBase
+					&& now - ((QueuedMessageDispatchBase) queuedTask.task).getReceptionTime() > timeout) {
+				expiredTasks.incrementAndGet();
+
+				logger.log(Level.WARNING, "Dropping stuck task for key {0} after {1} ms", new Object[] {key,
+						queueTime});
+
+				discard(queuedTask.task);
+
+				return;
+			}
+
+			// a mailbox drained by a rejecting thread runs inside a task of another key
+			Object outerKey = currentKey.get();
+			currentKey.set(key);
+
+			try {
+				queuedTask.task.run();
+
+				completedTasks.incrementAndGet();
+			} catch(Throwable t) {
+				failedTasks.incrementAndGet();
+
+				logger.log(Level.SEVERE, "Task for key " + key + " failed", t);
+			} finally {
+				if(outerKey != null) {
+					currentKey.set(outerKey);
+				} else {
+					currentKey.remove();
+				}
+
+				executedTasks++;
+			}
+		}
+
+		private void discard(Runnable task) {
+			if(!(task instanceof QueuedMessageDispatchBase)) {
+				return;
+			}
+
+			try {
+				((QueuedMessageDispatchBase) task).discarded();
+			} catch(Throwable t) {
+				logger.log(Level.SEVERE, "Discarding a task for key " + key + " failed", t);
+			}
+		}
+
+		KeyMetrics snapshot() {
+			return new KeyMetrics(key, Math.max(0, pending.get()), maxQueueDepth, executedTasks, maxQueueTime,
+					activeSince);
+		}
+	}
+}
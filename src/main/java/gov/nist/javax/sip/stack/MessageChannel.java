@@ -87,6 +87,16 @@ public abstract class MessageChannel {
 	 */
 	public abstract boolean isSecure();
 
+	/**
+	 * Whether the connection takes more messages, a connection whose peer doesn't read the messages queued for it
+	 * fast enough is no longer writable until it catches up. See gov.nist.javax.sip.CONNECTION_WRITE_HIGH_WATER_MARK.
+	 *
+	 * @return false if the messages sent on this channel are likely to be refused or delayed
+	 */
+	public boolean isWritable() {
+		return true;
+	}
+
 	/**
 	 * Send the message (after it has been formatted)
 	 *
@@ -142,6 +152,19 @@ public abstract class MessageChannel {
 	protected abstract void sendMessage(byte[] message, InetAddress receiverAddress, int receiverPort,
 			boolean reconnectFlag) throws IOException;
 
+	/**
+	 * Send an already encoded message, used by the stateless forwarding path which edits the received bytes.
+	 *
+	 * @param message         Message to send.
+	 * @param receiverAddress Address of the receiver.
+	 * @param receiverPort    Port of the receiver.
+	 * @param isRequest       true for a request, connection oriented channels may reconnect to send it.
+	 */
+	public void sendMessageBytes(byte[] message, InetAddress receiverAddress, int receiverPort, boolean isRequest)
+			throws IOException {
+		sendMessage(message, receiverAddress, receiverPort, isRequest);
+	}
+
 	/**
 	 * Get the host of this message channel.
 	 *
@@ -5,6 +5,7 @@ import gov.nist.core.HostPort;
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.javax.sip.ListeningPointImpl;
 import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPRequest;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -271,6 +272,16 @@ public abstract class MessageProcessor {
 	 */
 	public abstract MessageChannel createMessageChannel(InetAddress targetHost, int port) throws IOException;
 
+	/**
+	 * Create a message channel to send a request to the specified host/port. A processor keeping several connections
+	 * to a destination picks the one of the request, the others use the channel of the host/port.
+	 *
+	 * @return New MessageChannel for this processor.
+	 */
+	public MessageChannel createMessageChannel(SIPRequest request, HostPort targetHostPort) throws IOException {
+		return createMessageChannel(targetHostPort);
+	}
+
 	/**
 	 * Start our thread.
 	 */
@@ -1,33 +1,97 @@
 package gov.nist.javax.sip.stack;
 
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.stack.OutboundQueue.Pending;
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.LinkedList;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.sip.IOExceptionEvent;
+
 /**
  * Low level Input output to a socket. Caches TCP connections and takes care of
  * re-connecting to the remote party if the other end drops the connection
+ *
+ * Each destination has an {@link OutboundQueue} holding its connection, the
+ * senders queue their messages and return, none of them waits for the connect:
+ * the sender finding no connection starts connecting a socket and the selector
+ * thread finishes the connect. A message which can't be sent once queued is
+ * reported to the listener as an IOExceptionEvent.
  */
 public class NIOHandler {
 	private static final Logger logger = Logger.getLogger(NIOHandler.class.getName());
 
+	// the time a socket has to connect before the messages waiting for it are reported as failed
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	private SIPTransactionStack sipStack;
 	private NioTcpMessageProcessor messageProcessor;
-	// A cache of client sockets that can be re-used for sending tcp messages.
-	private final ConcurrentHashMap<String, SocketChannel> socketTable = new ConcurrentHashMap<>();
+	// The outbound queues of the destinations, holding the client sockets that can be re-used for sending tcp messages.
+	private final ConcurrentHashMap<String, OutboundQueue> outboundQueues = new ConcurrentHashMap<>();
+	// The sockets being connected by the selector thread, whoever removes one handles the outcome of its connect.
+	private final ConcurrentHashMap<SocketChannel, ConnectTimeout> connecting = new ConcurrentHashMap<>();
+
+	/**
+	 * Fails the connect of a socket still not connected after the timeout.
+	 */
+	private final class ConnectTimeout extends SIPStackTimerTask {
+		private final OutboundQueue queue;
+		private final SocketChannel socket;
+		private volatile boolean scheduled;
+
+		ConnectTimeout(OutboundQueue queue, SocketChannel socket) {
+			this.queue = queue;
+			this.socket = socket;
+		}
 
-	KeyedSemaphore keyedSemaphore = new KeyedSemaphore();
+		@Override
+		public void runTask() {
+			if(connecting.remove(socket, this)) {
+				logger.log(Level.WARNING, "Could not connect to {0} after {1} ms",
+						new Object[] {queue.getKey(), CONNECT_TIMEOUT});
+
+				closeConnecting(queue, socket);
+			}
+		}
+
+		void schedule() {
+			SipTimer timer = sipStack.getTimer();
+			if(timer == null) {
+				return;
+			}
+
+			try {
+				timer.schedule(this, CONNECT_TIMEOUT);
+
+				scheduled = true;
+			} catch(IllegalStateException ex) {
+				logger.log(Level.FINEST, "no connect timeout, the timer is stopped", ex);
+			}
+		}
+
+		void cancel() {
+			SipTimer timer = sipStack.getTimer();
+			if(scheduled && timer != null) {
+				timer.cancel(this);
+			}
+		}
+	}
 
 	protected static String makeKey(InetAddress addr, int port) {
 		return addr.getHostAddress() + ":" + port;
@@ -38,50 +102,89 @@ public class NIOHandler {
 	}
 
 	protected NIOHandler(SIPTransactionStack sipStack, NioTcpMessageProcessor messageProcessor) {
+		this.sipStack = sipStack;
 		this.messageProcessor = messageProcessor;
 	}
 
+	private OutboundQueue getQueue(String key) {
+		return outboundQueues.computeIfAbsent(key, OutboundQueue::new);
+	}
+
 	protected void putSocket(String key, SocketChannel sock) {
-		synchronized (socketTable) {
-			logger.log(Level.FINEST, "adding socket for key {0}", key);
+		logger.log(Level.FINEST, "adding socket for key {0}", key);
+
+		while(true) {
+			OutboundQueue queue = getQueue(key);
+			synchronized(queue) {
+				if(queue.isRemoved()) {
+					continue;
+				}
 
-			socketTable.put(key, sock);
+				// the sender establishing a connection sets it, nothing waits otherwise
+				if(queue.getState() != OutboundQueue.State.CONNECTING) {
+					queue.connected(sock);
+					queue.established();
+				}
+			}
+
+			return;
 		}
 	}
 
 	protected SocketChannel getSocket(String key) {
-		// no need to synchronize here
-		return socketTable.get(key);
+		OutboundQueue queue = outboundQueues.get(key);
+		if(queue == null) {
+			return null;
+		}
+
+		synchronized(queue) {
+			return queue.getSocket();
+		}
 	}
 
 	protected void removeSocket(String key) {
-		synchronized(socketTable) {
-			socketTable.remove(key);
-			keyedSemaphore.remove(key);
+		OutboundQueue queue = outboundQueues.get(key);
+		if(queue == null) {
+			return;
+		}
+
+		synchronized(queue) {
+			queue.disconnected();
 
-			logger.log(Level.FINEST, "removed Socket and Semaphore for key: {0}", key);
+			// a connection in progress keeps its queue
+			if(queue.isIdle()) {
+				queue.remove();
+				outboundQueues.remove(key, queue);
+			}
 		}
+
+		logger.log(Level.FINEST, "removed Socket for key: {0}", key);
 	}
 
 	protected void removeSocket(SocketChannel channel) {
 		logger.log(Level.FINEST, "Trying to remove cached socketChannel without key: {0} socketChannel: {1}",
 				new Object[] {this, channel});
 
-		LinkedList<String> keys = new LinkedList<>();
-		synchronized (socketTable) {
-			Set<Entry<String, SocketChannel>> e = socketTable.entrySet();
-			for (Entry<String, SocketChannel> entry : e) {
-				SocketChannel sc = entry.getValue();
-				if (sc.equals(channel)) {
-					keys.add(entry.getKey());
-				}
+		// a channel closed while its socket is being connected, the messages waiting for it won't be sent
+		ConnectTimeout timeout = connecting.remove(channel);
+		if(timeout != null) {
+			timeout.cancel();
+
+			connectionFailed(timeout.queue);
+		}
+
+		for(OutboundQueue queue : outboundQueues.values()) {
+			boolean found;
+			synchronized(queue) {
+				// the socket is closed already when its channel closes, getSocket() would have forgotten it
+				found = queue.isSocket(channel);
 			}
 
-			for(String key : keys) {
+			if(found) {
 				logger.log(Level.FINEST, "Removing cached socketChannel without key: {0} socketChannel: {1} key: {2}",
-						new Object[] {this, channel, key});
+						new Object[] {this, channel, queue.getKey()});
 
-				removeSocket(key);
+				removeSocket(queue.getKey());
 			}
 		}
 	}
@@ -91,17 +194,37 @@ public class NIOHandler {
 	 * writes can occur from multiple threads. We write in chunks to allow the other
 	 * side to synchronize for large sized writes.
 	 */
-	private void writeChunks(SocketChannel channel, byte[] bytes, int length) {
+	private void writeChunks(SocketChannel channel, byte[] bytes, int length) throws IOException {
 		// Chunk size is 16K - this hack is for large
 		// writes over slow connections.
 		synchronized (channel) {
-			// outputStream.write(bytes,0,length);
-			byte[] buff = new byte[length];
-			System.arraycopy(bytes, 0, buff, 0, length);
 			messageProcessor.send(channel, bytes);
 		}
 	}
 
+	private void write(SocketChannel channel, byte[] bytes, ByteBuffer buffer) throws IOException {
+		if(bytes != null) {
+			writeChunks(channel, bytes, bytes.length);
+		} else {
+			synchronized (channel) {
+				messageProcessor.send(channel, buffer, true);
+			}
+		}
+	}
+
+	/**
+	 * Send a buffer acquired from the {@link ByteBufferFactory}, such as a TLS record, without copying it. The buffer
+	 * is handed to the connection and given back to the pool once written, or right away if it is not sent.
+	 *
+	 * @see #sendBytes(InetAddress, InetAddress, int, String, byte[], boolean, NioTcpMessageChannel)
+	 */
+	public SocketChannel sendBuffer(InetAddress senderAddress, InetAddress receiverAddress, int contactPort,
+			String transport, ByteBuffer buffer, boolean isClient, NioTcpMessageChannel messageChannel)
+			throws IOException {
+		return sendBytes(senderAddress, receiverAddress, contactPort, transport, null, buffer, isClient,
+				messageChannel);
+	}
+
 	/**
 	 * Send an array of bytes.
 	 *
@@ -109,150 +232,426 @@ public class NIOHandler {
 	 * @param contactPort     -- port to connect to.
 	 * @param transport       -- tcp or udp.
 	 * @param isClient        -- retry to connect if the other end closed connection
+	 * @return the socket the bytes are queued on, null if they wait for a connection another sender is establishing
 	 * @throws IOException -- if there is an IO exception sending message.
 	 */
 	public SocketChannel sendBytes(InetAddress senderAddress, InetAddress receiverAddress, int contactPort,
 			String transport, byte[] bytes, boolean isClient, NioTcpMessageChannel messageChannel) throws IOException {
-		int retryCount = 0;
-		int maxRetry = isClient ? 2 : 1;
+		return sendBytes(senderAddress, receiverAddress, contactPort, transport, bytes, null, isClient,
+				messageChannel);
+	}
+
+	private SocketChannel sendBytes(InetAddress senderAddress, InetAddress receiverAddress, int contactPort,
+			String transport, byte[] bytes, ByteBuffer buffer, boolean isClient, NioTcpMessageChannel messageChannel)
+			throws IOException {
 		// Server uses TCP transport. TCP client sockets are cached
-		int length = bytes.length;
+		int length = bytes != null ? bytes.length : buffer.remaining();
 
 		logger.log(Level.FINEST, "sendBytes: {0} inAddr: {1}, port: {2}, length: {3}, isClient: {4}",
 				new Object[] {transport, receiverAddress.getHostAddress(), contactPort, length, isClient});
 
-		String key = makeKey(receiverAddress, contactPort);
-
-		SocketChannel clientSock = null;
-		keyedSemaphore.enterIOCriticalSection(key);
+		String key = messageChannel.getSocketKey(receiverAddress, contactPort);
 
-		boolean newSocket = false;
-		try {
-			clientSock = getSocket(key);
-			while(retryCount < maxRetry) {
-				if(clientSock != null && (!clientSock.isConnected() || !clientSock.isOpen())) {
-					removeSocket(key);
+		SocketChannel clientSock;
+		while(true) {
+			OutboundQueue queue = getQueue(key);
+			SocketChannel newSock = null;
+			IOException connectFailure = null;
+			IOException refused = null;
 
-					clientSock = null;
-					newSocket = true;
+			synchronized(queue) {
+				if(queue.isRemoved()) {
+					continue;
 				}
 
-				if(clientSock == null) {
-					logger.log(Level.FINEST, "inaddr = {0} port = {1}", new Object[] {receiverAddress, contactPort});
+				clientSock = queue.getSocket();
+				if(clientSock != null) {
+					break;
+				}
 
-					/*
-					 * note that the IP Address for stack may not be assigned. sender address is the address of the
-					 * listening point. in version 1.1 all listening points have the same IP address (i.e. that of
-					 * the stack). In version 1.2 the IP address is on a per listening point basis.
-					 */
+				if(queue.getState() != OutboundQueue.State.CONNECTING) {
 					try {
-						clientSock = messageProcessor
-								.blockingConnect(new InetSocketAddress(receiverAddress, contactPort), 10000);
-						if (messageChannel instanceof NioTlsMessageChannel) {
-							// Added for https://java.net/jira/browse/JSIP-483
-							HandshakeCompletedListenerImpl listner = new HandshakeCompletedListenerImpl(
-									(NioTlsMessageChannel) messageChannel, clientSock);
-							((NioTlsMessageChannel) messageChannel).setHandshakeCompletedListener(listner);
-						}
-						newSocket = true;
-					} catch(SocketException e) {
-						// We must catch the socket timeout exceptions here, any SocketException not just ConnectException
-						logger.log(Level.SEVERE, "Problem connecting {0} {1} {2} for message {3}",
-								new Object[] {receiverAddress, contactPort, senderAddress,
-										(messageChannel.isSecure() ? "<<<ENCRYPTED MESSAGE>>>"
-												: new String(bytes, StandardCharsets.UTF_8))});
-
-						// new connection is bad. remove from our table the socket and its semaphore
-						removeSocket(key);
-
-						throw new SocketException(e.getClass() + " " + e.getMessage() + " " + e.getCause()
-								+ " Problem connecting " + receiverAddress + " " + contactPort + " " + senderAddress
-								+ " for message " + new String(bytes, StandardCharsets.UTF_8));
+						newSock = openConnection(queue, receiverAddress, contactPort);
+					} catch(IOException ex) {
+						connectFailure = ex;
 					}
+				}
 
-					putSocket(key, clientSock);
+				if(connectFailure == null) {
+					logger.log(Level.FINEST, "Queuing {0} bytes until {1} is connected", new Object[] {length, key});
 
-					break;
-				} else {
-					break;
+					// the channel takes the socket it opens, the records of a TLS channel are those of the session
+					// it started for the new socket, see onNewSocket
+					SocketChannel session = newSock != null ? newSock : messageChannel.getSocketChannel();
+
+					try {
+						messageProcessor.chargeWaiting(key, queue.getWaitingBytes(), length, buffer);
+						queue.add(new Pending(bytes, buffer, messageChannel, receiverAddress, contactPort, isClient,
+								SIPClientTransactionImpl.getSendingTransaction(), session));
+					} catch(IOException ex) {
+						refused = ex;
+					}
 				}
 			}
+
+			if(connectFailure != null) {
+				return connectRefused(connectFailure, senderAddress, receiverAddress, contactPort, transport, bytes,
+						buffer, isClient, messageChannel);
+			}
+
+			if(newSock != null) {
+				startConnect(newSock, messageChannel);
+			}
+
+			if(refused != null) {
+				throw refused;
+			}
+
+			return newSock;
+		}
+
+		// the connection is established, the selector thread writes the bytes
+		write(clientSock, bytes, buffer);
+
+		return clientSock;
+	}
+
+	/**
+	 * Starts connecting a socket for a queue, called with the lock of the queue held. The socket is handed to the
+	 * selector thread once the lock is released, see {@link #startConnect(SocketChannel, NioTcpMessageChannel)}.
+	 */
+	private SocketChannel openConnection(OutboundQueue queue, InetAddress address, int port) throws IOException {
+		logger.log(Level.FINEST, "inaddr = {0} port = {1}", new Object[] {address, port});
+
+		SocketChannel socket;
+		try {
+			socket = messageProcessor.connect(new InetSocketAddress(address, port));
 		} catch(IOException ex) {
-			logger.log(Level.SEVERE, "Problem sending: sendBytes: {0} inAddr: {1} port: {2} remoteHost: {3}"
-					+ " remotePort: {4} peerPacketPort: {5} isClient: {6}",
-					new Object[] {transport, receiverAddress.getHostAddress(), contactPort,
-							messageChannel.getPeerAddress(), messageChannel.getPeerPort(),
-									messageChannel.getPeerPacketSourcePort(), isClient});
-
-			removeSocket(key);
-
-			/*
-			 * For TCP responses, the transmission of responses is controlled by RFC 3261,
-			 * section 18.2.2 :
-			 *
-			 * o If the "sent-protocol" is a reliable transport protocol such as TCP or
-			 * SCTP, or TLS over those, the response MUST be sent using the existing
-			 * connection to the source of the original request that created the
-			 * transaction, if that connection is still open. This requires the server
-			 * transport to maintain an association between server transactions and
-			 * transport connections. If that connection is no longer open, the server
-			 * SHOULD open a connection to the IP address in the "received" parameter, if
-			 * present, using the port in the "sent-by" value, or the default port for that
-			 * transport, if no port is specified. If that connection attempt fails, the
-			 * server SHOULD use the procedures in [4] for servers in order to determine the
-			 * IP address and port to open the connection and send the response to.
-			 */
-			if(!isClient) {
-				receiverAddress = InetAddress.getByName(messageChannel.peerAddressAdvertisedInHeaders);
-				contactPort = messageChannel.peerPortAdvertisedInHeaders;
-
-				if(contactPort <= 0) {
-					contactPort = 5060;
-				}
+			// nothing waits for a queue which was not connecting
+			if(queue.isIdle()) {
+				queue.remove();
+				outboundQueues.remove(queue.getKey(), queue);
+			}
 
-				key = makeKey(receiverAddress, contactPort);
-				clientSock = this.getSocket(key);
-				if(clientSock == null || !clientSock.isConnected() || !clientSock.isOpen()) {
-					logger.log(Level.FINEST, "inaddr = {0} port = {1}", new Object[] {receiverAddress, contactPort});
+			throw ex;
+		}
 
-					clientSock = messageProcessor
-							.blockingConnect(new InetSocketAddress(receiverAddress, contactPort), 10000);
+		queue.connecting(socket);
+		connecting.put(socket, new ConnectTimeout(queue, socket));
 
-					newSocket = true;
+		return socket;
+	}
 
-					messageChannel.peerPort = contactPort;
-					putSocket(key, clientSock);
-				}
+	/**
+	 * Hands a socket being connected to the selector thread, which finishes the connect, the connection is
+	 * established right away if the connect completed already.
+	 *
+	 * @param messageChannel the channel taking the socket, null if the caller maps it
+	 */
+	private void startConnect(SocketChannel socket, NioTcpMessageChannel messageChannel) {
+		if(messageChannel instanceof NioTlsMessageChannel) {
+			// Added for https://java.net/jira/browse/JSIP-483
+			HandshakeCompletedListenerImpl listner = new HandshakeCompletedListenerImpl(
+					(NioTlsMessageChannel) messageChannel, socket);
+			((NioTlsMessageChannel) messageChannel).setHandshakeCompletedListener(listner);
+		}
 
-				logger.log(Level.FINEST, "sending to {0}", key);
-			} else {
-				logger.log(Level.SEVERE, "IOException occured at", ex);
+		if(messageChannel != null) {
+			// the channel takes the new socket, map it before the selector thread reads from it
+			NioTcpMessageChannel.putMessageChannel(socket, messageChannel);
+		}
+
+		if(socket.isConnected()) {
+			messageProcessor.register(socket, SelectionKey.OP_READ);
+
+			connectFinished(socket);
+
+			return;
+		}
+
+		ConnectTimeout timeout = connecting.get(socket);
+		if(timeout != null) {
+			// before the selector thread can finish the connect and cancel it
+			timeout.schedule();
+		}
+
+		messageProcessor.register(socket, SelectionKey.OP_CONNECT);
+	}
+
+	/**
+	 * Called once a socket is connected, the messages waiting for it are written.
+	 */
+	void connectFinished(SocketChannel socket) {
+		ConnectTimeout timeout = connecting.remove(socket);
+		if(timeout == null) {
+			// timed out or closed meanwhile
+			return;
+		}
+
+		timeout.cancel();
+
+		logger.log(Level.FINEST, "connected {0} socket: {1}", new Object[] {timeout.queue.getKey(), socket});
+
+		connected(timeout.queue, socket);
+	}
 
-				throw ex;
+	/**
+	 * Called when the connect of a socket fails, the messages waiting for it are reported.
+	 */
+	void connectFailed(SocketChannel socket, IOException ex) {
+		ConnectTimeout timeout = connecting.remove(socket);
+		if(timeout == null) {
+			return;
+		}
+
+		timeout.cancel();
+
+		logger.log(Level.WARNING, "Could not connect to {0}: {1}", new Object[] {timeout.queue.getKey(),
+				ex.getMessage()});
+
+		closeConnecting(timeout.queue, socket);
+	}
+
+	/**
+	 * Closes a socket which could not connect, along with the channel created for it.
+	 */
+	private void closeConnecting(OutboundQueue queue, SocketChannel socket) {
+		try {
+			socket.close();
+		} catch(IOException ex) {
+			logger.log(Level.FINEST, "silently ignoring exception", ex);
+		}
+
+		connectionFailed(queue);
+
+		NioTcpMessageChannel messageChannel = NioTcpMessageChannel.getMessageChannel(socket);
+		if(messageChannel != null) {
+			messageChannel.close();
+		}
+	}
+
+	/**
+	 * A connect refused right away, the message of the sender is not queued.
+	 */
+	private SocketChannel connectRefused(IOException ex, InetAddress senderAddress, InetAddress receiverAddress,
+			int contactPort, String transport, byte[] bytes, ByteBuffer buffer, boolean isClient,
+			NioTcpMessageChannel messageChannel) throws IOException {
+		// We must catch the socket timeout exceptions here, any SocketException not just ConnectException
+		logger.log(Level.SEVERE, "Problem connecting {0} {1} {2} for message {3}",
+				new Object[] {receiverAddress, contactPort, senderAddress,
+						(messageChannel.isSecure() || bytes == null ? "<<<ENCRYPTED MESSAGE>>>"
+								: new String(bytes, StandardCharsets.UTF_8))});
+
+		logger.log(Level.SEVERE, "Problem sending: sendBytes: {0} inAddr: {1} port: {2} remoteHost: {3}"
+				+ " remotePort: {4} peerPacketPort: {5} isClient: {6}",
+				new Object[] {transport, receiverAddress.getHostAddress(), contactPort,
+						messageChannel.getPeerAddress(), messageChannel.getPeerPort(),
+								messageChannel.getPeerPacketSourcePort(), isClient});
+
+		/*
+		 * For TCP responses, the transmission of responses is controlled by RFC 3261,
+		 * section 18.2.2 :
+		 *
+		 * o If the "sent-protocol" is a reliable transport protocol such as TCP or
+		 * SCTP, or TLS over those, the response MUST be sent using the existing
+		 * connection to the source of the original request that created the
+		 * transaction, if that connection is still open. This requires the server
+		 * transport to maintain an association between server transactions and
+		 * transport connections. If that connection is no longer open, the server
+		 * SHOULD open a connection to the IP address in the "received" parameter, if
+		 * present, using the port in the "sent-by" value, or the default port for that
+		 * transport, if no port is specified. If that connection attempt fails, the
+		 * server SHOULD use the procedures in [4] for servers in order to determine the
+		 * IP address and port to open the connection and send the response to.
+		 */
+		if(!isClient) {
+			receiverAddress = InetAddress.getByName(messageChannel.peerAddressAdvertisedInHeaders);
+			contactPort = messageChannel.peerPortAdvertisedInHeaders;
+
+			if(contactPort <= 0) {
+				contactPort = 5060;
 			}
 
-			return clientSock;
-		} finally {
-			try {
-				if(clientSock != null) {
-					if(newSocket && messageChannel instanceof NioTlsMessageChannel) {
-						// We don't write data when using TLS, the new socket needs to handshake first
-					} else {
-						writeChunks(clientSock, bytes, length);
+			messageChannel.peerPort = contactPort;
+
+			logger.log(Level.FINEST, "sending to {0}", makeKey(receiverAddress, contactPort));
+
+			return sendBytes(senderAddress, receiverAddress, contactPort, transport, bytes, buffer, true,
+					messageChannel);
+		}
+
+		ByteBufferFactory.getInstance().release(buffer);
+
+		logger.log(Level.SEVERE, "IOException occured at", ex);
+
+		throw new SocketException(ex.getClass() + " " + ex.getMessage() + " " + ex.getCause()
+				+ " Problem connecting " + receiverAddress + " " + contactPort + " " + senderAddress
+				+ " for message " + (bytes == null ? "<<<ENCRYPTED MESSAGE>>>"
+						: new String(bytes, StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Writes the messages waiting for a connection once connected, in order, before the connection is established for
+	 * the other senders.
+	 */
+	private void connected(OutboundQueue queue, SocketChannel clientSock) {
+		List<Pending> batch;
+		synchronized(queue) {
+			batch = queue.connected(clientSock);
+		}
+
+		released(batch);
+
+		List<Pending> dropped = new ArrayList<>(0);
+		do {
+			for(Pending pending : batch) {
+				if(pending.channel instanceof NioTlsMessageChannel && pending.socket != clientSock) {
+					// records of a session of the previous connection, the new socket needs to handshake first
+					dropped.add(pending);
+				} else {
+					try {
+						write(clientSock, pending.bytes, pending.buffer);
+					} catch(IOException ex) {
+						// the buffer is given back already
+						dropped.add(new Pending(pending.bytes, null, pending.channel, pending.address, pending.port,
+								pending.isClient, pending.transaction));
 					}
 				}
-			} finally {
-				keyedSemaphore.leaveIOCriticalSection(key);
+			}
+
+			synchronized(queue) {
+				batch = queue.established();
+			}
+
+			released(batch);
+		} while(!batch.isEmpty());
+
+		fail(dropped, queue.getKey());
+	}
+
+	private void connectionFailed(OutboundQueue queue) {
+		List<Pending> waiting;
+
+		synchronized(queue) {
+			waiting = queue.failed();
+
+			// nothing left to retry, the next sender starts over with a new queue
+			if(queue.isIdle()) {
+				queue.remove();
+				outboundQueues.remove(queue.getKey(), queue);
 			}
 		}
 
-		if(clientSock == null) {
-			logger.log(Level.SEVERE, "{0}\n Could not connect to {1}:{2}", new Object[] { this.socketTable,
-					receiverAddress, contactPort});
+		released(waiting);
 
-			throw new IOException("Could not connect to " + receiverAddress + ":" + contactPort);
-		} else {
-			return clientSock;
+		List<Pending> failed = new ArrayList<>(waiting.size());
+		for(Pending pending : waiting) {
+			if(!pending.isClient && pending.channel.peerAddressAdvertisedInHeaders != null) {
+				retry(pending);
+			} else {
+				failed.add(pending);
+			}
+		}
+
+		fail(failed, queue.getKey());
+	}
+
+	/**
+	 * Sends a response whose connection failed to the address advertised in the headers of the request, as RFC 3261
+	 * section 18.2.2 says, see connectRefused. Run on the timer since resolving the address may block.
+	 */
+	private void retry(final Pending pending) {
+		SIPStackTimerTask task = new SIPStackTimerTask() {
+			@Override
+			public void runTask() {
+				resend(pending);
+			}
+		};
+
+		SipTimer timer = sipStack.getTimer();
+		try {
+			if(timer != null) {
+				timer.schedule(task, 0);
+
+				return;
+			}
+		} catch(IllegalStateException ex) {
+			logger.log(Level.FINEST, "the timer is stopped", ex);
+		}
+
+		fail(Collections.singletonList(pending), makeKey(pending.address, pending.port));
+	}
+
+	private void resend(Pending pending) {
+		NioTcpMessageChannel messageChannel = pending.channel;
+
+		InetAddress receiverAddress;
+		try {
+			receiverAddress = InetAddress.getByName(messageChannel.peerAddressAdvertisedInHeaders);
+		} catch(IOException ex) {
+			fail(Collections.singletonList(pending), makeKey(pending.address, pending.port));
+
+			return;
+		}
+
+		int contactPort = messageChannel.peerPortAdvertisedInHeaders;
+		if(contactPort <= 0) {
+			contactPort = 5060;
+		}
+
+		messageChannel.peerPort = contactPort;
+
+		logger.log(Level.FINEST, "sending to {0}", makeKey(receiverAddress, contactPort));
+
+		try {
+			// through the channel, which takes the new socket
+			if(pending.bytes != null) {
+				messageChannel.sendTCPMessage(pending.bytes, receiverAddress, contactPort, true);
+			} else {
+				messageChannel.sendTCPMessage(pending.buffer, receiverAddress, contactPort, true);
+			}
+		} catch(IOException ex) {
+			// the buffer is given back already
+			fail(Collections.singletonList(new Pending(pending.bytes, null, messageChannel, receiverAddress,
+					contactPort, true, pending.transaction)), makeKey(receiverAddress, contactPort));
+		}
+	}
+
+	/**
+	 * Gives back the charge of the messages taken from a queue, they are then written, counted as any other, or
+	 * dropped.
+	 */
+	private void released(List<Pending> drained) {
+		long length = 0;
+		for(Pending pending : drained) {
+			length += pending.length();
+		}
+
+		messageProcessor.releaseWaiting(length);
+	}
+
+	/**
+	 * Reports the messages which won't be sent to the listener.
+	 */
+	private void fail(List<Pending> failed, String key) {
+		if(failed.isEmpty()) {
+			return;
+		}
+
+		logger.log(Level.WARNING, "{0} queued messages to {1} not sent", new Object[] {failed.size(), key});
+
+		ListeningPointImpl listeningPoint = messageProcessor.getListeningPoint();
+		SipProviderImpl provider = listeningPoint != null ? listeningPoint.getProvider() : null;
+
+		for(Pending pending : failed) {
+			ByteBufferFactory.getInstance().release(pending.buffer);
+
+			if(provider != null) {
+				// queued as it is called from the selector thread, with the transaction so that the future of a
+				// request sent with sendRequestAsync completes
+				provider.queueEvent(new IOExceptionEvent(provider, pending.address.getHostAddress(), pending.port,
+						messageProcessor.getTransport()), pending.transaction);
+			}
 		}
 	}
 
@@ -260,11 +659,26 @@ public class NIOHandler {
 	 * Close all the cached connections.
 	 */
 	public void closeAll() {
-		logger.log(Level.FINEST, "Closing {0} sockets from IOHandler", socketTable.size());
+		logger.log(Level.FINEST, "Closing {0} sockets from IOHandler", outboundQueues.size());
+
+		for(OutboundQueue queue : outboundQueues.values()) {
+			SocketChannel s;
+			synchronized(queue) {
+				s = queue.getSocket();
+			}
 
-		for(Enumeration<SocketChannel> values = socketTable.elements(); values.hasMoreElements();) {
-			SocketChannel s = values.nextElement();
+			if(s == null) {
+				continue;
+			}
+
+			try {
+				s.close();
+			} catch(IOException ex) {
+				logger.log(Level.FINEST, "silently ignoring exception", ex);
+			}
+		}
 
+		for(SocketChannel s : connecting.keySet()) {
 			try {
 				s.close();
 			} catch(IOException ex) {
@@ -278,7 +692,7 @@ public class NIOHandler {
 			// Reworked the method for https://java.net/jira/browse/JSIP-471
 			logger.log(Level.FINEST, "keys to check for inactivity removal {0}",
 					NioTcpMessageChannel.channelMap.keySet());
-			logger.log(Level.FINEST, "existing socket in NIOHandler {0}", socketTable.keySet());
+			logger.log(Level.FINEST, "existing socket in NIOHandler {0}", outboundQueues.keySet());
 
 			Iterator<Entry<SocketChannel, NioTcpMessageChannel>> entriesIterator = NioTcpMessageChannel.channelMap
 					.entrySet().iterator();
@@ -291,6 +705,8 @@ public class NIOHandler {
 						messageChannel.key, socketChannel});
 
 				messageChannel.close();
+				// a channel closes its current socket only, don't loop on another one still mapped to it
+				NioTcpMessageChannel.removeMessageChannel(socketChannel);
 
 				entriesIterator = NioTcpMessageChannel.channelMap.entrySet().iterator();
 			}
@@ -300,37 +716,44 @@ public class NIOHandler {
 	}
 
 	public SocketChannel createOrReuseSocket(InetAddress inetAddress, int port) throws IOException {
-		String key = NIOHandler.makeKey(inetAddress, port);
+		return createOrReuseSocket(inetAddress, port, NIOHandler.makeKey(inetAddress, port));
+	}
+
+	/**
+	 * @param key the key of the socket in the cache, an extra connection to the destination has its own key
+	 * @return the socket of the connection to the destination, it may still be connecting
+	 */
+	public SocketChannel createOrReuseSocket(InetAddress inetAddress, int port, String key) throws IOException {
 		SocketChannel channel = null;
-		keyedSemaphore.enterIOCriticalSection(key);
 		try {
-			channel = getSocket(key);
-
-			if(channel != null && (!channel.isConnected() || !channel.isOpen())) {
-				logger.log(Level.FINEST, "Channel disconnected {0}", channel);
+			while(true) {
+				OutboundQueue queue = getQueue(key);
+				synchronized(queue) {
+					if(queue.isRemoved()) {
+						continue;
+					}
 
-				channel = null;
-			}
+					// a connection in progress is shared, the messages sent meanwhile wait for it
+					channel = queue.getSocket();
+					if(channel == null) {
+						channel = queue.getConnectingSocket();
+					}
 
-			// this is where the threads will race
-			if(channel == null) {
-				SocketAddress sockAddr = new InetSocketAddress(inetAddress, port);
+					if(channel != null) {
+						return channel;
+					}
 
-				channel = messageProcessor.blockingConnect((InetSocketAddress) sockAddr, 10000);
+					channel = openConnection(queue, inetAddress, port);
+				}
 
 				logger.log(Level.FINEST, "create channel = {0} {1} {2}", new Object[] {channel, inetAddress, port});
 
-				if(channel != null && channel.isConnected()) {
-					putSocket(NIOHandler.makeKey(inetAddress, port), channel);
+				// the channel created for the socket maps it
+				startConnect(channel, null);
 
-					logger.log(Level.FINEST, "channel cached channel = {0}", channel);
-				}
+				return channel;
 			}
-
-			return channel;
 		} finally {
-			keyedSemaphore.leaveIOCriticalSection(key);
-
 			logger.log(Level.FINEST, "Returning socket: {0} channel: {1}", new Object[] {key, channel});
 		}
 	}
@@ -32,6 +32,9 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 	protected long lastActivityTimeStamp;
 	NioPipelineParser nioParser = null;
 
+	// the key of the socket in the NIOHandler cache when it is an extra connection to the peer, see ConnectionGroup
+	private String socketKey;
+
 	public static NioTcpMessageChannel create(NioTcpMessageProcessor nioTcpMessageProcessor,
 			SocketChannel socketChannel) throws IOException {
 		NioTcpMessageChannel retval = channelMap.get(socketChannel);
@@ -57,6 +60,15 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 	}
 
 	public void readChannel() {
+		readChannel(socketChannel);
+	}
+
+	/**
+	 * Reads the bytes ready on a socket of this channel. A socket opened by the channel is selected as soon as it is
+	 * connected, before the sender thread returns and the channel takes it, see sendTCPMessage, its bytes belong to
+	 * the channel all the same.
+	 */
+	void readChannel(SocketChannel socket) {
 		logger.entering(NioTcpMessageChannel.class.getName(), "readChannel");
 
 		int bufferSize = 4096;
@@ -64,7 +76,7 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		this.isRunning = true;
 		try {
 			ByteBuffer byteBuffer = ByteBuffer.wrap(msg);
-			int nbytes = this.socketChannel.read(byteBuffer);
+			int nbytes = socket.read(byteBuffer);
 			byteBuffer.flip();
 			msg = new byte[byteBuffer.remaining()];
 			byteBuffer.get(msg);
@@ -111,6 +123,12 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 						"IOException closing sock {0} myAddress:myport {0}:{1}," + " remoteAddress:remotePort {2}:{3}",
 						new Object[] { ex, myAddress, myPort, peerAddress, peerPort });
 
+				if(socket != socketChannel) {
+					// the sender finds it closed and connects again
+					socket.close();
+					return;
+				}
+
 				close(true, false);
 			} catch (Exception ex1) {
 				logger.log(Level.FINEST, "Exception closing the socket", ex1);
@@ -140,6 +158,8 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 
 			myAddress = nioTcpMessageProcessor.getIpAddress().getHostAddress();
 			myPort = nioTcpMessageProcessor.getPort();
+
+			sipStack.getConnectionLivenessManager().watch(flow, false);
 		} finally {
 			logger.log(Level.FINEST, "Done creating NioTcpMessageChannel {0} socketChannel: {1}",
 					new Object[] { this, socketChannel });
@@ -148,6 +168,15 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 
 	public NioTcpMessageChannel(InetAddress inetAddress, int port, SIPTransactionStack sipStack,
 			NioTcpMessageProcessor nioTcpMessageProcessor) throws IOException {
+		this(inetAddress, port, sipStack, nioTcpMessageProcessor, null);
+	}
+
+	/**
+	 * @param socketKey the key of the socket in the NIOHandler cache, null for the connection shared by all the
+	 *                  channels to the destination
+	 */
+	public NioTcpMessageChannel(InetAddress inetAddress, int port, SIPTransactionStack sipStack,
+			NioTcpMessageProcessor nioTcpMessageProcessor, String socketKey) throws IOException {
 		super(sipStack);
 
 		logger.log(Level.FINEST, "NioTcpMessageChannel::NioTcpMessageChannel: {0}:{1}",
@@ -155,11 +184,14 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 
 		try {
 			messageProcessor = nioTcpMessageProcessor;
+			this.socketKey = socketKey;
 			// Take a cached socket to the destination, if none create a new one and cache
 			// it
-			socketChannel = nioTcpMessageProcessor.nioHandler.createOrReuseSocket(inetAddress, port);
-			peerAddress = socketChannel.socket().getInetAddress();
-			peerPort = socketChannel.socket().getPort();
+			socketChannel = nioTcpMessageProcessor.nioHandler.createOrReuseSocket(inetAddress, port,
+					socketKey != null ? socketKey : NIOHandler.makeKey(inetAddress, port));
+			// the socket may still be connecting, it has no peer yet
+			peerAddress = inetAddress;
+			peerPort = port;
 			super.mySock = socketChannel.socket();
 			peerProtocol = getTransport();
 			nioParser = new NioPipelineParser(sipStack, this, this.sipStack.getMaxMessageSize());
@@ -170,6 +202,8 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 			myAddress = nioTcpMessageProcessor.getIpAddress().getHostAddress();
 			myPort = nioTcpMessageProcessor.getPort();
 
+			// the stack opened the connection, it is an outbound flow to keep alive
+			sipStack.getConnectionLivenessManager().watch(flow, isKeepAlivePingSupported());
 		} finally {
 			logger.log(Level.FINEST, "NioTcpMessageChannel::NioTcpMessageChannel: Done creating"
 					+ " NioTcpMessageChannel: {0}, socketChannel: {1}", new Object[] {this, socketChannel});
@@ -180,6 +214,24 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		return socketChannel;
 	}
 
+	/**
+	 * @return the key of the socket of this channel in the NIOHandler cache
+	 */
+	protected String getSocketKey() {
+		return socketKey != null ? socketKey : NIOHandler.makeKey(peerAddress, peerPort);
+	}
+
+	/**
+	 * @return the key of the socket to send from this channel to an address in the NIOHandler cache
+	 */
+	String getSocketKey(InetAddress address, int port) {
+		if(socketKey != null && port == peerPort && address.equals(peerAddress)) {
+			return socketKey;
+		}
+
+		return NIOHandler.makeKey(address, port);
+	}
+
 	@Override
 	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
 		try {
@@ -190,6 +242,8 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 
 			if(socketChannel != null) {
 				socketChannel.close();
+
+				((NioTcpMessageProcessor) this.messageProcessor).dropPendingData(socketChannel);
 			}
 
 			if(nioParser != null) {
@@ -240,7 +294,27 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
 
 		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
-			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
+		}
+
+		sendTCPMessage(msg, this.peerAddress, this.peerPort, isClient);
+	}
+
+	/**
+	 * Send a buffer of the {@link ByteBufferFactory} pool to whoever is connected to us, the buffer is given back to
+	 * the pool once written.
+	 *
+	 * @see #sendMessage(byte[], boolean)
+	 */
+	protected void sendMessage(ByteBuffer msg, boolean isClient) throws IOException {
+		logger.log(Level.FINEST, "sendMessage isClient: {0}, this: {1}", new Object[] {isClient, this});
+
+		lastActivityTimeStamp = System.currentTimeMillis();
+
+		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
+
+		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
 		}
 
 		sendTCPMessage(msg, this.peerAddress, this.peerPort, isClient);
@@ -269,7 +343,43 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 	 */
 	public void sendTCPMessage(byte message[], InetAddress receiverAddress, int receiverPort, boolean retry)
 			throws IOException {
-		if(message == null || receiverAddress == null) {
+		sendTCPMessage(message, null, receiverAddress, receiverPort, retry);
+	}
+
+	/**
+	 * Send a buffer of the {@link ByteBufferFactory} pool to a specified address without copying it, the buffer is
+	 * given back to the pool once written.
+	 *
+	 * @param message         Pre-formatted message to send.
+	 * @param receiverAddress Address to send it to.
+	 * @param receiverPort    Receiver port.
+	 * @throws IOException If there is a problem connecting or sending.
+	 */
+	public void sendTCPMessage(ByteBuffer message, InetAddress receiverAddress, int receiverPort, boolean retry)
+			throws IOException {
+		if(socketChannel == null || !socketChannel.isConnected() || !socketChannel.isOpen()) {
+			// a new socket gets the bytes of the message, see onNewSocket
+			byte[] bytes = new byte[message.remaining()];
+
+			message.get(bytes);
+
+			ByteBufferFactory.getInstance().release(message);
+
+			sendTCPMessage(bytes, null, receiverAddress, receiverPort, retry);
+
+			return;
+		}
+
+		sendTCPMessage(null, message, receiverAddress, receiverPort, retry);
+	}
+
+	private void sendTCPMessage(byte message[], ByteBuffer buffer, InetAddress receiverAddress, int receiverPort,
+			boolean retry) throws IOException {
+		if((message == null && buffer == null) || receiverAddress == null) {
+			if(buffer != null) {
+				ByteBufferFactory.getInstance().release(buffer);
+			}
+
 			logger.log(Level.SEVERE, "receiverAddress = {0}", receiverAddress);
 
 			throw new IllegalArgumentException("Null argument");
@@ -292,34 +402,47 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		}
 
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
-		SocketChannel sock = nioHandler.sendBytes(this.messageProcessor.getIpAddress(), receiverAddress, receiverPort,
-				"TCP", message, retry, this);
-
-		if(sock != socketChannel && sock != null) {
-			if(socketChannel != null) {
-				logger.log(Level.WARNING, "[2] Old socket different than new socket on channel {0} {1} {2}",
-						new Object[] {key, socketChannel, sock});
-				logger.log(Level.WARNING, "Old socket local ip address {0}",
-						socketChannel.socket().getLocalSocketAddress());
-				logger.log(Level.WARNING, "Old socket remote ip address {0}",
-						socketChannel.socket().getRemoteSocketAddress());
-				logger.log(Level.WARNING, "New socket local ip address {0}", sock.socket().getLocalSocketAddress());
-				logger.log(Level.WARNING, "New socket remote ip address {0}", sock.socket().getRemoteSocketAddress());
-
-				// we can call socketChannel.close() directly but we better use the inherited method
-				close(false, false);
+		SocketChannel sock;
+		if(buffer != null) {
+			sock = nioHandler.sendBuffer(this.messageProcessor.getIpAddress(), receiverAddress, receiverPort, "TCP",
+					buffer, retry, this);
+		} else {
+			sock = nioHandler.sendBytes(this.messageProcessor.getIpAddress(), receiverAddress, receiverPort, "TCP",
+					message, retry, this);
+		}
 
-				socketChannel = sock;
-				putMessageChannel(socketChannel, this);
+		// the selector thread may answer the handshake of a new socket before this sender returns, the channel takes
+		// the socket once
+		synchronized(this) {
+			if(sock != socketChannel && sock != null) {
+				if(socketChannel != null) {
+					logger.log(Level.WARNING, "[2] Old socket different than new socket on channel {0} {1} {2}",
+							new Object[] {key, socketChannel, sock});
+					logger.log(Level.WARNING, "Old socket local ip address {0}",
+							socketChannel.socket().getLocalSocketAddress());
+					logger.log(Level.WARNING, "Old socket remote ip address {0}",
+							socketChannel.socket().getRemoteSocketAddress());
+					logger.log(Level.WARNING, "New socket local ip address {0}",
+							sock.socket().getLocalSocketAddress());
+					logger.log(Level.WARNING, "New socket remote ip address {0}",
+							sock.socket().getRemoteSocketAddress());
+
+					// we can call socketChannel.close() directly but we better use the inherited method
+					close(false, false);
+
+					socketChannel = sock;
+					putMessageChannel(socketChannel, this);
+
+					onNewSocket(message);
+				}
 
-				onNewSocket(message);
-			}
+				if(socketChannel != null) {
+					logger.log(Level.WARNING, "There was no exception for the retry mechanism so we keep going {0}",
+							key);
+				}
 
-			if(socketChannel != null) {
-				logger.log(Level.WARNING, "There was no exception for the retry mechanism so we keep going {0}", key);
+				socketChannel = sock;
 			}
-
-			socketChannel = sock;
 		}
 	}
 
@@ -394,6 +517,26 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		return false;
 	}
 
+	@Override
+	public boolean isWritable() {
+		return socketChannel == null || ((NioTcpMessageProcessor) messageProcessor).isWritable(socketChannel);
+	}
+
+	/**
+	 * @return true if a message over the pending bytes budget can be refused and the connection kept, the next
+	 *         messages don't depend on its bytes
+	 */
+	protected boolean canRefuseMessage() {
+		return !isSecure();
+	}
+
+	/**
+	 * @return true if the connections opened by the stack are kept alive with CRLF pings
+	 */
+	protected boolean isKeepAlivePingSupported() {
+		return true;
+	}
+
 	public long getLastActivityTimestamp() {
 		return lastActivityTimeStamp;
 	}
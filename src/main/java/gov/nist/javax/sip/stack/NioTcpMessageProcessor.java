@@ -1,10 +1,16 @@
 package gov.nist.javax.sip.stack;
 
 import gov.nist.core.HostPort;
+import gov.nist.javax.sip.IOExceptionEventExt;
+import gov.nist.javax.sip.IOExceptionEventExt.Reason;
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.message.SIPRequest;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
@@ -15,11 +21,15 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +51,23 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 
 	// Data send over a socket is cached here before hand, the selector thread will
 	// take it later for physical send
-	private final Map<SocketChannel, List<ByteBuffer>> pendingData = new WeakHashMap<>();
+	private final Map<SocketChannel, PendingWrites> pendingData = new WeakHashMap<>();
+
+	// guarded by pendingData, the queued buffers of the ByteBufferFactory pool, released once written or dropped
+	private final Set<ByteBuffer> pooledData = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	// the connections to the destinations when several are kept per destination, by channel key
+	private final ConcurrentHashMap<String, ConnectionGroup> connectionGroups = new ConcurrentHashMap<>();
+
+	/**
+	 * The data queued for a socket, counted against the budgets of the stack.
+	 */
+	private static final class PendingWrites {
+		final List<ByteBuffer> buffers = new ArrayList<>();
+		long bytes;
+		// over the high-water mark, until written down to the low-water mark
+		boolean congested;
+	}
 
 	public static class ChangeRequest {
 		public static final int REGISTER = 1;
@@ -87,30 +113,269 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 		return initiateConnection(address, timeout);
 	}
 
-	public void send(SocketChannel socket, byte[] data) {
-		logger.log(Level.FINEST, "Sending data {0} bytes on socket {1}", new Object[] {data.length, socket});
+	/**
+	 * Starts connecting a socket without blocking, the connect is finished by the selector thread once the socket is
+	 * registered for OP_CONNECT, see {@link #register(SocketChannel, int)}.
+	 *
+	 * @return the socket, connected already if the connect completed at once
+	 */
+	SocketChannel connect(InetSocketAddress address) throws IOException {
+		SocketChannel socketChannel = SocketChannel.open();
+
+		logger.log(Level.FINEST, "Init non blocking connect {0}", address);
+
+		try {
+			socketChannel.configureBlocking(false);
+			socketChannel.connect(address);
+		} catch(IOException ex) {
+			socketChannel.close();
 
+			throw ex;
+		}
+
+		return socketChannel;
+	}
+
+	/**
+	 * Has the selector thread register a socket with the interest set.
+	 */
+	void register(SocketChannel socketChannel, int ops) {
 		synchronized (this.changeRequests) {
-			this.changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
+			changeRequests.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, ops));
+		}
 
+		selector.wakeup();
+	}
+
+	public void send(SocketChannel socket, byte[] data) throws IOException {
+		logger.log(Level.FINEST, "Sending data {0} bytes on socket {1}", new Object[] {data.length, socket});
+
+		send(socket, ByteBuffer.wrap(data), false);
+	}
+
+	/**
+	 * Queues a buffer for the selector thread to write without copying it. A buffer acquired from the
+	 * {@link ByteBufferFactory} is given back to the pool once written, or once dropped with its connection.
+	 *
+	 * @throws IOException if the buffer would go over the bytes the connection or the stack may queue, it is not
+	 *                     queued
+	 */
+	public void send(SocketChannel socket, ByteBuffer data, boolean pooled) throws IOException {
+		logger.log(Level.FINEST, "Sending buffer {0} bytes on socket {1}", new Object[] {data.remaining(), socket});
+
+		int length = data.remaining();
+		boolean overConnectionBudget = false;
+		boolean overStackBudget = false;
+		boolean congested = false;
+
+		synchronized (this.changeRequests) {
 			synchronized (this.pendingData) {
-				List<ByteBuffer> queue = this.pendingData.get(socket);
+				PendingWrites pending = this.pendingData.get(socket);
+				long queued = pending != null ? pending.bytes : 0;
 
-				if(queue == null) {
-					queue = new ArrayList<>();
+				overConnectionBudget = isOverConnectionBudget(queued, length);
+				overStackBudget = isOverStackBudget(sipStack.getPendingBytes(), length);
 
-					this.pendingData.put(socket, queue);
-				}
+				if(!overConnectionBudget && !overStackBudget) {
+					this.changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
+
+					if(pending == null) {
+						pending = new PendingWrites();
 
-				queue.add(ByteBuffer.wrap(data));
+						this.pendingData.put(socket, pending);
+					}
+
+					pending.buffers.add(data);
+					pending.bytes += length;
+					sipStack.pendingBytes.addAndGet(length);
+
+					if(pooled) {
+						pooledData.add(data);
+					}
+
+					long highWaterMark = sipStack.getConnectionWriteHighWaterMark();
+					if(highWaterMark > 0 && !pending.congested && pending.bytes > highWaterMark) {
+						pending.congested = true;
+						congested = true;
+					}
+				}
 			}
 		}
 
+		if(overConnectionBudget || overStackBudget) {
+			refuse(socket, data, pooled, overConnectionBudget);
+		}
+
+		if(congested) {
+			writabilityChanged(socket, false);
+		}
+
 		logger.log(Level.FINEST, "Waking up selector thread");
 
 		this.selector.wakeup();
 	}
 
+	/**
+	 * The first message of a connection goes whatever its size.
+	 */
+	private boolean isOverConnectionBudget(long queued, int length) {
+		long maxConnectionPendingBytes = sipStack.getMaxConnectionPendingBytes();
+
+		return maxConnectionPendingBytes > 0 && queued > 0 && queued + length > maxConnectionPendingBytes;
+	}
+
+	private boolean isOverStackBudget(long stackQueued, int length) {
+		long maxPendingBytes = sipStack.getMaxPendingBytes();
+
+		return maxPendingBytes > 0 && stackQueued > 0 && stackQueued + length > maxPendingBytes;
+	}
+
+	/**
+	 * Charges a message waiting for its connection to be established to the bytes the stack may queue, it is refused
+	 * as by send over the budget of the connection or of the stack. Called with the lock of the NIOHandler queue
+	 * held, the data queued for the sockets is not locked.
+	 *
+	 * @param queued the bytes already waiting for the connection
+	 * @throws IOException if the message is refused, a pooled buffer is given back
+	 */
+	void chargeWaiting(String key, long queued, int length, ByteBuffer buffer) throws IOException {
+		boolean overConnectionBudget = isOverConnectionBudget(queued, length);
+
+		if(!overConnectionBudget) {
+			while(true) {
+				long stackQueued = sipStack.getPendingBytes();
+				if(isOverStackBudget(stackQueued, length)) {
+					break;
+				}
+
+				if(sipStack.pendingBytes.compareAndSet(stackQueued, stackQueued + length)) {
+					return;
+				}
+			}
+		}
+
+		ByteBufferFactory.getInstance().release(buffer);
+
+		String reason = (overConnectionBudget ? "the connection" : "the stack") + " has too many bytes queued";
+
+		logger.log(Level.WARNING, "Not queuing {0} bytes until {1} is connected, {2}",
+				new Object[] {length, key, reason});
+
+		throw new IOException("Message not sent, " + reason);
+	}
+
+	/**
+	 * Gives back the charge of the messages which no longer wait for their connection, written or dropped.
+	 */
+	void releaseWaiting(long length) {
+		if(length > 0) {
+			sipStack.pendingBytes.addAndGet(-length);
+		}
+	}
+
+	/**
+	 * Refuses a buffer over the budget of its connection or of the stack, the connection is closed if its policy says
+	 * so or if its next bytes can't be sent without the refused ones.
+	 */
+	private void refuse(SocketChannel socket, ByteBuffer data, boolean pooled, boolean overConnectionBudget)
+			throws IOException {
+		int length = data.remaining();
+
+		if(pooled) {
+			ByteBufferFactory.getInstance().release(data);
+		}
+
+		NioTcpMessageChannel messageChannel = NioTcpMessageChannel.getMessageChannel(socket);
+		boolean close = (overConnectionBudget && sipStack.isCloseCongestedConnections())
+				|| (messageChannel != null && !messageChannel.canRefuseMessage());
+
+		String reason = (overConnectionBudget ? "the connection" : "the stack") + " has too many bytes queued";
+
+		logger.log(Level.WARNING, "Not sending {0} bytes on {1}, {2}{3}", new Object[] {length, socket,
+				reason, close ? ", closing the connection" : ""});
+
+		if(close) {
+			if(messageChannel != null) {
+				messageChannel.close();
+			} else {
+				socket.close();
+			}
+
+			dropPendingData(socket);
+		}
+
+		throw new IOException("Message not sent, " + reason);
+	}
+
+	/**
+	 * @return false if the connection of the socket is over its high-water mark, or the stack over its budget
+	 */
+	boolean isWritable(SocketChannel socket) {
+		long maxPendingBytes = sipStack.getMaxPendingBytes();
+		if(maxPendingBytes > 0 && sipStack.getPendingBytes() >= maxPendingBytes) {
+			return false;
+		}
+
+		synchronized(pendingData) {
+			PendingWrites pending = pendingData.get(socket);
+
+			return pending == null || !pending.congested;
+		}
+	}
+
+	/**
+	 * Reports a connection going over its high-water mark or back to its low-water mark to the listener, through the
+	 * event queue since it is called from the selector thread.
+	 */
+	private void writabilityChanged(SocketChannel socket, boolean writable) {
+		Socket peer = socket.socket();
+
+		logger.log(Level.FINE, "Connection to {0} {1}", new Object[] {peer.getRemoteSocketAddress(),
+				writable ? "writable again" : "congested"});
+
+		ListeningPointImpl listeningPoint = getListeningPoint();
+		SipProviderImpl provider = listeningPoint != null ? listeningPoint.getProvider() : null;
+
+		if(provider == null || peer.getInetAddress() == null) {
+			return;
+		}
+
+		provider.queueEvent(new IOExceptionEventExt(provider,
+				writable ? Reason.ConnectionWritable : Reason.ConnectionCongested, getIpAddress().getHostAddress(),
+						getPort(), peer.getInetAddress().getHostAddress(), peer.getPort(), getTransport()));
+	}
+
+	/**
+	 * @return the number of bytes queued for a socket and not written yet
+	 */
+	long getPendingBytes(SocketChannel socket) {
+		synchronized(pendingData) {
+			PendingWrites pending = pendingData.get(socket);
+
+			return pending != null ? pending.bytes : 0;
+		}
+	}
+
+	/**
+	 * Forgets the data queued for a socket, giving the pooled buffers back.
+	 */
+	void dropPendingData(SocketChannel socket) {
+		synchronized(pendingData) {
+			PendingWrites pending = pendingData.remove(socket);
+			if(pending == null) {
+				return;
+			}
+
+			sipStack.pendingBytes.addAndGet(-pending.bytes);
+
+			for(ByteBuffer buffer : pending.buffers) {
+				if(pooledData.remove(buffer)) {
+					ByteBufferFactory.getInstance().release(buffer);
+				}
+			}
+		}
+	}
+
 	// This will be our selector thread, only one thread for all sockets. If you
 	// want to understand the overall design decisions read this first
 	// http://rox-xmlrpc.sourceforge.net/niotut/
@@ -134,12 +399,12 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 				selectionKey.cancel();
 
 				// https://java.net/jira/browse/JSIP-475 remove the socket from the hash map
-				pendingData.remove(socketChannel);
+				dropPendingData(socketChannel);
 
 				return;
 			}
 
-			nioTcpMessageChannel.readChannel();
+			nioTcpMessageChannel.readChannel(socketChannel);
 		}
 
 		public void write(SelectionKey selectionKey) {
@@ -157,13 +422,22 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 				selectionKey.cancel();
 
 				// https://java.net/jira/browse/JSIP-475 remove the socket from the hash map
-				pendingData.remove(socketChannel);
+				dropPendingData(socketChannel);
 
 				return;
 			}
 
+			boolean writable = false;
+
 			synchronized(pendingData) {
-				List<ByteBuffer> queue = pendingData.get(socketChannel);
+				PendingWrites pending = pendingData.get(socketChannel);
+				if(pending == null) {
+					selectionKey.interestOps(SelectionKey.OP_READ);
+
+					return;
+				}
+
+				List<ByteBuffer> queue = pending.buffers;
 
 				logger.log(Level.FINEST, "Queued items for writing {0}", queue.size());
 
@@ -171,7 +445,10 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 					ByteBuffer buf = queue.get(0);
 
 					try {
-						socketChannel.write(buf);
+						int written = socketChannel.write(buf);
+
+						pending.bytes -= written;
+						sipStack.pendingBytes.addAndGet(-written);
 					} catch(IOException e) {
 						logger.log(Level.FINEST, "Dead socketChannel {0} socket {1}:{2}, error message: {3}",
 								new Object[] {socketChannel, socketChannel.socket().getInetAddress(),
@@ -184,9 +461,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 						 * a TCP RST ? https://java.net/jira/browse/JSIP-475 in the meanwhile remove the data from
 						 * the hash map
 						 */
-						queue.remove(0);
-
-						pendingData.remove(socketChannel);
+						dropPendingData(socketChannel);
 
 						return;
 					}
@@ -202,6 +477,10 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 					}
 
 					queue.remove(0);
+
+					if(pooledData.remove(buf)) {
+						ByteBufferFactory.getInstance().release(buf);
+					}
 				}
 
 				if(queue.isEmpty()) {
@@ -210,17 +489,42 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 
 					selectionKey.interestOps(SelectionKey.OP_READ);
 				}
+
+				if(pending.congested && pending.bytes <= sipStack.getConnectionWriteHighWaterMark() / 2) {
+					pending.congested = false;
+					writable = true;
+				}
+			}
+
+			if(writable) {
+				writabilityChanged(socketChannel, true);
 			}
 
 			logger.log(Level.FINEST, "Done writing");
 		}
 
+		/**
+		 * Finishes the connect of a socket started by the NIOHandler, the key is cancelled if the connect fails so
+		 * that the selector does not spin on it.
+		 */
 		public void connect(SelectionKey selectionKey) throws IOException {
-			/*
-			 * Ignoring the advice from http://rox-xmlrpc.sourceforge.net/niotut/ because it leads
-			 * to spinning on my machine
-			 */
-			throw new IOException("We should use blocking connect, we must never reach here");
+			SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+
+			try {
+				if(!socketChannel.finishConnect()) {
+					return;
+				}
+			} catch(IOException ex) {
+				selectionKey.cancel();
+
+				nioHandler.connectFailed(socketChannel, ex);
+
+				return;
+			}
+
+			selectionKey.interestOps(SelectionKey.OP_READ);
+
+			nioHandler.connectFinished(socketChannel);
 		}
 
 		public void accept(SelectionKey selectionKey) throws IOException {
@@ -259,6 +563,11 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 							case ChangeRequest.CHANGEOPS:
 								SelectionKey key = change.socket.keyFor(selector);
 								if(key == null || !key.isValid()) {
+									// queued after the socket closed, the data would never be written nor dropped
+									if(!change.socket.isOpen()) {
+										dropPendingData(change.socket);
+									}
+
 									continue;
 								}
 
@@ -396,6 +705,169 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 		}
 	}
 
+	/**
+	 * Picks the connection of a request when several connections are kept per destination, see ConnectionGroup. The
+	 * first connection is the channel of the destination, a request which can't use the others goes over it.
+	 */
+	@Override
+	public MessageChannel createMessageChannel(SIPRequest request, HostPort targetHostPort) throws IOException {
+		int connections = sipStack.getConnectionsPerDestination();
+		if(connections <= 1 || request == null || request.getMethod() == null || request.getCallId() == null
+				|| !isConnectionPooling()) {
+			return createMessageChannel(targetHostPort);
+		}
+
+		String key = MessageChannel.getKey(targetHostPort, transport);
+
+		// keyed as the channels, by address, so that the group is found when they are removed
+		String groupKey = MessageChannel.getKey(targetHostPort.getInetAddress(), targetHostPort.getPort(), transport);
+		ConnectionGroup group = connectionGroups.computeIfAbsent(groupKey, k -> new ConnectionGroup(connections));
+
+		if(!ConnectionGroup.isCallIdAffine(request)) {
+			return createLeastQueuedChannel(group, key, groupKey, targetHostPort);
+		}
+
+		int slot = group.slotOf(request.getCallId().getCallId());
+		IOException failure = null;
+
+		// the Call-IDs of a slot which can't connect go to the next one
+		for(int i = 0; i < group.size(); i++) {
+			int candidate = (slot + i) % group.size();
+			if(group.isDown(candidate)) {
+				continue;
+			}
+
+			try {
+				return createSlotChannel(group, groupKey, candidate, targetHostPort);
+			} catch(IOException ex) {
+				logger.log(Level.FINEST, "Connection {0} to {1} failed: {2}",
+						new Object[] {candidate, key, ex.getMessage()});
+
+				group.down(candidate);
+				failure = ex;
+			}
+		}
+
+		if(failure != null) {
+			dropUnconnected(groupKey);
+
+			throw failure;
+		}
+
+		// every slot is down, try the one of the Call-ID again
+		return createSlotChannel(group, groupKey, slot, targetHostPort);
+	}
+
+	/**
+	 * @return the connection with the fewest bytes queued, a connection is opened when all those open have some
+	 */
+	private MessageChannel createLeastQueuedChannel(ConnectionGroup group, String key, String groupKey,
+			HostPort targetHostPort) throws IOException {
+		MessageChannel best = null;
+		long bestPending = Long.MAX_VALUE;
+		int unopened = -1;
+
+		for(int i = 0; i < group.size(); i++) {
+			NioTcpMessageChannel channel;
+			if(i == 0) {
+				MessageChannel cached = messageChannels.get(key);
+				channel = cached instanceof NioTcpMessageChannel && ConnectionGroup.isHealthy(
+						(NioTcpMessageChannel) cached) ? (NioTcpMessageChannel) cached : null;
+			} else {
+				channel = group.get(i);
+			}
+
+			if(channel == null) {
+				if(unopened < 0 && !group.isDown(i)) {
+					unopened = i;
+				}
+
+				continue;
+			}
+
+			long pending = getPendingBytes(channel.getSocketChannel());
+			if(pending < bestPending) {
+				best = channel;
+				bestPending = pending;
+			}
+		}
+
+		if(unopened >= 0 && (best == null || bestPending > 0)) {
+			try {
+				return createSlotChannel(group, groupKey, unopened, targetHostPort);
+			} catch(IOException ex) {
+				logger.log(Level.FINEST, "Connection {0} to {1} failed: {2}",
+						new Object[] {unopened, key, ex.getMessage()});
+
+				group.down(unopened);
+
+				if(best == null) {
+					dropUnconnected(groupKey);
+
+					throw ex;
+				}
+			}
+		}
+
+		return best != null ? best : createMessageChannel(targetHostPort);
+	}
+
+	private MessageChannel createSlotChannel(ConnectionGroup group, String groupKey, int slot,
+			HostPort targetHostPort) throws IOException {
+		if(slot == 0) {
+			return createMessageChannel(targetHostPort);
+		}
+
+		NioTcpMessageChannel channel;
+
+		synchronized(group.lockOf(slot)) {
+			channel = group.get(slot);
+			if(channel != null) {
+				return channel;
+			}
+
+			InetAddress address = targetHostPort.getInetAddress();
+			int port = targetHostPort.getPort();
+
+			channel = createPooledMessageChannel(address, port, NIOHandler.makeKey(address, port) + "#" + slot);
+			group.set(slot, channel);
+
+			logger.log(Level.FINEST, "Connection {0} to {1} opened: {2}",
+					new Object[] {slot, targetHostPort, channel});
+
+			selector.wakeup();
+		}
+
+		// the group may have been dropped since it was looked up, put it back unless replaced
+		connectionGroups.putIfAbsent(groupKey, group);
+
+		return channel;
+	}
+
+	/**
+	 * Drops the group of a destination which can't be connected to, so that it is not kept for an unreachable one.
+	 */
+	private void dropUnconnected(String groupKey) {
+		connectionGroups.computeIfPresent(groupKey, (key, group) -> group.hasChannel() ? group : null);
+	}
+
+	/**
+	 * @return true if several connections can be kept per destination
+	 */
+	protected boolean isConnectionPooling() {
+		return true;
+	}
+
+	/**
+	 * Creates an extra connection to a destination.
+	 *
+	 * @param socketKey the key of its socket in the NIOHandler cache
+	 */
+	protected NioTcpMessageChannel createPooledMessageChannel(InetAddress targetHost, int port, String socketKey)
+			throws IOException {
+		return new NioTcpMessageChannel(targetHost, port, sipStack, this, socketKey);
+	}
+
 	@Override
 	public MessageChannel createMessageChannel(InetAddress targetHost, int port) throws IOException {
 		String key = MessageChannel.getKey(targetHost, port, transport);
@@ -423,7 +895,11 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 				new Object[] {Thread.currentThread(), ((NioTcpMessageChannel) messageChannel).getSocketChannel(),
 						getIpAddress(), getPort(), getTransport()});
 
-		pendingData.remove(((NioTcpMessageChannel) messageChannel).getSocketChannel());
+		dropPendingData(((NioTcpMessageChannel) messageChannel).getSocketChannel());
+
+		// the groups are dropped with their last channel
+		connectionGroups.computeIfPresent(messageChannel.getKey(),
+				(key, group) -> group.remove(messageChannel) ? null : group);
 
 		super.remove(messageChannel);
 	}
@@ -460,6 +936,12 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 
 	@Override
 	public void stop() {
+		for(ConnectionGroup group : connectionGroups.values()) {
+			group.clear();
+		}
+
+		connectionGroups.clear();
+
 		try {
 			nioHandler.stop();
 
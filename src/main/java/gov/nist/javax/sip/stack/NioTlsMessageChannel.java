@@ -11,7 +11,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,7 +57,13 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 	public void init(boolean clientMode) throws Exception {
 		SSLContext ctx = clientMode ? ((NioTlsMessageProcessor) messageProcessor).sslClientCtx
 				: ((NioTlsMessageProcessor) messageProcessor).sslServerCtx;
-		sslStateMachine = new SSLStateMachine(ctx.createSSLEngine(), this);
+		if(sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
+
+		// the peer lets the client session cache resume the session of an earlier connection
+		sslStateMachine = new SSLStateMachine(clientMode && peerAddress != null
+				? ctx.createSSLEngine(peerAddress.getHostAddress(), peerPort) : ctx.createSSLEngine(), this);
 
 		sslStateMachine.sslEngine.setUseClientMode(clientMode);
 		String auth = ((SipStackImpl) super.sipStack).getConfigurationProperties()
@@ -89,17 +94,17 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 
 	@Override
 	public ByteBuffer prepareEncryptedDataBuffer() {
-		return ByteBufferFactory.getInstance().allocateDirect(netBufferMax);
+		return ByteBufferFactory.getInstance().acquire(netBufferMax);
 	}
 
 	@Override
 	public ByteBuffer prepareAppDataBuffer() {
-		return ByteBufferFactory.getInstance().allocateDirect(appBufferMax);
+		return ByteBufferFactory.getInstance().acquire(appBufferMax);
 	}
 
 	@Override
 	public ByteBuffer prepareAppDataBuffer(int capacity) {
-		return ByteBufferFactory.getInstance().allocateDirect(capacity);
+		return ByteBufferFactory.getInstance().acquire(capacity);
 	}
 
 	public static class SSLReconnectedException extends IOException {
@@ -112,13 +117,17 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 
 		ByteBuffer b = ByteBuffer.wrap(msg);
 		try {
-			sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-					new MessageSendCallback() {
-						@Override
-						public void doSend(byte[] bytes) throws IOException {
-							NioTlsMessageChannel.super.sendMessage(bytes, isClient);
-						}
-					});
+			sslStateMachine.wrap(b, new MessageSendCallback() {
+				@Override
+				public void doSend(byte[] bytes) throws IOException {
+					NioTlsMessageChannel.super.sendMessage(bytes, isClient);
+				}
+
+				@Override
+				public void doSend(ByteBuffer buffer) throws IOException {
+					NioTlsMessageChannel.super.sendMessage(buffer, isClient);
+				}
+			});
 		} catch(Exception e) {
 			throw new IOException("Can't send message", e);
 		}
@@ -135,7 +144,7 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
 
 		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
-			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
 		}
 
 		super.sendMessage(msg, this.peerAddress, this.peerPort, true);
@@ -148,15 +157,17 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 
 		ByteBuffer b = ByteBuffer.wrap(message);
 		try {
-			sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-					new MessageSendCallback() {
-
-						@Override
-						public void doSend(byte[] bytes) throws IOException {
-							NioTlsMessageChannel.super.sendMessage(bytes, receiverAddress, receiverPort, retry);
-
-						}
-					});
+			sslStateMachine.wrap(b, new MessageSendCallback() {
+				@Override
+				public void doSend(byte[] bytes) throws IOException {
+					NioTlsMessageChannel.super.sendMessage(bytes, receiverAddress, receiverPort, retry);
+				}
+
+				@Override
+				public void doSend(ByteBuffer buffer) throws IOException {
+					NioTlsMessageChannel.super.sendTCPMessage(buffer, receiverAddress, receiverPort, retry);
+				}
+			});
 		} catch(IOException e) {
 			throw e;
 		}
@@ -173,7 +184,16 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 
 	public NioTlsMessageChannel(InetAddress inetAddress, int port, SIPTransactionStack sipStack,
 			NioTcpMessageProcessor nioTcpMessageProcessor) throws IOException {
-		super(inetAddress, port, sipStack, nioTcpMessageProcessor);
+		this(inetAddress, port, sipStack, nioTcpMessageProcessor, null);
+	}
+
+	/**
+	 * @param socketKey the key of the socket in the NIOHandler cache, null for the connection shared by all the
+	 *                  channels to the destination
+	 */
+	public NioTlsMessageChannel(InetAddress inetAddress, int port, SIPTransactionStack sipStack,
+			NioTcpMessageProcessor nioTcpMessageProcessor, String socketKey) throws IOException {
+		super(inetAddress, port, sipStack, nioTcpMessageProcessor, socketKey);
 
 		try {
 			init(true);
@@ -203,26 +223,16 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 	@Override
 	public void onNewSocket(byte[] message) {
 		super.onNewSocket(message);
-		try {
-			String last = null;
-
-			if(null != message) {
-				last = new String(message, StandardCharsets.UTF_8);
-			}
 
-			logger.log(Level.FINEST, "New socket for: {0} last message: {1}", new Object[] {this, last});
-
-			init(true);
-			createBuffers();
-
-			sendMessage(message, false);
-		} catch(Exception e) {
-			logger.log(Level.SEVERE, "Cant reinit", e);
-		}
+		// the engine was reset once the previous socket closed, see checkSocketState, the records of its handshake
+		// are queued on the new socket and the message follows once the session is established
+		logger.log(Level.FINEST, "New socket for: {0}", this);
 	}
 
 	private void checkSocketState() throws IOException {
-		if(socketChannel != null && (!socketChannel.isConnected() || !socketChannel.isOpen())) {
+		// a socket still connecting keeps the session its handshake records are queued in
+		if(socketChannel != null && (!socketChannel.isOpen()
+				|| (!socketChannel.isConnected() && !socketChannel.isConnectionPending()))) {
 			logger.log(Level.FINEST, "Need to reset SSL engine for socket {0}", socketChannel);
 
 			try {
@@ -233,6 +243,16 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 		}
 	}
 
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+
+		// a channel taking a new socket keeps the session negotiated on it
+		if(removeSocket && sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
+	}
+
 	@Override
 	public boolean isSecure() {
 		return true;
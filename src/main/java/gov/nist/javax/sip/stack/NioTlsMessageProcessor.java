@@ -92,6 +92,12 @@ public class NioTlsMessageProcessor extends NioTcpMessageProcessor {
 		}
 	}
 
+	@Override
+	protected NioTcpMessageChannel createPooledMessageChannel(InetAddress targetHost, int port, String socketKey)
+			throws IOException {
+		return new NioTlsMessageChannel(targetHost, port, sipStack, this, socketKey);
+	}
+
 	@Override
 	public MessageChannel createMessageChannel(InetAddress targetHost, int port) throws IOException {
 		String key = MessageChannel.getKey(targetHost, port, "TLS");
@@ -138,5 +144,7 @@ public class NioTlsMessageProcessor extends NioTcpMessageProcessor {
 			sslClientCtx.init(sipStack.securityManagerProvider.getKeyManagers(true),
 					sipStack.securityManagerProvider.getTrustManagers(true), null);
 		}
+
+		sipStack.configureClientSessionCache(sslClientCtx);
 	}
 }
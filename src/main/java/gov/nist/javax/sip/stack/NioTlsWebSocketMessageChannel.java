@@ -13,7 +13,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,7 +56,13 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 	public void init(boolean clientMode) throws Exception {
 		SSLContext ctx = clientMode ? ((NioTlsWebSocketMessageProcessor) messageProcessor).sslClientCtx
 				: ((NioTlsWebSocketMessageProcessor) messageProcessor).sslServerCtx;
-		sslStateMachine = new SSLStateMachine(ctx.createSSLEngine(), this);
+		if(sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
+
+		// the peer lets the client session cache resume the session of an earlier connection
+		sslStateMachine = new SSLStateMachine(clientMode && peerAddress != null
+				? ctx.createSSLEngine(peerAddress.getHostAddress(), peerPort) : ctx.createSSLEngine(), this);
 
 		sslStateMachine.sslEngine.setUseClientMode(clientMode);
 
@@ -73,17 +78,17 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 
 	@Override
 	public ByteBuffer prepareEncryptedDataBuffer() {
-		return ByteBufferFactory.getInstance().allocateDirect(netBufferMax);
+		return ByteBufferFactory.getInstance().acquire(netBufferMax);
 	}
 
 	@Override
 	public ByteBuffer prepareAppDataBuffer() {
-		return ByteBufferFactory.getInstance().allocateDirect(appBufferMax);
+		return ByteBufferFactory.getInstance().acquire(appBufferMax);
 	}
 
 	@Override
 	public ByteBuffer prepareAppDataBuffer(int capacity) {
-		return ByteBufferFactory.getInstance().allocateDirect(capacity);
+		return ByteBufferFactory.getInstance().acquire(capacity);
 	}
 
 	public static class SSLReconnectedException extends IOException {
@@ -94,16 +99,18 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 	protected void sendMessage(final byte[] msg, final boolean isClient) throws IOException {
 		checkSocketState();
 
-		ByteBuffer b = ByteBuffer.wrap(NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(msg, client));
 		try {
-			sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-					new MessageSendCallback() {
+			sendFrame(msg, frame -> sslStateMachine.wrap(ByteBuffer.wrap(frame), new MessageSendCallback() {
+				@Override
+				public void doSend(byte[] bytes) throws IOException {
+					NioTlsWebSocketMessageChannel.super.sendNonWebSocketMessage(bytes, isClient);
+				}
 
-						@Override
-						public void doSend(byte[] bytes) throws IOException {
-							NioTlsWebSocketMessageChannel.super.sendNonWebSocketMessage(bytes, isClient);
-						}
-					});
+				@Override
+				public void doSend(ByteBuffer buffer) throws IOException {
+					NioTlsWebSocketMessageChannel.super.sendMessage(buffer, isClient);
+				}
+			}));
 		} catch (Exception e) {
 			throw new IOException("Can't send message", e);
 		}
@@ -119,7 +126,7 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
 
 		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
-			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
 		}
 
 		super.sendNonWebSocketMessage(msg, false);
@@ -130,16 +137,17 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 			throws IOException {
 		checkSocketState();
 
-		ByteBuffer b = ByteBuffer.wrap(NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(message, client));
+		sendFrame(message, frame -> sslStateMachine.wrap(ByteBuffer.wrap(frame), new MessageSendCallback() {
+			@Override
+			public void doSend(byte[] bytes) throws IOException {
+				NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, receiverAddress, receiverPort, retry);
+			}
 
-		sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-				new MessageSendCallback() {
-					@Override
-					public void doSend(byte[] bytes) throws IOException {
-						NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, receiverAddress, receiverPort, retry);
-					}
-				}
-		);
+			@Override
+			public void doSend(ByteBuffer buffer) throws IOException {
+				NioTlsWebSocketMessageChannel.super.sendTCPMessage(buffer, receiverAddress, receiverPort, retry);
+			}
+		}));
 	}
 
 	@Override
@@ -155,32 +163,35 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 			final String http = this.httpMethod + " " + this.httpLocation + " HTTP/1.1\r\n" + "Host: "
 					+ this.httpHostHeader + "\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
 					+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" + "Sec-WebSocket-Protocol: sip\r\n"
-					+ "Sec-WebSocket-Version: 13\r\n\r\n";
+					+ "Sec-WebSocket-Version: 13\r\n" + createHttpExtensionsHeader() + "\r\n";
 
 			ByteBuffer b = ByteBuffer.wrap(http.getBytes());
 
-			sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-					new MessageSendCallback() {
+			sslStateMachine.wrap(b, new MessageSendCallback() {
+				@Override
+				public void doSend(byte[] bytes) throws IOException {
+					NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, receiverAddress, receiverPort,
+							false);
+
+					byte[] wsM = sipMessage.toString().getBytes();
+					byte[] wsMessage = NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(wsM, client);
+					ByteBuffer b = ByteBuffer.wrap(wsMessage);
+
+					sslStateMachine.wrap(b, new MessageSendCallback() {
 						@Override
 						public void doSend(byte[] bytes) throws IOException {
-							NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, receiverAddress, receiverPort,
-									false);
-
-							byte[] wsM = sipMessage.toString().getBytes();
-							byte[] wsMessage = NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(wsM, client);
-							ByteBuffer b = ByteBuffer.wrap(wsMessage);
-
-							sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-									new MessageSendCallback() {
-										@Override
-										public void doSend(byte[] bytes) throws IOException {
-											NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, receiverAddress,
-													receiverPort, false);
-										}
-									}
-							);
+							NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, receiverAddress,
+									receiverPort, false);
+						}
+
+						@Override
+						public void doSend(ByteBuffer buffer) throws IOException {
+							NioTlsWebSocketMessageChannel.super.sendTCPMessage(buffer, receiverAddress,
+									receiverPort, false);
 						}
 					});
+				}
+			});
 		} else {
 			// https://java.net/jira/browse/JSIP-497 fix transport for WSS
 			sendMessage(sipMessage.encodeAsBytes(this.getTransport()), this.client);
@@ -191,14 +202,12 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 			throws IOException {
 		checkSocketState();
 
-		sslStateMachine.wrap(ByteBuffer.wrap(message), ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-				new MessageSendCallback() {
-					@Override
-					public void doSend(byte[] bytes) throws IOException {
-						NioTlsWebSocketMessageChannel.super.sendMessage(bytes, receiverAddress, receiverPort, retry);
-					}
-				}
-		);
+		sslStateMachine.wrap(ByteBuffer.wrap(message), new MessageSendCallback() {
+			@Override
+			public void doSend(byte[] bytes) throws IOException {
+				NioTlsWebSocketMessageChannel.super.sendMessage(bytes, receiverAddress, receiverPort, retry);
+			}
+		});
 	}
 
 	private void createBuffers() {
@@ -242,19 +251,22 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
 
 		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
-			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
 		}
 
 		checkSocketState();
 
-		sslStateMachine.wrap(ByteBuffer.wrap(msg), ByteBufferFactory.getInstance().allocateDirect(netBufferMax),
-				new MessageSendCallback() {
-					@Override
-					public void doSend(byte[] bytes) throws IOException {
-						NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, peerAddress, peerPort, isClient);
-					}
-				}
-		);
+		sslStateMachine.wrap(ByteBuffer.wrap(msg), new MessageSendCallback() {
+			@Override
+			public void doSend(byte[] bytes) throws IOException {
+				NioTlsWebSocketMessageChannel.super.sendTCPMessage(bytes, peerAddress, peerPort, isClient);
+			}
+
+			@Override
+			public void doSend(ByteBuffer buffer) throws IOException {
+				NioTlsWebSocketMessageChannel.super.sendTCPMessage(buffer, peerAddress, peerPort, isClient);
+			}
+		});
 	}
 
 	@Override
@@ -265,22 +277,16 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 	@Override
 	public void onNewSocket(byte[] message) {
 		super.onNewSocket(message);
-		try {
-			if(message != null) {
-				logger.log(Level.FINEST, "New socket for: {0} last message: {1}", new Object[] {this,
-						new String(message, StandardCharsets.UTF_8)});
-			}
 
-			init(true);
-			createBuffers();
-			sendMessage(message, false);
-		} catch(Exception e) {
-			logger.log(Level.SEVERE, "Cant reinit", e);
-		}
+		// the engine was reset once the previous socket closed, see checkSocketState, the records of its handshake
+		// are queued on the new socket and the message follows once the session is established
+		logger.log(Level.FINEST, "New socket for: {0}", this);
 	}
 
 	private void checkSocketState() throws IOException {
-		if(socketChannel != null && (!socketChannel.isConnected() || !socketChannel.isOpen())) {
+		// a socket still connecting keeps the session its handshake records are queued in
+		if(socketChannel != null && (!socketChannel.isOpen()
+				|| (!socketChannel.isConnected() && !socketChannel.isConnectionPending()))) {
 			logger.log(Level.FINEST, "Need to reset SSL engine for socket: {0}", socketChannel);
 
 			try {
@@ -291,6 +297,16 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 		}
 	}
 
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+
+		// a channel taking a new socket keeps the session negotiated on it
+		if(removeSocket && sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
+	}
+
 	@Override
 	public boolean isSecure() {
 		return true;
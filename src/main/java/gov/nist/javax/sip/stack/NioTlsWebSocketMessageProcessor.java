@@ -147,5 +147,7 @@ public class NioTlsWebSocketMessageProcessor extends NioWebSocketMessageProcesso
 			sslClientCtx.init(sipStack.securityManagerProvider.getKeyManagers(true),
 					sipStack.securityManagerProvider.getTrustManagers(true), null);
 		}
+
+		sipStack.configureClientSessionCache(sslClientCtx);
 	}
 }
@@ -2,8 +2,8 @@ package gov.nist.javax.sip.stack;
 
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.stack.SSLStateMachine.MessageSendCallback;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
@@ -23,6 +23,9 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 
 	private WebSocketCodec codec = new WebSocketCodec(true, true);
 
+	// the permessage-deflate extension negotiated in the HTTP upgrade, if any
+	protected volatile PerMessageDeflate perMessageDeflate;
+
 	volatile boolean readingHttp = true;
 	String httpInput = "";
 	boolean client;
@@ -61,7 +64,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
 
 		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
-			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
 		}
 
 		sendWrapped(msg, this.peerAddress, this.peerPort, isClient);
@@ -75,15 +78,22 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
 
 		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
-			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
+			nioHandler.putSocket(getSocketKey(), this.socketChannel);
 		}
 
 		super.sendTCPMessage(msg, this.peerAddress, this.peerPort, isClient);
 	}
 
 	public static byte[] wrapBufferIntoWebSocketFrame(byte[] buffer, boolean client) {
+		return wrapBufferIntoWebSocketFrame(buffer, client, false);
+	}
+
+	/**
+	 * @param compressed true to set RSV1, the buffer is compressed with permessage-deflate
+	 */
+	public static byte[] wrapBufferIntoWebSocketFrame(byte[] buffer, boolean client, boolean compressed) {
 		try {
-			return WebSocketCodec.encode(buffer, 0, true, client);
+			return WebSocketCodec.encode(buffer, compressed ? 4 : 0, true, client);
 		} catch(Exception e) {
 			logger.log(Level.SEVERE, e.getMessage(), e);
 		}
@@ -93,9 +103,63 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 
 	public void sendWrapped(byte message[], InetAddress receiverAddress, int receiverPort, boolean retry)
 			throws IOException {
-		message = wrapBufferIntoWebSocketFrame(message, client);
+		sendFrame(message, frame -> super.sendTCPMessage(frame, receiverAddress, receiverPort, retry));
+	}
+
+	/**
+	 * Frames a message, compressed if permessage-deflate is negotiated and the message is large enough, and hands the
+	 * frame over. With context takeover the peer must get the frames in the order they are compressed, so a
+	 * compressed frame is handed over with the extension locked.
+	 */
+	protected void sendFrame(byte[] message, MessageSendCallback sender) throws IOException {
+		PerMessageDeflate deflate = perMessageDeflate;
+
+		if(deflate == null || !deflate.shouldCompress(message)) {
+			sender.doSend(wrapBufferIntoWebSocketFrame(message, client));
+
+			return;
+		}
+
+		synchronized(deflate) {
+			byte[] compressed;
+			try {
+				compressed = deflate.compress(message);
+			} catch(IllegalStateException e) {
+				throw new IOException("Can't compress the message", e);
+			}
 
-		super.sendTCPMessage(message, receiverAddress, receiverPort, retry);
+			logger.log(Level.FINEST, "Compressed {0} bytes to {1}", new Object[] {message.length, compressed.length});
+
+			sender.doSend(wrapBufferIntoWebSocketFrame(compressed, client, true));
+		}
+	}
+
+	/**
+	 * @return the Sec-WebSocket-Extensions header line of the HTTP upgrade request, empty if no extension is offered
+	 */
+	protected String createHttpExtensionsHeader() {
+		if(!sipStack.isWebSocketDeflate()) {
+			return "";
+		}
+
+		return WebSocketHttpHandshake.EXTENSIONS_HEADER + ": "
+				+ PerMessageDeflate.createOffer(sipStack.isWebSocketDeflateNoContextTakeover()) + "\r\n";
+	}
+
+	protected void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		logger.log(Level.FINEST, "permessage-deflate negotiated: {0}",
+				perMessageDeflate == null ? null : perMessageDeflate.getResponse());
+
+		this.perMessageDeflate = perMessageDeflate;
+
+		codec.setPerMessageDeflate(perMessageDeflate);
+	}
+
+	/**
+	 * @return the permessage-deflate extension negotiated by the connection, null if none
+	 */
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
 	}
 
 	@Override
@@ -121,7 +185,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 				String http = this.httpMethod + " " + this.httpLocation + " HTTP/1.1\r\n" + "Host: "
 						+ this.httpHostHeader + "\r\n" + "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
 						+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" + "Sec-WebSocket-Protocol: sip\r\n"
-						+ "Sec-WebSocket-Version: 13\r\n\r\n";
+						+ "Sec-WebSocket-Version: 13\r\n" + createHttpExtensionsHeader() + "\r\n";
 
 				super.sendTCPMessage(http.getBytes(), receiverAddress, receiverPort, false);
 
@@ -162,11 +226,21 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 			if (s.endsWith("\r\n") || s.endsWith("\n")) {
 				readingHttp = false;
 				if(!httpInput.startsWith("HTTP")) {
-					byte[] response = new WebSocketHttpHandshake().createHttpResponse(s);
+					WebSocketHttpHandshake handshake = new WebSocketHttpHandshake(sipStack);
+					byte[] response = handshake.createHttpResponse(s);
+
+					// the client sends no compressed frame before it gets the response
+					setPerMessageDeflate(handshake.getPerMessageDeflate());
 
 					sendNonWebSocketMessage(response, false);
 				} else {
 					logger.log(Level.FINEST, "HTTP Response. We are websocket client.\n{0}", httpInput);
+
+					if(sipStack.isWebSocketDeflate()) {
+						setPerMessageDeflate(PerMessageDeflate.accepted(getHttpHeader(httpInput,
+								WebSocketHttpHandshake.EXTENSIONS_HEADER), sipStack.getWebSocketDeflateThreshold(),
+								sipStack.getMaxMessageSize()));
+					}
 				}
 			}
 
@@ -174,12 +248,12 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 				addBytes(remaining);
 			}
 		} else if(!readingHttp) {
-			ByteArrayInputStream bios = new ByteArrayInputStream(bytes);
+			ByteBuffer src = ByteBuffer.wrap(bytes);
 
-			byte[] decodedMsg = null;
+			ByteBuffer decodedMsg = null;
 
 			do {
-				decodedMsg = codec.decode(bios);
+				decodedMsg = codec.decode(src);
 
 				// Chrome waits for us to close the socket when it sends a close opcode
 				// https://code.google.com/p/chromium/issues/detail?id=388243#c15
@@ -198,18 +272,58 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel {
 					return;
 				}
 
-				nioParser.addBytes(decodedMsg);
+				// the payload is a slice of the bytes received or of the codec buffer
+				nioParser.addBytes(decodedMsg.array(), decodedMsg.arrayOffset() + decodedMsg.position(),
+						decodedMsg.remaining());
 
-				logger.log(Level.FINEST, "Nio websocket bytes were added: {0}", decodedMsg.length);
+				logger.log(Level.FINEST, "Nio websocket bytes were added: {0}", decodedMsg.remaining());
 			} while(true);
 		}
 	}
 
+	private static String getHttpHeader(String http, String name) {
+		for(String line : http.split("\r\n")) {
+			int colon = line.indexOf(':');
+
+			if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+
+		PerMessageDeflate deflate = perMessageDeflate;
+		if(deflate != null) {
+			deflate.release();
+		}
+	}
+
 	@Override
 	public String getTransport() {
 		return this.messageProcessor.transport;
 	}
 
+	/**
+	 * The compressed messages are compressed against the previous ones.
+	 */
+	@Override
+	protected boolean canRefuseMessage() {
+		return super.canRefuseMessage() && perMessageDeflate == null;
+	}
+
+	/**
+	 * A CRLF would go in a data frame, RFC 7118 leaves the keep-alive to the WebSocket ping frames.
+	 */
+	@Override
+	protected boolean isKeepAlivePingSupported() {
+		return false;
+	}
+
 	@Override
 	public void onNewSocket(byte[] message) {
 		super.onNewSocket(message);
@@ -51,6 +51,14 @@ public class NioWebSocketMessageProcessor extends NioTcpMessageProcessor {
 		return retval;
 	}
 
+	/**
+	 * A WebSocket connection is upgraded by its first request, a single connection is kept per destination.
+	 */
+	@Override
+	protected boolean isConnectionPooling() {
+		return false;
+	}
+
 	@Override
 	public MessageChannel createMessageChannel(InetAddress targetHost, int port) throws IOException {
 		String key = MessageChannel.getKey(targetHost, port, transport);
@@ -0,0 +1,583 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.DialogState;
+
+import gov.nist.javax.sip.SipStackImpl;
+
+/**
+ * A {@link DialogStore} moving the dormant dialogs out of the Java heap. A dialog is dormant when it has been
+ * confirmed and acknowledged, has no transaction or timer in progress and has not been used for the idle time. A
+ * periodic sweep encodes the dormant dialogs with the {@link DialogCodec} into direct memory segments and drops them
+ * from the table, the next lookup of a dormant dialog, typically for its next in-dialog request, puts it back.
+ *
+ * The table only keeps a weak reference to a dormant dialog: while the application or the stack still holds the
+ * dialog the same instance is put back, otherwise the dialog is decoded into a new instance. A dormant dialog which is
+ * used through a reference held elsewhere (a request created or sent, a transaction added, application data set) is
+ * put back in use immediately. Dialogs carrying application data or anything else the codec does not keep never
+ * become dormant. Listing the dialogs, see {@link #values()}, leaves the dormant dialogs off heap.
+ *
+ * Configured with
+ * <ul>
+ * <li>gov.nist.javax.sip.OFF_HEAP_DIALOG_IDLE_TIME, the time in milliseconds after which an unused dialog becomes
+ * dormant, default 60000</li>
+ * <li>gov.nist.javax.sip.OFF_HEAP_DIALOG_SEGMENT_SIZE, the size in bytes of the direct memory segments, default 1
+ * MB. A segment is released once all its dialogs have been put back or removed.</li>
+ * </ul>
+ */
+public class OffHeapDialogStore extends HeapDialogStore {
+	private static final Logger logger = Logger.getLogger(OffHeapDialogStore.class.getName());
+
+	private static final long DEFAULT_IDLE_TIME = 60000;
+	private static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+	private final DialogCodec codec = new DialogCodec();
+
+	// dialog id -> location of the encoded dormant dialog
+	private final ConcurrentHashMap<String, Dormant> dormantDialogs = new ConcurrentHashMap<>();
+
+	// guarded by this
+	private final List<Segment> segments = new ArrayList<>();
+	private Segment currentSegment;
+
+	private SipStackImpl sipStack;
+	private DialogStateIndex stateIndex;
+	private long idleTime = DEFAULT_IDLE_TIME;
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private SIPStackTimerTask sweeper;
+
+	private final AtomicLong passivatedDialogs = new AtomicLong();
+	private final AtomicLong decodedDialogs = new AtomicLong();
+
+	private final Collection<SIPDialog> dormantView = new DormantView();
+
+	/**
+	 * A direct memory segment the dialogs are appended to.
+	 */
+	private static final class Segment {
+		final ByteBuffer buffer;
+		int liveRecords;
+
+		Segment(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	/**
+	 * Where a dormant dialog is encoded, and the dialog itself as long as it is referenced elsewhere.
+	 */
+	private static final class Dormant {
+		final Segment segment;
+		final int offset;
+		final int length;
+		final String callId;
+		// guarded by the store, replaced by the instance decoded to list the dialog
+		WeakReference<SIPDialog> dialog;
+
+		Dormant(Segment segment, int offset, int length, SIPDialog dialog) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.callId = getCallId(dialog);
+			this.dialog = new WeakReference<>(dialog);
+		}
+	}
+
+	/**
+	 * A weakly consistent view of the dormant dialogs, listed without being put back in use.
+	 */
+	private final class DormantView extends AbstractCollection<SIPDialog> {
+		@Override
+		public Iterator<SIPDialog> iterator() {
+			final Iterator<String> dialogIds = dormantDialogs.keySet().iterator();
+
+			return new Iterator<SIPDialog>() {
+				private SIPDialog next;
+
+				@Override
+				public boolean hasNext() {
+					while(next == null && dialogIds.hasNext()) {
+						next = getDormant(dialogIds.next());
+					}
+
+					return next != null;
+				}
+
+				@Override
+				public SIPDialog next() {
+					if(!hasNext()) {
+						throw new NoSuchElementException();
+					}
+
+					SIPDialog dialog = next;
+					next = null;
+
+					return dialog;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return dormantDialogs.size();
+		}
+	}
+
+	private class Sweeper extends SIPStackTimerTask {
+		@Override
+		public void runTask() {
+			sweep();
+		}
+	}
+
+	@Override
+	public void init(SIPTransactionStack sipStack) {
+		if(!(sipStack instanceof SipStackImpl)) {
+			throw new IllegalArgumentException("The off heap dialog store needs a SipStackImpl");
+		}
+
+		this.sipStack = (SipStackImpl) sipStack;
+		this.stateIndex = sipStack.dialogStateIndex;
+
+		Properties properties = this.sipStack.getConfigurationProperties();
+		if(properties != null) {
+			try {
+				idleTime = Math.max(1, Long.parseLong(properties.getProperty(
+						"gov.nist.javax.sip.OFF_HEAP_DIALOG_IDLE_TIME", String.valueOf(DEFAULT_IDLE_TIME))));
+				segmentSize = Integer.parseInt(properties.getProperty(
+						"gov.nist.javax.sip.OFF_HEAP_DIALOG_SEGMENT_SIZE", String.valueOf(DEFAULT_SEGMENT_SIZE)));
+			} catch(NumberFormatException ex) {
+				logger.log(Level.SEVERE, "Bad configuration value for the off heap dialog store", ex);
+			}
+		}
+
+		if(sipStack.getTimer() != null) {
+			sweeper = new Sweeper();
+
+			long period = Math.max(1000, idleTime / 2);
+			sipStack.getTimer().scheduleWithFixedDelay(sweeper, period, period);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if(sweeper != null && sipStack.getTimer() != null) {
+			sipStack.getTimer().cancel(sweeper);
+		}
+
+		clear();
+	}
+
+	/**
+	 * A dialog put back in use is put in the table before its dormant entry is removed, a lookup missing both looks
+	 * at the table again.
+	 */
+	@Override
+	public SIPDialog get(String dialogId) {
+		SIPDialog dialog = dialogs.get(dialogId);
+		if(dialog != null) {
+			return dialog;
+		}
+
+		if(!dormantDialogs.containsKey(dialogId)) {
+			return dialogs.get(dialogId);
+		}
+
+		return rehydrate(dialogId);
+	}
+
+	@Override
+	public SIPDialog putIfAbsent(String dialogId, SIPDialog dialog) {
+		SIPDialog existing = get(dialogId);
+
+		return existing != null ? existing : super.putIfAbsent(dialogId, dialog);
+	}
+
+	/**
+	 * A dormant dialog is dropped without being decoded, unless a removal listener needs it and it is gone.
+	 */
+	@Override
+	public SIPDialog remove(String dialogId) {
+		SIPDialog dialog = super.remove(dialogId);
+		if(dialog != null || !dormantDialogs.containsKey(dialogId)) {
+			return dialog;
+		}
+
+		synchronized(this) {
+			Dormant dormant = dormantDialogs.get(dialogId);
+			if(dormant == null) {
+				// put back in use meanwhile
+				return super.remove(dialogId);
+			}
+
+			return drop(dialogId, dormant);
+		}
+	}
+
+	@Override
+	public boolean remove(String dialogId, SIPDialog dialog) {
+		if(super.remove(dialogId, dialog)) {
+			return true;
+		}
+
+		if(!dormantDialogs.containsKey(dialogId)) {
+			return false;
+		}
+
+		synchronized(this) {
+			Dormant dormant = dormantDialogs.get(dialogId);
+			if(dormant == null) {
+				return super.remove(dialogId, dialog);
+			}
+
+			if(dormant.dialog.get() != dialog) {
+				return false;
+			}
+
+			drop(dialogId, dormant);
+
+			return true;
+		}
+	}
+
+	/**
+	 * The dormant dialogs are listed without being put back in use: the instance still referenced elsewhere, or else
+	 * a decoded instance which stays dormant until it is used.
+	 */
+	@Override
+	public Collection<SIPDialog> values() {
+		Collection<SIPDialog> result = super.values();
+		result.addAll(dormantView);
+
+		return result;
+	}
+
+	@Override
+	public void forEachDialogId(BiConsumer<String, String> visitor) {
+		super.forEachDialogId(visitor);
+
+		for(Map.Entry<String, Dormant> entry : dormantDialogs.entrySet()) {
+			visitor.accept(entry.getKey(), entry.getValue().callId);
+		}
+	}
+
+	/**
+	 * The dormant dialogs are all confirmed, they are only listed when the confirmed dialogs are requested.
+	 */
+	@Override
+	public Collection<SIPDialog> getByState(DialogState state) {
+		if(DialogState.CONFIRMED.equals(state)) {
+			return super.getByState(state);
+		}
+
+		List<SIPDialog> result = new ArrayList<>();
+		for(SIPDialog dialog : dialogs.values()) {
+			if(state.equals(dialog.getState())) {
+				result.add(dialog);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public int size() {
+		return dialogs.size() + dormantDialogs.size();
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+
+		synchronized(this) {
+			for(Dormant dormant : dormantDialogs.values()) {
+				SIPDialog dialog = dormant.dialog.get();
+				if(dialog != null) {
+					dialog.setDormantIn(null);
+				}
+			}
+
+			stateIndex.dormantDropped(dormantDialogs.size());
+
+			dormantDialogs.clear();
+			segments.clear();
+			currentSegment = null;
+		}
+	}
+
+	/**
+	 * @return a read-only weakly consistent view of the dormant dialogs, iterating it decodes the dialogs which are
+	 *         no longer referenced elsewhere
+	 */
+	Collection<SIPDialog> getDormantView() {
+		return dormantView;
+	}
+
+	/**
+	 * @return the number of dialogs currently kept off heap
+	 */
+	public int getDormantDialogCount() {
+		return dormantDialogs.size();
+	}
+
+	/**
+	 * @return the direct memory currently allocated, in bytes
+	 */
+	public synchronized long getOffHeapSize() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	/**
+	 * @return the number of times a dialog has been moved off heap
+	 */
+	public long getPassivatedDialogs() {
+		return passivatedDialogs.get();
+	}
+
+	/**
+	 * @return the number of dormant dialogs decoded into a new instance because the previous one was gone
+	 */
+	public long getDecodedDialogs() {
+		return decodedDialogs.get();
+	}
+
+	/**
+	 * Moves the dialogs unused for the idle time off heap.
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(record);
+
+		for(SIPDialog dialog : dialogs.values()) {
+			long lastActivityTime = dialog.getLastActivityTime();
+			if(now - lastActivityTime < idleTime || !dialog.isQuiescent()) {
+				continue;
+			}
+
+			record.reset();
+
+			try {
+				codec.encode(dialog, out);
+			} catch(IOException | RuntimeException ex) {
+				logger.log(Level.FINEST, "could not encode dialog " + dialog.getDialogId(), ex);
+
+				continue;
+			}
+
+			passivate(dialog, lastActivityTime, record.toByteArray());
+		}
+	}
+
+	/**
+	 * Puts a dormant dialog used through a reference held outside the store back in use.
+	 */
+	synchronized void wake(SIPDialog dialog) {
+		if(dialog.getDormantIn() != this) {
+			return;
+		}
+
+		dialog.setDormantIn(null);
+
+		String dialogId = dialog.getDialogId();
+
+		Dormant dormant = dormantDialogs.get(dialogId);
+		if(dormant != null && dormant.dialog.get() == dialog) {
+			// published before the dormant entry goes, see get
+			dialogs.putIfAbsent(dialogId, dialog);
+
+			stateIndex.awake(dialog);
+
+			dormantDialogs.remove(dialogId);
+			release(dormant);
+		}
+	}
+
+	private void passivate(SIPDialog dialog, long lastActivityTime, byte[] bytes) {
+		String dialogId = dialog.getDialogId();
+
+		synchronized(this) {
+			if(dialogs.get(dialogId) != dialog || bytes.length > segmentSize) {
+				return;
+			}
+
+			if(currentSegment == null || currentSegment.buffer.remaining() < bytes.length) {
+				currentSegment = new Segment(segmentSize);
+				segments.add(currentSegment);
+			}
+
+			Dormant dormant = new Dormant(currentSegment, currentSegment.buffer.position(), bytes.length, dialog);
+			currentSegment.buffer.put(bytes);
+			currentSegment.liveRecords++;
+
+			dormantDialogs.put(dialogId, dormant);
+			dialog.setDormantIn(this);
+
+			// a concurrent use either sees the dialog dormant and wakes it, or is seen here
+			if(dialog.getLastActivityTime() != lastActivityTime) {
+				dialog.setDormantIn(null);
+				dormantDialogs.remove(dialogId);
+				release(dormant);
+
+				return;
+			}
+
+			dialogs.remove(dialogId, dialog);
+
+			stateIndex.dormant(dialog);
+		}
+
+		// the merge table would keep the dialog on heap, merged requests are only expected around its creation
+		String mergeId = dialog.getMergeId();
+		if(mergeId != null && sipStack.serverDialogMergeTestTable.get(mergeId) == dialog) {
+			sipStack.removeMergeDialog(mergeId);
+		}
+
+		passivatedDialogs.incrementAndGet();
+
+		logger.log(Level.FINEST, "dialog {0} moved off heap", dialogId);
+	}
+
+	/*
+	 * Returns a dormant dialog without putting it back in use, a use of the returned instance wakes it.
+	 */
+	private synchronized SIPDialog getDormant(String dialogId) {
+		Dormant dormant = dormantDialogs.get(dialogId);
+		if(dormant == null) {
+			// put back in use meanwhile
+			return dialogs.get(dialogId);
+		}
+
+		SIPDialog dialog = dormant.dialog.get();
+		if(dialog == null) {
+			dialog = decode(dialogId, dormant);
+			if(dialog != null) {
+				dialog.setDormantIn(this);
+				dormant.dialog = new WeakReference<>(dialog);
+			}
+		}
+
+		return dialog;
+	}
+
+	private synchronized SIPDialog rehydrate(String dialogId) {
+		SIPDialog dialog = dialogs.get(dialogId);
+		if(dialog != null) {
+			return dialog;
+		}
+
+		Dormant dormant = dormantDialogs.get(dialogId);
+		if(dormant == null) {
+			return null;
+		}
+
+		dialog = dormant.dialog.get();
+		if(dialog == null) {
+			dialog = decode(dialogId, dormant);
+		}
+
+		if(dialog == null) {
+			dormantDialogs.remove(dialogId);
+			release(dormant);
+
+			stateIndex.dormantDropped(1);
+			unindexCallId(dialogId, dormant.callId);
+
+			logger.log(Level.WARNING, "dormant dialog {0} lost", dialogId);
+
+			return null;
+		}
+
+		// published before the dormant entry goes, see get
+		dialog.setDormantIn(null);
+		dialogs.put(dialogId, dialog);
+
+		stateIndex.awake(dialog);
+
+		dormantDialogs.remove(dialogId);
+		release(dormant);
+
+		return dialog;
+	}
+
+	/*
+	 * Called with the lock held, drops a dormant dialog without decoding it unless the removal listener needs it.
+	 */
+	private SIPDialog drop(String dialogId, Dormant dormant) {
+		SIPDialog dialog = dormant.dialog.get();
+		if(dialog == null && hasRemovalListener()) {
+			dialog = decode(dialogId, dormant);
+		}
+
+		dormantDialogs.remove(dialogId);
+		release(dormant);
+
+		stateIndex.dormantDropped(1);
+
+		if(dialog == null) {
+			unindexCallId(dialogId, dormant.callId);
+
+			return null;
+		}
+
+		dialog.setDormantIn(null);
+		removed(dialogId, dialog);
+
+		return dialog;
+	}
+
+	private SIPDialog decode(String dialogId, Dormant dormant) {
+		byte[] bytes = new byte[dormant.length];
+
+		ByteBuffer view = dormant.segment.buffer.duplicate();
+		view.position(dormant.offset);
+		view.get(bytes);
+
+		decodedDialogs.incrementAndGet();
+
+		try {
+			return codec.decode(new DataInputStream(new ByteArrayInputStream(bytes)), DialogCodec.VERSION, sipStack);
+		} catch(IOException ex) {
+			logger.log(Level.SEVERE, "could not decode dormant dialog " + dialogId, ex);
+
+			return null;
+		}
+	}
+
+	/*
+	 * Called with the lock held.
+	 */
+	private void release(Dormant dormant) {
+		Segment segment = dormant.segment;
+		if(--segment.liveRecords > 0) {
+			return;
+		}
+
+		if(segment == currentSegment) {
+			segment.buffer.clear();
+		} else {
+			segments.remove(segment);
+		}
+	}
+}
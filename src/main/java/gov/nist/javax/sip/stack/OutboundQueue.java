@@ -0,0 +1,213 @@
+package gov.nist.javax.sip.stack;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outbound side of the connection of a NIOHandler to one destination: the state of the connection and the
+ * messages waiting for it.
+ *
+ * A sender finding the connection established hands its message to the selector thread and returns. The first sender
+ * finding no connection starts connecting a socket, it leaves its message here as the senders arriving meanwhile and
+ * returns, the selector thread finishes the connect and the messages are written once connected or reported as
+ * failed. The methods are called with the lock of the queue held, which is never held across a write: the selector
+ * thread takes it to forget the socket of a connection it closes while holding the data queued for the sockets.
+ */
+final class OutboundQueue {
+	enum State {
+		// no connection, the next sender establishes one
+		IDLE,
+		// the socket is being connected by the selector thread
+		CONNECTING,
+		CONNECTED,
+		// the last connection attempt failed, the next sender tries again
+		FAILED
+	}
+
+	/**
+	 * A message waiting for the connection, the buffer is one of the {@link ByteBufferFactory} pool.
+	 */
+	static final class Pending {
+		final byte[] bytes;
+		final ByteBuffer buffer;
+		final NioTcpMessageChannel channel;
+		final InetAddress address;
+		final int port;
+		// false for a response, sent to the address advertised in its headers if the connection fails
+		final boolean isClient;
+		// the client transaction which sent the message, told if it is not sent
+		final SIPClientTransaction transaction;
+		// the socket of the channel when the message was queued, TLS records are only written in their session
+		final SocketChannel socket;
+
+		Pending(byte[] bytes, ByteBuffer buffer, NioTcpMessageChannel channel, InetAddress address, int port,
+				boolean isClient, SIPClientTransaction transaction) {
+			this(bytes, buffer, channel, address, port, isClient, transaction, channel.getSocketChannel());
+		}
+
+		Pending(byte[] bytes, ByteBuffer buffer, NioTcpMessageChannel channel, InetAddress address, int port,
+				boolean isClient, SIPClientTransaction transaction, SocketChannel socket) {
+			this.bytes = bytes;
+			this.buffer = buffer;
+			this.channel = channel;
+			this.address = address;
+			this.port = port;
+			this.isClient = isClient;
+			this.transaction = transaction;
+			this.socket = socket;
+		}
+
+		int length() {
+			if(bytes != null) {
+				return bytes.length;
+			}
+
+			return buffer != null ? buffer.remaining() : 0;
+		}
+	}
+
+	private final String key;
+
+	private State state = State.IDLE;
+	private SocketChannel socket;
+	private List<Pending> waiting = Collections.emptyList();
+	// the bytes of the messages waiting, charged to the bytes the stack may queue until drained
+	private long waitingBytes;
+
+	// dropped from the NIOHandler, a sender holding it must take the new one
+	private boolean removed;
+
+	OutboundQueue(String key) {
+		this.key = key;
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the socket of the established connection, null if there is none, a closed socket is forgotten
+	 */
+	SocketChannel getSocket() {
+		if(state == State.CONNECTED && (!socket.isConnected() || !socket.isOpen())) {
+			disconnected();
+		}
+
+		return state == State.CONNECTED ? socket : null;
+	}
+
+	/**
+	 * @return the socket being connected, null if there is none
+	 */
+	SocketChannel getConnectingSocket() {
+		return state == State.CONNECTING ? socket : null;
+	}
+
+	/**
+	 * Unlike {@link #getSocket()} a closed socket is matched, it is not forgotten.
+	 *
+	 * @return true if the socket is the one of the connection of the queue
+	 */
+	boolean isSocket(SocketChannel channel) {
+		return socket != null && socket == channel;
+	}
+
+	/**
+	 * The caller started connecting the socket.
+	 */
+	void connecting(SocketChannel socket) {
+		this.socket = socket;
+		this.state = State.CONNECTING;
+	}
+
+	long getWaitingBytes() {
+		return waitingBytes;
+	}
+
+	void add(Pending pending) {
+		if(waiting.isEmpty()) {
+			waiting = new ArrayList<>();
+		}
+
+		waiting.add(pending);
+		waitingBytes += pending.length();
+	}
+
+	/**
+	 * The connection is up, the messages waiting for it are written before it is established for the other senders.
+	 *
+	 * @return the messages waiting for the connection, to be written on it in order
+	 * @see #established()
+	 */
+	List<Pending> connected(SocketChannel socket) {
+		this.socket = socket;
+
+		return drain();
+	}
+
+	/**
+	 * Establishes the connection once the messages waiting for it are written.
+	 *
+	 * @return the messages queued while writing the previous ones, empty once the connection is established
+	 */
+	List<Pending> established() {
+		if(waiting.isEmpty()) {
+			// forgotten meanwhile if the connection closed
+			state = socket != null ? State.CONNECTED : State.IDLE;
+		}
+
+		return drain();
+	}
+
+	/**
+	 * @return the messages waiting for the connection, to be reported as failed
+	 */
+	List<Pending> failed() {
+		socket = null;
+		state = State.FAILED;
+
+		return drain();
+	}
+
+	/**
+	 * Forgets the socket of the connection, a connection being established is kept until it is connected or failed.
+	 */
+	void disconnected() {
+		if(state != State.CONNECTING) {
+			socket = null;
+			state = State.IDLE;
+		}
+	}
+
+	/**
+	 * @return true if the queue can be dropped, it has no connection in progress and no message waiting
+	 */
+	boolean isIdle() {
+		return socket == null && state != State.CONNECTING && waiting.isEmpty();
+	}
+
+	void remove() {
+		removed = true;
+	}
+
+	boolean isRemoved() {
+		return removed;
+	}
+
+	private List<Pending> drain() {
+		List<Pending> drained = waiting;
+
+		waiting = Collections.emptyList();
+		waitingBytes = 0;
+
+		return drained;
+	}
+}
@@ -0,0 +1,368 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension of RFC 7692 negotiated by a WebSocket connection: the data messages at least as
+ * large as the threshold are sent compressed, the frames received with RSV1 set are inflated.
+ *
+ * With context takeover the connection keeps its Deflater or Inflater for its lifetime so that a message is
+ * compressed against the previous ones, which is what makes the small SIP messages shrink. Without it the Deflater or
+ * Inflater is taken from a shared pool for each message. The compressor window is always 15 bits, an offer limiting
+ * the server window is declined.
+ */
+public class PerMessageDeflate {
+	private static final Logger logger = Logger.getLogger(PerMessageDeflate.class.getName());
+
+	public static final String EXTENSION_NAME = "permessage-deflate";
+
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+	private static final int MAX_WINDOW_BITS = 15;
+
+	// the empty stored block ending a sync flush, removed from the messages sent and put back to inflate
+	private static final byte[] TAIL = new byte[] {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+	private static final int MAX_POOLED = 64;
+
+	private static final ConcurrentLinkedDeque<Deflater> deflaters = new ConcurrentLinkedDeque<>();
+	private static final ConcurrentLinkedDeque<Inflater> inflaters = new ConcurrentLinkedDeque<>();
+	private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+	private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+	private final boolean client;
+	private final boolean serverNoContextTakeover;
+	private final boolean clientNoContextTakeover;
+	private final int threshold;
+	private final int maxMessageSize;
+
+	// kept for the lifetime of the connection with context takeover
+	private Deflater deflater;
+	private Inflater inflater;
+
+	private final Object inflateLock = new Object();
+	private boolean released;
+
+	/**
+	 * @param client true on the side which opened the connection
+	 * @param threshold the size from which the messages are compressed
+	 * @param maxMessageSize the largest size of an inflated message, 0 for no limit
+	 */
+	PerMessageDeflate(boolean client, boolean serverNoContextTakeover, boolean clientNoContextTakeover, int threshold,
+			int maxMessageSize) {
+		this.client = client;
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.threshold = threshold;
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Accepts the first offer of a Sec-WebSocket-Extensions request header which can be honored.
+	 *
+	 * @param noContextTakeover true to ask for both sides to compress each message on its own
+	 * @return the negotiated extension, null if no offer is acceptable
+	 */
+	public static PerMessageDeflate accept(String offers, boolean noContextTakeover, int threshold,
+			int maxMessageSize) {
+		if(offers == null) {
+			return null;
+		}
+
+		for(String offer : offers.split(",")) {
+			String[] parts = offer.split(";");
+			if(!EXTENSION_NAME.equalsIgnoreCase(parts[0].trim())) {
+				continue;
+			}
+
+			boolean serverNoContextTakeover = noContextTakeover;
+			boolean acceptable = true;
+
+			for(int i = 1; i < parts.length && acceptable; i++) {
+				String[] param = parts[i].split("=", 2);
+				String name = param[0].trim().toLowerCase();
+				String value = param.length > 1 ? param[1].trim().replace("\"", "") : null;
+
+				if(SERVER_NO_CONTEXT_TAKEOVER.equals(name)) {
+					serverNoContextTakeover = true;
+				} else if(SERVER_MAX_WINDOW_BITS.equals(name)) {
+					// the Deflater window can't be made smaller
+					acceptable = String.valueOf(MAX_WINDOW_BITS).equals(value);
+				} else if(!CLIENT_NO_CONTEXT_TAKEOVER.equals(name) && !CLIENT_MAX_WINDOW_BITS.equals(name)) {
+					acceptable = false;
+				}
+			}
+
+			if(acceptable) {
+				return new PerMessageDeflate(false, serverNoContextTakeover, noContextTakeover, threshold,
+						maxMessageSize);
+			}
+
+			logger.log(Level.FINEST, "Declining the offer: {0}", offer);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the Sec-WebSocket-Extensions request header value offering the extension
+	 */
+	public static String createOffer(boolean noContextTakeover) {
+		return noContextTakeover ? EXTENSION_NAME + "; " + CLIENT_NO_CONTEXT_TAKEOVER : EXTENSION_NAME;
+	}
+
+	/**
+	 * Reads the Sec-WebSocket-Extensions response header to an offer.
+	 *
+	 * @return the negotiated extension, null if the server declined it
+	 * @throws IllegalStateException if the response is not valid for the offer, the connection must be failed
+	 */
+	public static PerMessageDeflate accepted(String response, int threshold, int maxMessageSize) {
+		if(response == null || response.trim().isEmpty()) {
+			return null;
+		}
+
+		String[] parts = response.split(";");
+		if(response.indexOf(',') >= 0 || !EXTENSION_NAME.equalsIgnoreCase(parts[0].trim())) {
+			throw new IllegalStateException("Extension not offered: " + response);
+		}
+
+		boolean serverNoContextTakeover = false;
+		boolean clientNoContextTakeover = false;
+
+		for(int i = 1; i < parts.length; i++) {
+			String name = parts[i].split("=", 2)[0].trim().toLowerCase();
+
+			if(SERVER_NO_CONTEXT_TAKEOVER.equals(name)) {
+				serverNoContextTakeover = true;
+			} else if(CLIENT_NO_CONTEXT_TAKEOVER.equals(name)) {
+				clientNoContextTakeover = true;
+			} else if(!SERVER_MAX_WINDOW_BITS.equals(name)) {
+				// client_max_window_bits is not offered
+				throw new IllegalStateException("Unexpected extension parameter: " + response);
+			}
+		}
+
+		return new PerMessageDeflate(true, serverNoContextTakeover, clientNoContextTakeover, threshold,
+				maxMessageSize);
+	}
+
+	/**
+	 * @return the Sec-WebSocket-Extensions response header value of the server
+	 */
+	public String getResponse() {
+		StringBuilder response = new StringBuilder(EXTENSION_NAME);
+
+		if(serverNoContextTakeover) {
+			response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		}
+
+		if(clientNoContextTakeover) {
+			response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		}
+
+		return response.toString();
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return true if the message is to be sent compressed
+	 */
+	public boolean shouldCompress(byte[] msg) {
+		return msg.length >= threshold;
+	}
+
+	/**
+	 * Compresses a message. With context takeover the messages must be sent in the order they are compressed, the
+	 * caller holds the lock of this object until the frame is queued.
+	 */
+	public synchronized byte[] compress(byte[] msg) {
+		if(released) {
+			throw new IllegalStateException("The connection is closed");
+		}
+
+		boolean takeover = !(client ? clientNoContextTakeover : serverNoContextTakeover);
+
+		Deflater deflater = takeover ? this.deflater : null;
+		if(deflater == null) {
+			deflater = acquireDeflater();
+
+			if(takeover) {
+				this.deflater = deflater;
+			}
+		}
+
+		try {
+			deflater.setInput(msg);
+
+			byte[] out = new byte[msg.length / 2 + 64];
+			int length = 0;
+
+			while(true) {
+				length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+
+				// a full output means there is more to flush
+				if(length < out.length) {
+					break;
+				}
+
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+
+			return Arrays.copyOf(out, length - TAIL.length);
+		} finally {
+			if(!takeover) {
+				releaseDeflater(deflater);
+			}
+		}
+	}
+
+	/**
+	 * Inflates the payload of a compressed message.
+	 *
+	 * @throws IllegalStateException if the payload is not valid or inflates beyond the largest message size
+	 */
+	public byte[] decompress(byte[] src, int offset, int length) {
+		synchronized(inflateLock) {
+			if(released) {
+				throw new IllegalStateException("The connection is closed");
+			}
+
+			boolean takeover = !(client ? serverNoContextTakeover : clientNoContextTakeover);
+
+			Inflater inflater = takeover ? this.inflater : null;
+			if(inflater == null) {
+				inflater = acquireInflater();
+
+				if(takeover) {
+					this.inflater = inflater;
+				}
+			}
+
+			try {
+				byte[] out = new byte[Math.max(length * 4, 256)];
+				int size = 0;
+
+				for(int pass = 0; pass < 2; pass++) {
+					if(pass == 0) {
+						inflater.setInput(src, offset, length);
+					} else {
+						inflater.setInput(TAIL);
+					}
+
+					while(true) {
+						if(size == out.length) {
+							out = Arrays.copyOf(out, out.length * 2);
+						}
+
+						int count = inflater.inflate(out, size, out.length - size);
+						size += count;
+
+						if(maxMessageSize > 0 && size > maxMessageSize) {
+							throw new IllegalStateException("Inflated message larger than " + maxMessageSize);
+						}
+
+						if(count == 0 && (inflater.needsInput() || inflater.finished())) {
+							break;
+						}
+					}
+				}
+
+				if(inflater.finished()) {
+					// the message ended the deflate stream, the next one starts a new stream
+					inflater.reset();
+				}
+
+				return Arrays.copyOf(out, size);
+			} catch(DataFormatException e) {
+				throw new IllegalStateException("Invalid compressed message", e);
+			} finally {
+				if(!takeover) {
+					releaseInflater(inflater);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives the Deflater and Inflater of the connection back to the pool.
+	 */
+	public void release() {
+		synchronized(this) {
+			released = true;
+
+			if(deflater != null) {
+				releaseDeflater(deflater);
+				deflater = null;
+			}
+		}
+
+		synchronized(inflateLock) {
+			if(inflater != null) {
+				releaseInflater(inflater);
+				inflater = null;
+			}
+		}
+	}
+
+	private static Deflater acquireDeflater() {
+		Deflater deflater = deflaters.pollFirst();
+		if(deflater == null) {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		pooledDeflaters.decrementAndGet();
+
+		return deflater;
+	}
+
+	private static void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+
+		if(pooledDeflaters.incrementAndGet() > MAX_POOLED) {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+
+			return;
+		}
+
+		deflaters.offerFirst(deflater);
+	}
+
+	private static Inflater acquireInflater() {
+		Inflater inflater = inflaters.pollFirst();
+		if(inflater == null) {
+			return new Inflater(true);
+		}
+
+		pooledInflaters.decrementAndGet();
+
+		return inflater;
+	}
+
+	private static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+
+		if(pooledInflaters.incrementAndGet() > MAX_POOLED) {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+
+			return;
+		}
+
+		inflaters.offerFirst(inflater);
+	}
+}
@@ -2,4 +2,11 @@ package gov.nist.javax.sip.stack;
 
 public interface QueuedMessageDispatchBase extends Runnable{
 	long getReceptionTime();
+
+	/**
+	 * Called instead of {@link #run()} when the dispatch is dropped by the {@link KeyedSerialExecutor}, because it
+	 * waited too long or the executor was shut down.
+	 */
+	default void discarded() {
+	}
 }
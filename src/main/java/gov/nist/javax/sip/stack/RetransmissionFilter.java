@@ -0,0 +1,312 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.TransactionState;
+import javax.sip.message.Request;
+
+import gov.nist.javax.sip.SIPConstants;
+
+/**
+ * Absorbs the retransmissions of requests read from datagrams before they are parsed. The request method, the
+ * branch of the top Via, the CSeq method and the Call-ID are extracted with a byte scan and looked up in the server
+ * transaction table. A retransmission of the request of a transaction in the Proceeding or Completed state is
+ * answered with the last response of the transaction, a retransmission arriving in the Trying state is dropped.
+ * A retransmission of the request of a removed transaction is answered from the {@link TerminatedResponseCache} if
+ * it is enabled. Anything else, ACKs included, goes through the regular parse and dispatch.
+ *
+ * Only RFC 3261 branches are considered, the RFC 2543 transactions need the full request to be matched.
+ */
+public class RetransmissionFilter {
+	private static final Logger logger = Logger.getLogger(RetransmissionFilter.class.getName());
+
+	private final SIPTransactionStack sipStack;
+
+	private final AtomicLong answeredRetransmissions = new AtomicLong();
+	private final AtomicLong droppedRetransmissions = new AtomicLong();
+
+	public RetransmissionFilter(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+	}
+
+	/**
+	 * @param message the received datagram
+	 * @return <code>true</code> if the message is a retransmission which has been answered or dropped, the caller
+	 *         must not process it any further
+	 */
+	public boolean absorb(byte[] message) {
+		RequestKey key = RequestKey.scan(message);
+		if(key == null) {
+			return false;
+		}
+
+		SIPServerTransaction transaction = (SIPServerTransaction) sipStack.findTransaction(key.getTransactionId(),
+				true);
+
+		if(transaction == null) {
+			// the transaction may be gone already while its final response is still cached
+			TerminatedResponseCache cache = sipStack.getTerminatedResponseCache();
+
+			return cache != null && cache.resend(key.getTransactionId(), key.method, key.callId);
+		}
+
+		if(!key.method.equals(transaction.getMethod())
+				|| !key.callId.equals(transaction.getOriginalRequestCallId())) {
+			return false;
+		}
+
+		int state = transaction.getInternalState();
+
+		if(state == TransactionState.TRYING_VALUE) {
+			droppedRetransmissions.incrementAndGet();
+
+			logger.log(Level.FINEST, "dropping retransmission of {0} in trying state", transaction);
+
+			return true;
+		}
+
+		if(state == TransactionState.PROCEEDING_VALUE || state == TransactionState.COMPLETED_VALUE) {
+			try {
+				transaction.resendLastResponseAsBytes();
+			} catch(IOException ex) {
+				logger.log(Level.FINEST, "could not resend the last response of " + transaction, ex);
+			}
+
+			answeredRetransmissions.incrementAndGet();
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the number of retransmissions answered with the last response of their transaction
+	 */
+	public long getAnsweredRetransmissions() {
+		return answeredRetransmissions.get();
+	}
+
+	/**
+	 * @return the number of retransmissions dropped because their transaction had not responded yet
+	 */
+	public long getDroppedRetransmissions() {
+		return droppedRetransmissions.get();
+	}
+
+	/**
+	 * The fields of a request identifying its server transaction.
+	 */
+	static final class RequestKey {
+		final String method;
+		final String branch;
+		final String callId;
+
+		private RequestKey(String method, String branch, String callId) {
+			this.method = method;
+			this.branch = branch;
+			this.callId = callId;
+		}
+
+		/**
+		 * @return the key of the server transaction, see SIPMessage#getTransactionId()
+		 */
+		String getTransactionId() {
+			String transactionId = branch.toLowerCase();
+
+			return Request.CANCEL.equals(method) ? transactionId + ":" + Request.CANCEL.toLowerCase() : transactionId;
+		}
+
+		/**
+		 * @return the key of a request with a RFC 3261 branch, or null for a response, an ACK, a malformed message
+		 *         or a message whose request and CSeq methods differ
+		 */
+		static RequestKey scan(byte[] message) {
+			int offset = 0;
+			while(offset < message.length && message[offset] < 0x20) {
+				offset++;
+			}
+
+			// the request method is the first token of the request line, a response starts with SIP/
+			int methodEnd = offset;
+			while(methodEnd < message.length && message[methodEnd] > ' ') {
+				methodEnd++;
+			}
+
+			if(methodEnd == offset || methodEnd >= message.length || startsWith(message, offset, "SIP/")) {
+				return null;
+			}
+
+			String method = new String(message, offset, methodEnd - offset, StandardCharsets.US_ASCII);
+			if(Request.ACK.equals(method)) {
+				return null;
+			}
+
+			String branch = null;
+			String callId = null;
+			String cseqMethod = null;
+
+			int line = nextLine(message, methodEnd);
+			while(line > 0 && line < message.length && message[line] != '\r' && message[line] != '\n') {
+				int lineEnd = nextLine(message, line);
+				if(lineEnd < 0) {
+					return null;
+				}
+
+				int colon = line;
+				while(colon < lineEnd && message[colon] != ':') {
+					colon++;
+				}
+
+				int nameEnd = colon;
+				while(nameEnd > line && message[nameEnd - 1] <= ' ') {
+					nameEnd--;
+				}
+
+				int valueStart = colon + 1;
+				while(valueStart < lineEnd && message[valueStart] <= ' ') {
+					valueStart++;
+				}
+
+				int valueEnd = lineEnd;
+				while(valueEnd > valueStart && message[valueEnd - 1] <= ' ') {
+					valueEnd--;
+				}
+
+				if(branch == null && (nameEquals(message, line, nameEnd, "Via") || nameEquals(message, line, nameEnd,
+						"v"))) {
+					branch = scanBranch(message, valueStart, valueEnd);
+					if(branch == null) {
+						return null;
+					}
+				} else if(callId == null && (nameEquals(message, line, nameEnd, "Call-ID")
+						|| nameEquals(message, line, nameEnd, "i"))) {
+					callId = new String(message, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+				} else if(cseqMethod == null && nameEquals(message, line, nameEnd, "CSeq")) {
+					int space = valueStart;
+					while(space < valueEnd && message[space] > ' ') {
+						space++;
+					}
+
+					while(space < valueEnd && message[space] <= ' ') {
+						space++;
+					}
+
+					cseqMethod = new String(message, space, valueEnd - space, StandardCharsets.US_ASCII);
+				}
+
+				if(branch != null && callId != null && cseqMethod != null) {
+					return method.equals(cseqMethod) ? new RequestKey(method, branch, callId) : null;
+				}
+
+				line = lineEnd;
+			}
+
+			return null;
+		}
+
+		/**
+		 * @return the branch parameter of the first Via value if it is a RFC 3261 branch, null otherwise
+		 */
+		private static String scanBranch(byte[] message, int start, int end) {
+			for(int i = start; i < end; i++) {
+				byte b = message[i];
+
+				if(b == ',') {
+					return null;
+				}
+
+				if(b != ';') {
+					continue;
+				}
+
+				int name = i + 1;
+				while(name < end && message[name] <= ' ') {
+					name++;
+				}
+
+				if(!startsWithIgnoreCase(message, name, "branch")) {
+					continue;
+				}
+
+				int equals = name + "branch".length();
+				while(equals < end && message[equals] <= ' ') {
+					equals++;
+				}
+
+				if(equals >= end || message[equals] != '=') {
+					continue;
+				}
+
+				int valueStart = equals + 1;
+				while(valueStart < end && message[valueStart] <= ' ') {
+					valueStart++;
+				}
+
+				int valueEnd = valueStart;
+				while(valueEnd < end && message[valueEnd] > ' ' && message[valueEnd] != ';'
+						&& message[valueEnd] != ',') {
+					valueEnd++;
+				}
+
+				if(!startsWithIgnoreCase(message, valueStart, SIPConstants.BRANCH_MAGIC_COOKIE)) {
+					return null;
+				}
+
+				return new String(message, valueStart, valueEnd - valueStart, StandardCharsets.US_ASCII);
+			}
+
+			return null;
+		}
+
+		private static int nextLine(byte[] message, int offset) {
+			for(int i = offset; i < message.length; i++) {
+				if(message[i] == '\n') {
+					return i + 1;
+				}
+
+				if(message[i] == '\r') {
+					return i + 1 < message.length && message[i + 1] == '\n' ? i + 2 : i + 1;
+				}
+			}
+
+			return -1;
+		}
+
+		private static boolean nameEquals(byte[] message, int start, int end, String name) {
+			return end - start == name.length() && startsWithIgnoreCase(message, start, name);
+		}
+
+		private static boolean startsWith(byte[] message, int offset, String prefix) {
+			if(offset + prefix.length() > message.length) {
+				return false;
+			}
+
+			for(int i = 0; i < prefix.length(); i++) {
+				if(message[offset + i] != prefix.charAt(i)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private static boolean startsWithIgnoreCase(byte[] message, int offset, String prefix) {
+			if(offset + prefix.length() > message.length) {
+				return false;
+			}
+
+			for(int i = 0; i < prefix.length(); i++) {
+				if(Character.toLowerCase((char) message[offset + i]) != Character.toLowerCase(prefix.charAt(i))) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 
 import javax.sip.Dialog;
 import javax.sip.ObjectInUseException;
+import javax.sip.ResponseEvent;
 import javax.sip.SipException;
 import javax.sip.address.Hop;
 import javax.sip.message.Request;
@@ -61,6 +62,28 @@ public interface SIPClientTransaction extends ClientTransactionExt, SIPTransacti
 	 */
 	public abstract void sendRequest() throws SipException;
 
+	/**
+	 * @return <code>true</code> if the request was sent with sendRequestAsync and the future has not completed yet
+	 */
+	public abstract boolean isResponseFuturePending();
+
+	/**
+	 * Hands a response to the future returned by sendRequestAsync: provisional responses go to the provisional
+	 * response callback, a final response completes the future.
+	 * 
+	 * @param responseEvent the response event
+	 * @return <code>false</code> if there is no pending future, the event must then go to the listener
+	 */
+	public abstract boolean completeResponseFuture(ResponseEvent responseEvent);
+
+	/**
+	 * Completes the future returned by sendRequestAsync exceptionally.
+	 * 
+	 * @param cause the failure
+	 * @return <code>false</code> if there is no pending future, the event must then go to the listener
+	 */
+	public abstract boolean failResponseFuture(Throwable cause);
+
 	/*
 	 * (non-Javadoc)
 	 * 
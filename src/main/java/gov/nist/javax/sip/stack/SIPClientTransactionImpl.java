@@ -26,14 +26,17 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.sip.Dialog;
 import javax.sip.DialogState;
 import javax.sip.InvalidArgumentException;
+import javax.sip.ResponseEvent;
 import javax.sip.SipException;
 import javax.sip.Timeout;
 import javax.sip.TimeoutEvent;
@@ -205,12 +208,24 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
 
 	private boolean terminateDialogOnCleanUp = true;
 
+	// outcome of a request sent with sendRequestAsync and its optional provisional response callback
+	private transient volatile CompletableFuture<ResponseEvent> responseFuture;
+
+	// the transaction of a request sent with sendRequestAsync while it is handed to the transport
+	private static final ThreadLocal<SIPClientTransaction> sendingTransaction = new ThreadLocal<>();
+	private transient volatile Consumer<ResponseEvent> provisionalResponseCallback;
+
 	public class TransactionTimer extends SIPStackTimerTask {
 
 		public TransactionTimer() {
 
 		}
 
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
+
 		public void runTask() {
 
 			// If the transaction has terminated,
@@ -249,6 +264,11 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
 				logger.log(Level.FINEST, "state: {0}", ct.getState());
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
 	}
 
 	/**
@@ -405,7 +425,17 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
 					}
 				}
 
-				super.sendMessage(transactionRequest);
+				if(isResponseFuturePending()) {
+					// a transport queuing the request reports a late failure to the future
+					sendingTransaction.set(this);
+					try {
+						super.sendMessage(transactionRequest);
+					} finally {
+						sendingTransaction.remove();
+					}
+				} else {
+					super.sendMessage(transactionRequest);
+				}
 			} catch(IOException e) {
 				this.setState(TransactionState.TERMINATED_VALUE);
 
@@ -975,6 +1005,112 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see gov.nist.javax.sip.ClientTransactionExt#sendRequestAsync()
+	 */
+	@Override
+	public CompletableFuture<ResponseEvent> sendRequestAsync() throws SipException {
+		return sendRequestAsync(null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see gov.nist.javax.sip.ClientTransactionExt#sendRequestAsync(java.util.function.Consumer)
+	 */
+	@Override
+	public CompletableFuture<ResponseEvent> sendRequestAsync(Consumer<ResponseEvent> provisionalResponseCallback)
+			throws SipException {
+		if(this.getInternalState() >= 0) {
+			throw new IllegalTransactionStateException("Request already sent", Reason.RequestAlreadySent);
+		}
+
+		CompletableFuture<ResponseEvent> future = new CompletableFuture<>();
+
+		// set before sending, the response may come back before sendRequest returns
+		this.provisionalResponseCallback = provisionalResponseCallback;
+		this.responseFuture = future;
+
+		try {
+			sendRequest();
+		} catch(SipException ex) {
+			future.completeExceptionally(ex);
+
+			throw ex;
+		}
+
+		return future;
+	}
+
+	/**
+	 * The transaction of a request sent with sendRequestAsync which the calling thread is handing to the transport.
+	 * A transport which queues the request, for example until the connection is established, keeps it to report a
+	 * failure to send the request with the transaction.
+	 *
+	 * @return the transaction or <code>null</code>
+	 */
+	static SIPClientTransaction getSendingTransaction() {
+		return sendingTransaction.get();
+	}
+
+	/**
+	 * @see gov.nist.javax.sip.stack.SIPClientTransaction#isResponseFuturePending()
+	 */
+	@Override
+	public boolean isResponseFuturePending() {
+		CompletableFuture<ResponseEvent> future = this.responseFuture;
+
+		return future != null && !future.isDone();
+	}
+
+	/**
+	 * @see gov.nist.javax.sip.stack.SIPClientTransaction#completeResponseFuture(javax.sip.ResponseEvent)
+	 */
+	@Override
+	public boolean completeResponseFuture(ResponseEvent responseEvent) {
+		CompletableFuture<ResponseEvent> future = this.responseFuture;
+
+		if(future == null || future.isDone()) {
+			return false;
+		}
+
+		if(responseEvent.getResponse().getStatusCode() / 100 == 1) {
+			Consumer<ResponseEvent> callback = this.provisionalResponseCallback;
+
+			if(callback != null) {
+				try {
+					callback.accept(responseEvent);
+				} catch(Exception ex) {
+					logger.log(Level.SEVERE, "Provisional response callback failed", ex);
+				}
+			}
+		} else {
+			this.provisionalResponseCallback = null;
+
+			future.complete(responseEvent);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @see gov.nist.javax.sip.stack.SIPClientTransaction#failResponseFuture(java.lang.Throwable)
+	 */
+	@Override
+	public boolean failResponseFuture(Throwable cause) {
+		CompletableFuture<ResponseEvent> future = this.responseFuture;
+
+		if(future == null || future.isDone()) {
+			return false;
+		}
+
+		this.provisionalResponseCallback = null;
+
+		return future.completeExceptionally(cause);
+	}
+
 	/**
 	 * Called by the transaction stack when a retransmission timer fires.
 	 */
@@ -1819,7 +1955,8 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
 			}
 
 			// Let the connection linger for a while and then close it.
-			if(((SipStackImpl) getSIPStack()).isReEntrantListener() && isReleaseReferences()) {
+			if((((SipStackImpl) getSIPStack()).isReEntrantListener() || sipStack.getCallIdExecutor() != null)
+					&& isReleaseReferences()) {
 				cleanUp();
 			}
 		}
@@ -37,12 +37,13 @@ import gov.nist.javax.sip.parser.AddressParser;
 import gov.nist.javax.sip.parser.CallIDParser;
 import gov.nist.javax.sip.parser.ContactParser;
 import gov.nist.javax.sip.parser.RecordRouteParser;
+import gov.nist.javax.sip.parser.StringMsgParser;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
-import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -100,7 +101,6 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	private static final Logger logger = Logger.getLogger(SIPDialog.class.getName());
 
 	private transient boolean dialogTerminatedEventDelivered; // prevent duplicate
-	private transient String stackTrace; // for semaphore debugging.
 	protected String method;
 	// delivery of the event
 	protected transient boolean isAssigned;
@@ -146,6 +146,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	protected String myTag;
 	protected String hisTag;
 	protected RouteList routeList;
+	// the route set of a confirmed dialog, see compactRouteSet()
+	private byte[] routeSetBytes;
 	private transient SIPTransactionStack sipStack;
 	private int dialogState;
 	protected transient SIPRequest lastAckSent;
@@ -194,6 +196,12 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	// the amount of time to keep this dialog around before the stack GC's it
 	private static final int DIALOG_LINGER_TIME = 8;
 
+	// the time in milliseconds a re-INVITE waits after the ACK it waited for
+	private static final int RE_INVITE_WAIT_TIME = 100;
+
+	// the encoded empty route set
+	private static final byte[] NO_ROUTES = new byte[0];
+
 	protected boolean serverTransactionFlag;
 	private transient SipProviderImpl sipProvider;
 	protected boolean terminateOnBye;
@@ -210,8 +218,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	// Used in createAck.
 	protected transient long lastInviteOkReceived;
 
-	private transient Semaphore ackSem = new Semaphore(1);
-	protected transient int reInviteWaitTime = 100;
+	// allocated by the first re-INVITE, see takeAckSem()
+	private transient volatile ReInviteState reInviteState;
 	private transient DialogDeleteTask dialogDeleteTask;
 	private transient DialogDeleteIfNoAckSentTask dialogDeleteIfNoAckSentTask;
 	protected transient boolean isAcknowledged;
@@ -223,7 +231,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	private transient Set<SIPDialogEventListener> eventListeners;
 
 	// added for Issue 248 : https://jain-sip.dev.java.net/issues/show_bug.cgi?id=248
-	private transient Semaphore timerTaskLock = new Semaphore(1);
+	private transient volatile Semaphore timerTaskLock;
 
 	/*
 	 * We store here the useful data from the first transaction without having to keep the whole transaction object
@@ -246,12 +254,46 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	protected ProxyAuthorizationHeader proxyAuthorizationHeader;
 	// aggressive flag to optimize eagerly
 	private boolean releaseReferences;
-	private transient EarlyStateTimerTask earlyStateTimerTask;
-	private int earlyDialogTimeout = 180;
-	private int ackSemTakenFor;
-	private Set<String> responsesReceivedInForkingCase = new HashSet<>(0);
-	private SIPDialog originalDialog;
-	private transient AckSendingStrategy ackSendingStrategy = new AckSendingStrategyImpl();
+	// only allocated while an INVITE client dialog is early or when its early timeout is set
+	private volatile EarlyState earlyState;
+	// only allocated for the dialogs created by a forked response
+	private volatile ForkState forkState;
+	private transient AckSendingStrategy ackSendingStrategy;
+	// the store keeping an encoded copy of the dialog while it is dormant, null while the dialog is in use
+	private transient volatile OffHeapDialogStore dormantIn;
+	// where the stack indexes the dialog by state, see DialogStateIndex
+	transient byte indexedSlot;
+	private transient volatile long lastActivityTime = System.currentTimeMillis();
+
+	/**
+	 * The fork bookkeeping, which most dialogs never need.
+	 */
+	private static final class ForkState implements Serializable {
+		private static final long serialVersionUID = 4370470327150564390L;
+
+		private final Set<String> responsesReceived = new HashSet<>(0);
+		private volatile SIPDialog originalDialog;
+	}
+
+	/**
+	 * The early state timer of an INVITE client dialog.
+	 */
+	private static final class EarlyState implements Serializable {
+		private static final long serialVersionUID = -2405335473561094532L;
+
+		// 0 for the early dialog timeout of the stack
+		private int timeout;
+		private transient EarlyStateTimerTask timerTask;
+	}
+
+	/**
+	 * The serialization of the re-INVITEs, which most dialogs never send.
+	 */
+	private static final class ReInviteState {
+		private final Semaphore ackSem = new Semaphore(1);
+		// where the semaphore was taken, for debugging
+		private String stackTrace;
+	}
 
 	public class AckSendingStrategyImpl implements AckSendingStrategy {
 		private Hop hop = null;
@@ -272,8 +314,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 				throw new SipException("No listening point for this provider registered at " + hop);
 			}
 
-			InetAddress inetAddress = InetAddress.getByName(hop.getHost());
-			MessageChannel messageChannel = lp.getMessageProcessor().createMessageChannel(inetAddress, hop.getPort());
+			// the channel of the dialog when several connections are kept to the hop
+			MessageChannel messageChannel = sipStack.createMessageChannel(ackRequest, lp.getMessageProcessor(), hop);
 
 			messageChannel.sendMessage(ackRequest);
 		}
@@ -299,6 +341,11 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			}
 		}
 
+
+		@Override
+		public Object getThreadHash() {
+			return getCallIdValue();
+		}
 	}
 
 	/**
@@ -403,7 +450,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 				 */
 				try {
 					if(timeToWait != 0) {
-						Thread.sleep(SIPDialog.this.reInviteWaitTime);
+						Thread.sleep(RE_INVITE_WAIT_TIME);
 					}
 				} catch(InterruptedException ex) {
 					logger.log(Level.FINEST, "Interrupted sleep");
@@ -433,10 +480,15 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			 * Issue 279 : https://jain-sip.dev.java.net/issues/show_bug.cgi?id=279 if non reentrant listener is used
 			 * the event delivery of DialogTerminated can happen after the clean
 			 */
-			if(((SipStackImpl) getStack()).isReEntrantListener()) {
+			if(((SipStackImpl) getStack()).isReEntrantListener() || sipStack.getCallIdExecutor() != null) {
 				cleanUp();
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return getCallIdValue();
+		}
 	}
 
 	class DialogTimerTask extends SIPStackTimerTask implements Serializable {
@@ -520,6 +572,11 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
 			super.cleanUpBeforeCancel();
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return getCallIdValue();
+		}
 	}
 
 	/**
@@ -530,6 +587,11 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		public void runTask() {
 			delete();
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return getCallIdValue();
+		}
 	}
 
 	/**
@@ -589,6 +651,11 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 				}
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return getCallIdValue();
+		}
 	}
 
 	/**
@@ -607,8 +674,79 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		this.sipProvider = provider;
 
 		eventListeners = new CopyOnWriteArraySet<>();
+	}
+
+	/**
+	 * Creates an empty dialog bound to the given provider, filled by the {@link DialogCodec} when a snapshot is
+	 * restored.
+	 */
+	static SIPDialog newRestoredDialog(SipProviderImpl provider) {
+		SIPDialog dialog = new SIPDialog(provider);
+
+		dialog.sipStack = (SIPTransactionStack) provider.getSipStack();
+		dialog.isBackToBackUserAgent = dialog.sipStack.isBackToBackUserAgent;
+		dialog.releaseReferences = dialog.sipStack.isAggressiveCleanup();
+		dialog.routeList = null;
+
+		dialog.addEventListener(dialog.sipStack);
+
+		return dialog;
+	}
+
+	/**
+	 * Records an activity on the dialog, a dormant dialog is put back in use and the change is replicated.
+	 */
+	private void touch() {
+		lastActivityTime = System.currentTimeMillis();
+
+		if(sipStack != null) {
+			sipStack.replicateDialog(this);
+		}
+
+		OffHeapDialogStore store = dormantIn;
+		if(store != null) {
+			store.wake(this);
+		}
+	}
+
+	long getLastActivityTime() {
+		return lastActivityTime;
+	}
+
+	OffHeapDialogStore getDormantIn() {
+		return dormantIn;
+	}
 
-		this.earlyDialogTimeout = ((SIPTransactionStack) provider.getSipStack()).getEarlyDialogTimeout();
+	void setDormantIn(OffHeapDialogStore dormantIn) {
+		this.dormantIn = dormantIn;
+	}
+
+	/**
+	 * @return <code>true</code> if the dialog is confirmed, acknowledged, has no transaction or timer in progress and
+	 *         holds nothing the {@link DialogCodec} does not keep
+	 */
+	boolean isQuiescent() {
+		if(dialogState != CONFIRMED_STATE || applicationData != null || proxyAuthorizationHeader != null
+				|| pendingRouteUpdateOn202Response || timerTask != null || dialogDeleteTask != null
+				|| isEarlyTimerRunning() || forkState != null
+				|| eventListeners.size() > 1 || lastResponseTopMostVia == null || isBlockedForReInvite()) {
+			return false;
+		}
+
+		if(Request.INVITE.equals(method) && !isAcknowledged && lastAckReceivedCSeqNumber == null) {
+			return false;
+		}
+
+		// the task is only cleared when it fires without the ACK having been sent
+		DialogDeleteIfNoAckSentTask noAckSentTask = dialogDeleteIfNoAckSentTask;
+		if(noAckSentTask != null && highestSequenceNumberAcknowledged < noAckSentTask.seqno) {
+			return false;
+		}
+
+		SIPTransaction transaction = lastTransaction;
+
+		return transaction == null || transaction.getInternalState() < 0
+				|| transaction.getInternalState() == TransactionState.TERMINATED_VALUE;
 	}
 
 	private void recordStackTrace() {
@@ -619,7 +757,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
 		logger.log(Level.FINEST, "TraceRecord: {0}", stackTraceSignature);
 
-		this.stackTrace = "TraceRecord = " + stackTraceSignature + ":" + stringWriter.getBuffer().toString();
+		getReInviteState().stackTrace = "TraceRecord = " + stackTraceSignature + ":"
+				+ stringWriter.getBuffer().toString();
 	}
 
 	/**
@@ -743,7 +882,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 * A debugging print routine.
 	 */
 	private void printRouteList() {
-		logger.log(Level.FINEST, "this: {0}, printRouteList: {1}", new Object[] {this, this.routeList.encode()});
+		logger.log(Level.FINEST, "this: {0}, printRouteList: {1}", new Object[] {this, inflateRouteList().encode()});
 	}
 
 	/**
@@ -845,13 +984,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 * @param recordRouteList -- the record route list from the incoming message.
 	 */
 	private void addRoute(RecordRouteList recordRouteList) {
+		RouteList routes = new RouteList();
+
 		try {
 			if(!this.isServer()) {
 				/*
 				 * This is a client dialog so we extract the record route from the response and reverse its order to
 				 * create a route list.
 				 */
-				this.routeList = new RouteList();
 
 				// start at the end of the list and walk backwards
 				ListIterator li = recordRouteList.listIterator(recordRouteList.size());
@@ -864,15 +1004,13 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 					route.setAddress(address);
 					route.setParameters((NameValueList) rr.getParameters().clone());
 
-					this.routeList.add(route);
+					routes.add(route);
 				}
 			} else {
 				/*
 				 * This is a server dialog. The top most record route header is the one that is closest to us.
 				 * We extract the route list in the same order as the addresses in the incoming request.
 				 */
-				this.routeList = new RouteList();
-
 				ListIterator li = recordRouteList.listIterator();
 
 				while(li.hasNext()) {
@@ -883,12 +1021,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 					route.setAddress(address);
 					route.setParameters((NameValueList) rr.getParameters().clone());
 
-					routeList.add(route);
+					routes.add(route);
 				}
 			}
 		} finally {
+			setRouteList(routes);
+
 			if(logger.isLoggable(Level.WARNING) || logger.isLoggable(Level.FINEST)) {
-				Iterator<Route> it = routeList.iterator();
+				Iterator<Route> it = routes.iterator();
 
 				while(it.hasNext()) {
 					SipURI sipUri = (SipURI) (it.next().getAddress().getURI());
@@ -959,7 +1099,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 					this.addRoute(rrlist);
 				} else {
 					// Set the route list to the last seen route list.
-					this.routeList = new RouteList();
+					setRouteList(new RouteList());
 				}
 			}
 
@@ -983,7 +1123,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		RouteList retval = new RouteList();
 
 		retval = new RouteList();
-		if (this.routeList != null) {
+		RouteList routeList = inflateRouteList();
+		if (routeList != null) {
 			li = routeList.listIterator();
 			while (li.hasNext()) {
 				Route route = (Route) li.next();
@@ -1003,8 +1144,77 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		return retval;
 	}
 
-	void setRouteList(RouteList routeList) {
+	/**
+	 * Replaces the route set, dropping its encoded form if the dialog has been compacted.
+	 */
+	synchronized void setRouteList(RouteList routeList) {
 		this.routeList = routeList;
+		this.routeSetBytes = null;
+	}
+
+	/**
+	 * @return the encoded route set, an empty array for an empty route set or null if there is none
+	 */
+	synchronized byte[] getRouteSetBytes() {
+		if(routeList == null) {
+			return routeSetBytes;
+		}
+
+		return encode(routeList);
+	}
+
+	/**
+	 * Replaces the route set with an encoded one, parsed on first use.
+	 */
+	synchronized void setRouteSetBytes(byte[] routeSetBytes) {
+		this.routeList = null;
+		this.routeSetBytes = routeSetBytes;
+	}
+
+	/**
+	 * Sets the state of a restored dialog without the side effects of {@link #setState(int)}.
+	 */
+	void setRestoredState(int dialogState) {
+		this.dialogState = dialogState;
+	}
+
+	void setLastResponseTopMostVia(Via lastResponseTopMostVia) {
+		this.lastResponseTopMostVia = lastResponseTopMostVia;
+	}
+
+	/**
+	 * Keeps the route set of a confirmed dialog encoded, it no longer changes and is parsed again on first use.
+	 */
+	private synchronized void compactRouteSet() {
+		if(routeList != null) {
+			routeSetBytes = encode(routeList);
+			routeList = null;
+		}
+	}
+
+	private static byte[] encode(RouteList routeList) {
+		return routeList.isEmpty() ? NO_ROUTES : routeList.encode().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the route set, parsed again from its encoded form if the dialog has been compacted
+	 */
+	private synchronized RouteList inflateRouteList() {
+		if(routeList == null && routeSetBytes != null) {
+			RouteList routes = new RouteList();
+			if(routeSetBytes.length > 0) {
+				try {
+					routes = (RouteList) StringMsgParser.parseSIPHeader(new String(routeSetBytes, StandardCharsets.UTF_8));
+				} catch(ParseException e) {
+					logger.log(Level.SEVERE, "error reparsing the dialog route set", e);
+				}
+			}
+
+			routeList = routes;
+			routeSetBytes = null;
+		}
+
+		return routeList;
 	}
 
 	/**
@@ -1071,7 +1281,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		this.setLastAckSent((SIPRequest) ackRequest.clone());
 
 		try {
-			ackSendingStrategy.send(ackRequest);
+			getAckSendingStrategy().send(ackRequest);
 
 			// Sent at least one ACK.
 			this.isAcknowledged = true;
@@ -1087,7 +1297,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		} catch (IOException ex) {
 			if (throwIOExceptionAsSipException)
 				throw new SipException("Could not send ack", ex);
-			Hop hop = ackSendingStrategy.getLastHop();
+			Hop hop = getAckSendingStrategy().getLastHop();
 			if (hop == null) {
 				hop = sipStack.getNextHop(ackRequest);
 			}
@@ -1217,6 +1427,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 */
 	public void setApplicationData(Object applicationData) {
 		this.applicationData = applicationData;
+
+		touch();
 	}
 
 	/*
@@ -1306,10 +1518,24 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			this.addEventListener(this.getSipProvider());
 		}
 
+		int previousState = this.dialogState;
+
 		this.dialogState = state;
 
+		sipStack.dialogStateChanged(this);
+
+		if(state == CONFIRMED_STATE) {
+			if(previousState != CONFIRMED_STATE) {
+				compactRouteSet();
+			}
+
+			sipStack.replicateDialog(this);
+		}
+
 		// Dialog is in terminated state set it up for GC.
 		if(state == TERMINATED_STATE) {
+			sipStack.replicateDialogRemoval(this);
+
 			this.removeEventListener(this.getSipProvider());
 
 			if(sipStack.getTimer() != null && sipStack.getTimer().isStarted()) { // may be null after shutdown
@@ -1430,7 +1656,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 *         established.
 	 */
 	public Iterator getRouteSet() {
-		if(this.routeList == null) {
+		if(inflateRouteList() == null) {
 			return new LinkedList().listIterator();
 		}
 
@@ -1472,7 +1698,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			this.addRoute(rrlist);
 		} else {
 			// Set the route list to the last seen route list.
-			this.routeList = new RouteList();
+			setRouteList(new RouteList());
 		}
 	}
 
@@ -1576,6 +1802,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 * @param transaction is the transaction to add to the dialog.
 	 */
 	public boolean addTransaction(SIPTransaction transaction) {
+		touch();
+
 		SIPRequest sipRequest = transaction.getOriginalRequest();
 
 		// Processing a re-invite.
@@ -1772,6 +2000,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		}
 
 		this.localSequenceNumber = lCseq;
+
+		touch();
 	}
 
 	/**
@@ -1784,6 +2014,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		logger.log(Level.FINEST, "setRemoteSeqno {0}/{1}", new Object[] {this, rCseq});
 
 		this.remoteSequenceNumber = rCseq;
+
+		touch();
 	}
 
 	/**
@@ -1794,6 +2026,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	@Override
 	public void incrementLocalSequenceNumber() {
 		++this.localSequenceNumber;
+
+		touch();
 	}
 
 	/**
@@ -1893,6 +2127,15 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		this.setState(TERMINATED_STATE);
 	}
 
+	/**
+	 * @return the Call-ID value of this dialog, used as the key of the dialog timers
+	 */
+	String getCallIdValue() {
+		CallIdHeader callId = getCallId();
+
+		return callId == null ? null : callId.getCallId();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -2373,7 +2616,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		try {
 			MessageChannel messageChannel = sipStack.createRawMessageChannel(
 					this.getSipProvider().getListeningPoint(hop.getTransport()).getIPAddress(),
-					this.firstTransactionPort, hop);
+					this.firstTransactionPort, hop, dialogRequest);
 
 			MessageChannel oldChannel = ((SIPClientTransaction) clientTransaction).getMessageChannel();
 
@@ -2411,7 +2654,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
 				messageChannel = sipStack.createRawMessageChannel(
 						this.getSipProvider().getListeningPoint(outboundProxy.getTransport()).getIPAddress(),
-						this.firstTransactionPort, outboundProxy);
+						this.firstTransactionPort, outboundProxy, dialogRequest);
 
 				if(messageChannel != null) {
 					((SIPClientTransaction) clientTransaction).setEncapsulatedChannel(messageChannel);
@@ -2579,9 +2822,13 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 					this.timerTask = null;
 				}
 
-				if(this.earlyStateTimerTask != null) {
-					this.getStack().getTimer().cancel(this.earlyStateTimerTask);
-					this.earlyStateTimerTask = null;
+				EarlyState early = this.earlyState;
+				if(early != null) {
+					if(early.timerTask != null) {
+						this.getStack().getTimer().cancel(early.timerTask);
+					}
+
+					this.earlyState = null;
 				}
 			} finally {
 				releaseTimerTaskSem();
@@ -2718,8 +2965,9 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			 */
 			SipURI uri4transport = null;
 
-			if(this.routeList != null && !this.routeList.isEmpty()) {
-				Route r = (Route) this.routeList.getFirst();
+			RouteList routes = inflateRouteList();
+			if(routes != null && !routes.isEmpty()) {
+				Route r = (Route) routes.getFirst();
 
 				uri4transport = ((SipURI) r.getAddress().getURI());
 			} else {
@@ -3101,10 +3349,10 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
 						while(it.hasPrevious()) {
 							RecordRoute rr = it.previous();
-							Route route = (Route) routeList.getFirst();
+							Route route = (Route) inflateRouteList().getFirst();
 
 							if(route != null && rr.getAddress().equals(route.getAddress())) {
-								routeList.removeFirst();
+								inflateRouteList().removeFirst();
 							} else {
 								break;
 							}
@@ -3193,22 +3441,33 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
 				try {
 					if(this.getState() == DialogState.EARLY) {
-						if(this.earlyStateTimerTask != null) {
-							sipStack.getTimer().cancel(this.earlyStateTimerTask);
+						EarlyState early = getEarlyState();
+						if(early.timerTask != null) {
+							sipStack.getTimer().cancel(early.timerTask);
 						}
 
-						logger.log(Level.FINEST, "EarlyStateTimerTask craeted: {0}", this.earlyDialogTimeout * 1000L);
+						long timeout = (early.timeout > 0 ? early.timeout : sipStack.getEarlyDialogTimeout()) * 1000L;
+
+						logger.log(Level.FINEST, "EarlyStateTimerTask craeted: {0}", timeout);
 
-						this.earlyStateTimerTask = new EarlyStateTimerTask();
+						early.timerTask = new EarlyStateTimerTask();
 
 						if(sipStack.getTimer() != null && sipStack.getTimer().isStarted()) {
-							sipStack.getTimer().schedule(this.earlyStateTimerTask, this.earlyDialogTimeout * 1000L);
+							sipStack.getTimer().schedule(early.timerTask, timeout);
 						}
 					} else {
-						if(this.earlyStateTimerTask != null) {
-							sipStack.getTimer().cancel(this.earlyStateTimerTask);
+						EarlyState early = this.earlyState;
+						if(early != null) {
+							if(early.timerTask != null) {
+								sipStack.getTimer().cancel(early.timerTask);
+
+								early.timerTask = null;
+							}
 
-							this.earlyStateTimerTask = null;
+							// the early timeout set before the dialog was early is kept
+							if(this.dialogState > EARLY_STATE) {
+								this.earlyState = null;
+							}
 						}
 					}
 				} finally {
@@ -3514,7 +3773,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	public Contact getMyContactHeader() {
 		if(contactHeader == null && contactHeaderStringified != null) {
 			try {
-				this.contactHeader = (Contact) new ContactParser(contactHeaderStringified).parse();
+				this.contactHeader = (Contact) ((ContactList) new ContactParser(contactHeaderStringified).parse())
+						.getFirst();
 			} catch(ParseException e) {
 				logger.log(Level.SEVERE, "error reparsing the contact header", e);
 			}
@@ -3593,33 +3853,77 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 * Release the semaphore for ACK processing so the next re-INVITE may proceed.
 	 */
 	void releaseAckSem() {
+		ReInviteState reInvite = this.reInviteState;
+		Semaphore sem = reInvite == null ? null : reInvite.ackSem;
+
 		logger.log(Level.FINEST, "releaseAckSem-enter]] {0}, sem: {1}, b2bua: {2}",
-				new Object[] { this, this.ackSem, this.isBackToBackUserAgent });
+				new Object[] { this, sem, this.isBackToBackUserAgent });
+
+		// no re-INVITE ever took the semaphore
+		if(sem == null) {
+			return;
+		}
 
 		if(this.isBackToBackUserAgent) {
-			logger.log(Level.FINEST, "releaseAckSem]] {0}, sem: {1}", new Object[] { this, this.ackSem });
+			logger.log(Level.FINEST, "releaseAckSem]] {0}, sem: {1}", new Object[] { this, sem });
 
-			if(this.ackSem.availablePermits() == 0) {
-				this.ackSem.release();
+			if(sem.availablePermits() == 0) {
+				sem.release();
 
-				logger.log(Level.FINEST, "releaseAckSem]] {0} sem: {1}", new Object[] {this, this.ackSem});
+				logger.log(Level.FINEST, "releaseAckSem]] {0} sem: {1}", new Object[] {this, sem});
 			}
 		}
 	}
 
 	boolean isBlockedForReInvite() {
-		return this.ackSem.availablePermits() == 0;
+		ReInviteState reInvite = this.reInviteState;
+
+		return reInvite != null && reInvite.ackSem.availablePermits() == 0;
+	}
+
+	/**
+	 * @return the re-INVITE state, allocated on first use as most dialogs never send a re-INVITE
+	 */
+	private ReInviteState getReInviteState() {
+		ReInviteState reInvite = this.reInviteState;
+		if(reInvite == null) {
+			synchronized(this) {
+				reInvite = this.reInviteState;
+				if(reInvite == null) {
+					reInvite = new ReInviteState();
+
+					this.reInviteState = reInvite;
+				}
+			}
+		}
+
+		return reInvite;
 	}
 
 	boolean takeAckSem() {
-		logger.log(Level.FINEST, "[takeAckSem {0}, sem: {1}", new Object[] { this, this.ackSem });
+		ReInviteState reInvite = getReInviteState();
+		Semaphore ackSem = reInvite.ackSem;
+
+		logger.log(Level.FINEST, "[takeAckSem {0}, sem: {1}", new Object[] { this, ackSem });
+
+		KeyedSerialExecutor<String> callIdExecutor = sipStack.getCallIdExecutor();
+		if(callIdExecutor != null && callIdExecutor.isExecuting(getCallIdValue())) {
+			// the ACK can only be processed by this mailbox once we return, waiting for it would always time out
+			if(!ackSem.tryAcquire()) {
+				logger.log(Level.SEVERE, "Cannot aquire ACK semaphore, ACK still pending");
+
+				return false;
+			}
+
+			return true;
+		}
 
 		try {
-			if(!this.ackSem.tryAcquire(2, TimeUnit.SECONDS)) {
+			if(!ackSem.tryAcquire(2, TimeUnit.SECONDS)) {
 				logger.log(Level.SEVERE, "Cannot aquire ACK semaphore ");
 
 				logger.log(Level.FINEST, "Semaphore previously acquired at {0} sem: {1}",
-						new Object[] {this.stackTrace, this.ackSem});
+						new Object[] {reInvite.stackTrace, ackSem});
 
 				return false;
 			}
@@ -3720,7 +4024,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	public void acquireTimerTaskSem() {
 		boolean acquired = false;
 		try {
-			acquired = this.timerTaskLock.tryAcquire(10, TimeUnit.SECONDS);
+			acquired = getTimerTaskLock().tryAcquire(10, TimeUnit.SECONDS);
 		} catch (InterruptedException ex) {
 			acquired = false;
 		}
@@ -3731,7 +4035,23 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	}
 
 	public void releaseTimerTaskSem() {
-		this.timerTaskLock.release();
+		getTimerTaskLock().release();
+	}
+
+	private Semaphore getTimerTaskLock() {
+		Semaphore lock = this.timerTaskLock;
+		if(lock == null) {
+			synchronized(this) {
+				lock = this.timerTaskLock;
+				if(lock == null) {
+					lock = new Semaphore(1);
+
+					this.timerTaskLock = lock;
+				}
+			}
+		}
+
+		return lock;
 	}
 
 	public String getMergeId() {
@@ -3816,6 +4136,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 				localPartyStringified = localParty.toString();
 				localParty = null;
 			}
+
+			compactRouteSet();
 		}
 	}
 
@@ -3834,7 +4156,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			}
 
 			timerTaskLock = null;
-			ackSem = null;
+			reInviteState = null;
 			contactHeader = null;
 			eventHeader = null;
 			firstTransactionId = null;
@@ -3852,12 +4174,18 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 				originalRequestRecordRouteHeadersString = null;
 			}
 
-			if(routeList != null) {
-				routeList.clear();
-				routeList = null;
+			synchronized(this) {
+				if(routeList != null) {
+					routeList.clear();
+					routeList = null;
+				}
+
+				routeSetBytes = null;
 			}
 
-			responsesReceivedInForkingCase.clear();
+			if(forkState != null) {
+				forkState.responsesReceived.clear();
+			}
 		}
 	}
 
@@ -3909,15 +4237,79 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 			throw new IllegalArgumentException("Invalid value " + seconds);
 		}
 
-		this.earlyDialogTimeout = seconds;
+		getEarlyState().timeout = seconds;
+	}
+
+	private boolean isEarlyTimerRunning() {
+		EarlyState early = this.earlyState;
+
+		return early != null && early.timerTask != null;
+	}
+
+	private EarlyState getEarlyState() {
+		EarlyState early = this.earlyState;
+		if(early == null) {
+			synchronized(this) {
+				early = this.earlyState;
+				if(early == null) {
+					early = new EarlyState();
+
+					this.earlyState = early;
+				}
+			}
+		}
+
+		return early;
+	}
+
+	/**
+	 * Marks a response of a forked request as a retransmission if the dialog received it already. The responses are
+	 * only kept once the request is seen to fork, that is once a response creates a dialog other than the default
+	 * dialog of the transaction, so the dialogs of requests which did not fork keep no state for it.
+	 *
+	 * @param defaultDialog the default dialog of the forked client transaction, can be null
+	 */
+	public void checkRetransmissionForForking(SIPResponse response, Dialog defaultDialog) {
+		if(defaultDialog == null || this.equals(defaultDialog)) {
+			if(forkState == null) {
+				return;
+			}
+		} else if(defaultDialog instanceof SIPDialog) {
+			((SIPDialog) defaultDialog).forkSeen();
+		}
+
+		checkRetransmissionForForking(response);
+	}
+
+	/**
+	 * Starts keeping the responses of the default dialog of a forked request, beginning with the last one received.
+	 */
+	private synchronized void forkSeen() {
+		if(forkState != null) {
+			return;
+		}
+
+		forkState = new ForkState();
+
+		if(lastResponseStatusCode != null && lastResponseMethod != null) {
+			forkState.responsesReceived.add(lastResponseStatusCode + "/" + lastResponseCSeqNumber + "/"
+					+ lastResponseMethod);
+		}
 	}
 
 	public void checkRetransmissionForForking(SIPResponse response) {
 		final int statusCode = response.getStatusCode();
 		final String responseMethod = response.getCSeqHeader().getMethod();
 		final long responseCSeqNumber = response.getCSeq().getSeqNumber();
-		boolean isRetransmission = !responsesReceivedInForkingCase
-				.add(statusCode + "/" + responseCSeqNumber + "/" + responseMethod);
+		boolean isRetransmission;
+		synchronized(this) {
+			if(forkState == null) {
+				forkState = new ForkState();
+			}
+
+			isRetransmission = !forkState.responsesReceived.add(statusCode + "/" + responseCSeqNumber + "/"
+					+ responseMethod);
+		}
 
 		response.setRetransmission(isRetransmission);
 
@@ -3940,18 +4332,28 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	 * 
 	 * @param defaultDialog
 	 */
-	public void setOriginalDialog(SIPDialog originalDialog) {
-		this.originalDialog = originalDialog;
+	public synchronized void setOriginalDialog(SIPDialog originalDialog) {
+		if(forkState == null) {
+			if(originalDialog == null) {
+				return;
+			}
+
+			forkState = new ForkState();
+		}
+
+		forkState.originalDialog = originalDialog;
 	}
 
 	@Override
 	public boolean isForked() {
-		return originalDialog != null;
+		return getOriginalDialog() != null;
 	}
 
 	@Override
 	public Dialog getOriginalDialog() {
-		return originalDialog;
+		ForkState state = forkState;
+
+		return state == null ? null : state.originalDialog;
 	}
 
 	/**
@@ -3962,4 +4364,12 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 	public void setAckSendingStrategy(AckSendingStrategy ackSendingStrategy) {
 		this.ackSendingStrategy = ackSendingStrategy;
 	}
+
+	private AckSendingStrategy getAckSendingStrategy() {
+		if(ackSendingStrategy == null) {
+			ackSendingStrategy = new AckSendingStrategyImpl();
+		}
+
+		return ackSendingStrategy;
+	}
 }
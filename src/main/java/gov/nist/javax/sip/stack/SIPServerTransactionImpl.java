@@ -9,6 +9,7 @@ import gov.nist.javax.sip.header.Expires;
 import gov.nist.javax.sip.header.ParameterNames;
 import gov.nist.javax.sip.header.RSeq;
 import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.ResponseTemplates;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
@@ -222,6 +223,11 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 				this.ticksLeft = 2 * ticks;
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
 	}
 
 	class ProvisionalResponseTask extends SIPStackTimerTask {
@@ -272,6 +278,11 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 				}
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
 	}
 
 	/**
@@ -292,7 +303,7 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 				logger.log(Level.FINEST, "sending Trying current state: {0}", serverTransaction.getRealState());
 
 				try {
-					serverTransaction.sendMessage(serverTransaction.getOriginalRequest().createResponse(100, "Trying"));
+					serverTransaction.sendTrying();
 
 					logger.log(Level.FINEST, "trying sent {0}", serverTransaction.getRealState());
 				} catch(IOException ex) {
@@ -300,6 +311,11 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 				}
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
 	}
 
 	class TransactionTimer extends SIPStackTimerTask {
@@ -341,6 +357,11 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 				originalRequest.cleanUp();
 			}
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
 	}
 
 	/**
@@ -368,85 +389,130 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 			if(isReliable()) {
 				getMessageChannel().sendMessage(transactionResponse);
 			} else {
-				Via via = transactionResponse.getTopmostVia();
-				String transport = via.getTransport();
+				createResponseChannel(transactionResponse.getTopmostVia()).sendMessage(transactionResponse);
+			}
 
-				if(transport == null) {
-					throw new IOException("missing transport!");
-				}
+			lastResponseAsBytes = transactionResponse.encodeAsBytes(this.getTransport());
+			lastResponse = null;
+		} finally {
+			this.startTransactionTimer();
+		}
+	}
 
-				// @@@ hagai Symmetric NAT support
-				int port = via.getRPort();
-				if(port == -1) {
-					port = via.getPort();
-				}
+	/**
+	 * Sends the 100 Trying of the original request, encoded from its response template rather than built as a
+	 * SIPResponse and encoded afterwards.
+	 */
+	protected void sendTrying() throws IOException {
+		SIPRequest request = getOriginalRequest();
+		byte[] trying = ResponseTemplates.encode(request, Response.TRYING);
 
-				if(port == -1) {
-					if (transport.equalsIgnoreCase("TLS")) {
-						port = 5061;
-					} else {
-						port = 5060;
-					}
-				}
+		try {
+			if(!checkStateTimers(Response.TRYING)) {
+				return;
+			}
 
-				// Otherwise, if the Via header field value contains a
-				// "maddr" parameter, the response MUST be forwarded to
-				// the address listed there, using the port indicated in
-				// "sent-by",
-				// or port 5060 if none is present. If the address is a
-				// multicast
-				// address, the response SHOULD be sent using
-				// the TTL indicated in the "ttl" parameter, or with a
-				// TTL of 1 if that parameter is not present.
-				String host = null;
-				if(via.getMAddr() != null) {
-					host = via.getMAddr();
-				} else {
-					// Otherwise (for unreliable unicast transports),
-					// if the top Via has a "received" parameter, the response
-					// MUST
-					// be sent to the
-					// address in the "received" parameter, using the port
-					// indicated
-					// in the
-					// "sent-by" value, or using port 5060 if none is specified
-					// explicitly.
-					host = via.getParameter(Via.RECEIVED);
-					if(host == null) {
-						// Otherwise, if it is not receiver-tagged, the response
-						// MUST be
-						// sent to the address indicated by the "sent-by" value,
-						// using the procedures in Section 5
-						// RFC 3263 PROCEDURE TO BE DONE HERE
-						host = via.getHost();
-					}
-				}
+			lastResponse = null;
+			lastResponseStatusCode = Response.TRYING;
 
-				Hop hop = sipStack.addressResolver.resolveAddress(new HopImpl(host, port, transport));
+			try {
+				MessageChannel messageChannel = isReliable() ? getMessageChannel()
+						: createResponseChannel(request.getTopmostVia());
 
-				MessageChannel messageChannel = ((SIPTransactionStack) getSIPStack()).createRawMessageChannel(
-						this.getSipProvider().getListeningPoint(hop.getTransport()).getIPAddress(), this.getPort(),
-						hop);
-				if(messageChannel != null) {
-					messageChannel.sendMessage(transactionResponse);
+				messageChannel.sendMessageBytes(trying, messageChannel.getPeerInetAddress(),
+						messageChannel.getPeerPort(), false);
+			} catch(IOException e) {
+				this.setState(TransactionState.TERMINATED_VALUE);
+				this.collectionTime = 0;
 
-					lastResponseHost = host;
-					lastResponsePort = port;
-					lastResponseTransport = transport;
-				} else {
-					throw new IOException("Could not create a message channel for " + hop + " with source IP:Port "
-							+ this.getSipProvider().getListeningPoint(hop.getTransport()).getIPAddress() + ":"
-							+ this.getPort());
-				}
+				throw e;
 			}
 
-			lastResponseAsBytes = transactionResponse.encodeAsBytes(this.getTransport());
-			lastResponse = null;
+			lastResponseAsBytes = trying;
 		} finally {
 			this.startTransactionTimer();
 		}
 	}
 
+	/**
+	 * Creates the channel a response goes through over an unreliable transport, following RFC 3261 section 18.2.2
+	 * with the top Via of the response, and records the destination for the retransmissions.
+	 *
+	 * @param via the top Via of the response
+	 * @return the channel to send the response with
+	 */
+	private MessageChannel createResponseChannel(Via via) throws IOException {
+		String transport = via.getTransport();
+
+		if(transport == null) {
+			throw new IOException("missing transport!");
+		}
+
+		// @@@ hagai Symmetric NAT support
+		int port = via.getRPort();
+		if(port == -1) {
+			port = via.getPort();
+		}
+
+		if(port == -1) {
+			if (transport.equalsIgnoreCase("TLS")) {
+				port = 5061;
+			} else {
+				port = 5060;
+			}
+		}
+
+		// Otherwise, if the Via header field value contains a
+		// "maddr" parameter, the response MUST be forwarded to
+		// the address listed there, using the port indicated in
+		// "sent-by",
+		// or port 5060 if none is present. If the address is a
+		// multicast
+		// address, the response SHOULD be sent using
+		// the TTL indicated in the "ttl" parameter, or with a
+		// TTL of 1 if that parameter is not present.
+		String host = null;
+		if(via.getMAddr() != null) {
+			host = via.getMAddr();
+		} else {
+			// Otherwise (for unreliable unicast transports),
+			// if the top Via has a "received" parameter, the response
+			// MUST
+			// be sent to the
+			// address in the "received" parameter, using the port
+			// indicated
+			// in the
+			// "sent-by" value, or using port 5060 if none is specified
+			// explicitly.
+			host = via.getParameter(Via.RECEIVED);
+			if(host == null) {
+				// Otherwise, if it is not receiver-tagged, the response
+				// MUST be
+				// sent to the address indicated by the "sent-by" value,
+				// using the procedures in Section 5
+				// RFC 3263 PROCEDURE TO BE DONE HERE
+				host = via.getHost();
+			}
+		}
+
+		Hop hop = sipStack.addressResolver.resolveAddress(new HopImpl(host, port, transport));
+
+		MessageChannel messageChannel = ((SIPTransactionStack) getSIPStack()).createRawMessageChannel(
+				this.getSipProvider().getListeningPoint(hop.getTransport()).getIPAddress(), this.getPort(),
+				hop);
+		if(messageChannel == null) {
+			throw new IOException("Could not create a message channel for " + hop + " with source IP:Port "
+					+ this.getSipProvider().getListeningPoint(hop.getTransport()).getIPAddress() + ":"
+					+ this.getPort());
+		}
+
+		lastResponseHost = host;
+		lastResponsePort = port;
+		lastResponseTransport = transport;
+
+		return messageChannel;
+	}
+
 	/**
 	 * Creates a new server transaction.
 	 *
@@ -835,7 +901,7 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 						 * in the "Completed" state. The server transaction remains in this state until
 						 * Timer J fires, at which point it MUST transition to the "Terminated" state.
 						 */
-						startTransactionTimerJ(TIMER_J);
+						startTransactionTimerJ(getTimerJ());
 						cleanUpOnTimer();
 					} else {
 						cleanUpOnTimer();
@@ -951,7 +1017,7 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 				this.setState(TransactionState.COMPLETED_VALUE);
 				if (!isReliable()) {
 					disableRetransmissionTimer();
-					startTransactionTimerJ(TIMER_J);
+					startTransactionTimerJ(getTimerJ());
 				} else {
 					this.setState(TransactionState.TERMINATED_VALUE);
 					startTransactionTimerJ(0);
@@ -1165,6 +1231,26 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 		return this.lastResponseStatusCode;
 	}
 
+	/*
+	 * The last response sent over an unreliable transport and its destination, kept by the terminated response
+	 * cache.
+	 */
+	byte[] getLastResponseAsBytes() {
+		return lastResponseAsBytes;
+	}
+
+	String getLastResponseHost() {
+		return lastResponseHost;
+	}
+
+	int getLastResponsePort() {
+		return lastResponsePort;
+	}
+
+	String getLastResponseTransport() {
+		return lastResponseTransport;
+	}
+
 	/**
 	 * @see gov.nist.javax.sip.stack.SIPServerTransaction#setOriginalRequest(gov.nist.javax.sip.message.SIPRequest)
 	 */
@@ -1424,34 +1510,58 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 	}
 
 	/**
-	 * Start the timer task.
+	 * With the terminated response cache enabled the transaction lingers in the completed state for a single T1, the
+	 * cache answers the later retransmissions of the request. If the cache is full when Timer J fires the transaction
+	 * lingers for the rest of the 64 T1 instead.
+	 *
+	 * @return the number of T1 intervals Timer J fires after
 	 */
+	private int getTimerJ() {
+		return sipStack.getTerminatedResponseCache() != null ? 1 : TIMER_J;
+	}
+
 	protected void startTransactionTimerJ(long time) {
 		if(this.transactionTimerStarted.compareAndSet(false, true) && sipStack.getTimer() != null
 				&& sipStack.getTimer().isStarted()) {
 			logger.log(Level.FINEST, "starting TransactionTimerJ(): {0} time {1}",
 					new Object[] {getTransactionId(), time});
 
-			// The timer is set to null when the Stack is shutting down.
-			SIPStackTimerTask task = new SIPStackTimerTask() {
-				public void runTask() {
-					logger.log(Level.FINEST, "executing TransactionTimerJ(): {0}", getTransactionId());
+			scheduleTransactionTimerJ(time,
+					time > 0 && time < TIMER_J && sipStack.getTerminatedResponseCache() != null);
+		}
+	}
 
-					fireTimeoutTimer();
+	/**
+	 * @param shortened true if Timer J has been shortened for the terminated response cache
+	 */
+	private void scheduleTransactionTimerJ(final long time, final boolean shortened) {
+		// The timer is set to null when the Stack is shutting down.
+		SIPStackTimerTask task = new SIPStackTimerTask() {
+			public void runTask() {
+				logger.log(Level.FINEST, "executing TransactionTimerJ(): {0}", getTransactionId());
+
+				if(shortened && !sipStack.getTerminatedResponseCache().put(SIPServerTransactionImpl.this)
+						&& sipStack.getTimer() != null && sipStack.getTimer().isStarted()) {
+					// nothing would absorb the retransmissions of the request, wait for the rest of Timer J
+					scheduleTransactionTimerJ(TIMER_J - time, false);
+
+					return;
+				}
 
-					cleanUp();
+				fireTimeoutTimer();
 
-					if(originalRequest != null) {
-						originalRequest.cleanUp();
-					}
-				}
-			};
+				cleanUp();
 
-			if(time > 0) {
-				sipStack.getTimer().schedule(task, time * T1 * baseTimerInterval);
-			} else {
-				task.runTask();
+				if(originalRequest != null) {
+					originalRequest.cleanUp();
+				}
 			}
+		};
+
+		if(time > 0) {
+			sipStack.getTimer().schedule(task, time * T1 * baseTimerInterval);
+		} else {
+			task.runTask();
 		}
 	}
 
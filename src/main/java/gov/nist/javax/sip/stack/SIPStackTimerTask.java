@@ -44,6 +44,8 @@ package gov.nist.javax.sip.stack;
 public abstract class SIPStackTimerTask {
 	// the underlying timer task that was scheduled in the Stack SIP timer
 	Object timerTask = null; 
+	// set once the task is cancelled, checked right before it runs
+	private volatile boolean cancelled;
     // Implements code to be run when the SIPStackTimerTask is executed.
     public abstract void runTask();
     
@@ -58,4 +60,32 @@ public abstract class SIPStackTimerTask {
 	public Object getSipTimerTask() {
 		return timerTask;
 	}
+
+	/**
+	 * Set by the timer when the task is scheduled and when it is cancelled. A task handed to the mailbox of its call
+	 * waits there until the call is idle, it must not run if it was cancelled in the meantime.
+	 *
+	 * @param cancelled <code>true</code> if the task was cancelled
+	 */
+	public void setCancelled(boolean cancelled) {
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * @return <code>true</code> if the task was cancelled since it was last scheduled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * The key of the call this task belongs to. When the stack serializes execution per Call-ID the task is run on
+	 * the mailbox of that key together with the messages and listener events of the call, tasks returning
+	 * <code>null</code> run directly on the timer thread.
+	 *
+	 * @return the Call-ID of the call this task belongs to or <code>null</code>
+	 */
+	public Object getThreadHash() {
+		return null;
+	}
 }
@@ -96,6 +96,14 @@ public interface SIPTransaction extends TransactionExt {
   
   public String getBranchId();
 
+  /**
+   * Gets the Call-ID of the request that created this transaction. Unlike the
+   * original request it is kept for the whole life of the transaction.
+   *
+   * @return -- the Call-ID value of the original request.
+   */
+  public String getOriginalRequestCallId();
+
   public void cleanUp();
 
   /**
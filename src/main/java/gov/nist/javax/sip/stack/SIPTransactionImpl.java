@@ -98,6 +98,7 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 	protected long originalRequestCSeqNumber;
 	protected String originalRequestBranch;
 	protected boolean originalRequestHasPort;
+	protected String originalRequestCallId;
 
 	// Underlying channel being used to send messages for this transaction
 	protected transient MessageChannel encapsulatedChannel;
@@ -156,16 +157,30 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 		return this.branch;
 	}
 
+	/**
+	 * @see gov.nist.javax.sip.stack.SIPTransaction#getOriginalRequestCallId()
+	 */
+	@Override
+	public String getOriginalRequestCallId() {
+		return this.originalRequestCallId;
+	}
+
 	// [Issue 284] https://jain-sip.dev.java.net/issues/show_bug.cgi?id=284
 	// JAIN SIP drops 200 OK due to race condition
 	// Wrapper that uses a semaphore for non reentrant listener
 	// and a lock for reentrant listener to avoid race conditions
-	// when 2 responses 180/200 OK arrives at the same time
+	// when 2 responses 180/200 OK arrives at the same time.
+	// With the per Call-ID execution model the mailbox of the call already
+	// serializes the messages so neither is needed.
 	class TransactionSemaphore {
 		Semaphore sem = null;
 		ReentrantLock lock = null;
 
 		public TransactionSemaphore() {
+			if(sipStack.getCallIdExecutor() != null) {
+				return;
+			}
+
 			if(((SipStackImpl) sipStack).isReEntrantListener()) {
 				lock = new ReentrantLock();
 			} else {
@@ -175,9 +190,9 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 
 		public boolean acquire() {
 			try {
-				if(((SipStackImpl) sipStack).isReEntrantListener()) {
+				if(lock != null) {
 					lock.lock();
-				} else {
+				} else if(sem != null) {
 					sem.acquire();
 				}
 
@@ -193,11 +208,15 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 
 		public boolean tryAcquire() {
 			try {
-				if(((SipStackImpl) sipStack).isReEntrantListener()) {
+				if(lock != null) {
 					return lock.tryLock(sipStack.maxListenerResponseTime, TimeUnit.SECONDS);
 				}
 
-				return sem.tryAcquire(sipStack.maxListenerResponseTime, TimeUnit.SECONDS);
+				if(sem != null) {
+					return sem.tryAcquire(sipStack.maxListenerResponseTime, TimeUnit.SECONDS);
+				}
+
+				return true;
 			} catch(Exception ex) {
 				logger.log(Level.SEVERE, "Unexpected exception trying acquiring sem", ex);
 
@@ -209,11 +228,11 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 
 		public void release() {
 			try {
-				if(((SipStackImpl) sipStack).isReEntrantListener()) {
+				if(lock != null) {
 					if(lock.isHeldByCurrentThread()) {
 						lock.unlock();
 					}
-				} else {
+				} else if(sem != null) {
 					sem.release();
 				}
 			} catch(Exception ex) {
@@ -238,6 +257,11 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 		public void runTask() {
 			cleanUp();
 		}
+
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
 	}
 
 	/**
@@ -246,6 +270,11 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 	class MaxTxLifeTimeListener extends SIPStackTimerTask {
 		SIPTransaction sipTransaction = SIPTransactionImpl.this;
 
+		@Override
+		public Object getThreadHash() {
+			return originalRequestCallId;
+		}
+
 		@Override
 		public void runTask() {
 			try {
@@ -319,6 +348,7 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 
 		this.originalRequestBranch = topmostVia.getBranch();
 		this.originalRequestHasPort = topmostVia.hasPort();
+		this.originalRequestCallId = newOriginalRequest.getCallId().getCallId();
 
 		// just cache the control information so the
 		// original request can be released later.
@@ -5,10 +5,11 @@ import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -18,9 +19,12 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.DialogState;
@@ -40,6 +44,7 @@ import javax.sip.message.Response;
 import gov.nist.core.Host;
 import gov.nist.core.HostPort;
 import gov.nist.core.ThreadAuditor;
+import gov.nist.core.VirtualThreads;
 import gov.nist.core.net.AddressResolver;
 import gov.nist.core.net.DefaultNetworkLayer;
 import gov.nist.core.net.NetworkLayer;
@@ -50,6 +55,7 @@ import gov.nist.javax.sip.LogRecordFactory;
 import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.SipListenerExt;
 import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.SipStackExt;
 import gov.nist.javax.sip.SipStackImpl;
 import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.header.Event;
@@ -98,7 +104,21 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	protected Map<String, SIPDialog> earlyDialogTable;
 
 	// Table of dialogs.
-	protected Map<String, SIPDialog> dialogTable;
+	protected DialogStore dialogTable;
+
+	// The dialogs of the dialog table by state.
+	final DialogStateIndex dialogStateIndex = new DialogStateIndex();
+
+	// Replicates the dialogs to the peer stacks, null when disabled.
+	protected DialogReplicator dialogReplicator;
+
+	// The tables by creation minute for the audit, built by the first audit.
+	private volatile AgeIndex dialogAges;
+	private volatile AgeIndex serverTransactionAges;
+	private volatile AgeIndex clientTransactionAges;
+
+	// The largest number of entries of each table an audit visits, the next audit resumes from there.
+	protected int auditBatchSize = 10000;
 
 	// Table of server dialogs ( for loop detection)
 	protected ConcurrentHashMap<String, SIPDialog> serverDialogMergeTestTable;
@@ -370,6 +390,51 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
 	protected static Executor selfRoutingThreadpoolExecutor;
 
+	/*
+	 * When the per Call-ID execution model is enabled, network input, timers and listener events of one call run
+	 * one after the other on the mailbox of its Call-ID instead of being serialized by semaphores.
+	 */
+	protected KeyedSerialExecutor<String> callIdExecutor;
+	protected ExecutorService callIdExecutorService;
+
+	// runs the delegated tasks of the NIO TLS handshakes and counts the handshakes
+	protected TlsHandshakeExecutor tlsHandshakeExecutor = new TlsHandshakeExecutor(0, 0);
+
+	// the client TLS session caches, negative to keep the JSSE defaults
+	protected int tlsSessionCacheSize = -1;
+	protected int tlsSessionTimeout = -1;
+
+	// permessage-deflate offered and accepted by the WebSocket channels
+	protected boolean webSocketDeflate;
+	protected int webSocketDeflateThreshold = 256;
+	protected boolean webSocketDeflateNoContextTakeover;
+
+	// the connections kept by the NIO TCP and TLS processors to each destination
+	protected int connectionsPerDestination = 1;
+
+	// the bytes the NIO processors may queue on a connection and in total, unbounded if not positive
+	protected long maxConnectionPendingBytes;
+	protected long maxPendingBytes;
+	// close a connection over its budget rather than refuse the message
+	protected boolean closeCongestedConnections;
+	// the bytes queued on a connection from which it is reported congested, not reported if not positive
+	protected long connectionWriteHighWaterMark;
+
+	// the bytes queued by the NIO processors and not written yet
+	protected final AtomicLong pendingBytes = new AtomicLong();
+
+	// run the blocking paths (connection readers, Call-ID mailboxes, re-INVITE senders) on virtual threads
+	protected boolean virtualThreads;
+
+	// keep the received bytes of the datagram messages for the stateless forwarding path
+	protected boolean retainReceivedMessageBytes;
+
+	// answers the datagram retransmissions of server transaction requests before they are parsed
+	protected RetransmissionFilter retransmissionFilter;
+
+	// final responses of the removed server transactions, answering the late retransmissions of their requests
+	protected TerminatedResponseCache terminatedResponseCache;
+
 	private int threadPriority = Thread.MAX_PRIORITY;
 
 	/*
@@ -389,7 +454,12 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
 	private long sslHandshakeTimeout = -1;
 	private boolean sslRenegotiationEnabled = false;
-	protected SocketTimeoutAuditor socketTimeoutAuditor = null;
+
+	// the keep-alive and idle timeouts and the pings of the connections
+	protected ConnectionLivenessManager connectionLivenessManager = new ConnectionLivenessManager(this);
+
+	// the interval of the CRLF pings sent on the NIO connections opened by the stack, disabled if not positive
+	protected long keepAlivePingInterval = -1;
 
 	private static class SameThreadExecutor implements Executor {
 		public void execute(Runnable command) {
@@ -422,16 +492,140 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	}
 
 	/**
-	 * Executor used to optimize the ReinviteSender Runnable in the sendRequest of the SipDialog
+	 * @return the executor serializing the events of a call, <code>null</code> unless the per Call-ID execution
+	 *         model is enabled
 	 */
-	private ExecutorService reinviteExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
-		private int threadCount = 0;
+	public KeyedSerialExecutor<String> getCallIdExecutor() {
+		return callIdExecutor;
+	}
 
-		@Override
-		public Thread newThread(Runnable pRunnable) {
-			return new Thread(pRunnable, String.format("%s-%d", "ReInviteSender", threadCount++));
+	/**
+	 * Runs the task on the mailbox of the given Call-ID. The task runs inline if the per Call-ID execution model is
+	 * disabled, if there is no Call-ID or if the calling thread is already running that Call-ID.
+	 *
+	 * @param callId the Call-ID of the call the task belongs to, may be null
+	 * @param task the task to run
+	 */
+	public void executeInCallContext(String callId, Runnable task) {
+		KeyedSerialExecutor<String> executor = this.callIdExecutor;
+
+		if(executor == null || callId == null || executor.isExecuting(callId)) {
+			task.run();
+		} else {
+			executor.execute(callId, task);
+		}
+	}
+
+	/**
+	 * Called by the SIP timers when a task fires, so tasks belonging to a call run on the mailbox of its Call-ID. A
+	 * task cancelled while it waits in the mailbox is skipped.
+	 *
+	 * @param task the task which fired
+	 */
+	public void executeTimerTask(final SIPStackTimerTask task) {
+		Object threadHash = task.getThreadHash();
+
+		if(threadHash == null) {
+			runTimerTask(task);
+		} else {
+			executeInCallContext(threadHash.toString(), () -> runTimerTask(task));
+		}
+	}
+
+	private static void runTimerTask(SIPStackTimerTask task) {
+		if(task.isCancelled()) {
+			return;
 		}
-	});
+
+		task.runTask();
+	}
+
+	/**
+	 * @return the filter absorbing the request retransmissions read from datagrams, null if it is disabled
+	 */
+	public RetransmissionFilter getRetransmissionFilter() {
+		return retransmissionFilter;
+	}
+
+	/**
+	 * @return the cache of the final responses of the removed server transactions, null if it is disabled
+	 */
+	public TerminatedResponseCache getTerminatedResponseCache() {
+		return terminatedResponseCache;
+	}
+
+	/**
+	 * @return <code>true</code> if the messages read from datagrams keep the bytes they were parsed from
+	 */
+	public boolean isRetainReceivedMessageBytes() {
+		return retainReceivedMessageBytes;
+	}
+
+	/**
+	 * @return <code>true</code> if the blocking paths of the stack run on virtual threads
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs the connection reader threads, the Call-ID mailboxes and the re-INVITE senders on virtual threads. This
+	 * is ignored with a warning if the JVM does not support virtual threads.
+	 *
+	 * @param virtualThreads <code>true</code> to use virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if(virtualThreads == this.virtualThreads) {
+			return;
+		}
+
+		if(virtualThreads && !VirtualThreads.isSupported()) {
+			logger.log(Level.WARNING, "Virtual threads are not supported by this JVM, using platform threads");
+
+			return;
+		}
+
+		this.virtualThreads = virtualThreads;
+
+		ExecutorService oldReinviteExecutor = this.reinviteExecutor;
+
+		this.reinviteExecutor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("ReInviteSender")
+				: newReinviteExecutor();
+
+		oldReinviteExecutor.shutdown();
+	}
+
+	/**
+	 * Creates an unstarted thread for a long running blocking task such as a connection reader. The thread is
+	 * virtual if {@link #isVirtualThreads()}, virtual threads are always daemon threads.
+	 *
+	 * @param task the task to run
+	 * @param name the thread name
+	 * @return the new thread
+	 */
+	public Thread newThread(Runnable task, String name) {
+		if(virtualThreads) {
+			return VirtualThreads.newThread(task, name);
+		}
+
+		return new Thread(task, name);
+	}
+
+	/**
+	 * Executor used to optimize the ReinviteSender Runnable in the sendRequest of the SipDialog
+	 */
+	private ExecutorService reinviteExecutor = newReinviteExecutor();
+
+	private static ExecutorService newReinviteExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private int threadCount = 0;
+
+			@Override
+			public Thread newThread(Runnable pRunnable) {
+				return new Thread(pRunnable, String.format("%s-%d", "ReInviteSender", threadCount++));
+			}
+		});
+	}
 
 	// Timer to regularly ping the thread auditor (on behalf of the timer thread)
 	protected class PingTimer extends SIPStackTimerTask {
@@ -522,7 +716,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 		// Notify may or may not create a dialog. This is handled in the code. Create the transaction collections
 
 		// Dialog table.
-		this.dialogTable = new ConcurrentHashMap<>();
+		this.dialogTable = new HeapDialogStore();
 		this.earlyDialogTable = new ConcurrentHashMap<>();
 		this.serverDialogMergeTestTable = new ConcurrentHashMap<>();
 
@@ -555,13 +749,18 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 		this.mergeTable = new ConcurrentHashMap<>();
 
 		// Dialog table.
-		this.dialogTable = new ConcurrentHashMap<>();
+		this.dialogTable = new HeapDialogStore();
 		this.earlyDialogTable = new ConcurrentHashMap<>();
 		this.serverDialogMergeTestTable = new ConcurrentHashMap<>();
 		this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<>();
 		this.forkedClientTransactionTable = new ConcurrentHashMap<>();
 
 		this.activeClientTransactionCount = new AtomicInteger(0);
+
+		this.dialogStateIndex.clear();
+		this.dialogAges = null;
+		this.serverTransactionAges = null;
+		this.clientTransactionAges = null;
 	}
 
 	/**
@@ -692,18 +891,35 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	 */
 	public SIPDialog putDialog(SIPDialog dialog) {
 		String dialogId = dialog.getDialogId();
-		if(dialogTable.containsKey(dialogId)) {
+		SIPDialog existing = dialogTable.get(dialogId);
+		if(existing != null) {
 			logger.log(Level.FINEST, "putDialog: dialog already exists {0} in table: {1}",
-					new Object[] {dialogId, dialogTable.get(dialogId)});
+					new Object[] {dialogId, existing});
 
-			return dialogTable.get(dialogId);
+			return existing;
 		}
 
 		logger.log(Level.FINEST, "putDialog dialogId: {0}, dialog: {1}", new Object[] { dialogId, dialog });
 
 		dialog.setStack(this);
 
-		dialogTable.put(dialogId, dialog);
+		existing = dialogTable.putIfAbsent(dialogId, dialog);
+		if(existing != null) {
+			return existing;
+		}
+
+		dialogStateIndex.add(dialog);
+
+		AgeIndex ages = dialogAges;
+		if(ages != null) {
+			CallIdHeader callId = dialog.getCallId();
+
+			ages.add(dialogId, callId != null ? callId.getCallId() : null, System.currentTimeMillis());
+		}
+
+		if(dialogReplicator != null) {
+			dialogReplicator.dialogUpdated(dialog);
+		}
 
 		putMergeDialog(dialog);
 
@@ -736,10 +952,12 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 					retval = new SIPDialog(transaction);
 
 					this.earlyDialogTable.put(dialogId, retval);
+					dialogStateIndex.add(retval);
 				}
 			} else {
 				retval = new SIPDialog(transaction);
 				this.earlyDialogTable.put(dialogId, retval);
+				dialogStateIndex.add(retval);
 
 				logger.log(Level.FINEST, "createDialog early Dialog not found : earlyDialogId: {0}, created one: {1}",
 						new Object[] { dialogId, retval });
@@ -828,17 +1046,27 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
 		if(earlyId != null) {
 			this.earlyDialogTable.remove(earlyId);
-			this.dialogTable.remove(earlyId);
+
+			SIPDialog earlyDialog = this.dialogTable.remove(earlyId);
+			if(earlyDialog != null) {
+				dialogStateIndex.remove(earlyDialog);
+				unindex(dialogAges, earlyId);
+			}
 		}
 
 		removeMergeDialog(dialog.getMergeId());
 
+		if(dialogReplicator != null) {
+			dialogReplicator.dialogRemoved(dialog);
+		}
+
+		// indexed while in the dialog table or the early dialog table
+		dialogStateIndex.remove(dialog);
+
 		if(id != null) {
 			// FHT: Remove dialog from table only if its associated dialog is the same as the one specified
-			Object old = this.dialogTable.get(id);
-
-			if(old == dialog) {
-				this.dialogTable.remove(id);
+			if(this.dialogTable.remove(id, dialog)) {
+				unindex(dialogAges, id);
 			}
 
 			/*
@@ -909,6 +1137,11 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
 		SIPDialog sipDialog = dialogTable.get(dialogId);
 
+		// a dialog of a peer which went down
+		if(sipDialog == null && dialogReplicator != null) {
+			sipDialog = dialogReplicator.takeOver(dialogId);
+		}
+
 		logger.exiting(SIPTransactionStack.class.getName(), "getDialog", sipDialog);
 
 		return sipDialog;
@@ -923,7 +1156,11 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	public void removeDialog(String dialogId) {
 		logger.log(Level.WARNING, "Silently removing dialog from table");
 
-		dialogTable.remove(dialogId);
+		SIPDialog removed = dialogTable.remove(dialogId);
+		if(removed != null) {
+			dialogStateIndex.remove(removed);
+			unindex(dialogAges, dialogId);
+		}
 	}
 
 	/**
@@ -1379,6 +1616,15 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 					return null;
 				}
 
+				// A late retransmission of the request of a removed transaction, answer it with the cached response
+				if(terminatedResponseCache != null && !Request.ACK.equals(requestReceived.getMethod())
+						&& terminatedResponseCache.resend(key, requestReceived.getMethod(),
+								requestReceived.getCallId().getCallId())) {
+					logger.log(Level.FINEST, "Request answered from the terminated response cache: {0}", key);
+
+					return null;
+				}
+
 				// Creating a new server TX. May fail under heavy load.
 				currentTransaction = createServerTransaction(requestMessageChannel);
 
@@ -1546,7 +1792,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 		targetHostPort.setHost(targetHost);
 		targetHostPort.setPort(nextHop.getPort());
 
-		return mp.createMessageChannel(targetHostPort);
+		return mp.createMessageChannel(request, targetHostPort);
 	}
 
 	/**
@@ -1636,6 +1882,15 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
 				removed = serverTransactionTable.remove(key);
 
+				if(removed != null) {
+					unindex(serverTransactionAges, key);
+				}
+
+				if(removed != null && terminatedResponseCache != null
+						&& sipTransaction instanceof SIPServerTransactionImpl) {
+					terminatedResponseCache.put((SIPServerTransactionImpl) sipTransaction);
+				}
+
 				String method = sipTransaction.getMethod();
 
 				this.removePendingTransaction((SIPServerTransaction) sipTransaction);
@@ -1661,6 +1916,8 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 				logger.log(Level.FINEST, "REMOVED client TX: {0}, KEY: {1}", new Object[] { removed, key });
 
 				if(null != removed) {
+					unindex(clientTransactionAges, key);
+
 					SIPClientTransaction clientTx = (SIPClientTransaction) removed;
 
 					String forkId = clientTx.getForkId();
@@ -1740,6 +1997,9 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 			String key = sipRequest.getTransactionId();
 
 			existingTx = clientTransactionTable.putIfAbsent(key, (SIPClientTransaction) sipTransaction);
+			if(existingTx == null) {
+				index(clientTransactionAges, key);
+			}
 
 			logger.log(Level.FINEST, "putTransactionHash : key: {0}", key);
 		} else {
@@ -1748,6 +2008,9 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 			logger.log(Level.FINEST, "putTransactionHash: key: {0}", key);
 
 			existingTx = serverTransactionTable.putIfAbsent(key, (SIPServerTransaction) sipTransaction);
+			if(existingTx == null) {
+				index(serverTransactionAges, key);
+			}
 		}
 
 		// http://java.net/jira/browse/JSIP-420
@@ -1785,10 +2048,16 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 			logger.log(Level.FINEST, "removing client TX: {0}", key);
 
 			removed = clientTransactionTable.remove(key);
+			if(removed != null) {
+				unindex(clientTransactionAges, key);
+			}
 		} else if(sipTransaction instanceof SIPServerTransaction) {
 			String key = sipTransaction.getTransactionId();
 
 			removed = serverTransactionTable.remove(key);
+			if(removed != null) {
+				unindex(serverTransactionAges, key);
+			}
 
 			logger.log(Level.FINEST, "removing server TX: {0}", key);
 		}
@@ -1862,6 +2131,12 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
 		selfRoutingThreadpoolExecutor = null;
 
+		if(callIdExecutorService != null) {
+			callIdExecutorService.shutdown();
+		}
+
+		tlsHandshakeExecutor.shutdown();
+
 		// Threads must periodically check this flag.
 		MessageProcessor[] processorList;
 		processorList = getMessageProcessors();
@@ -1886,6 +2161,12 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 		this.serverTransactionTable.clear();
 
 		this.dialogTable.clear();
+		this.dialogTable.destroy();
+		this.dialogStateIndex.clear();
+
+		this.dialogAges = null;
+		this.serverTransactionAges = null;
+		this.clientTransactionAges = null;
 	}
 
 	public void closeAllSockets() {
@@ -2170,6 +2451,21 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	 */
 	public MessageChannel createRawMessageChannel(String sourceIpAddress, int sourcePort, Hop nextHop)
 			throws UnknownHostException {
+		return createRawMessageChannel(sourceIpAddress, sourcePort, nextHop, null);
+	}
+
+	/**
+	 * Creates a new MessageChannel for a given Hop to send a request, the
+	 * processors keeping several connections to the Hop pick the connection of the
+	 * request.
+	 *
+	 * @param request the request to send, null if the channel is not for a
+	 *                request.
+	 *
+	 * @see #createRawMessageChannel(String, int, Hop)
+	 */
+	public MessageChannel createRawMessageChannel(String sourceIpAddress, int sourcePort, Hop nextHop,
+			SIPRequest request) throws UnknownHostException {
 		Host targetHost;
 		HostPort targetHostPort;
 		Iterator<MessageProcessor> processorIterator;
@@ -2194,7 +2490,8 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 					&& sourcePort == nextProcessor.getPort()) {
 				try {
 					// Create a channel to the target host/port
-					newChannel = nextProcessor.createMessageChannel(targetHostPort);
+					newChannel = request != null ? nextProcessor.createMessageChannel(request, targetHostPort)
+							: nextProcessor.createMessageChannel(targetHostPort);
 				} catch(UnknownHostException ex) {
 					throw ex;
 				} catch(IOException e) {
@@ -2279,151 +2576,356 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	 * Audits the SIP Stack for leaks
 	 *
 	 * @return Audit report, null if no leaks were found
+	 * @see #auditStack(Set, long, long, Appendable)
 	 */
 	public String auditStack(Set activeCallIDs, long leakedDialogTimer, long leakedTransactionTimer) {
-		String auditReport = null;
-		String leakedDialogs = auditDialogs(activeCallIDs, leakedDialogTimer);
-		String leakedServerTransactions = auditTransactions(serverTransactionTable, leakedTransactionTimer);
-		String leakedClientTransactions = auditTransactions(clientTransactionTable, leakedTransactionTimer);
+		StringBuilder auditReport = new StringBuilder();
+
+		try {
+			auditStack(activeCallIDs, leakedDialogTimer, leakedTransactionTimer, auditReport);
+		} catch(IOException ex) {
+			// a StringBuilder does not throw
+			throw new IllegalStateException(ex);
+		}
+
+		return auditReport.length() > 0 ? auditReport.toString() : null;
+	}
+
+	/**
+	 * Audits the SIP Stack for leaks, writing the report as the leaks are found. Only the dialogs and transactions
+	 * created before the leak timers are visited, at most the audit batch size of each table per call: an audit
+	 * resumes where the previous one stopped, so a large backlog of suspects is audited over several calls instead of
+	 * in one pause. The tables are indexed by creation minute from the first audit on, the dialogs and transactions
+	 * existing at that time are considered created then.
+	 *
+	 * @param activeCallIDs the Call-IDs known by the application, the dialogs of the other calls are leak suspects
+	 * @param leakedDialogTimer the time in milliseconds after which a suspect dialog is terminated
+	 * @param leakedTransactionTimer the age in milliseconds after which a transaction is removed
+	 * @param auditReport where the report is written, nothing is written if no leaks were found
+	 * @return the number of leaked dialogs and transactions found and removed
+	 */
+	public int auditStack(Set activeCallIDs, long leakedDialogTimer, long leakedTransactionTimer,
+			Appendable auditReport) throws IOException {
+		buildAuditIndexes();
+
+		int leaks = auditDialogs(activeCallIDs, leakedDialogTimer, auditReport, 0);
+		leaks += auditTransactions(serverTransactionAges, serverTransactionTable, leakedTransactionTimer, auditReport,
+				leaks);
+		leaks += auditTransactions(clientTransactionAges, clientTransactionTable, leakedTransactionTimer, auditReport,
+				leaks);
+
+		return leaks;
+	}
+
+	/**
+	 * Sets the largest number of dialogs, server transactions and client transactions visited by an audit, see
+	 * {@link #auditStack(Set, long, long, Appendable)}.
+	 */
+	public void setAuditBatchSize(int auditBatchSize) {
+		if(auditBatchSize < 1) {
+			throw new IllegalArgumentException("auditBatchSize must be positive: " + auditBatchSize);
+		}
+
+		this.auditBatchSize = auditBatchSize;
+	}
+
+	public int getAuditBatchSize() {
+		return auditBatchSize;
+	}
+
+	/**
+	 * Sizes the cache of the TLS sessions the outbound connections resume, see
+	 * gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE and gov.nist.javax.sip.TLS_SESSION_TIMEOUT.
+	 */
+	public void configureClientSessionCache(SSLContext context) {
+		SSLSessionContext sessionContext = context.getClientSessionContext();
+		if(sessionContext == null) {
+			return;
+		}
+
+		if(tlsSessionCacheSize >= 0) {
+			sessionContext.setSessionCacheSize(tlsSessionCacheSize);
+		}
+
+		if(tlsSessionTimeout >= 0) {
+			sessionContext.setSessionTimeout(tlsSessionTimeout);
+		}
+	}
+
+	public int getTlsSessionCacheSize() {
+		return tlsSessionCacheSize;
+	}
+
+	public int getTlsSessionTimeout() {
+		return tlsSessionTimeout;
+	}
+
+	/**
+	 * @return true if the WebSocket channels negotiate permessage-deflate, see
+	 *         gov.nist.javax.sip.WEBSOCKET_PERMESSAGE_DEFLATE
+	 */
+	public boolean isWebSocketDeflate() {
+		return webSocketDeflate;
+	}
+
+	public int getWebSocketDeflateThreshold() {
+		return webSocketDeflateThreshold;
+	}
+
+	public boolean isWebSocketDeflateNoContextTakeover() {
+		return webSocketDeflateNoContextTakeover;
+	}
+
+	/**
+	 * @return the number of connections the NIO TCP and TLS processors keep to a
+	 *         destination, see gov.nist.javax.sip.CONNECTIONS_PER_DESTINATION
+	 */
+	public int getConnectionsPerDestination() {
+		return connectionsPerDestination;
+	}
+
+	/**
+	 * @return the bytes a NIO connection may queue, unbounded if not positive, see
+	 *         gov.nist.javax.sip.MAX_CONNECTION_PENDING_BYTES
+	 */
+	public long getMaxConnectionPendingBytes() {
+		return maxConnectionPendingBytes;
+	}
+
+	/**
+	 * @return the bytes the NIO connections may queue in total, unbounded if not positive, see
+	 *         gov.nist.javax.sip.MAX_PENDING_BYTES
+	 */
+	public long getMaxPendingBytes() {
+		return maxPendingBytes;
+	}
+
+	/**
+	 * @return true if a connection over its budget is closed, false if the message is refused
+	 */
+	public boolean isCloseCongestedConnections() {
+		return closeCongestedConnections;
+	}
+
+	/**
+	 * @return the bytes queued on a connection from which it is reported congested, see
+	 *         gov.nist.javax.sip.CONNECTION_WRITE_HIGH_WATER_MARK
+	 */
+	public long getConnectionWriteHighWaterMark() {
+		return connectionWriteHighWaterMark;
+	}
+
+	/**
+	 * @return the bytes queued on the NIO connections and not written yet
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * @return the manager of the keep-alive and idle timeouts of the connections
+	 */
+	public ConnectionLivenessManager getConnectionLivenessManager() {
+		return connectionLivenessManager;
+	}
+
+	/**
+	 * @return the interval in milliseconds of the CRLF pings sent on the NIO connections opened by the stack, see
+	 *         gov.nist.javax.sip.KEEP_ALIVE_PING_INTERVAL
+	 */
+	public long getKeepAlivePingInterval() {
+		return keepAlivePingInterval;
+	}
+
+	/**
+	 * @return the executor of the TLS handshakes of the NIO channels, with the handshake metrics
+	 */
+	public TlsHandshakeExecutor getTlsHandshakeExecutor() {
+		return tlsHandshakeExecutor;
+	}
+
+	/**
+	 * Indexes the tables on the first audit, the stack does not pay for the index unless it is audited.
+	 */
+	private synchronized void buildAuditIndexes() {
+		long now = System.currentTimeMillis();
+
+		if(dialogAges == null) {
+			AgeIndex ages = new AgeIndex();
+			dialogAges = ages;
 
-		if(leakedDialogs != null || leakedServerTransactions != null || leakedClientTransactions != null) {
-			auditReport = "SIP Stack Audit:\n" + (leakedDialogs != null ? leakedDialogs : "")
-					+ (leakedServerTransactions != null ? leakedServerTransactions : "")
-					+ (leakedClientTransactions != null ? leakedClientTransactions : "");
+			// the dialogs kept off heap are indexed without being loaded
+			dialogTable.forEachDialogId((dialogId, callId) -> ages.add(dialogId, callId, now));
 		}
 
-		return auditReport;
+		if(serverTransactionAges == null) {
+			serverTransactionAges = new AgeIndex();
+
+			for(String key : serverTransactionTable.keySet()) {
+				serverTransactionAges.add(key, null, now);
+			}
+		}
+
+		if(clientTransactionAges == null) {
+			clientTransactionAges = new AgeIndex();
+
+			for(String key : clientTransactionTable.keySet()) {
+				clientTransactionAges.add(key, null, now);
+			}
+		}
+	}
+
+	private static void index(AgeIndex ages, String key) {
+		if(ages != null) {
+			ages.add(key, null, System.currentTimeMillis());
+		}
+	}
+
+	private static void unindex(AgeIndex ages, String key) {
+		if(ages != null) {
+			ages.remove(key);
+		}
 	}
 
 	/**
-	 * Audits SIP dialogs for leaks - Compares the dialogs in the dialogTable with a list of Call IDs passed by the
+	 * Audits SIP dialogs for leaks - Compares the dialogs older than the timer with a list of Call IDs passed by the
 	 * application. - Dialogs that are not known by the application are leak suspects. - Kill the dialogs that are
 	 * still around after the timer specified.
 	 *
-	 * @return Audit report, null if no dialog leaks were found
+	 * @return the number of leaked dialogs found
 	 */
-	private String auditDialogs(Set activeCallIDs, long leakedDialogTimer) {
-		String auditReport = "  Leaked dialogs:\n";
+	private int auditDialogs(Set activeCallIDs, long leakedDialogTimer, Appendable auditReport, int leaks)
+			throws IOException {
+		AgeIndex ages = dialogAges;
+		if(ages == null) {
+			return 0;
+		}
+
 		int leakedDialogs = 0;
 		long currentTime = System.currentTimeMillis();
 
-		// Make a shallow copy of the dialog list.
-		// This copy will remain intact as leaked dialogs are removed by the
-		// stack.
-		LinkedList dialogs;
-		synchronized(dialogTable) {
-			dialogs = new LinkedList(dialogTable.values());
-		}
+		List<AgeIndex.Entry> suspects = new ArrayList<>();
+		ages.next(currentTime - leakedDialogTimer, auditBatchSize, suspects);
 
-		// Iterate through the dialogDialog, get the callID of each dialog and
-		// check if it's in the
-		// list of active calls passed by the application. If it isn't, start
-		// the timer on it.
-		// If the timer has expired, kill the dialog.
-		Iterator it = dialogs.iterator();
-		while (it.hasNext()) {
-			// Get the next dialog
-			SIPDialog itDialog = (SIPDialog) it.next();
+		for(AgeIndex.Entry suspect : suspects) {
+			// Check if the application knows about this call id
+			if(suspect.callId == null || activeCallIDs.contains(suspect.callId)) {
+				continue;
+			}
 
-			// Get the call id associated with this dialog
-			CallIdHeader callIdHeader = (itDialog != null ? itDialog.getCallId() : null);
-			String callID = (callIdHeader != null ? callIdHeader.getCallId() : null);
+			// Application doesn't know anything about this dialog...
+			if(suspect.auditTag == 0) {
+				// Mark this dialog as suspect
+				suspect.auditTag = currentTime;
 
-			// Check if the application knows about this call id
-			if (itDialog != null && callID != null && !activeCallIDs.contains(callID)) {
-				// Application doesn't know anything about this dialog...
-				if (itDialog.auditTag == 0) {
-					// Mark this dialog as suspect
-					itDialog.auditTag = currentTime;
-				} else {
-					// We already audited this dialog before. Check if his
-					// time's up.
-					if (currentTime - itDialog.auditTag >= leakedDialogTimer) {
-						// Leaked dialog found
-						leakedDialogs++;
-
-						// Generate report
-						DialogState dialogState = itDialog.getState();
-						String dialogReport = "dialog id: " + itDialog.getDialogId() + ", dialog state: "
-								+ (dialogState != null ? dialogState.toString() : "null");
-						auditReport += "    " + dialogReport + "\n";
-
-						// Kill it
-						itDialog.setState(SIPDialog.TERMINATED_STATE);
-
-						logger.log(Level.FINEST, "auditDialogs: leaked: {0}", dialogReport);
-					}
+				continue;
+			}
+
+			// We already audited this dialog before. Check if his time's up.
+			if(currentTime - suspect.auditTag < leakedDialogTimer) {
+				continue;
+			}
+
+			SIPDialog itDialog = dialogTable.get(suspect.key);
+			if(itDialog == null) {
+				ages.remove(suspect);
+
+				continue;
+			}
+
+			// already killed, it lingers before leaving the table
+			if(DialogState.TERMINATED.equals(itDialog.getState())) {
+				continue;
+			}
+
+			// Leaked dialog found
+			if(leakedDialogs == 0) {
+				if(leaks == 0) {
+					auditReport.append("SIP Stack Audit:\n");
 				}
+
+				auditReport.append("  Leaked dialogs:\n");
 			}
+
+			leakedDialogs++;
+
+			// Generate report
+			DialogState dialogState = itDialog.getState();
+			auditReport.append("    dialog id: ").append(itDialog.getDialogId()).append(", dialog state: ")
+					.append(dialogState != null ? dialogState.toString() : "null").append('\n');
+
+			// Kill it
+			itDialog.setState(SIPDialog.TERMINATED_STATE);
+
+			logger.log(Level.FINEST, "auditDialogs: leaked: {0}", itDialog.getDialogId());
 		}
 
-		// Return final report
 		if(0 < leakedDialogs) {
-			auditReport += "    Total: " + Integer.toString(leakedDialogs) + " leaked dialogs detected and removed.\n";
-		} else {
-			auditReport = null;
+			auditReport.append("    Total: ").append(Integer.toString(leakedDialogs))
+					.append(" leaked dialogs detected and removed.\n");
 		}
 
-		return auditReport;
+		return leakedDialogs;
 	}
 
 	/**
-	 * Audits SIP transactions for leaks
+	 * Audits SIP transactions for leaks, the transactions older than the timer are leaked.
 	 *
-	 * @return Audit report, null if no transaction leaks were found
+	 * @return the number of leaked transactions found
 	 */
-	private String auditTransactions(ConcurrentHashMap transactionsMap, long leakedTransactionTimer) {
-		String auditReport = "  Leaked transactions:\n";
+	private int auditTransactions(AgeIndex ages, Map<String, ? extends SIPTransaction> transactionsMap,
+			long leakedTransactionTimer, Appendable auditReport, int leaks) throws IOException {
+		if(ages == null) {
+			return 0;
+		}
+
 		int leakedTransactions = 0;
-		long currentTime = System.currentTimeMillis();
 
-		// Make a shallow copy of the transaction list.
-		// This copy will remain intact as leaked transactions are removed by
-		// the stack.
-		LinkedList transactionsList = new LinkedList(transactionsMap.values());
-
-		// Iterate through our copy
-		Iterator it = transactionsList.iterator();
-		while (it.hasNext()) {
-			SIPTransaction sipTransaction = (SIPTransaction) it.next();
-			if (sipTransaction != null) {
-				if (sipTransaction.getAuditTag() == 0) {
-					// First time we see this transaction. Mark it as audited.
-					sipTransaction.setAuditTag(currentTime);
-				} else {
-					// We've seen this transaction before. Check if his time's
-					// up.
-					if (currentTime - sipTransaction.getAuditTag() >= leakedTransactionTimer) {
-						// Leaked transaction found
-						leakedTransactions++;
-
-						// Generate some report
-						TransactionState transactionState = sipTransaction.getState();
-						SIPRequest origRequest = sipTransaction.getOriginalRequest();
-						String origRequestMethod = (origRequest != null ? origRequest.getMethod() : null);
-						String transactionReport = sipTransaction.getClass().getName() + ", state: "
-								+ (transactionState != null ? transactionState.toString() : "null") + ", OR: "
-								+ (origRequestMethod != null ? origRequestMethod : "null");
-						auditReport += "    " + transactionReport + "\n";
-
-						// Kill it
-						removeTransaction(sipTransaction);
-
-						logger.log(Level.FINEST, "auditTransactions: leaked: {0}", transactionReport);
-					}
+		List<AgeIndex.Entry> suspects = new ArrayList<>();
+		ages.next(System.currentTimeMillis() - leakedTransactionTimer, auditBatchSize, suspects);
+
+		for(AgeIndex.Entry suspect : suspects) {
+			SIPTransaction sipTransaction = transactionsMap.get(suspect.key);
+			if(sipTransaction == null) {
+				ages.remove(suspect);
+
+				continue;
+			}
+
+			// Leaked transaction found
+			if(leakedTransactions == 0) {
+				if(leaks == 0) {
+					auditReport.append("SIP Stack Audit:\n");
 				}
+
+				auditReport.append("  Leaked transactions:\n");
 			}
+
+			leakedTransactions++;
+
+			// Generate some report
+			TransactionState transactionState = sipTransaction.getState();
+			SIPRequest origRequest = sipTransaction.getOriginalRequest();
+			String origRequestMethod = (origRequest != null ? origRequest.getMethod() : null);
+			auditReport.append("    ").append(sipTransaction.getClass().getName()).append(", state: ")
+					.append(transactionState != null ? transactionState.toString() : "null").append(", OR: ")
+					.append(origRequestMethod != null ? origRequestMethod : "null").append('\n');
+
+			// Kill it
+			removeTransaction(sipTransaction);
+
+			// a transaction removed through another path than the table
+			ages.remove(suspect);
+
+			logger.log(Level.FINEST, "auditTransactions: leaked: {0}", sipTransaction);
 		}
 
-		// Return final report
 		if(leakedTransactions > 0) {
-			auditReport += "    Total: " + Integer.toString(leakedTransactions)
-					+ " leaked transactions detected and removed.\n";
-		} else {
-			auditReport = null;
+			auditReport.append("    Total: ").append(Integer.toString(leakedTransactions))
+					.append(" leaked transactions detected and removed.\n");
 		}
 
-		return auditReport;
+		return leakedTransactions;
 	}
 
 	public void setNon2XXAckPassedToListener(boolean passToListener) {
@@ -2476,24 +2978,39 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 	}
 
 	/**
-	 * @return -- the collection of dialogs matching the state that is being managed by the stack.
+	 * @return -- the collection of dialogs matching the state that is being managed by the stack, a copy of
+	 *         {@link #getDialogsView(DialogState)}.
 	 */
 	public Collection<Dialog> getDialogs(DialogState state) {
-		Set<Dialog> matchingDialogs = new HashSet<>();
-
-		if(DialogState.EARLY.equals(state)) {
-			matchingDialogs.addAll(this.earlyDialogTable.values());
-		} else {
-			Collection<SIPDialog> dialogs = dialogTable.values();
+		return new HashSet<>(getDialogsView(state));
+	}
 
-			for(SIPDialog dialog : dialogs) {
-				if(dialog.getState() != null && dialog.getState().equals(state)) {
-					matchingDialogs.add(dialog);
-				}
-			}
+	/**
+	 * @return a read-only view of the dialogs of the dialog table and of the early dialog table in a state, the
+	 *         confirmed dialogs include the ones kept off heap, see {@link SipStackExt#getDialogsView(DialogState)}
+	 */
+	public Collection<Dialog> getDialogsView(DialogState state) {
+		DialogStore store = dialogTable;
+		if(DialogState.CONFIRMED.equals(state) && store instanceof OffHeapDialogStore) {
+			return dialogStateIndex.confirmedView(((OffHeapDialogStore) store).getDormantView());
 		}
 
-		return matchingDialogs;
+		return dialogStateIndex.view(state);
+	}
+
+	/**
+	 * @return the number of dialogs in a state, the ones {@link #getDialogsView(DialogState)} lists, see
+	 *         {@link SipStackExt#getDialogCount(DialogState)}
+	 */
+	public int getDialogCount(DialogState state) {
+		return dialogStateIndex.count(state);
+	}
+
+	/**
+	 * Moves a dialog to the index of its new state.
+	 */
+	void dialogStateChanged(SIPDialog dialog) {
+		dialogStateIndex.update(dialog);
 	}
 
 	/**
@@ -2507,7 +3024,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 		String fromTag = replacesHeader.getFromTag();
 		String toTag = replacesHeader.getToTag();
 
-		for(SIPDialog dialog : this.dialogTable.values()) {
+		for(SIPDialog dialog : this.dialogTable.getByCallId(cid)) {
 			if(dialog.getCallId().getCallId().equals(cid) && fromTag.equalsIgnoreCase(dialog.lastResponseFromTag)
 					&& toTag.equalsIgnoreCase(dialog.lastResponseToTag)) {
 				return dialog;
@@ -2931,12 +3448,74 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 		this.earlyDialogTable = earlyDialogTable;
 	}
 
+	/**
+	 * @return a read-only view of the dialogs by dialog id, the dialogs are added and removed through the
+	 *         {@link DialogStore}
+	 * @deprecated use {@link #getDialogStore()}
+	 */
+	@Deprecated
 	public Map<String, SIPDialog> getDialogTable() {
-		return dialogTable;
+		return new DialogTableView(dialogTable);
 	}
 
+	/**
+	 * @deprecated use {@link #setDialogStore(DialogStore)}
+	 */
+	@Deprecated
 	public void setDialogTable(Map<String, SIPDialog> dialogTable) {
-		this.dialogTable = dialogTable;
+		setDialogStore(new HeapDialogStore(dialogTable));
+	}
+
+	/**
+	 * @return the replicator of the dialogs, null if the replication is disabled
+	 */
+	public DialogReplicator getDialogReplicator() {
+		return dialogReplicator;
+	}
+
+	/**
+	 * Records a change of a dialog for the replication.
+	 */
+	void replicateDialog(SIPDialog dialog) {
+		DialogReplicator replicator = dialogReplicator;
+		if(replicator != null) {
+			replicator.dialogUpdated(dialog);
+		}
+	}
+
+	/**
+	 * Records the end of a dialog for the replication.
+	 */
+	void replicateDialogRemoval(SIPDialog dialog) {
+		DialogReplicator replicator = dialogReplicator;
+		if(replicator != null) {
+			replicator.dialogRemoved(dialog);
+		}
+	}
+
+	public DialogStore getDialogStore() {
+		return dialogTable;
+	}
+
+	/**
+	 * Replaces the dialog table, the dialogs of the previous table are not carried over.
+	 */
+	public void setDialogStore(DialogStore dialogStore) {
+		DialogStore previous = this.dialogTable;
+
+		dialogStore.init(this);
+
+		this.dialogTable = dialogStore;
+
+		// built again by the next audit
+		this.dialogAges = null;
+
+		// the dialogs of the previous store are gone
+		this.dialogStateIndex.clear();
+
+		if(previous != null) {
+			previous.destroy();
+		}
 	}
 
 	/**
@@ -2,8 +2,12 @@ package gov.nist.javax.sip.stack;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,6 +16,7 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 
 /**
  * This is a helper state machine that negotiates the SSL connection automatically
@@ -21,6 +26,10 @@ import javax.net.ssl.SSLPeerUnverifiedException;
  * Other than that the state machine is able to handle partial chunks of SIP messages
  * and only supply them when they are ready to the original TCP channel once they are
  * decrypted.
+ *
+ * The delegated tasks of the handshake run on the {@link TlsHandshakeExecutor} of the
+ * stack, the inbound data is buffered meanwhile and the handshake resumes once they are
+ * done.
  */
 public class SSLStateMachine {
 	private static final Logger logger = Logger.getLogger(SSLStateMachine.class.getName());
@@ -31,19 +40,68 @@ public class SSLStateMachine {
 	protected Queue<MessageSendItem> pendingOutboundBuffers = new LinkedList<>();
 	protected NioTlsChannelInterface channel;
 	protected ByteBuffer tlsRecordBuffer;
+	// guarded by unwrapLock, the buffers of the unwrap in progress
+	private ByteBuffer appDataBuffer;
+	// the record buffers cleared during the unwrap, still read until its end
+	private final List<ByteBuffer> retiredRecordBuffers = new ArrayList<>(2);
+	// guarded by wrapLock, the buffer the wrap in progress encrypts into
+	private ByteBuffer wrapBuffer;
 	private Object unwrapLock = new Object();
 	private Object wrapLock = new Object();
 
+	// the delegated tasks run on the handshake executor, the engine waits for them
+	private final AtomicBoolean delegatedTasksRunning = new AtomicBoolean();
+	// set when the buffers are released from within a wrap, done once the wrap has ended
+	private volatile boolean releasePending;
+
+	private static final int HANDSHAKE_NOT_STARTED = 0;
+	private static final int HANDSHAKE_IN_PROGRESS = 1;
+	private static final int HANDSHAKE_DONE = 2;
+	private static final int HANDSHAKE_REFUSED = 3;
+
+	private final AtomicInteger handshakeState = new AtomicInteger(HANDSHAKE_NOT_STARTED);
+	private volatile long handshakeStartTime;
+	private volatile long handshakeStartMillis;
+
 	public SSLStateMachine(SSLEngine sslEngine, NioTlsChannelInterface channel) {
 		this.sslEngine = sslEngine;
 		this.channel = channel;
 	}
 
 	public void wrapRemaining() throws IOException {
-		wrap(null, channel.prepareEncryptedDataBuffer(), null);
+		wrap(null, null);
 	}
 
-	public void wrap(ByteBuffer src, ByteBuffer dst, MessageSendCallback callback) throws IOException {
+	/**
+	 * Wraps a message into buffers of the pool. Each record produced is handed over to the callback of its message,
+	 * which gives the buffer back once it has been written.
+	 */
+	public void wrap(ByteBuffer src, MessageSendCallback callback) throws IOException {
+		startHandshake();
+
+		synchronized(wrapLock) {
+			// the buffer of the wrap calling back into this one, if any
+			ByteBuffer enclosingBuffer = wrapBuffer;
+
+			wrapBuffer = channel.prepareEncryptedDataBuffer();
+
+			try {
+				wrapQueued(src, callback);
+			} finally {
+				ByteBufferFactory.getInstance().release(wrapBuffer);
+
+				wrapBuffer = enclosingBuffer;
+			}
+		}
+
+		if(releasePending && !Thread.holdsLock(wrapLock)) {
+			releasePending = false;
+
+			releaseBuffers();
+		}
+	}
+
+	private void wrapQueued(ByteBuffer src, MessageSendCallback callback) throws IOException {
 		synchronized(wrapLock) {
 			logger.log(Level.FINEST, "Wrapping {0}, buffers size {1}", new Object[] {
 					src, pendingOutboundBuffers.size() });
@@ -61,7 +119,11 @@ public class SSLStateMachine {
 
 				SSLEngineResult result;
 				try {
-					result = sslEngine.wrap(currentBuffer.message, dst);
+					result = sslEngine.wrap(currentBuffer.message, wrapBuffer);
+
+					if(result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+						handshakeFinished();
+					}
 
 					logger.log(Level.FINEST, "Wrap result {0} buffers size {1}", new Object[] { result,
 							pendingOutboundBuffers.size() });
@@ -82,21 +144,25 @@ public class SSLStateMachine {
 
 				if(0 < result.bytesProduced()) {
 					// produced > 0 means encryption was successful and we have something to send over the wire
-					dst.flip();
+					ByteBuffer dst = wrapBuffer;
 
-					byte[] bytes = new byte[dst.remaining()];
-
-					dst.get(bytes);
+					dst.flip();
 
 					if(currentBuffer.getCallBack() != null) {
 						// Send using message channel (it discriminates between client/server and new/old connections)
-						currentBuffer.getCallBack().doSend(bytes);
+						wrapBuffer = channel.prepareEncryptedDataBuffer();
+
+						currentBuffer.getCallBack().doSend(dst);
 					} else {
+						byte[] bytes = new byte[dst.remaining()];
+
+						dst.get(bytes);
+
 						// Send using the existing connection without attempting to guess client or server etc
 						sendSSLMetadata(bytes);
-					}
 
-					dst.clear();
+						dst.clear();
+					}
 				} else {
 					switch(result.getHandshakeStatus()) {
 					case NEED_WRAP:
@@ -108,7 +174,10 @@ public class SSLStateMachine {
 					case NEED_UNWRAP:
 						break loop;
 					case NEED_TASK:
-						runDelegatedTasks(result);
+						if(runDelegatedTasks(result)) {
+							// the queued messages are wrapped once the handshake resumes
+							break loop;
+						}
 						break;
 					case FINISHED:
 						// Added for https://java.net/jira/browse/JSIP-483 
@@ -155,12 +224,33 @@ public class SSLStateMachine {
 	}
 
 	private void wrapNonAppData() throws Exception {
-		ByteBuffer encryptedDataBuffer = channel.prepareEncryptedDataBuffer();
+		// a sender wrapping its message meanwhile would send its records out of order with the ones of the handshake
+		synchronized(wrapLock) {
+			ByteBuffer encryptedDataBuffer = channel.prepareEncryptedDataBuffer();
+
+			try {
+				wrapNonAppData(encryptedDataBuffer);
+			} finally {
+				ByteBufferFactory.getInstance().release(encryptedDataBuffer);
+			}
+		}
+
+		if(releasePending && !Thread.holdsLock(wrapLock)) {
+			releasePending = false;
+
+			releaseBuffers();
+		}
+	}
 
+	private void wrapNonAppData(ByteBuffer encryptedDataBuffer) throws Exception {
 		SSLEngineResult result;
 		loop: while(true) {
 			result = sslEngine.wrap(EMPTY_BUFFER, encryptedDataBuffer);
 
+			if(result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+				handshakeFinished();
+			}
+
 			logger.log(Level.FINEST, "NonAppWrap result {0} buffers size {1}", new Object[] { result,
 					pendingOutboundBuffers.size() });
 
@@ -215,9 +305,14 @@ public class SSLStateMachine {
 					}
 				}
 
+				// the handshake ends with a message of this side, as the resumed ones, the queued messages go now
+				wrapRemaining();
+
 				break;
 			case NEED_TASK:
-				runDelegatedTasks(result);
+				if(runDelegatedTasks(result)) {
+					return;
+				}
 
 				break;
 			}
@@ -229,7 +324,87 @@ public class SSLStateMachine {
 	}
 
 	public void unwrap(ByteBuffer src) throws Exception {
-		unwrap(src, channel.prepareAppDataBuffer());
+		startHandshake();
+
+		synchronized(unwrapLock) {
+			appDataBuffer = channel.prepareAppDataBuffer();
+
+			try {
+				unwrap(src, appDataBuffer);
+			} finally {
+				ByteBufferFactory.getInstance().release(appDataBuffer);
+				appDataBuffer = null;
+
+				// the record buffers may have been read until the end of the unwrap
+				for(ByteBuffer retiredRecordBuffer : retiredRecordBuffers) {
+					if(retiredRecordBuffer != tlsRecordBuffer) {
+						ByteBufferFactory.getInstance().release(retiredRecordBuffer);
+					}
+				}
+
+				retiredRecordBuffers.clear();
+			}
+		}
+	}
+
+	/**
+	 * Gives the buffers back to the pool when the channel is closed.
+	 */
+	public void releaseBuffers() {
+		if(handshakeState.compareAndSet(HANDSHAKE_IN_PROGRESS, HANDSHAKE_DONE)) {
+			getHandshakeExecutor().handshakeFailed();
+		}
+
+		if(Thread.holdsLock(wrapLock)) {
+			// an unwrap holding its lock may be waiting for the wrap lock
+			releasePending = true;
+
+			return;
+		}
+
+		synchronized(unwrapLock) {
+			ByteBufferFactory.getInstance().release(tlsRecordBuffer);
+			tlsRecordBuffer = null;
+		}
+	}
+
+	/**
+	 * Counts the handshake of the engine, the first wrap or unwrap starts it.
+	 */
+	private void startHandshake() throws IOException {
+		int state = handshakeState.get();
+
+		if(state == HANDSHAKE_NOT_STARTED && handshakeState.compareAndSet(HANDSHAKE_NOT_STARTED,
+				HANDSHAKE_IN_PROGRESS)) {
+			handshakeStartTime = System.nanoTime();
+			handshakeStartMillis = System.currentTimeMillis();
+
+			if(!getHandshakeExecutor().handshakeStarted()) {
+				handshakeState.set(HANDSHAKE_REFUSED);
+
+				state = HANDSHAKE_REFUSED;
+			}
+		}
+
+		if(state == HANDSHAKE_REFUSED) {
+			throw new IOException("Too many concurrent TLS handshakes");
+		}
+	}
+
+	private void handshakeFinished() {
+		if(handshakeState.compareAndSet(HANDSHAKE_IN_PROGRESS, HANDSHAKE_DONE)) {
+			boolean client = sslEngine.getUseClientMode();
+			SSLSession session = sslEngine.getSession();
+
+			// a resumed session has been created by an earlier handshake
+			boolean resumed = client && session != null && session.getCreationTime() < handshakeStartMillis;
+
+			getHandshakeExecutor().handshakeCompleted(System.nanoTime() - handshakeStartTime, client, resumed);
+		}
+	}
+
+	private TlsHandshakeExecutor getHandshakeExecutor() {
+		return channel.getSIPStack().getTlsHandshakeExecutor();
 	}
 
 	private void startBuffer(ByteBuffer src) {
@@ -237,7 +412,7 @@ public class SSLStateMachine {
 
 			// Begin buffering, if there is already a buffer the normalization will take of adding the bytes
 			// max record size in other implementations
-			tlsRecordBuffer = ByteBufferFactory.getInstance().allocateDirect(33270); 
+			tlsRecordBuffer = ByteBufferFactory.getInstance().acquire(Math.max(33270, src.remaining()));
 
 			// Append the current buffer
 			tlsRecordBuffer.put(src);
@@ -251,6 +426,10 @@ public class SSLStateMachine {
 	}
 
 	private void clearBuffer() {
+		if(tlsRecordBuffer != null) {
+			retiredRecordBuffers.add(tlsRecordBuffer);
+		}
+
 		tlsRecordBuffer = null;
 
 		logger.log(Level.FINEST, "Buffer cleared");
@@ -263,6 +442,18 @@ public class SSLStateMachine {
 
 		logger.log(Level.FINEST, "Normalize buffer {0} into record buffer {1}", new Object[] { src, tlsRecordBuffer });
 
+		if(tlsRecordBuffer.capacity() - tlsRecordBuffer.limit() < src.remaining()) {
+			// the data kept while the delegated tasks run may not fit
+			ByteBuffer larger = ByteBufferFactory.getInstance().acquire(tlsRecordBuffer.remaining() + src.remaining());
+
+			larger.put(tlsRecordBuffer);
+			larger.flip();
+
+			ByteBufferFactory.getInstance().release(tlsRecordBuffer);
+
+			tlsRecordBuffer = larger;
+		}
+
 		// Reverse flip() to prepare the buffer to writing in append mode
 		tlsRecordBuffer.position(tlsRecordBuffer.limit());
 		tlsRecordBuffer.limit(tlsRecordBuffer.capacity());
@@ -281,6 +472,13 @@ public class SSLStateMachine {
 			loop: while(true) {
 				src = normalizeTlsRecordBuffer(src);
 
+				if(delegatedTasksRunning.get()) {
+					// keep the data for the unwrap resuming the handshake once the tasks are done
+					startBuffer(src);
+
+					break;
+				}
+
 				logger.log(Level.FINEST, "Unwrap src: {0}, dst: {1}", new Object[] { src, dst });
 
 				SSLEngineResult result = null;
@@ -291,6 +489,10 @@ public class SSLStateMachine {
 				 */
 				result = sslEngine.unwrap(src, dst);
 
+				if(result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+					handshakeFinished();
+				}
+
 				logger.log(Level.FINEST, "Unwrap result {0}, buffers size: {1}, src: {2}, dst: {3}", new Object[] {
 						result, pendingOutboundBuffers.size(), src, dst});
 
@@ -319,7 +521,10 @@ public class SSLStateMachine {
 
 					newBuf.put(dst);
 
+					ByteBufferFactory.getInstance().release(dst);
+
 					dst = newBuf;
+					appDataBuffer = newBuf;
 
 					logger.log(Level.FINEST, "new outNetBuffer remaining: {0}, new outNetBuffer postion: {1}",
 							new Object[] { dst.remaining(), dst.position() });
@@ -354,7 +559,11 @@ public class SSLStateMachine {
 					wrapNonAppData();
 					break;
 				case NEED_TASK:
-					runDelegatedTasks(result);
+					if(runDelegatedTasks(result)) {
+						startBuffer(src);
+
+						break loop;
+					}
 					break;
 				case FINISHED:
 					logger.log(Level.FINEST, "Handshaking just finnished, but has remaining. Will try to wrap"
@@ -429,7 +638,11 @@ public class SSLStateMachine {
 		}
 	}
 
-	private void runDelegatedTasks(SSLEngineResult result) throws IOException {
+	/*
+	 * Returns true if the tasks have been handed to the handshake executor, the caller stops driving the engine
+	 * until they are done.
+	 */
+	private boolean runDelegatedTasks(SSLEngineResult result) throws IOException {
 		logger.log(Level.FINEST, "Running delegated task for {0}", result);
 
 		/*
@@ -437,6 +650,20 @@ public class SSLStateMachine {
 		 *  Call them every time they have NEED_TASK otherwise the sslEngine won't make progress
 		 */
 		if(result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			if(delegatedTasksRunning.get()) {
+				return true;
+			}
+
+			TlsHandshakeExecutor executor = getHandshakeExecutor();
+
+			if(executor.isOffloading() && delegatedTasksRunning.compareAndSet(false, true)) {
+				if(executor.execute(this::runDelegatedTasksAndResume)) {
+					return true;
+				}
+
+				delegatedTasksRunning.set(false);
+			}
+
 			Runnable runnable;
 			while((runnable = sslEngine.getDelegatedTask()) != null) {
 				runnable.run();
@@ -450,6 +677,38 @@ public class SSLStateMachine {
 				throw new IOException("handshake shouldn't need additional tasks");
 			}
 		}
+
+		return false;
+	}
+
+	/*
+	 * Runs on the handshake executor.
+	 */
+	private void runDelegatedTasksAndResume() {
+		try {
+			Runnable runnable;
+			while((runnable = sslEngine.getDelegatedTask()) != null) {
+				runnable.run();
+
+				getHandshakeExecutor().delegatedTaskRun();
+			}
+		} finally {
+			delegatedTasksRunning.set(false);
+		}
+
+		logger.log(Level.FINEST, "Handshake status after delegated tasks {0}", sslEngine.getHandshakeStatus());
+
+		try {
+			// go on with the data received meanwhile, wrapping the handshake messages and the queued messages
+			unwrap(EMPTY_BUFFER);
+			wrapRemaining();
+		} catch(Exception ex) {
+			logger.log(Level.FINEST, "Could not resume the handshake, closing the channel", ex);
+
+			if(channel instanceof MessageChannel) {
+				((MessageChannel) channel).close();
+			}
+		}
 	}
 
 	public void sendSSLMetadata(byte[] msg) throws IOException {
@@ -458,6 +717,20 @@ public class SSLStateMachine {
 
 	public static interface MessageSendCallback {
 		public void doSend(byte[] bytes) throws IOException;
+
+		/**
+		 * Sends an encrypted record held in a buffer of the {@link ByteBufferFactory} pool, the callback takes over
+		 * the buffer and gives it back to the pool. Copies the record to {@link #doSend(byte[])} unless overridden.
+		 */
+		public default void doSend(ByteBuffer buffer) throws IOException {
+			byte[] bytes = new byte[buffer.remaining()];
+
+			buffer.get(bytes);
+
+			ByteBufferFactory.getInstance().release(buffer);
+
+			doSend(bytes);
+		}
 	}
 
 	/**
@@ -63,10 +63,9 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
 		myClientInputStream = mySock.getInputStream();
 		myClientOutputStream = mySock.getOutputStream();
 
-		mythread = new Thread(this);
+		mythread = sipStack.newThread(this, threadName);
 
 		mythread.setDaemon(true);
-		mythread.setName(threadName);
 
 		this.peerPort = mySock.getPort();
 		this.key = MessageChannel.getKey(peerAddress, peerPort, "TCP");
@@ -254,10 +253,9 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
 					this.myClientInputStream = mySock.getInputStream();
 					this.myClientOutputStream = mySock.getOutputStream();
 
-					Thread thread = new Thread(this);
+					Thread thread = sipStack.newThread(this, "TCPMessageChannelThread");
 
 					thread.setDaemon(true);
-					thread.setName("TCPMessageChannelThread");
 
 					thread.start();
 				}
@@ -365,10 +363,9 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
 				this.myClientOutputStream = mySock.getOutputStream();
 
 				// start a new reader on this end of the pipe.
-				Thread mythread = new Thread(this);
+				Thread mythread = sipStack.newThread(this, "TCPMessageChannelThread");
 
 				mythread.setDaemon(true);
-				mythread.setName("TCPMessageChannelThread");
 
 				mythread.start();
 			} else {
@@ -72,9 +72,8 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
 		myAddress = msgProcessor.getIpAddress().getHostAddress();
 		myClientInputStream = mySock.getInputStream();
 
-		mythread = new Thread(this);
+		mythread = sipStack.newThread(this, threadName);
 		mythread.setDaemon(true);
-		mythread.setName(threadName);
 
 		this.myPort = msgProcessor.getPort();
 		this.peerPort = mySock.getPort();
@@ -258,10 +257,9 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
 
 					this.myClientInputStream = mySock.getInputStream();
 
-					Thread thread = new Thread(this);
+					Thread thread = sipStack.newThread(this, "TCPMessageChannelThread");
 
 					thread.setDaemon(true);
-					thread.setName("TCPMessageChannelThread");
 					thread.start();
 				}
 			} else {
@@ -372,10 +370,9 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
 				this.myClientInputStream = mySock.getInputStream();
 
 				// start a new reader on this end of the pipe.
-				Thread mythread = new Thread(this);
+				Thread mythread = sipStack.newThread(this, "TCPMessageChannelThread");
 
 				mythread.setDaemon(true);
-				mythread.setName("TCPMessageChannelThread");
 				mythread.start();
 			} else {
 				logger.log(Level.WARNING, "There was an exception for the retry mechanism so not creating a new"
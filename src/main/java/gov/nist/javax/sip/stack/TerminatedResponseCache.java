@@ -0,0 +1,268 @@
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.address.Hop;
+import javax.sip.message.Request;
+
+/**
+ * Keeps the final response of the server transactions removed from the transaction table for 64*T1, so that a late
+ * retransmission of their request is answered with the same bytes instead of creating a new server transaction and
+ * reaching the application again. Only the transactions over unreliable transports are kept, the reliable ones are
+ * not retransmitted by the client transaction.
+ *
+ * Entries are expired by a timing wheel of T1 wide slots. The wheel has no thread of its own, it is advanced by the
+ * callers of {@link #put(SIPServerTransactionImpl)} and {@link #resend(String, String, String)}, so an idle stack
+ * keeps its last entries until the next message. The number of entries is bounded, when the cache is full new
+ * entries are refused rather than older ones evicted.
+ */
+public class TerminatedResponseCache {
+	private static final Logger logger = Logger.getLogger(TerminatedResponseCache.class.getName());
+
+	// a power of two larger than the 64 slots an entry can live for
+	private static final int WHEEL_SIZE = 128;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	private static final int LIFETIME_TICKS = 64;
+
+	private final SIPTransactionStack sipStack;
+	private final int maxEntries;
+	private final long tick;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final ConcurrentLinkedQueue<Entry>[] wheel;
+
+	// the last tick whose slot has been expired
+	private volatile long wheelTick;
+
+	private final AtomicLong answeredRetransmissions = new AtomicLong();
+	private final AtomicLong refusedEntries = new AtomicLong();
+
+	/**
+	 * The final response of a removed transaction and where it has been sent.
+	 */
+	private static final class Entry {
+		final String transactionId;
+		final String method;
+		final String callId;
+		final byte[] response;
+		final String host;
+		final int port;
+		final String transport;
+		final String sourceAddress;
+		final int sourcePort;
+		final long expiryTick;
+
+		Entry(String transactionId, String method, String callId, byte[] response, String host, int port,
+				String transport, String sourceAddress, int sourcePort, long expiryTick) {
+			this.transactionId = transactionId;
+			this.method = method;
+			this.callId = callId;
+			this.response = response;
+			this.host = host;
+			this.port = port;
+			this.transport = transport;
+			this.sourceAddress = sourceAddress;
+			this.sourcePort = sourcePort;
+			this.expiryTick = expiryTick;
+		}
+	}
+
+	/**
+	 * @param sipStack the stack sending the cached responses
+	 * @param maxEntries the maximum number of responses kept
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public TerminatedResponseCache(SIPTransactionStack sipStack, int maxEntries) {
+		if(maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		}
+
+		this.sipStack = sipStack;
+		this.maxEntries = maxEntries;
+		this.tick = SIPTransactionStack.BASE_TIMER_INTERVAL;
+
+		this.wheel = new ConcurrentLinkedQueue[WHEEL_SIZE];
+		for(int i = 0; i < WHEEL_SIZE; i++) {
+			wheel[i] = new ConcurrentLinkedQueue<>();
+		}
+
+		this.wheelTick = System.currentTimeMillis() / tick;
+	}
+
+	/**
+	 * Keeps the final response of a server transaction being removed from the transaction table. Transactions over
+	 * reliable transports, ACK transactions and transactions without a final response are ignored.
+	 *
+	 * @return <code>true</code> if the response is kept, <code>false</code> if the transaction is ignored or the
+	 *         cache is full
+	 */
+	public boolean put(SIPServerTransactionImpl transaction) {
+		long now = advance();
+
+		byte[] response = transaction.getLastResponseAsBytes();
+		String host = transaction.getLastResponseHost();
+
+		if(response == null || host == null || transaction.isReliable()
+				|| transaction.getLastResponseStatusCode() < 200 || Request.ACK.equals(transaction.getMethod())) {
+			return false;
+		}
+
+		// already kept when Timer J fired
+		Entry existing = entries.get(transaction.getTransactionId());
+		if(existing != null && existing.response == response) {
+			return true;
+		}
+
+		if(entries.size() >= maxEntries) {
+			refusedEntries.incrementAndGet();
+
+			logger.log(Level.FINEST, "terminated response cache full, not keeping the response of {0}", transaction);
+
+			return false;
+		}
+
+		String transport = transaction.getLastResponseTransport();
+
+		long lifetime = (long) LIFETIME_TICKS * transaction.getBaseTimerInterval();
+		long ticks = Math.min(WHEEL_SIZE - 1, Math.max(1, (lifetime + tick - 1) / tick));
+
+		Entry entry = new Entry(transaction.getTransactionId(), transaction.getMethod(),
+				transaction.getOriginalRequestCallId(), response, host, transaction.getLastResponsePort(), transport,
+				transaction.getSipProvider().getListeningPoint(transport).getIPAddress(), transaction.getPort(),
+				now / tick + ticks);
+
+		entries.put(entry.transactionId, entry);
+		wheel[(int) (entry.expiryTick & WHEEL_MASK)].offer(entry);
+
+		return true;
+	}
+
+	/**
+	 * Answers a retransmission of the request of a removed transaction with its cached final response.
+	 *
+	 * @param transactionId the transaction id of the request, see SIPMessage#getTransactionId()
+	 * @param method the request method
+	 * @param callId the Call-ID of the request
+	 * @return <code>true</code> if the request matched a cached response which has been sent, the caller must not
+	 *         process the request any further
+	 */
+	public boolean resend(String transactionId, String method, String callId) {
+		advance();
+
+		Entry entry = entries.get(transactionId);
+		if(entry == null || entry.expiryTick <= wheelTick || !entry.method.equals(method)
+				|| !entry.callId.equals(callId)) {
+			return false;
+		}
+
+		try {
+			Hop hop = sipStack.addressResolver.resolveAddress(new HopImpl(entry.host, entry.port, entry.transport));
+
+			MessageChannel messageChannel = sipStack.createRawMessageChannel(entry.sourceAddress, entry.sourcePort,
+					hop);
+
+			if(messageChannel == null) {
+				throw new IOException("Could not create a message channel for " + hop + " with source IP:Port "
+						+ entry.sourceAddress + ":" + entry.sourcePort);
+			}
+
+			messageChannel.sendMessage(entry.response, InetAddress.getByName(hop.getHost()), hop.getPort(), false);
+		} catch(IOException ex) {
+			logger.log(Level.FINEST, "could not resend the cached response of " + transactionId, ex);
+		}
+
+		answeredRetransmissions.incrementAndGet();
+
+		return true;
+	}
+
+	/**
+	 * @return the number of responses currently kept
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return the number of retransmissions answered from the cache
+	 */
+	public long getAnsweredRetransmissions() {
+		return answeredRetransmissions.get();
+	}
+
+	/**
+	 * @return the number of responses not kept because the cache was full
+	 */
+	public long getRefusedEntries() {
+		return refusedEntries.get();
+	}
+
+	/**
+	 * Expires the slots of the ticks elapsed since the last call.
+	 *
+	 * @return the current time in milliseconds
+	 */
+	private long advance() {
+		long now = System.currentTimeMillis();
+		long target = now / tick;
+
+		if(target <= wheelTick) {
+			return now;
+		}
+
+		synchronized(wheel) {
+			long current = wheelTick;
+
+			// past a full turn every slot is due, no need to visit the same slot twice
+			if(target - current > WHEEL_SIZE) {
+				current = target - WHEEL_SIZE;
+			}
+
+			while(current < target) {
+				current++;
+
+				expire(wheel[(int) (current & WHEEL_MASK)], target);
+			}
+
+			wheelTick = target;
+		}
+
+		return now;
+	}
+
+	private void expire(ConcurrentLinkedQueue<Entry> slot, long target) {
+		List<Entry> pending = null;
+
+		Entry entry;
+		while((entry = slot.poll()) != null) {
+			if(entry.expiryTick > target) {
+				// queued by a concurrent put for the next turn of the wheel
+				if(pending == null) {
+					pending = new ArrayList<>();
+				}
+
+				pending.add(entry);
+			} else {
+				entries.remove(entry.transactionId, entry);
+			}
+		}
+
+		if(pending != null) {
+			slot.addAll(pending);
+		}
+	}
+}
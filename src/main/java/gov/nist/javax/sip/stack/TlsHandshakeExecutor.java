@@ -0,0 +1,220 @@
+package gov.nist.javax.sip.stack;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import gov.nist.core.NamingThreadFactory;
+
+/**
+ * Runs the delegated tasks of the TLS handshakes of the NIO channels, the key exchange and certificate work, off the
+ * selector thread, and keeps the handshake metrics.
+ *
+ * The pool and its queue are bounded, a task which does not fit is run by the thread asking for it as it was before.
+ * The number of handshakes in progress can be capped, a connection starting a handshake beyond the cap is closed.
+ *
+ * The counters are cumulative, sample them twice to get a handshake rate. The outbound handshakes resuming a session
+ * of the client session cache, see gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE, are counted apart to give the
+ * resumption hit rate.
+ */
+public class TlsHandshakeExecutor {
+	private static final int QUEUE_SIZE = 1024;
+
+	private final ThreadPoolExecutor executor;
+
+	private volatile int maxConcurrentHandshakes;
+
+	private final AtomicInteger handshakesInProgress = new AtomicInteger();
+	private final AtomicLong handshakesStarted = new AtomicLong();
+	private final AtomicLong handshakesCompleted = new AtomicLong();
+	private final AtomicLong handshakesFailed = new AtomicLong();
+	private final AtomicLong handshakesRejected = new AtomicLong();
+	private final AtomicLong clientHandshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+	private final AtomicLong delegatedTasks = new AtomicLong();
+	private final AtomicLong totalHandshakeNanos = new AtomicLong();
+	private final LongAccumulator maxHandshakeNanos = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param threads the number of threads running the delegated tasks, 0 to run them on the channel threads
+	 * @param maxConcurrentHandshakes the largest number of handshakes in progress, 0 for no limit
+	 */
+	public TlsHandshakeExecutor(int threads, int maxConcurrentHandshakes) {
+		this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+
+		if(threads > 0) {
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(QUEUE_SIZE), new NamingThreadFactory("jain_sip_tls_handshake"));
+			executor.allowCoreThreadTimeOut(true);
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * @return true if the delegated tasks run on the handshake threads
+	 */
+	public boolean isOffloading() {
+		return executor != null;
+	}
+
+	/**
+	 * Runs a task on the handshake threads.
+	 *
+	 * @return false if the task has not been accepted and must be run by the caller
+	 */
+	boolean execute(Runnable task) {
+		if(executor == null) {
+			return false;
+		}
+
+		try {
+			executor.execute(task);
+		} catch(RejectedExecutionException ex) {
+			return false;
+		}
+
+		return true;
+	}
+
+	void delegatedTaskRun() {
+		delegatedTasks.incrementAndGet();
+	}
+
+	/**
+	 * @return false if the handshake is beyond the cap and must be refused
+	 */
+	boolean handshakeStarted() {
+		int max = maxConcurrentHandshakes;
+
+		if(handshakesInProgress.incrementAndGet() > max && max > 0) {
+			handshakesInProgress.decrementAndGet();
+			handshakesRejected.incrementAndGet();
+
+			return false;
+		}
+
+		handshakesStarted.incrementAndGet();
+
+		return true;
+	}
+
+	void handshakeCompleted(long nanos, boolean client, boolean resumed) {
+		if(client) {
+			clientHandshakes.incrementAndGet();
+		}
+
+		if(resumed) {
+			resumedHandshakes.incrementAndGet();
+		}
+
+		handshakesInProgress.decrementAndGet();
+		handshakesCompleted.incrementAndGet();
+		totalHandshakeNanos.addAndGet(nanos);
+		maxHandshakeNanos.accumulate(nanos);
+	}
+
+	void handshakeFailed() {
+		handshakesInProgress.decrementAndGet();
+		handshakesFailed.incrementAndGet();
+	}
+
+	public void shutdown() {
+		if(executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	public void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+		this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+	}
+
+	public int getMaxConcurrentHandshakes() {
+		return maxConcurrentHandshakes;
+	}
+
+	/**
+	 * @return the number of handshakes started and neither completed nor failed yet
+	 */
+	public int getHandshakesInProgress() {
+		return handshakesInProgress.get();
+	}
+
+	/**
+	 * @return the number of handshakes started
+	 */
+	public long getHandshakesStarted() {
+		return handshakesStarted.get();
+	}
+
+	/**
+	 * @return the number of handshakes completed
+	 */
+	public long getHandshakesCompleted() {
+		return handshakesCompleted.get();
+	}
+
+	/**
+	 * @return the number of handshakes given up, the connection closed before the handshake completed
+	 */
+	public long getHandshakesFailed() {
+		return handshakesFailed.get();
+	}
+
+	/**
+	 * @return the number of handshakes refused because of the cap
+	 */
+	public long getHandshakesRejected() {
+		return handshakesRejected.get();
+	}
+
+	/**
+	 * @return the number of outbound handshakes completed
+	 */
+	public long getClientHandshakes() {
+		return clientHandshakes.get();
+	}
+
+	/**
+	 * @return the number of outbound handshakes completed by resuming a cached session
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * @return the share of the outbound handshakes which resumed a cached session, between 0 and 1
+	 */
+	public double getResumptionHitRate() {
+		long client = clientHandshakes.get();
+
+		return client == 0 ? 0 : (double) resumedHandshakes.get() / client;
+	}
+
+	/**
+	 * @return the number of delegated tasks run on the handshake threads
+	 */
+	public long getDelegatedTasks() {
+		return delegatedTasks.get();
+	}
+
+	/**
+	 * @return the average duration of the completed handshakes in milliseconds
+	 */
+	public double getAverageHandshakeMillis() {
+		long completed = handshakesCompleted.get();
+
+		return completed == 0 ? 0 : totalHandshakeNanos.get() / 1e6 / completed;
+	}
+
+	/**
+	 * @return the longest duration of a completed handshake in milliseconds
+	 */
+	public double getMaxHandshakeMillis() {
+		return maxHandshakeNanos.get() / 1e6;
+	}
+}
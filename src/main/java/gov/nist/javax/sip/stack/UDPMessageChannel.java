@@ -26,7 +26,6 @@ import java.net.Socket;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.Arrays;
-import java.util.Hashtable;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -79,33 +78,6 @@ public class UDPMessageChannel extends MessageChannel implements ParseExceptionL
 	private long receptionTime;
 	private Thread mythread = null;
 
-	/*
-	 * A table that keeps track of when the last ping back was sent to a given remote
-	 * IP address and port. This is for NAT compensation. This stays in the table
-	 * for 1 seconds and prevents infinite loop. If a second ping back happens in
-	 * that period of time, it will be dropped.
-	 */
-	private static Hashtable<String, PingBackTimerTask> pingBackRecord = new Hashtable<>();
-
-	class PingBackTimerTask extends SIPStackTimerTask {
-		String ipAddress;
-		int port;
-
-		public PingBackTimerTask(String ipAddress, int port) {
-			this.ipAddress = ipAddress;
-			this.port = port;
-		}
-
-		public void runTask() {
-			pingBackRecord.remove(ipAddress + ":" + port);
-		}
-
-		@Override
-		public int hashCode() {
-			return (ipAddress + ":" + port).hashCode();
-		}
-	}
-
 	/**
 	 * Constructor - takes a datagram packet and a stack structure Extracts the
 	 * address of the other from the datagram packet and stashes away the pointer to
@@ -267,10 +239,19 @@ public class UDPMessageChannel extends MessageChannel implements ParseExceptionL
 		logger.log(Level.FINEST, "UDPMessageChannel: processIncomingDataPacket : peerAddress: {0}/{1} Length: {2}",
 				new Object[] { peerAddress.getHostAddress(), packet.getPort(), packetLength });
 
+		RetransmissionFilter retransmissionFilter = sipStack.getRetransmissionFilter();
+		if(retransmissionFilter != null && retransmissionFilter.absorb(msgBytes)) {
+			return;
+		}
+
 		SIPMessage sipMessage = null;
 		try {
 			this.receptionTime = System.currentTimeMillis();
 			sipMessage = myParser.parseSIPMessage(msgBytes, true, false, this);
+
+			if(sipMessage != null && sipStack.isRetainReceivedMessageBytes()) {
+				sipMessage.setRawMessage(msgBytes);
+			}
 			/* @see Issue 292 */
 			if (sipMessage instanceof SIPRequest) {
 				String sipVersion = ((SIPRequest) sipMessage).getRequestLine().getSipVersion();
@@ -330,16 +311,16 @@ public class UDPMessageChannel extends MessageChannel implements ParseExceptionL
 		if(null == sipMessage) {
 			logger.log(Level.FINEST, "Rejecting message !  + Null message parsed.");
 
-			String key = packet.getAddress().getHostAddress() + ":" + packet.getPort();
-			if(pingBackRecord.get(key) == null && sipStack.getMinKeepAliveInterval() > 0) {
+			/*
+			 * A ping is sent back to an address at most once per interval for NAT compensation, so that two stacks
+			 * don't ping each other back forever.
+			 */
+			if(sipStack.getMinKeepAliveInterval() > 0 && sipStack.getConnectionLivenessManager()
+					.acquirePingBack(packet.getAddress().getHostAddress(), packet.getPort(),
+							sipStack.getMinKeepAliveInterval() * 1000)) {
 				byte[] retval = "\r\n\r\n".getBytes();
 				DatagramPacket keepalive = new DatagramPacket(retval, 0, retval.length, packet.getAddress(),
 						packet.getPort());
-				PingBackTimerTask task = new PingBackTimerTask(packet.getAddress().getHostAddress(), packet.getPort());
-
-				pingBackRecord.put(key, task);
-
-				sipStack.getTimer().schedule(task, sipStack.getMinKeepAliveInterval() * 1000);
 
 				((UDPMessageProcessor) this.messageProcessor).sock.send(keepalive);
 			} else {
@@ -406,6 +387,26 @@ public class UDPMessageChannel extends MessageChannel implements ParseExceptionL
 			this.peerProtocol = topMostVia.getTransport();
 		}
 
+		KeyedSerialExecutor<String> callIdExecutor = sipStack.getCallIdExecutor();
+		if(callIdExecutor != null && sipMessage.getCallId() != null) {
+			/*
+			 * This channel is reused for the next datagram so the message is processed on the mailbox of its call
+			 * with a copy of the current peer information.
+			 */
+			final UDPMessageChannel channel = copyForDispatch();
+			final SIPMessage message = sipMessage;
+
+			callIdExecutor.execute(sipMessage.getCallId().getCallId(), () -> {
+				channel.processMessage(message);
+
+				if(sipStack.sipEventInterceptor != null) {
+					sipStack.sipEventInterceptor.afterMessage(message);
+				}
+			});
+
+			return;
+		}
+
 		this.processMessage(sipMessage);
 
 		if(sipStack.sipEventInterceptor != null) {
@@ -413,6 +414,21 @@ public class UDPMessageChannel extends MessageChannel implements ParseExceptionL
 		}
 	}
 
+	/**
+	 * Creates a channel holding the peer information of the datagram being processed.
+	 */
+	private UDPMessageChannel copyForDispatch() {
+		UDPMessageChannel channel = new UDPMessageChannel(peerAddress, peerPort, sipStack,
+				(UDPMessageProcessor) messageProcessor);
+
+		channel.peerPacketSourceAddress = this.peerPacketSourceAddress;
+		channel.peerPacketSourcePort = this.peerPacketSourcePort;
+		channel.peerProtocol = this.peerProtocol;
+		channel.receptionTime = this.receptionTime;
+
+		return channel;
+	}
+
 	/**
 	 * Actually process the parsed message.
 	 *
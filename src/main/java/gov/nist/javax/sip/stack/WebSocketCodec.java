@@ -2,6 +2,8 @@ package gov.nist.javax.sip.stack;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,72 +35,133 @@ public class WebSocketCodec {
 	private final boolean maskedPayload;
 	private boolean closeOpcodeReceived;
 
-	
-	// THe payload inside the websocket frame starts at this index
-	private int payloadStartIndex = -1;
+	// the permessage-deflate extension negotiated by the connection, if any
+	private volatile PerMessageDeflate perMessageDeflate;
 
-	// Buffering incomplete and overflowing frames
+	
+	// Buffering incomplete and overflowing frames, the bytes between readIndex and writeIndex are not decoded yet
 	private byte[] decodeBuffer = new byte[2048];
 	private int writeIndex = 0;
 	private int readIndex;
-	
-	// Total webscoket frame (metadata + payload)
-	private long totalPacketLength = -1;
 
+	// Total websocket frame (metadata + payload) of the last frame decoded
+	private int frameLength;
 
 	public WebSocketCodec(boolean maskedPayload, boolean allowExtensions) {
 
 		this.maskedPayload = maskedPayload;
 		this.allowExtensions = allowExtensions;
 	}
-	private byte readNextByte() {
-		if(readIndex >= writeIndex) {
-			throw new IllegalStateException();
-		}
-		return this.decodeBuffer[readIndex++];
-	}
 
+	/**
+	 * Decodes the next frame from the bytes available in the stream and those left over from the previous calls.
+	 *
+	 * @return a copy of the unmasked payload, null if no full frame has been received yet
+	 */
 	public byte[] decode(InputStream is) throws Exception {
-		do {
-			// Attempt to resize the decode buffer when it's approaching capacity
-			int bytesLeft = decodeBuffer.length - writeIndex;
-			int availToRead = is.available();
-			if(availToRead > bytesLeft - 1) {
-				int newSize = Math.max(2*decodeBuffer.length, 4*availToRead);
+		byte[] bytes = new byte[is.available()];
+		int bytesRead = Math.max(is.read(bytes), 0);
 
-				logger.log(Level.FINEST, "Increasing buffer size from {0} avail {1} newSize {2}",
-						new Object[] {decodeBuffer.length, availToRead, newSize});
+		ByteBuffer src = ByteBuffer.wrap(bytes, 0, bytesRead);
+		ByteBuffer payload = decode(src);
 
-				byte[] resizeBuffer = new byte[newSize];
+		if(payload == null) {
+			return null;
+		}
 
-				System.arraycopy(this.decodeBuffer, 0, resizeBuffer, 0, writeIndex);
+		byte[] plainTextBytes = new byte[payload.remaining()];
+		payload.get(plainTextBytes);
 
-				this.decodeBuffer = resizeBuffer;
-			}
+		// keep the frames following for the next call
+		buffer(src);
+
+		return plainTextBytes;
+	}
 
-			int bytesRead = is.read(decodeBuffer, writeIndex, bytesLeft);
-			if(bytesRead < 0) {
-				bytesRead = 0;
+	/**
+	 * Decodes the next frame from the bytes left over from the previous calls followed by the bytes of the source,
+	 * call it again with the same source until it returns null to get all the frames received.
+	 *
+	 * As long as nothing is left over the frames are decoded straight from the array of a heap source, the masked
+	 * payload is unmasked in place and the source is only advanced past the frame. The bytes of an incomplete frame
+	 * are buffered until the next call.
+	 *
+	 * @return a heap buffer over the unmasked payload, inflated if compressed, valid until the next call and until the
+	 *         source is reused, null if no full frame has been received yet
+	 */
+	public ByteBuffer decode(ByteBuffer src) {
+		if(readIndex == writeIndex && src.hasArray()) {
+			readIndex = 0;
+			writeIndex = 0;
+
+			ByteBuffer payload = decodeFrame(src.array(), src.arrayOffset() + src.position(),
+					src.arrayOffset() + src.limit());
+
+			if(payload != null) {
+				src.position(src.position() + frameLength);
+
+				return payload;
 			}
+		}
 
-			// Update the count in the buffer
-			writeIndex += bytesRead;
-		} while(is.available() > 0);
+		buffer(src);
+
+		ByteBuffer payload = decodeFrame(decodeBuffer, readIndex, writeIndex);
+
+		if(payload != null) {
+			readIndex += frameLength;
+		}
+
+		return payload;
+	}
+
+	/*
+	 * Appends the remaining bytes of the source to the bytes not decoded yet.
+	 */
+	private void buffer(ByteBuffer src) {
+		int length = src.remaining();
+		if(length == 0) {
+			return;
+		}
+
+		int pending = writeIndex - readIndex;
+
+		if(pending + length > decodeBuffer.length) {
+			int newSize = Math.max(2 * decodeBuffer.length, pending + length);
+
+			logger.log(Level.FINEST, "Increasing buffer size from {0} avail {1} newSize {2}",
+					new Object[] {decodeBuffer.length, length, newSize});
+
+			byte[] resizeBuffer = new byte[newSize];
+
+			System.arraycopy(decodeBuffer, readIndex, resizeBuffer, 0, pending);
+
+			decodeBuffer = resizeBuffer;
+		} else if(readIndex > 0) {
+			// Now move the pending data to the beginning of the buffer so we can continue having good stream
+			System.arraycopy(decodeBuffer, readIndex, decodeBuffer, 0, pending);
+		}
 
-		/*
-		 * Start over from scratch. If the frame is big this may be repeated a few times O(logN)
-		 * and doesn't affect performance
-		 */
 		readIndex = 0;
+		writeIndex = pending;
 
-		// All TCP slow-start algorithms will be cut off right here without further analysis
-		if(writeIndex < 4) {
-			logger.log(Level.FINEST, "Abort decode. Write index is at {0}", writeIndex);
+		src.get(decodeBuffer, writeIndex, length);
+		writeIndex += length;
+	}
+
+	/*
+	 * Decodes the frame at the start of the bytes and unmasks its payload in place, sets frameLength when the frame is
+	 * complete.
+	 */
+	private ByteBuffer decodeFrame(byte[] buffer, int start, int end) {
+		int available = end - start;
+		if(available < 2) {
+			logger.log(Level.FINEST, "Abort decode. {0} bytes available", available);
 
 			return null;
 		}
 
-		byte b = readNextByte();
+		byte b = buffer[start];
 
 		frameFinalFlag = (b & 0x80) != 0;
 		frameRsv = (b & 0x70) >> 4;
@@ -112,102 +175,98 @@ public class WebSocketCodec {
 		}
 
 		// MASK, PAYLOAD LEN 1
-		b = readNextByte();
+		b = buffer[start + 1];
 
 		boolean frameMasked = (b & 0x80) != 0;
 		int framePayloadLen1 = b & 0x7F;
 
 		if(frameRsv != 0 && !allowExtensions) {
 			protocolViolation("RSV != 0 and no extension negotiated, RSV:" + frameRsv);
+		}
 
-			return null;
+		// RSV1 marks a compressed message
+		PerMessageDeflate deflate = perMessageDeflate;
+		boolean frameCompressed = (frameRsv & 0x4) != 0 && deflate != null;
+
+		if(frameCompressed && frameOpcode > 7) {
+			protocolViolation("compressed control frame");
 		}
 
 		if(maskedPayload && !frameMasked) {
 			protocolViolation("unmasked client to server frame");
+		}
+
+		protocolChecks();
+
+		int headerLength = 2 + (framePayloadLen1 == 126 ? 2 : framePayloadLen1 == 127 ? 8 : 0)
+				+ (frameMasked ? 4 : 0);
 
+		if(available < headerLength) {
+			// the stream has ended we don't have enough data to continue
 			return null;
 		}
 
-		protocolChecks();
+		int index = start + 2;
 
-		try {
-			// Read frame payload length
-			if (framePayloadLen1 == 126) {
-				int byte1 = 0xff & readNextByte();
-				int byte2 = 0xff & readNextByte();
-				int value = (byte1<<8) | byte2;
-				framePayloadLength = value;
-			} else if (framePayloadLen1 == 127) {
-				long value = 0;
-				for(int q=0;q<8;q++) {
-					byte nextByte = readNextByte();
-					long valuePart = ((long)(0xff&nextByte));
-					valuePart <<= (7-q)*8;
-					value |= valuePart;
-				}
-
-				framePayloadLength = value;
-
-				if(framePayloadLength < 65536) {
-					protocolViolation("invalid data frame length (not using minimal length encoding): "
-							+ framePayloadLength);
-
-					return null;
-				}
-			} else {
-				framePayloadLength = framePayloadLen1;
-			}
+		// Read frame payload length
+		if(framePayloadLen1 == 126) {
+			framePayloadLength = (0xff & buffer[index]) << 8 | 0xff & buffer[index + 1];
 
-			if(framePayloadLength < 0) {
-				protocolViolation("Negative payload size: " + framePayloadLength);
+			index += 2;
+		} else if(framePayloadLen1 == 127) {
+			long value = 0;
+			for(int q = 0; q < 8; q++) {
+				value = value << 8 | 0xff & buffer[index++];
 			}
 
-			logger.log(Level.FINEST, "Decoding WebSocket Frame length: {0}", framePayloadLength);
+			framePayloadLength = value;
 
-			// Analyze the mask
-			if(frameMasked) {
-				for(int q = 0; q < 4; q++) {
-					maskingKey[q] = readNextByte();
-				}
+			if(framePayloadLength < 65536) {
+				protocolViolation("invalid data frame length (not using minimal length encoding): "
+						+ framePayloadLength);
 			}
-		} catch(IllegalStateException e) {
-			// the stream has ended we don't have enough data to continue
-			return null;
+		} else {
+			framePayloadLength = framePayloadLen1;
+		}
+
+		if(framePayloadLength < 0 || framePayloadLength > Integer.MAX_VALUE - headerLength) {
+			protocolViolation("Unsupported payload size: " + framePayloadLength);
 		}
 
-		// Remember the payload position
-		payloadStartIndex = readIndex;
-		totalPacketLength = readIndex + framePayloadLength;
+		logger.log(Level.FINEST, "Decoding WebSocket Frame length: {0}", framePayloadLength);
+
+		// Analyze the mask
+		if(frameMasked) {
+			System.arraycopy(buffer, index, maskingKey, 0, 4);
+
+			index += 4;
+		}
 
 		// Check if we have enough data at all
-		if(writeIndex < totalPacketLength) {
-			logger.log(Level.FINEST, "Abort decode. Write index is at {0} and totalPacketLength is {1}",
-					new Object[] {writeIndex, totalPacketLength});
+		if(available - headerLength < framePayloadLength) {
+			logger.log(Level.FINEST, "Abort decode. {0} bytes available and total frame length is {1}",
+					new Object[] {available, headerLength + framePayloadLength});
 
 			return null; // wait for more data
 		}
 
+		int payloadLength = (int) framePayloadLength;
+
 		// Unmask data if needed and only if the condition above is true
 		if(frameMasked) {
-			unmask(decodeBuffer, payloadStartIndex, (int) (payloadStartIndex + framePayloadLength));
+			applyMask(buffer, index, index + payloadLength, maskingKey);
 		}
 
-		// Finally isolate the unmasked payload, the bytes are plaintext here
-		byte[] plainTextBytes = new byte[(int) framePayloadLength];
+		frameLength = headerLength + payloadLength;
 
-		System.arraycopy(decodeBuffer, payloadStartIndex, plainTextBytes, 0, (int) framePayloadLength);
+		logger.log(Level.FINEST, "frameLength: {0} available: {1}", new Object[] {frameLength, available});
 
-		// Now move the pending data to the begining of the buffer so we can continue having good stream
-		for(int q=1; q<writeIndex - totalPacketLength; q++) {
-			decodeBuffer[q] = decodeBuffer[(int)totalPacketLength + q];
+		if(frameCompressed) {
+			return ByteBuffer.wrap(deflate.decompress(buffer, index, payloadLength));
 		}
-		writeIndex -= totalPacketLength;
-
-		logger.log(Level.FINEST, "writeIndex: {0} {1}", new Object[] { writeIndex, totalPacketLength });
 
-		// All done, we are ready to be called again
-		return plainTextBytes;
+		// the bytes are plaintext here
+		return ByteBuffer.wrap(buffer, index, payloadLength);
 	}
 
 	protected static byte[] encode(byte[] msg, int rsv, boolean fin, boolean maskPayload) throws Exception {
@@ -258,16 +317,51 @@ public class WebSocketCodec {
 		return frame.toByteArray();
 	}
 
-	private void unmask(byte[] frame, int startIndex, int endIndex) {
-		applyMask(frame, startIndex, endIndex, maskingKey);
-	}
-	
+	/**
+	 * XORs the bytes between the indexes with the mask, the first byte with the first byte of the mask, 8 bytes at a
+	 * time.
+	 */
 	public static void applyMask(byte[] frame, int startIndex, int endIndex, byte[] mask) {
-		for (int i = 0; i < endIndex-startIndex; i++) {
-			frame[startIndex+i] = (byte) (frame[startIndex+i] ^ mask[i % 4]);
+		ByteBuffer words = ByteBuffer.wrap(frame).order(ByteOrder.nativeOrder());
+		long maskWord = maskWord(mask, words.order());
+
+		int i = startIndex;
+		for(; i + 8 <= endIndex; i += 8) {
+			words.putLong(i, words.getLong(i) ^ maskWord);
+		}
+
+		for(; i < endIndex; i++) {
+			frame[i] = (byte) (frame[i] ^ mask[(i - startIndex) & 3]);
 		}
 	}
 
+	/**
+	 * XORs the bytes between the indexes of a heap or direct buffer with the mask, 8 bytes at a time.
+	 */
+	public static void applyMask(ByteBuffer frame, int startIndex, int endIndex, byte[] mask) {
+		ByteBuffer words = frame.duplicate().order(ByteOrder.nativeOrder());
+		long maskWord = maskWord(mask, words.order());
+
+		int i = startIndex;
+		for(; i + 8 <= endIndex; i += 8) {
+			words.putLong(i, words.getLong(i) ^ maskWord);
+		}
+
+		for(; i < endIndex; i++) {
+			frame.put(i, (byte) (frame.get(i) ^ mask[(i - startIndex) & 3]));
+		}
+	}
+
+	/*
+	 * The mask repeated twice read as a long in the byte order.
+	 */
+	private static long maskWord(byte[] mask, ByteOrder order) {
+		long word = (0xffL & mask[0]) << 24 | (0xffL & mask[1]) << 16 | (0xffL & mask[2]) << 8 | 0xffL & mask[3];
+		word |= word << 32;
+
+		return order == ByteOrder.BIG_ENDIAN ? word : Long.reverseBytes(word);
+	}
+
 	private void protocolViolation(String reason)  {
 		throw new IllegalStateException(reason);
 	}
@@ -302,6 +396,18 @@ public class WebSocketCodec {
 		}
 	}
 
+	/**
+	 * Sets the permessage-deflate extension negotiated by the connection, the frames received with RSV1 set are
+	 * inflated from then on.
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
 	public boolean isCloseOpcodeReceived() {
 		return this.closeOpcodeReceived;
 	}
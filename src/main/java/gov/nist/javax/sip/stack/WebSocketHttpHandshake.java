@@ -16,8 +16,26 @@ import java.util.logging.Logger;
 public class WebSocketHttpHandshake {
 	private static final Logger logger = Logger.getLogger(WebSocketHttpHandshake.class.getName());
 
+	static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+
 	private Map<String, String> headers = new HashMap<>();
 
+	private final SIPTransactionStack sipStack;
+
+	// the extension accepted in the response, if any
+	private PerMessageDeflate perMessageDeflate;
+
+	public WebSocketHttpHandshake() {
+		this(null);
+	}
+
+	/**
+	 * @param sipStack the stack whose settings tell whether permessage-deflate is accepted
+	 */
+	public WebSocketHttpHandshake(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+	}
+
 	public byte[] createHttpResponse(String request) throws Exception {
 		logger.log(Level.FINEST, "Request: {0}", request);
 
@@ -56,7 +74,19 @@ public class WebSocketHttpHandshake {
 				isSecure = true;
 			}
 
-			headers.put(parts[0].trim(), parts[1].trim());
+			String name = parts[0].trim();
+			String value = parts[1].trim();
+
+			// the extension offers may be split among several headers
+			if(EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+				String offers = headers.get(EXTENSIONS_HEADER);
+
+				headers.put(EXTENSIONS_HEADER, offers == null ? value : offers + ", " + value);
+
+				continue;
+			}
+
+			headers.put(name, value);
 		}
 
 		if(isSecure) {
@@ -100,6 +130,16 @@ public class WebSocketHttpHandshake {
 			sb.append("Sec-WebSocket-Protocol: ").append(headers.get("Sec-WebSocket-Protocol")).append(lineSeparator);
 		}
 
+		if(sipStack != null && sipStack.isWebSocketDeflate()) {
+			perMessageDeflate = PerMessageDeflate.accept(headers.get(EXTENSIONS_HEADER),
+					sipStack.isWebSocketDeflateNoContextTakeover(), sipStack.getWebSocketDeflateThreshold(),
+					sipStack.getMaxMessageSize());
+
+			if(perMessageDeflate != null) {
+				sb.append(EXTENSIONS_HEADER).append(": ").append(perMessageDeflate.getResponse()).append(lineSeparator);
+			}
+		}
+
 		sb.append(lineSeparator);
 
 		String response = sb.toString();
@@ -109,6 +149,13 @@ public class WebSocketHttpHandshake {
 		return sb.toString().getBytes();
 	}
 
+	/**
+	 * @return the permessage-deflate extension accepted by the last response created, null if none
+	 */
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
 	static String computeRev13Response(String key) {
 		key = key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
 
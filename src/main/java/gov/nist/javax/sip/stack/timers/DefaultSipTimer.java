@@ -25,6 +25,7 @@ public class DefaultSipTimer extends Timer implements SipTimer {
 
 		public DefaultTimerTask(SIPStackTimerTask task) {
 			this.task = task;
+			task.setCancelled(false);
 			task.setSipTimerTask(this);
 		}
 
@@ -32,7 +33,11 @@ public class DefaultSipTimer extends Timer implements SipTimer {
 			try {
 				// task can be null if it has been cancelled
 				if(task != null) {
-					task.runTask();
+					if(sipStackImpl != null) {
+						sipStackImpl.executeTimerTask(task);
+					} else {
+						task.runTask();
+					}
 				}
 			} catch(Exception e) {
 				logger.log(Level.SEVERE, "SIP stack timer task failed due to exception", e);
@@ -42,6 +47,7 @@ public class DefaultSipTimer extends Timer implements SipTimer {
 		@Override
 		public boolean cancel() {
 			if(task != null) {
+				task.setCancelled(true);
 				task.cleanUpBeforeCancel();
 				task = null;
 			}
@@ -50,6 +50,7 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 		if (threadPoolExecutor.isShutdown()) {
 			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
 		}
+		task.setCancelled(false);
 		ScheduledFuture<?> future = threadPoolExecutor.schedule(new ScheduledSipTimerTask(task), delay,
 				TimeUnit.MILLISECONDS);
 		task.setSipTimerTask(future);
@@ -67,6 +68,7 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 		if (threadPoolExecutor.isShutdown()) {
 			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
 		}
+		task.setCancelled(false);
 		ScheduledFuture<?> future = threadPoolExecutor.scheduleWithFixedDelay(new ScheduledSipTimerTask(task), delay,
 				period, TimeUnit.MILLISECONDS);
 		task.setSipTimerTask(future);
@@ -99,6 +101,7 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 		boolean cancelled = false;
 		ScheduledFuture<?> sipTimerTask = (ScheduledFuture<?>) task.getSipTimerTask();
 		if (sipTimerTask != null) {
+			task.setCancelled(true);
 			task.cleanUpBeforeCancel();
 			task.setSipTimerTask(null);
 			threadPoolExecutor.remove((Runnable) sipTimerTask);
@@ -125,8 +128,12 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 		public void run() {
 			try {
 				// task can be null if it has been cancelled
-				if(task != null) {
-					task.runTask();
+				if(task != null && !task.isCancelled()) {
+					if(sipStackImpl != null) {
+						sipStackImpl.executeTimerTask(task);
+					} else {
+						task.runTask();
+					}
 				}
 			} catch(Exception e) {
 				logger.log(Level.SEVERE, "SIP stack timer task failed due to exception", e);
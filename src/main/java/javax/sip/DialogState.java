@@ -20,6 +20,10 @@ import java.io.Serializable;
 public final class DialogState implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	// declared before the constants, their constructor registers them in the array
+	private static final int SIZE = 4;
+	private static final DialogState[] DIALOG_STATE_ARRAY = new DialogState[SIZE];
+
 	/**
 	 * This constant value indicates the internal value of the "Early" constant.
 	 * <br>
@@ -72,9 +76,6 @@ public final class DialogState implements Serializable {
 	 */
 	public static final DialogState TERMINATED = new DialogState(TERMINATED_VALUE);
 
-	private static final int SIZE = 4;
-	private static final DialogState[] DIALOG_STATE_ARRAY = new DialogState[SIZE];
-
 	private int dialogStateValue;
 
 	private static void setDialogState(int dialogStateValue, DialogState dialogState) {
@@ -0,0 +1,248 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.DialogCodec;
+import gov.nist.javax.sip.stack.DialogSnapshot;
+import gov.nist.javax.sip.stack.SIPDialog;
+
+/**
+ * Measures the throughput of the {@link DialogCodec} and of the {@link DialogSnapshot} file: confirmed dialogs are set
+ * up between two stacks over UDP on the loopback interface, then the dialogs of the UAS stack are encoded, decoded and
+ * written to a snapshot file in rounds. The first half of the rounds warms up the JIT and is not reported.
+ *
+ * Usage: DialogCodecBenchmark [dialogs] [rounds], 2000 dialogs and 20 rounds by default.
+ */
+public class DialogCodecBenchmark implements SipListener {
+	private static final Logger logger = Logger.getLogger(DialogCodecBenchmark.class.getName());
+
+	private final MessageFactory messageFactory;
+	private final HeaderFactory headerFactory;
+	private final AddressFactory addressFactory;
+
+	private SipProvider uas;
+	private ContactHeader uasContact;
+	private CountDownLatch acked;
+
+	// the INVITEs in progress are bounded, a burst of UDP datagrams would be dropped by the loopback
+	private final Semaphore window = new Semaphore(50);
+
+	private DialogCodecBenchmark() throws Exception {
+		messageFactory = SipFactory.getInstance().createMessageFactory();
+		headerFactory = SipFactory.getInstance().createHeaderFactory();
+		addressFactory = SipFactory.getInstance().createAddressFactory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int dialogs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		SipFactory.getInstance().setPathName("gov.nist");
+
+		DialogCodecBenchmark benchmark = new DialogCodecBenchmark();
+
+		benchmark.run(dialogs, rounds);
+	}
+
+	private void run(int dialogs, int rounds) throws Exception {
+		SipStack uasStack = createStack("codec-uas");
+		SipStack uacStack = createStack("codec-uac");
+
+		uas = uasStack.createSipProvider(uasStack.createListeningPoint("127.0.0.1", 5070, ListeningPoint.UDP));
+		SipProvider uac = uacStack.createSipProvider(uacStack.createListeningPoint("127.0.0.1", 5080,
+				ListeningPoint.UDP));
+		uas.addSipListener(this);
+		uac.addSipListener(this);
+
+		uasContact = headerFactory.createContactHeader(addressFactory.createAddress("sip:uas@127.0.0.1:5070"));
+		establish(uac, dialogs);
+
+		DialogCodec codec = new DialogCodec();
+
+		List<SIPDialog> confirmed = new ArrayList<>();
+		for(Dialog dialog : ((SipStackImpl) uasStack).getDialogs()) {
+			if(codec.isEncodable((SIPDialog) dialog)) {
+				confirmed.add((SIPDialog) dialog);
+			}
+		}
+
+		List<byte[]> records = new ArrayList<>(confirmed.size());
+		ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(record);
+		long encodedBytes = 0;
+
+		for(SIPDialog dialog : confirmed) {
+			record.reset();
+			codec.encode(dialog, out);
+			records.add(record.toByteArray());
+			encodedBytes += record.size();
+		}
+
+		System.out.println(confirmed.size() + " dialogs, " + encodedBytes / Math.max(1, confirmed.size())
+				+ " bytes per encoded dialog");
+
+		File file = File.createTempFile("dialogs", ".snapshot");
+		file.deleteOnExit();
+
+		DialogSnapshot snapshot = new DialogSnapshot();
+
+		for(int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for(SIPDialog dialog : confirmed) {
+				record.reset();
+				codec.encode(dialog, out);
+			}
+			long encodeNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(byte[] bytes : records) {
+				codec.decode(new DataInputStream(new ByteArrayInputStream(bytes)), DialogCodec.VERSION,
+						(SipStackImpl) uasStack);
+			}
+			long decodeNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			snapshot.write((SipStackImpl) uasStack, file);
+			long writeNanos = System.nanoTime() - start;
+
+			if(round >= rounds / 2) {
+				System.out.println("round " + round + ": encode " + perSecond(confirmed.size(), encodeNanos)
+						+ " dialogs/s, decode " + perSecond(records.size(), decodeNanos) + " dialogs/s, snapshot "
+						+ perSecond(confirmed.size(), writeNanos) + " dialogs/s (" + file.length() + " bytes)");
+			}
+		}
+
+		uasStack.stop();
+		uacStack.stop();
+
+		System.exit(0);
+	}
+
+	private void establish(SipProvider uac, int dialogs) throws Exception {
+		acked = new CountDownLatch(dialogs);
+
+		ContactHeader uacContact = headerFactory.createContactHeader(
+				addressFactory.createAddress("sip:uac@127.0.0.1:5080"));
+
+		for(int i = 0; i < dialogs; i++) {
+			window.acquire();
+
+			SipURI requestUri = addressFactory.createSipURI("uas", "127.0.0.1:5070");
+
+			Request invite = messageFactory.createRequest(requestUri, Request.INVITE, uac.getNewCallId(),
+					headerFactory.createCSeqHeader(1L, Request.INVITE),
+					headerFactory.createFromHeader(addressFactory.createAddress("sip:uac@127.0.0.1"), "uac" + i),
+					headerFactory.createToHeader(addressFactory.createAddress("sip:uas@127.0.0.1"), null),
+					Collections.singletonList(headerFactory.createViaHeader("127.0.0.1", 5080, "udp", null)),
+					headerFactory.createMaxForwardsHeader(70));
+			invite.addHeader(uacContact);
+			invite.addHeader(headerFactory.createRecordRouteHeader(
+					addressFactory.createAddress("<sip:127.0.0.1:5070;lr>")));
+
+			uac.getNewClientTransaction(invite).sendRequest();
+		}
+
+		if(!acked.await(60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException(acked.getCount() + " dialogs were not established");
+		}
+	}
+
+	private static long perSecond(int count, long nanos) {
+		return count * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+	}
+
+	private static SipStack createStack(String name) throws Exception {
+		Properties properties = new Properties();
+
+		properties.setProperty("javax.sip.STACK_NAME", name);
+
+		return SipFactory.getInstance().createSipStack(properties);
+	}
+
+	public void processRequest(RequestEvent requestEvent) {
+		Request request = requestEvent.getRequest();
+
+		try {
+			if(Request.ACK.equals(request.getMethod())) {
+				window.release();
+				acked.countDown();
+			} else if(Request.INVITE.equals(request.getMethod())) {
+				ServerTransaction transaction = uas.getNewServerTransaction(request);
+
+				Response ok = messageFactory.createResponse(Response.OK, request);
+				((ToHeader) ok.getHeader(ToHeader.NAME)).setTag(Integer.toHexString(request.hashCode()));
+				ok.addHeader(uasContact);
+
+				transaction.sendResponse(ok);
+			}
+		} catch(Exception ex) {
+			logger.log(Level.SEVERE, "could not answer " + request.getMethod(), ex);
+		}
+	}
+
+	public void processResponse(ResponseEvent responseEvent) {
+		Response response = responseEvent.getResponse();
+		Dialog dialog = responseEvent.getDialog();
+
+		if(response.getStatusCode() != Response.OK || dialog == null) {
+			return;
+		}
+
+		try {
+			long cseq = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getSeqNumber();
+
+			dialog.sendAck(dialog.createAck(cseq));
+		} catch(Exception ex) {
+			logger.log(Level.SEVERE, "could not acknowledge " + response.getStatusCode(), ex);
+		}
+	}
+
+	public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+	}
+
+	public void processIOException(IOExceptionEvent ioExceptionEvent) {
+		logger.log(Level.INFO, "processIOException: {0}", ioExceptionEvent);
+	}
+
+	public void processTimeout(TimeoutEvent timeoutEvent) {
+		logger.log(Level.INFO, "processTimeout: {0}", timeoutEvent);
+	}
+
+	public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+	}
+}
@@ -0,0 +1,211 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Measures the heap retained by established dialogs: a UAC stack sets up INVITE dialogs with a UAS stack over UDP on
+ * the loopback interface, the heap used once the transactions are gone is compared with the heap used before.
+ *
+ * Usage: DialogFootprint [dialogs] [name=value...], the name=value pairs are added to the properties of both stacks,
+ * for instance gov.nist.javax.sip.AGGRESSIVE_CLEANUP=true. The time given to the transactions to terminate is set in
+ * milliseconds with -Dsettle, 40000 by default, longer than the 32 s of Timer D.
+ */
+public class DialogFootprint implements SipListener {
+	private static final Logger logger = Logger.getLogger(DialogFootprint.class.getName());
+
+	private final MessageFactory messageFactory;
+	private final HeaderFactory headerFactory;
+	private final AddressFactory addressFactory;
+
+	private SipProvider uas;
+	private SipProvider uac;
+	private ContactHeader uasContact;
+	private ContactHeader uacContact;
+	private CountDownLatch acked;
+
+	// the INVITEs in progress are bounded, a burst of UDP datagrams would be dropped by the loopback
+	private final Semaphore window = new Semaphore(50);
+
+	private DialogFootprint() throws Exception {
+		messageFactory = SipFactory.getInstance().createMessageFactory();
+		headerFactory = SipFactory.getInstance().createHeaderFactory();
+		addressFactory = SipFactory.getInstance().createAddressFactory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int dialogs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		Properties extra = new Properties();
+		for(int i = 1; i < args.length; i++) {
+			String[] pair = args[i].split("=", 2);
+			extra.setProperty(pair[0], pair.length > 1 ? pair[1] : "");
+		}
+
+		SipFactory.getInstance().setPathName("gov.nist");
+
+		DialogFootprint footprint = new DialogFootprint();
+
+		footprint.run(dialogs, extra);
+	}
+
+	private void run(int dialogs, Properties extra) throws Exception {
+		SipStack uasStack = createStack("footprint-uas", extra);
+		SipStack uacStack = createStack("footprint-uac", extra);
+
+		uas = uasStack.createSipProvider(uasStack.createListeningPoint("127.0.0.1", 5070, ListeningPoint.UDP));
+		uac = uacStack.createSipProvider(uacStack.createListeningPoint("127.0.0.1", 5080, ListeningPoint.UDP));
+		uas.addSipListener(this);
+		uac.addSipListener(this);
+
+		uasContact = headerFactory.createContactHeader(addressFactory.createAddress("sip:uas@127.0.0.1:5070"));
+		uacContact = headerFactory.createContactHeader(addressFactory.createAddress("sip:uac@127.0.0.1:5080"));
+
+		// a first round loads the classes and warms up the stacks
+		establish(Math.min(dialogs, 100), "warmup");
+
+		long before = usedHeap();
+
+		long start = System.nanoTime();
+		establish(dialogs, "measured");
+		long setupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		Thread.sleep(Long.getLong("settle", 40000));
+
+		long after = usedHeap();
+
+		System.out.println(dialogs + " dialogs set up in " + setupMillis + " ms");
+		System.out.println("retained bytes per dialog: " + (after - before) / (2L * dialogs));
+
+		uasStack.stop();
+		uacStack.stop();
+
+		System.exit(0);
+	}
+
+	private void establish(int dialogs, String prefix) throws Exception {
+		acked = new CountDownLatch(dialogs);
+
+		for(int i = 0; i < dialogs; i++) {
+			window.acquire();
+
+			SipURI requestUri = addressFactory.createSipURI("uas", "127.0.0.1:5070");
+
+			Request invite = messageFactory.createRequest(requestUri, Request.INVITE, uac.getNewCallId(),
+					headerFactory.createCSeqHeader(1L, Request.INVITE),
+					headerFactory.createFromHeader(addressFactory.createAddress("sip:uac@127.0.0.1"), prefix + i),
+					headerFactory.createToHeader(addressFactory.createAddress("sip:uas@127.0.0.1"), null),
+					Collections.singletonList(headerFactory.createViaHeader("127.0.0.1", 5080, "udp", null)),
+					headerFactory.createMaxForwardsHeader(70));
+			invite.addHeader(uacContact);
+
+			ClientTransaction transaction = uac.getNewClientTransaction(invite);
+			transaction.sendRequest();
+		}
+
+		if(!acked.await(60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException(acked.getCount() + " dialogs were not established");
+		}
+	}
+
+	private static SipStack createStack(String name, Properties extra) throws Exception {
+		Properties properties = new Properties();
+
+		properties.setProperty("javax.sip.STACK_NAME", name);
+		properties.putAll(extra);
+
+		return SipFactory.getInstance().createSipStack(properties);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		for(int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	public void processRequest(RequestEvent requestEvent) {
+		Request request = requestEvent.getRequest();
+
+		try {
+			if(Request.ACK.equals(request.getMethod())) {
+				window.release();
+				acked.countDown();
+			} else if(Request.INVITE.equals(request.getMethod())) {
+				ServerTransaction transaction = uas.getNewServerTransaction(request);
+
+				Response ok = messageFactory.createResponse(Response.OK, request);
+				((ToHeader) ok.getHeader(ToHeader.NAME)).setTag(Integer.toHexString(request.hashCode()));
+				ok.addHeader(uasContact);
+
+				transaction.sendResponse(ok);
+			}
+		} catch(Exception ex) {
+			logger.log(Level.SEVERE, "could not answer " + request.getMethod(), ex);
+		}
+	}
+
+	public void processResponse(ResponseEvent responseEvent) {
+		Response response = responseEvent.getResponse();
+		Dialog dialog = responseEvent.getDialog();
+
+		if(response.getStatusCode() != Response.OK || dialog == null) {
+			return;
+		}
+
+		try {
+			long cseq = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getSeqNumber();
+
+			dialog.sendAck(dialog.createAck(cseq));
+		} catch(Exception ex) {
+			logger.log(Level.SEVERE, "could not acknowledge " + response.getStatusCode(), ex);
+		}
+	}
+
+	public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+	}
+
+	public void processIOException(IOExceptionEvent ioExceptionEvent) {
+		logger.log(Level.INFO, "processIOException: {0}", ioExceptionEvent);
+	}
+
+	public void processTimeout(TimeoutEvent timeoutEvent) {
+		logger.log(Level.INFO, "processTimeout: {0}", timeoutEvent);
+	}
+
+	public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+	}
+}
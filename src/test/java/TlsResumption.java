@@ -0,0 +1,174 @@
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.HeaderFactory;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+import gov.nist.javax.sip.stack.TlsHandshakeExecutor;
+
+/**
+ * Checks the resumption of the outbound TLS sessions: a UAC stack sends a MESSAGE to a UAS stack over TLS on the
+ * loopback interface and closes its sockets once answered, so that each round connects again. The first round makes
+ * a full handshake, the next ones resume its session from the client session cache.
+ *
+ * Usage: TlsResumption [rounds] [name=value...], 10 rounds by default. The name=value pairs are added to the
+ * properties of both stacks, they give the key store, for instance one made with
+ * keytool -genkeypair -keyalg RSA -alias sip -dname CN=127.0.0.1 -keystore ks.p12 -storetype PKCS12 -storepass secret
+ * and javax.net.ssl.keyStore=ks.p12 javax.net.ssl.trustStore=ks.p12 javax.net.ssl.keyStorePassword=secret
+ * javax.net.ssl.trustStorePassword=secret javax.net.ssl.keyStoreType=PKCS12 javax.net.ssl.trustStoreType=PKCS12.
+ * The stacks use the NIO processors with the client authentication disabled unless given otherwise.
+ */
+public class TlsResumption implements SipListener {
+	private static final Logger logger = Logger.getLogger(TlsResumption.class.getName());
+
+	private final MessageFactory messageFactory;
+	private final HeaderFactory headerFactory;
+	private final AddressFactory addressFactory;
+
+	private SipProvider uas;
+	private final LinkedBlockingQueue<Integer> answers = new LinkedBlockingQueue<>();
+
+	private TlsResumption() throws Exception {
+		messageFactory = SipFactory.getInstance().createMessageFactory();
+		headerFactory = SipFactory.getInstance().createHeaderFactory();
+		addressFactory = SipFactory.getInstance().createAddressFactory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+		Properties extra = new Properties();
+		for(int i = 1; i < args.length; i++) {
+			String[] pair = args[i].split("=", 2);
+			extra.setProperty(pair[0], pair.length > 1 ? pair[1] : "");
+		}
+
+		SipFactory.getInstance().setPathName("gov.nist");
+
+		TlsResumption resumption = new TlsResumption();
+
+		System.exit(resumption.run(rounds, extra) ? 0 : 1);
+	}
+
+	private boolean run(int rounds, Properties extra) throws Exception {
+		SipStack uasStack = createStack("resumption-uas", extra);
+		SipStack uacStack = createStack("resumption-uac", extra);
+
+		uas = uasStack.createSipProvider(uasStack.createListeningPoint("127.0.0.1", 5071, ListeningPoint.TLS));
+		SipProvider uac = uacStack.createSipProvider(uacStack.createListeningPoint("127.0.0.1", 5081,
+				ListeningPoint.TLS));
+		uas.addSipListener(this);
+		uac.addSipListener(this);
+
+		boolean answered = true;
+		long resumedNanos = 0;
+
+		for(int round = 0; round < rounds; round++) {
+			SipURI requestUri = addressFactory.createSipURI("uas", "127.0.0.1:5071");
+			requestUri.setTransportParam(ListeningPoint.TLS);
+
+			Request message = messageFactory.createRequest(requestUri, Request.MESSAGE, uac.getNewCallId(),
+					headerFactory.createCSeqHeader(1L, Request.MESSAGE),
+					headerFactory.createFromHeader(addressFactory.createAddress("sip:uac@127.0.0.1:5081"), "r" + round),
+					headerFactory.createToHeader(addressFactory.createAddress("sip:uas@127.0.0.1"), null),
+					Collections.singletonList(headerFactory.createViaHeader("127.0.0.1", 5081, "tls", null)),
+					headerFactory.createMaxForwardsHeader(70));
+
+			long start = System.nanoTime();
+			uac.sendRequest(message);
+			Integer status = answers.poll(10, TimeUnit.SECONDS);
+			long nanos = System.nanoTime() - start;
+
+			System.out.println("round " + round + ": " + status + " in " + TimeUnit.NANOSECONDS.toMillis(nanos)
+					+ " ms");
+
+			answered &= status != null && status == Response.OK;
+			if(round > 0) {
+				resumedNanos += nanos;
+			}
+
+			// the next round connects again
+			((SIPTransactionStack) uacStack).closeAllSockets();
+			Thread.sleep(200);
+		}
+
+		TlsHandshakeExecutor handshakes = ((SIPTransactionStack) uacStack).getTlsHandshakeExecutor();
+
+		System.out.println("client handshakes " + handshakes.getClientHandshakes() + ", resumed "
+				+ handshakes.getResumedHandshakes() + ", hit rate " + handshakes.getResumptionHitRate()
+				+ ", average handshake " + handshakes.getAverageHandshakeMillis() + " ms");
+		if(rounds > 1) {
+			System.out.println("average round after the first: "
+					+ TimeUnit.NANOSECONDS.toMillis(resumedNanos / (rounds - 1)) + " ms");
+		}
+
+		boolean resumed = answered && handshakes.getResumedHandshakes() == rounds - 1;
+
+		System.out.println(resumed ? "every reconnection resumed the session" : "FAILED");
+
+		uasStack.stop();
+		uacStack.stop();
+
+		return resumed;
+	}
+
+	private static SipStack createStack(String name, Properties extra) throws Exception {
+		Properties properties = new Properties();
+
+		properties.setProperty("javax.sip.STACK_NAME", name);
+		properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+				"gov.nist.javax.sip.stack.NioMessageProcessorFactory");
+		properties.setProperty("gov.nist.javax.sip.TLS_CLIENT_AUTH_TYPE", "Disabled");
+		properties.putAll(extra);
+
+		return SipFactory.getInstance().createSipStack(properties);
+	}
+
+	public void processRequest(RequestEvent requestEvent) {
+		Request request = requestEvent.getRequest();
+
+		try {
+			uas.sendResponse(messageFactory.createResponse(Response.OK, request));
+		} catch(Exception ex) {
+			logger.log(Level.SEVERE, "could not answer " + request.getMethod(), ex);
+		}
+	}
+
+	public void processResponse(ResponseEvent responseEvent) {
+		answers.add(responseEvent.getResponse().getStatusCode());
+	}
+
+	public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+	}
+
+	public void processIOException(IOExceptionEvent ioExceptionEvent) {
+		logger.log(Level.INFO, "processIOException: {0}", ioExceptionEvent);
+	}
+
+	public void processTimeout(TimeoutEvent timeoutEvent) {
+		logger.log(Level.INFO, "processTimeout: {0}", timeoutEvent);
+	}
+
+	public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+	}
+}
@@ -0,0 +1,283 @@
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import gov.nist.javax.sip.stack.WebSocketCodec;
+
+/**
+ * Compares the {@link WebSocketCodec} with the codec it replaced: masked client frames are decoded with the
+ * InputStream codec below, its decoding loop without the logging and the protocol checks, and with
+ * {@link WebSocketCodec#decode(ByteBuffer)}, then the payloads are unmasked alone with both masking loops. Each decode
+ * gets a fresh copy of the frame, as read from a socket, since the frames are unmasked in place. The first half of the
+ * rounds warms up the JIT and is not reported.
+ *
+ * Usage: WebSocketCodecBenchmark [rounds] [payload sizes...], 10 rounds over payloads of 200, 1500 and 70000 bytes
+ * by default.
+ */
+public class WebSocketCodecBenchmark {
+	// the bytes decoded in a round for each payload size
+	private static final long ROUND_BYTES = 200L * 1024 * 1024;
+
+	private static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+		int[] sizes = args.length > 1 ? new int[args.length - 1] : new int[] {200, 1500, 70000};
+		for(int i = 1; i < args.length; i++) {
+			sizes[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		for(int size : sizes) {
+			run(size, rounds);
+		}
+	}
+
+	private static void run(int size, int rounds) throws Exception {
+		Random random = new Random(size);
+
+		byte[] payload = new byte[size];
+		for(int i = 0; i < size; i++) {
+			payload[i] = (byte) ('a' + random.nextInt(26));
+		}
+
+		byte[] mask = new byte[4];
+		random.nextBytes(mask);
+
+		byte[] frame = frame(payload, mask);
+		byte[] read = new byte[frame.length];
+		int frames = (int) Math.max(1, ROUND_BYTES / frame.length);
+
+		check(frame, read, payload);
+
+		System.out.println(size + " bytes payloads, " + frame.length + " bytes frames, " + frames + " frames a round");
+
+		for(int round = 0; round < rounds; round++) {
+			PreviousCodec previous = new PreviousCodec(true, false);
+
+			long start = System.nanoTime();
+			for(int i = 0; i < frames; i++) {
+				System.arraycopy(frame, 0, read, 0, frame.length);
+
+				sink += previous.decode(new ByteArrayInputStream(read)).length;
+			}
+			long previousNanos = System.nanoTime() - start;
+
+			WebSocketCodec codec = new WebSocketCodec(true, false);
+
+			start = System.nanoTime();
+			for(int i = 0; i < frames; i++) {
+				System.arraycopy(frame, 0, read, 0, frame.length);
+
+				sink += codec.decode(ByteBuffer.wrap(read)).remaining();
+			}
+			long decodeNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < frames; i++) {
+				PreviousCodec.applyMask(read, 0, size, mask);
+			}
+			long previousMaskNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < frames; i++) {
+				WebSocketCodec.applyMask(read, 0, size, mask);
+			}
+			long maskNanos = System.nanoTime() - start;
+
+			if(round >= rounds / 2) {
+				System.out.println("round " + round + ": decode " + megabytes(frames, frame.length, previousNanos)
+						+ " -> " + megabytes(frames, frame.length, decodeNanos) + " MB/s, unmask "
+						+ megabytes(frames, size, previousMaskNanos) + " -> " + megabytes(frames, size, maskNanos)
+						+ " MB/s");
+			}
+		}
+	}
+
+	/*
+	 * Both codecs give back the payload of the frame.
+	 */
+	private static void check(byte[] frame, byte[] read, byte[] payload) throws Exception {
+		System.arraycopy(frame, 0, read, 0, frame.length);
+		byte[] previous = new PreviousCodec(true, false).decode(new ByteArrayInputStream(read));
+
+		System.arraycopy(frame, 0, read, 0, frame.length);
+		ByteBuffer decoded = new WebSocketCodec(true, false).decode(ByteBuffer.wrap(read));
+		byte[] current = new byte[decoded.remaining()];
+		decoded.get(current);
+
+		if(!Arrays.equals(previous, payload) || !Arrays.equals(current, payload)) {
+			throw new IllegalStateException("the codecs do not decode the frame of "
+					+ new String(payload, 0, Math.min(payload.length, 20), StandardCharsets.US_ASCII));
+		}
+	}
+
+	/*
+	 * A final text frame masked as a client sends it.
+	 */
+	private static byte[] frame(byte[] payload, byte[] mask) {
+		int length = payload.length;
+		int headerLength = 2 + (length <= 125 ? 0 : length <= 0xFFFF ? 2 : 8) + 4;
+
+		byte[] frame = new byte[headerLength + length];
+		frame[0] = (byte) 0x81;
+
+		if(length <= 125) {
+			frame[1] = (byte) (0x80 | length);
+		} else if(length <= 0xFFFF) {
+			frame[1] = (byte) 0xFE;
+			frame[2] = (byte) (length >>> 8);
+			frame[3] = (byte) length;
+		} else {
+			frame[1] = (byte) 0xFF;
+			for(int q = 0; q < 8; q++) {
+				frame[2 + q] = (byte) ((long) length >>> (7 - q) * 8);
+			}
+		}
+
+		System.arraycopy(mask, 0, frame, headerLength - 4, 4);
+
+		for(int i = 0; i < length; i++) {
+			frame[headerLength + i] = (byte) (payload[i] ^ mask[i % 4]);
+		}
+
+		return frame;
+	}
+
+	private static long megabytes(int count, int length, long nanos) {
+		return (long) count * length * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos) / (1024 * 1024);
+	}
+
+	/**
+	 * The decoding of the previous WebSocketCodec, one frame per read.
+	 */
+	private static class PreviousCodec {
+		private final boolean allowExtensions;
+		private final boolean maskedPayload;
+
+		private int frameRsv;
+		private long framePayloadLength;
+		private final byte[] maskingKey = new byte[4];
+
+		private byte[] decodeBuffer = new byte[2048];
+		private int writeIndex;
+		private int readIndex;
+
+		PreviousCodec(boolean maskedPayload, boolean allowExtensions) {
+			this.maskedPayload = maskedPayload;
+			this.allowExtensions = allowExtensions;
+		}
+
+		private byte readNextByte() {
+			if(readIndex >= writeIndex) {
+				throw new IllegalStateException();
+			}
+			return decodeBuffer[readIndex++];
+		}
+
+		byte[] decode(InputStream is) throws Exception {
+			do {
+				int bytesLeft = decodeBuffer.length - writeIndex;
+				int availToRead = is.available();
+				if(availToRead > bytesLeft - 1) {
+					int newSize = Math.max(2 * decodeBuffer.length, 4 * availToRead);
+
+					byte[] resizeBuffer = new byte[newSize];
+
+					System.arraycopy(decodeBuffer, 0, resizeBuffer, 0, writeIndex);
+
+					decodeBuffer = resizeBuffer;
+				}
+
+				int bytesRead = is.read(decodeBuffer, writeIndex, decodeBuffer.length - writeIndex);
+				if(bytesRead < 0) {
+					bytesRead = 0;
+				}
+
+				writeIndex += bytesRead;
+			} while(is.available() > 0);
+
+			readIndex = 0;
+
+			if(writeIndex < 4) {
+				return null;
+			}
+
+			byte b = readNextByte();
+
+			frameRsv = (b & 0x70) >> 4;
+
+			b = readNextByte();
+
+			boolean frameMasked = (b & 0x80) != 0;
+			int framePayloadLen1 = b & 0x7F;
+
+			if(frameRsv != 0 && !allowExtensions) {
+				throw new IllegalStateException("RSV != 0 and no extension negotiated, RSV:" + frameRsv);
+			}
+
+			if(maskedPayload && !frameMasked) {
+				throw new IllegalStateException("unmasked client to server frame");
+			}
+
+			try {
+				if(framePayloadLen1 == 126) {
+					int byte1 = 0xff & readNextByte();
+					int byte2 = 0xff & readNextByte();
+					framePayloadLength = (byte1 << 8) | byte2;
+				} else if(framePayloadLen1 == 127) {
+					long value = 0;
+					for(int q = 0; q < 8; q++) {
+						long valuePart = 0xff & readNextByte();
+						valuePart <<= (7 - q) * 8;
+						value |= valuePart;
+					}
+
+					framePayloadLength = value;
+				} else {
+					framePayloadLength = framePayloadLen1;
+				}
+
+				if(frameMasked) {
+					for(int q = 0; q < 4; q++) {
+						maskingKey[q] = readNextByte();
+					}
+				}
+			} catch(IllegalStateException e) {
+				return null;
+			}
+
+			int payloadStartIndex = readIndex;
+			long totalPacketLength = readIndex + framePayloadLength;
+
+			if(writeIndex < totalPacketLength) {
+				return null;
+			}
+
+			if(frameMasked) {
+				applyMask(decodeBuffer, payloadStartIndex, (int) (payloadStartIndex + framePayloadLength), maskingKey);
+			}
+
+			byte[] plainTextBytes = new byte[(int) framePayloadLength];
+
+			System.arraycopy(decodeBuffer, payloadStartIndex, plainTextBytes, 0, (int) framePayloadLength);
+
+			for(int q = 1; q < writeIndex - totalPacketLength; q++) {
+				decodeBuffer[q] = decodeBuffer[(int) totalPacketLength + q];
+			}
+			writeIndex -= totalPacketLength;
+
+			return plainTextBytes;
+		}
+
+		static void applyMask(byte[] frame, int startIndex, int endIndex, byte[] mask) {
+			for(int i = 0; i < endIndex - startIndex; i++) {
+				frame[startIndex + i] = (byte) (frame[startIndex + i] ^ mask[i % 4]);
+			}
+		}
+	}
+}